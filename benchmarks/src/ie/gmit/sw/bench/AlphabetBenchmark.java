@@ -0,0 +1,85 @@
+package ie.gmit.sw.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ie.gmit.sw.Alphabet;
+import ie.gmit.sw.Cipher;
+import ie.gmit.sw.bench.CipherBenchmark.Bytes;
+import ie.gmit.sw.bench.Fixtures.Corpus;
+
+/**
+ * Each alphabet's kernel against the others (and the default alphabet's own
+ * loops). The default alphabet uses the SIMD kernel if it's available, so
+ * compare it with -Dfoursquare.vector=false too.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class AlphabetBenchmark {
+	@Param({"default", "classic", "printable", "latin1"})
+	public String alphabet;
+
+	// NON_ASCII_HEAVY text, or random bytes (every byte value equally likely)
+	@Param({"TEXT", "RANDOM"})
+	public String input;
+
+	@Param({"1048576"})
+	public int size;
+
+	private Cipher cipher;
+	private byte[] plain;
+	private byte[] encrypted;
+	private byte[] work;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		final Alphabet chosen = Alphabet.forName(alphabet);
+
+		cipher = new Cipher(Cipher.generateRandomKey(chosen), chosen);
+		if (input.equals("TEXT")) {
+			plain = Fixtures.buffer(Corpus.NON_ASCII_HEAVY, size);
+		}
+		else {
+			plain = new byte[size];
+			new Random(42).nextBytes(plain);
+		}
+		work = new byte[size];
+
+		encrypted = plain.clone();
+		cipher.encryptAll(encrypted, encrypted.length);
+	}
+
+	@Benchmark
+	public byte[] encryptAll(Bytes bytes) {
+		System.arraycopy(plain, 0, work, 0, size);
+		cipher.encryptAll(work, size);
+		bytes.megabytes += size / 1e6;
+		return work;
+	}
+
+	@Benchmark
+	public byte[] decryptAll(Bytes bytes) {
+		System.arraycopy(encrypted, 0, work, 0, size);
+		cipher.decryptAll(work, size);
+		bytes.megabytes += size / 1e6;
+		return work;
+	}
+
+}
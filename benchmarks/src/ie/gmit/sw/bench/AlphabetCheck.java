@@ -0,0 +1,224 @@
+package ie.gmit.sw.bench;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import ie.gmit.sw.Alphabet;
+import ie.gmit.sw.Cipher;
+import ie.gmit.sw.TableLayout;
+
+/**
+ * Plain pass/fail check that every alphabet encrypts and decrypts right:
+ * each bundled alphabet (the default one in every layout), plus alphabets
+ * of more than 128 chars made with Alphabet.of, is run over random bytes of
+ * lots of lengths (odd ones too, and not just multiples of 8) through
+ * encryptAll/decryptAll, encrypt/decrypt of arrays, and heap and direct
+ * ByteBuffers. The output is compared with the four-square worked out the
+ * slow way, straight from the key, and decrypting it has to give back the
+ * input (as the alphabet reads it). Exits with status 1 if anything doesn't
+ * match, like SharedCipherCheck.
+ *
+ * Run it with
+ *   java -cp benchmarks.jar ie.gmit.sw.bench.AlphabetCheck
+ */
+public final class AlphabetCheck {
+	// every length from 0 to 40, then some bigger ones around a multiple of 8
+	private static final int[] LENGTHS;
+
+	static {
+		final int[] big = { 1022, 1023, 1024, 1025, 4094, 4096, 4098, 4100, 9999, 10000 };
+		int i;
+
+		LENGTHS = new int[41 + big.length];
+		for (i = 0; i <= 40; ++i) {
+			LENGTHS[i] = i;
+		}
+		System.arraycopy(big, 0, LENGTHS, 41, big.length);
+	}
+
+	private final Random random = new Random(42);
+	private final List<String> failures = new ArrayList<>();
+	private int checks;
+
+	private AlphabetCheck() {
+	}
+
+	public static void main(String[] args) {
+		System.exit(new AlphabetCheck().run() ? 0 : 1);
+	}
+
+	/**
+	 * @return true if every check passed
+	 */
+	private boolean run() {
+		for (TableLayout layout : TableLayout.values()) {
+			check("default " + layout, Alphabet.DEFAULT, layout);
+		}
+		check("classic", Alphabet.CLASSIC_25, TableLayout.PACKED);
+		check("printable", Alphabet.PRINTABLE_100, TableLayout.PACKED);
+		check("latin1", Alphabet.LATIN_1, TableLayout.PACKED);
+
+		// (packed chars past 127, which a signed byte gets wrong)
+		for (int size : new int[] { 144, 169, 196, 225 }) {
+			check(size + " chars", bytesFrom(256 - size, size), TableLayout.PACKED);
+		}
+
+		for (String failure : failures) {
+			System.err.println("MISMATCH " + failure);
+		}
+		System.err.printf("%d checks: %s%n", checks, failures.isEmpty() ? "all match" : failures.size() + " failed");
+
+		return failures.isEmpty();
+	}
+
+	/**
+	 * @return An alphabet of size chars, the bytes from first onwards
+	 */
+	private static Alphabet bytesFrom(int first, int size) {
+		final StringBuilder chars = new StringBuilder();
+		int i;
+
+		for (i = 0; i < size; ++i) {
+			chars.append((char)(first + i));
+		}
+
+		return Alphabet.of(chars.toString(), chars.charAt(0));
+	}
+
+	/**
+	 * Runs every length of random bytes through every route of a new cipher
+	 * for the alphabet.
+	 */
+	private void check(String name, Alphabet alphabet, TableLayout layout) {
+		final String key = Cipher.generateRandomKey(alphabet);
+		final Cipher cipher = new Cipher(key, alphabet, layout);
+		byte[] input, read, expected;
+
+		for (int len : LENGTHS) {
+			input = new byte[len];
+			random.nextBytes(input);
+
+			read = readAs(alphabet, input);
+			expected = encryptSlowly(alphabet, key, read);
+
+			if (len % 2 == 0) {
+				checkEven(name + ", " + len + " bytes", cipher, input, read, expected);
+			}
+			else {
+				checkOdd(name + ", " + len + " bytes", cipher, input, expected);
+			}
+		}
+	}
+
+	/**
+	 * Checks every route for an even number of bytes.
+	 */
+	private void checkEven(String name, Cipher cipher, byte[] input, byte[] read, byte[] expected) {
+		final int len = input.length;
+		final byte[] buffer = input.clone();
+		final byte[] copy = new byte[len + 3];
+		final ByteBuffer heap = ByteBuffer.wrap(input.clone());
+		final ByteBuffer direct = ByteBuffer.allocateDirect(len);
+		final ByteBuffer directOut = ByteBuffer.allocateDirect(len);
+		final byte[] result = new byte[len];
+
+		// in place, both ways
+		cipher.encryptAll(buffer, len);
+		expect(name + ", encryptAll", expected, buffer);
+		cipher.decryptAll(buffer, len);
+		expect(name + ", decryptAll", read, buffer);
+
+		// from one array into another, not at the start of it
+		cipher.encrypt(input, 0, copy, 3, len);
+		expect(name + ", encrypt(array)", expected, Arrays.copyOfRange(copy, 3, len + 3));
+		cipher.decrypt(copy, 3, copy, 3, len);
+		expect(name + ", decrypt(array)", read, Arrays.copyOfRange(copy, 3, len + 3));
+
+		cipher.encrypt(heap);
+		expect(name + ", encrypt(heap buffer)", expected, heap.array());
+
+		direct.put(input).flip();
+		cipher.encrypt(direct, directOut);
+		directOut.get(0, result);
+		expect(name + ", encrypt(direct buffer)", expected, result);
+		cipher.decrypt(directOut.flip());
+		directOut.get(0, result);
+		expect(name + ", decrypt(direct buffer)", read, result);
+	}
+
+	/**
+	 * Checks an odd number of bytes: encryptAll/decryptAll make up the last
+	 * bigram with the byte after the limit, and encrypt/decrypt of arrays
+	 * leave the last byte alone.
+	 */
+	private void checkOdd(String name, Cipher cipher, byte[] input, byte[] expected) {
+		final int len = input.length;
+		final byte[] padded = Arrays.copyOf(input, len + 1);
+		final byte[] copy = new byte[len];
+		final Alphabet alphabet = cipher.getAlphabet();
+		final byte[] paddedRead;
+
+		padded[len] = (byte)random.nextInt(256);
+		paddedRead = readAs(alphabet, padded);
+
+		cipher.encryptAll(padded, len);
+		expect(name + ", encryptAll", encryptSlowly(alphabet, cipher.getKey(), paddedRead), padded);
+		cipher.decryptAll(padded, len);
+		expect(name + ", decryptAll", paddedRead, padded);
+
+		// (expected only covers the whole bigrams, and copy's last byte stays 0)
+		cipher.encrypt(input, 0, copy, 0, len);
+		expect(name + ", encrypt(array)", expected, copy);
+	}
+
+	private void expect(String name, byte[] expected, byte[] actual) {
+		++checks;
+		if (!Arrays.equals(expected, actual)) {
+			failures.add(name);
+		}
+	}
+
+	/**
+	 * @return The bytes as the alphabet reads them: anything not in it is the
+	 * placeholder, and folded chars are the ones they're folded onto
+	 */
+	private static byte[] readAs(Alphabet alphabet, byte[] input) {
+		final byte[] read = new byte[input.length];
+		int i, packed;
+
+		for (i = 0; i < input.length; ++i) {
+			packed = alphabet.indexOf((char)(input[i] & 0xFF));
+			read[i] = (byte)alphabet.charAt(packed == -1 ? alphabet.indexOf(alphabet.getPlaceholder()) : packed);
+		}
+
+		return read;
+	}
+
+	/**
+	 * Four-square the slow way: the first char of each bigram gives the row in
+	 * the first key square and the second the column, and the other way round
+	 * for the second key square.
+	 *
+	 * @param read Bytes already read as the alphabet (see readAs)
+	 */
+	private static byte[] encryptSlowly(Alphabet alphabet, String key, byte[] read) {
+		final int size = alphabet.size();
+		final int side = alphabet.side();
+		final byte[] encrypted = new byte[read.length];
+		int i, c1, c2;
+
+		for (i = 0; i + 1 < read.length; i += 2) {
+			c1 = alphabet.indexOf((char)(read[i] & 0xFF));
+			c2 = alphabet.indexOf((char)(read[i + 1] & 0xFF));
+
+			encrypted[i] = (byte)key.charAt(c1 / side * side + c2 % side);
+			encrypted[i + 1] = (byte)key.charAt(size + c2 / side * side + c1 % side);
+		}
+
+		return encrypted;
+	}
+
+}
@@ -0,0 +1,53 @@
+package ie.gmit.sw.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar.
+ *
+ * Runs the selected benchmarks twice, with the GC profiler always attached:
+ * once in throughput mode per second (where the "megabytes" column reads as
+ * MB/s), then once in average time mode for ns/op. Passing -bm on the
+ * command line runs just that one mode instead.
+ *
+ * Any standard JMH command line options still work, eg.
+ *   java -jar benchmarks.jar CipherBenchmark -p size=65536 -rf json
+ */
+public final class BenchmarkRunner {
+
+	private BenchmarkRunner() {
+	}
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions cmdOptions = new CommandLineOptions(args);
+
+		if (cmdOptions.getBenchModes().isEmpty()) {
+			run(cmdOptions, Mode.Throughput, TimeUnit.SECONDS);
+			run(cmdOptions, Mode.AverageTime, TimeUnit.NANOSECONDS);
+		}
+		else {
+			new Runner(new OptionsBuilder()
+					.parent(cmdOptions)
+					.addProfiler(GCProfiler.class)
+					.build()).run();
+		}
+	}
+
+	private static void run(CommandLineOptions cmdOptions, Mode mode, TimeUnit timeUnit) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.parent(cmdOptions)
+				.mode(mode)
+				.timeUnit(timeUnit)
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+
+}
@@ -0,0 +1,91 @@
+package ie.gmit.sw.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ie.gmit.sw.Cipher;
+import ie.gmit.sw.CipherCascade;
+import ie.gmit.sw.bench.CipherBenchmark.Bytes;
+import ie.gmit.sw.bench.Fixtures.Corpus;
+
+/**
+ * A cascade of 2 or 3 ciphers over 1MB: one encryptAll per stage, against
+ * one encryptAll with the fused cipher; plus how many cascades can be fused
+ * a second, which is paid once per cascade rather than per byte.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class CascadeBenchmark {
+	private static final int SIZE = 1024 * 1024;
+
+	@Param({"2", "3"})
+	public int stages;
+
+	private Cipher[] ciphers;
+	private Cipher fused;
+	private byte[] plain;
+	private byte[] work;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		int i;
+
+		ciphers = new Cipher[stages];
+		for (i = 0; i < stages; ++i) {
+			ciphers[i] = new Cipher(Cipher.generateRandomKey());
+		}
+
+		fused = cascade().toCipher();
+		plain = Fixtures.buffer(Corpus.ASCII, SIZE);
+		work = new byte[SIZE];
+	}
+
+	private CipherCascade cascade() {
+		final CipherCascade cascade = new CipherCascade();
+
+		for (Cipher cipher : ciphers) {
+			cascade.encrypt(cipher);
+		}
+		return cascade;
+	}
+
+	@Benchmark
+	public byte[] sequential(Bytes bytes) {
+		System.arraycopy(plain, 0, work, 0, SIZE);
+		for (Cipher cipher : ciphers) {
+			cipher.encryptAll(work, SIZE);
+		}
+		bytes.megabytes += SIZE / 1e6;
+		return work;
+	}
+
+	@Benchmark
+	public byte[] fused(Bytes bytes) {
+		System.arraycopy(plain, 0, work, 0, SIZE);
+		fused.encryptAll(work, SIZE);
+		bytes.megabytes += SIZE / 1e6;
+		return work;
+	}
+
+	@Benchmark
+	public Cipher build() {
+		return cascade().toCipher();
+	}
+
+}
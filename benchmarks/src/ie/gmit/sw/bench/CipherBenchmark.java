@@ -0,0 +1,128 @@
+package ie.gmit.sw.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ie.gmit.sw.Cipher;
+import ie.gmit.sw.bench.Fixtures.Corpus;
+
+/**
+ * Throughput of the bulk encrypt/decrypt loops, with no I/O involved.
+ *
+ * encryptAll works in place and replaces non-ASCII bytes as it goes, so the
+ * pristine input is copied back into the work buffer on every call.
+ * copyBaseline measures that copy on its own so it can be subtracted.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class CipherBenchmark {
+	// 64 bytes ~ a short record, 64K is CipherProcessor's buffer size
+	@Param({"64", "4096", "65536", "1048576"})
+	public int size;
+
+	@Param({"ASCII", "IRISH", "NON_ASCII_HEAVY"})
+	public Corpus corpus;
+
+	private Cipher cipher;
+	// untouched plaintext
+	private byte[] plain;
+	// plain, encrypted once (for the decryption benchmark)
+	private byte[] encrypted;
+	// scratch buffer the cipher works on
+	private byte[] work;
+	// plain, copied into off-heap memory
+	private ByteBuffer directPlain;
+	// off-heap scratch buffer
+	private ByteBuffer directWork;
+
+	/**
+	 * Reports bytes processed per second as an extra "megabytes" column;
+	 * with the Throughput mode that column reads directly as MB/s.
+	 */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Bytes {
+		public double megabytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			megabytes = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		cipher = new Cipher(Cipher.generateRandomKey());
+		plain = Fixtures.buffer(corpus, size);
+		work = new byte[size];
+
+		encrypted = plain.clone();
+		cipher.encryptAll(encrypted, encrypted.length);
+
+		directPlain = ByteBuffer.allocateDirect(size).put(plain).flip();
+		directWork = ByteBuffer.allocateDirect(size);
+	}
+
+	@Benchmark
+	public byte[] copyBaseline(Bytes bytes) {
+		System.arraycopy(plain, 0, work, 0, size);
+		bytes.megabytes += size / 1e6;
+		return work;
+	}
+
+	@Benchmark
+	public byte[] encryptAll(Bytes bytes) {
+		System.arraycopy(plain, 0, work, 0, size);
+		cipher.encryptAll(work, size);
+		bytes.megabytes += size / 1e6;
+		return work;
+	}
+
+	@Benchmark
+	public byte[] decryptAll(Bytes bytes) {
+		// copied as well, so both numbers carry the same copyBaseline overhead
+		System.arraycopy(encrypted, 0, work, 0, size);
+		cipher.decryptAll(work, size);
+		bytes.megabytes += size / 1e6;
+		return work;
+	}
+
+	@Benchmark
+	public ByteBuffer encryptDirect(Bytes bytes) {
+		// src -> dst variant, so there's no copy to undo
+		directPlain.clear();
+		directWork.clear();
+		cipher.encrypt(directPlain, directWork);
+		bytes.megabytes += size / 1e6;
+		return directWork;
+	}
+
+	@Benchmark
+	public ByteBuffer encryptDirectInPlace(Bytes bytes) {
+		directPlain.clear();
+		directWork.clear();
+		directWork.put(directPlain).flip();
+		cipher.encrypt(directWork);
+		bytes.megabytes += size / 1e6;
+		return directWork;
+	}
+
+}
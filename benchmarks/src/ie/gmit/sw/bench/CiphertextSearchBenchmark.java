@@ -0,0 +1,82 @@
+package ie.gmit.sw.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ie.gmit.sw.Cipher;
+import ie.gmit.sw.CiphertextSearch;
+import ie.gmit.sw.bench.CipherBenchmark.Bytes;
+import ie.gmit.sw.bench.Fixtures.Corpus;
+
+/**
+ * Searching 16MB of ciphertext for 1, 8 or 64 patterns (words and phrases
+ * taken from the text, 3 to 16 chars) without decrypting it, against just
+ * decrypting it. A search of the text would take the decryption plus a pass
+ * much like this one, so the search should be judged against the sum.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class CiphertextSearchBenchmark {
+	private static final int SIZE = 16 * 1024 * 1024;
+
+	@Param({"1", "8", "64"})
+	public int patterns;
+
+	private Cipher cipher;
+	private CiphertextSearch search;
+	private byte[] encrypted;
+	private byte[] work;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		final byte[] plain = Fixtures.buffer(Corpus.ASCII, SIZE);
+		final SplittableRandom random = new SplittableRandom(42);
+		final String[] chosen = new String[patterns];
+		int i, len;
+
+		for (i = 0; i < patterns; ++i) {
+			len = 3 + random.nextInt(14);
+			chosen[i] = new String(plain, random.nextInt(SIZE - len), len, StandardCharsets.ISO_8859_1);
+		}
+
+		cipher = new Cipher(Cipher.generateRandomKey());
+		search = new CiphertextSearch(cipher, chosen);
+		encrypted = plain.clone();
+		cipher.encryptAll(encrypted, SIZE);
+		work = new byte[SIZE];
+	}
+
+	@Benchmark
+	public List<CiphertextSearch.Match> search(Bytes bytes) {
+		bytes.megabytes += SIZE / 1e6;
+		return search.search(encrypted, SIZE);
+	}
+
+	@Benchmark
+	public byte[] decryptOnly(Bytes bytes) {
+		System.arraycopy(encrypted, 0, work, 0, SIZE);
+		cipher.decryptAll(work, SIZE);
+		bytes.megabytes += SIZE / 1e6;
+		return work;
+	}
+
+}
@@ -0,0 +1,94 @@
+package ie.gmit.sw.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ie.gmit.sw.Cipher;
+import ie.gmit.sw.CipherContainer;
+import ie.gmit.sw.bench.CipherBenchmark.Bytes;
+
+/**
+ * Reading 50 lines from a random place in a 256MB CipherContainer, for a few
+ * chunk sizes, plain and packed; against decrypting the whole text, which is
+ * what it would take without the container.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ContainerBenchmark {
+	private static final long TEXT_LEN = 256L << 20;
+	private static final int LINES = 50;
+
+	@Param({"4096", "65536", "1048576"})
+	public int chunkLen;
+
+	@Param({"false", "true"})
+	public boolean packed;
+
+	private Path textFile;
+	private Path containerFile;
+	private CipherContainer container;
+	private final SplittableRandom random = new SplittableRandom(42);
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		final Cipher cipher = new Cipher(Cipher.generateRandomKey());
+
+		textFile = Files.createTempFile("container", ".txt");
+		containerFile = Files.createTempFile("container", ".4sq");
+		new CorpusGenerator(TEXT_LEN, 0.01, 0, 42).write(textFile);
+
+		CipherContainer.create(cipher, textFile, containerFile, chunkLen, packed);
+		container = CipherContainer.open(containerFile, cipher);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		container.close();
+		Files.delete(textFile);
+		Files.delete(containerFile);
+	}
+
+	@Benchmark
+	public byte[] readLines(Bytes bytes) throws IOException {
+		final byte[] lines = container.readLines(random.nextLong(container.lineCount()), LINES);
+
+		bytes.megabytes += lines.length / 1e6;
+		return lines;
+	}
+
+	/**
+	 * Decrypts the whole text (through the container, so the padding is left
+	 * off); fewer iterations, since each one takes a while.
+	 */
+	@Benchmark
+	@Warmup(iterations = 1)
+	@Measurement(iterations = 2)
+	public byte[] readWhole(Bytes bytes) throws IOException {
+		final byte[] text = container.read(0, (int)TEXT_LEN);
+
+		bytes.megabytes += text.length / 1e6;
+		return text;
+	}
+
+}
@@ -0,0 +1,261 @@
+package ie.gmit.sw.bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.stream.LongStream;
+
+/**
+ * Generates synthetic text files of any size (1MB to tens of GB), for
+ * benchmarks that need more input than the sample files in export/input.
+ *
+ * The text is made up words in sentences and lines, with a tunable share of
+ * non-ASCII characters (2 byte UTF-8 accented letters), and a tunable share
+ * of line endings written as \r\n instead of \n. The file is exactly the size
+ * asked for, so odd lengths (and the padding character) are easy to test.
+ *
+ * The same settings always give the same bytes: the file is generated in 1MB
+ * chunks, each from its own random seed (worked out from the seed and the
+ * chunk's position), so the chunks can be generated on every core at once and
+ * written straight into place.
+ *
+ * Run it on its own with
+ *   java -cp benchmarks.jar ie.gmit.sw.bench.CorpusGenerator --size 10G --out FILE [options]
+ *
+ * Options (all optional, except --size and --out):
+ *   --non-ascii R   share of letters that are non-ASCII, 0 to 1 (0.01)
+ *   --crlf R        share of line endings that are \r\n, 0 to 1 (0)
+ *   --seed N        random seed (42)
+ * Sizes can end in K, M or G (powers of 1024).
+ */
+public final class CorpusGenerator {
+	// size of each independently generated chunk
+	private static final int CHUNK_LEN = 1 << 20;
+	// non-ASCII letters, as UTF-8 (every one is 2 bytes)
+	private static final byte[][] NON_ASCII = utf8("áéíóúÁÉÍÓÚñçüöäß");
+	private static final byte[] PUNCTUATION = ",,,,..;:!?'\"-".getBytes(StandardCharsets.US_ASCII);
+	// most lines are about this long
+	private static final int LINE_LEN = 72;
+
+	private final long size;
+	private final double nonAsciiRatio;
+	private final double crlfRatio;
+	private final long seed;
+
+	/**
+	 * @param size Length of the file, in bytes
+	 * @param nonAsciiRatio Share of letters that are non-ASCII, 0 to 1
+	 * @param crlfRatio Share of line endings that are \r\n, 0 to 1
+	 * @param seed Random seed; the same settings always give the same file
+	 */
+	public CorpusGenerator(long size, double nonAsciiRatio, double crlfRatio, long seed) {
+		if (size < 0 || nonAsciiRatio < 0 || nonAsciiRatio > 1 || crlfRatio < 0 || crlfRatio > 1) {
+			throw new IllegalArgumentException("Size must be positive and ratios from 0 to 1");
+		}
+
+		this.size = size;
+		this.nonAsciiRatio = nonAsciiRatio;
+		this.crlfRatio = crlfRatio;
+		this.seed = seed;
+	}
+
+	public static void main(String[] args) throws IOException {
+		long size = -1;
+		double nonAscii = 0.01;
+		double crlf = 0;
+		long seed = 42;
+		String out = null;
+		int i;
+
+		for (i = 0; i + 1 < args.length; i += 2) {
+			switch (args[i]) {
+			case "--size": size = parseSize(args[i + 1]); break;
+			case "--non-ascii": nonAscii = Double.parseDouble(args[i + 1]); break;
+			case "--crlf": crlf = Double.parseDouble(args[i + 1]); break;
+			case "--seed": seed = Long.parseLong(args[i + 1]); break;
+			case "--out": out = args[i + 1]; break;
+			default: throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+		if (size < 0 || out == null) {
+			throw new IllegalArgumentException("--size and --out are needed");
+		}
+
+		final long start = System.nanoTime();
+		new CorpusGenerator(size, nonAscii, crlf, seed).write(Paths.get(out));
+		System.out.printf("Wrote %,d bytes to %s in %.1fs%n", size, out, (System.nanoTime() - start) / 1e9);
+	}
+
+	/**
+	 * Running time: O(n / p), for p cores
+	 * Reasoning: Each byte is generated in O(1) time, and the chunks are
+	 * shared out between the cores.
+	 *
+	 * Space complexity: O(p)
+	 * Reasoning: One chunk per core in memory at once.
+	 *
+	 * @param path The file to write; created or overwritten
+	 */
+	public void write(Path path) throws IOException {
+		final long chunks = (size + CHUNK_LEN - 1) / CHUNK_LEN;
+
+		try (FileChannel out = FileChannel.open(path,
+				StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			LongStream.range(0, chunks).parallel().forEach(chunk -> {
+				ByteBuffer buffer = ByteBuffer.wrap(chunk(chunk));
+				long pos = chunk * CHUNK_LEN;
+
+				try {
+					// (positional writes; safe from any number of threads at once)
+					while (buffer.hasRemaining()) {
+						pos += out.write(buffer, pos);
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Writes the file into dir, unless it's already there (with the same name,
+	 * which is made from the settings, and the right size).
+	 *
+	 * @return The file
+	 */
+	public Path writeTo(Path dir) throws IOException {
+		final Path path = dir.resolve(fileName());
+
+		if (!Files.isRegularFile(path) || Files.size(path) != size) {
+			Files.createDirectories(dir);
+			write(path);
+		}
+
+		return path;
+	}
+
+	/**
+	 * @return A file name made from the settings, eg. synthetic-64M-n0.01-cr0.5-s42.txt
+	 */
+	public String fileName() {
+		return String.format(Locale.ROOT, "synthetic-%s-n%s-cr%s-s%d.txt",
+				formatSize(size), nonAsciiRatio, crlfRatio, seed);
+	}
+
+	/**
+	 * @return The settings, in the same form as the command line options
+	 */
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "--non-ascii %s --crlf %s --seed %d", nonAsciiRatio, crlfRatio, seed);
+	}
+
+	/**
+	 * Generates one chunk of the file; the last one is cut short at the size.
+	 */
+	private byte[] chunk(long index) {
+		final SplittableRandom random = new SplittableRandom(seed * 0x9E3779B97F4A7C15L + index);
+		final byte[] chunk = new byte[(int)Math.min(CHUNK_LEN, size - index * CHUNK_LEN)];
+		final int len = chunk.length;
+		// where the current line started, and how long it'll be
+		int lineStart = 0;
+		int lineLen = LINE_LEN;
+		boolean sentenceStart = true;
+		int pos = 0;
+		int wordLen, i;
+		byte[] letter;
+
+		while (pos < len) {
+			if (pos - lineStart >= lineLen) {
+				// end of the line (only room for a \n if it's the last byte)
+				if (pos + 1 < len && random.nextDouble() < crlfRatio) {
+					chunk[pos++] = '\r';
+				}
+				chunk[pos++] = '\n';
+				lineStart = pos;
+				lineLen = LINE_LEN - 12 + random.nextInt(24);
+				continue;
+			}
+
+			wordLen = 1 + random.nextInt(3) + random.nextInt(6);
+			for (i = 0; i < wordLen && pos < len; ++i) {
+				if (random.nextDouble() < nonAsciiRatio && pos + 1 < len) {
+					letter = NON_ASCII[random.nextInt(NON_ASCII.length)];
+					chunk[pos++] = letter[0];
+					chunk[pos++] = letter[1];
+				}
+				else if (i == 0 && sentenceStart) {
+					chunk[pos++] = (byte)('A' + random.nextInt(26));
+				}
+				else if (random.nextInt(64) == 0) {
+					chunk[pos++] = (byte)('0' + random.nextInt(10));
+				}
+				else {
+					chunk[pos++] = (byte)('a' + random.nextInt(26));
+				}
+			}
+			sentenceStart = false;
+
+			if (pos < len && random.nextInt(8) == 0) {
+				chunk[pos] = PUNCTUATION[random.nextInt(PUNCTUATION.length)];
+				sentenceStart = (chunk[pos] == '.' || chunk[pos] == '!' || chunk[pos] == '?');
+				++pos;
+			}
+			if (pos < len && pos - lineStart < lineLen) {
+				chunk[pos++] = ' ';
+			}
+		}
+
+		return chunk;
+	}
+
+	/**
+	 * @return A size like 123, 64K, 512M or 10G in bytes (K, M and G are
+	 * powers of 1024)
+	 */
+	public static long parseSize(String size) {
+		final char unit = Character.toUpperCase(size.charAt(size.length() - 1));
+		final int shift = (unit == 'K' ? 10 : unit == 'M' ? 20 : unit == 'G' ? 30 : 0);
+		final String number = shift == 0 ? size : size.substring(0, size.length() - 1);
+
+		return Long.parseLong(number) << shift;
+	}
+
+	/**
+	 * @return The size in the biggest unit it's a whole number of (the
+	 * reverse of parseSize)
+	 */
+	public static String formatSize(long size) {
+		if (size != 0 && size % (1L << 30) == 0) {
+			return size / (1L << 30) + "G";
+		}
+		if (size != 0 && size % (1L << 20) == 0) {
+			return size / (1L << 20) + "M";
+		}
+		if (size != 0 && size % (1L << 10) == 0) {
+			return size / (1L << 10) + "K";
+		}
+		return Long.toString(size);
+	}
+
+	private static byte[][] utf8(String chars) {
+		byte[][] bytes = new byte[chars.length()][];
+
+		for (int i = 0; i < chars.length(); ++i) {
+			bytes[i] = chars.substring(i, i + 1).getBytes(StandardCharsets.UTF_8);
+		}
+
+		return bytes;
+	}
+
+}
@@ -0,0 +1,109 @@
+package ie.gmit.sw.bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Loads the sample corpora bundled in export/input so every benchmark
+ * works on the same, realistic text.
+ *
+ * The input directory can be overridden with -Dfoursquare.input=/some/dir
+ * (it is looked up relative to the working directory otherwise, so the
+ * benchmarks can be launched from either the project root or benchmarks/).
+ */
+public final class Fixtures {
+	private static final String INPUT_PROPERTY = "foursquare.input";
+	private static final String[] DEFAULT_INPUT_DIRS = {"export/input", "../export/input"};
+
+	/**
+	 * The kind of text a benchmark buffer is filled with.
+	 */
+	public enum Corpus {
+		// plain English; every byte is ASCII
+		ASCII,
+		// the Irish proclamation; mostly ASCII with the odd fada
+		IRISH,
+		// War and Peace with every vowel swapped for its accented UTF-8 form,
+		// so roughly 1 in 4 bigrams contains a byte >= 0x80
+		NON_ASCII_HEAVY
+	}
+
+	private Fixtures() {
+	}
+
+	/**
+	 * Returns the directory holding the bundled corpora.
+	 */
+	public static Path inputDir() {
+		String override = System.getProperty(INPUT_PROPERTY);
+		if (override != null) {
+			return Paths.get(override);
+		}
+
+		for (String dir : DEFAULT_INPUT_DIRS) {
+			Path path = Paths.get(dir);
+			if (Files.isDirectory(path)) {
+				return path;
+			}
+		}
+
+		throw new IllegalStateException("Can't find the sample input folder; run from the project root or set -D"
+				+ INPUT_PROPERTY);
+	}
+
+	/**
+	 * Reads one of the bundled files, relative to the input directory.
+	 */
+	public static byte[] read(String fileName) {
+		try {
+			return Files.readAllBytes(inputDir().resolve(fileName));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Returns the raw bytes of the given corpus.
+	 */
+	public static byte[] corpus(Corpus corpus) {
+		switch (corpus) {
+		case ASCII:
+			return read("WarAndPeace-LeoTolstoy.txt");
+		case IRISH:
+			return read("PoblachtNaHEireann.txt");
+		case NON_ASCII_HEAVY:
+			return new String(read("WarAndPeace-LeoTolstoy.txt"), StandardCharsets.US_ASCII)
+					.replace('a', 'á')
+					.replace('e', 'é')
+					.replace('i', 'í')
+					.replace('o', 'ó')
+					.replace('u', 'ú')
+					.getBytes(StandardCharsets.UTF_8);
+		default:
+			throw new IllegalArgumentException(corpus.toString());
+		}
+	}
+
+	/**
+	 * Fills a buffer of exactly 'size' bytes by repeating the corpus as
+	 * many times as necessary (or truncating it).
+	 */
+	public static byte[] buffer(Corpus corpus, int size) {
+		byte[] source = corpus(corpus);
+		byte[] buffer = new byte[size];
+		int pos = 0;
+
+		while (pos < size) {
+			int len = Math.min(source.length, size - pos);
+			System.arraycopy(source, 0, buffer, pos, len);
+			pos += len;
+		}
+
+		return buffer;
+	}
+
+}
@@ -0,0 +1,97 @@
+package ie.gmit.sw.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ie.gmit.sw.Cipher;
+import ie.gmit.sw.bench.CipherBenchmark.Bytes;
+import ie.gmit.sw.bench.Fixtures.Corpus;
+
+/**
+ * The plain encryption loop against the SIMD (Vector API) one.
+ *
+ * The kernel is picked when the JVM starts, so each one gets its own forks:
+ * the scalar ones with the kernel switched off, the vector ones with the
+ * incubator module added.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Thread)
+public class KernelBenchmark {
+	private static final String SCALAR = "-Dfoursquare.vector=false";
+	private static final String VECTOR = "--add-modules=jdk.incubator.vector";
+
+	@Param({"64", "65536"})
+	public int size;
+
+	@Param({"ASCII", "NON_ASCII_HEAVY"})
+	public Corpus corpus;
+
+	private Cipher cipher;
+	private byte[] plain;
+	private byte[] encrypted;
+	private byte[] work;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		cipher = new Cipher(Cipher.generateRandomKey());
+		plain = Fixtures.buffer(corpus, size);
+		work = new byte[size];
+
+		encrypted = plain.clone();
+		cipher.encryptAll(encrypted, encrypted.length);
+	}
+
+	private byte[] encrypt(Bytes bytes) {
+		System.arraycopy(plain, 0, work, 0, size);
+		cipher.encryptAll(work, size);
+		bytes.megabytes += size / 1e6;
+		return work;
+	}
+
+	private byte[] decrypt(Bytes bytes) {
+		System.arraycopy(encrypted, 0, work, 0, size);
+		cipher.decryptAll(work, size);
+		bytes.megabytes += size / 1e6;
+		return work;
+	}
+
+	@Benchmark
+	@Fork(value = 2, jvmArgsAppend = SCALAR)
+	public byte[] encryptScalar(Bytes bytes) {
+		return encrypt(bytes);
+	}
+
+	@Benchmark
+	@Fork(value = 2, jvmArgsAppend = VECTOR)
+	public byte[] encryptVector(Bytes bytes) {
+		return encrypt(bytes);
+	}
+
+	@Benchmark
+	@Fork(value = 2, jvmArgsAppend = SCALAR)
+	public byte[] decryptScalar(Bytes bytes) {
+		return decrypt(bytes);
+	}
+
+	@Benchmark
+	@Fork(value = 2, jvmArgsAppend = VECTOR)
+	public byte[] decryptVector(Bytes bytes) {
+		return decrypt(bytes);
+	}
+
+}
@@ -0,0 +1,120 @@
+package ie.gmit.sw.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ie.gmit.sw.Cipher;
+import ie.gmit.sw.KeySanitiser;
+import ie.gmit.sw.KeySquares;
+
+/**
+ * Cost of everything that happens before the first byte is encrypted:
+ * generating a key, sanitising a user-supplied key (or a batch of them)
+ * and building the lookup tables; and of changing a key a little in a
+ * KeySquares (patching its tables) instead of building a new cipher.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class KeyBenchmark {
+	private static final int BULK_KEYS = 4096;
+
+	/**
+	 * The shape of the raw key a user might type in.
+	 */
+	public enum KeyInput {
+		// a short pass phrase; mostly padding work
+		SHORT,
+		// a full-length key with lots of duplicates and unsupported chars
+		MESSY,
+		// a full, already valid key; the common case for stored keys
+		VALID
+	}
+
+	@Param({"SHORT", "MESSY", "VALID"})
+	public KeyInput keyInput;
+
+	private String key;
+	private String rawKey;
+	private String[] rawKeys;
+	private KeySquares mutable;
+	private int step;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		key = Cipher.generateRandomKey();
+		mutable = new KeySquares(key);
+
+		switch (keyInput) {
+		case SHORT:
+			rawKey = "Four square cipher";
+			break;
+		case MESSY:
+			rawKey = new String(Fixtures.read("PoblachtNaHEireann.txt"),
+					StandardCharsets.UTF_8).substring(0, Cipher.ALPHABET_SIZE * 4);
+			break;
+		case VALID:
+			rawKey = key;
+			break;
+		}
+
+		rawKeys = new String[BULK_KEYS];
+		Arrays.fill(rawKeys, rawKey);
+	}
+
+	@Benchmark
+	public Cipher init() {
+		return new Cipher(key);
+	}
+
+	@Benchmark
+	public KeySquares swapCells() {
+		// a different pair of cells (and square) every time
+		++step;
+		mutable.swapCells(1 + (step & 1), step % 9, (step >> 1) % 9, (step >> 2) % 9, (step >> 3) % 9);
+		return mutable;
+	}
+
+	@Benchmark
+	public KeySquares swapRows() {
+		++step;
+		mutable.swapRows(1 + (step & 1), step % 9, (step >> 1) % 9);
+		return mutable;
+	}
+
+	@Benchmark
+	public String generateRandomKey() {
+		return Cipher.generateRandomKey();
+	}
+
+	@Benchmark
+	public String sanitise() {
+		return KeySanitiser.sanitise(rawKey);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BULK_KEYS)
+	public String[] sanitiseAll() {
+		// a key store's worth at once, on every core
+		return KeySanitiser.sanitiseAll(rawKeys);
+	}
+
+}
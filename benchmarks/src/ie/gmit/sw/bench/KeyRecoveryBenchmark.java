@@ -0,0 +1,83 @@
+package ie.gmit.sw.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ie.gmit.sw.Cipher;
+import ie.gmit.sw.KeyRecovery;
+import ie.gmit.sw.NgramModel;
+import ie.gmit.sw.bench.Fixtures.Corpus;
+
+/**
+ * Candidate keys tried per second by the key search: a short fixed budget of
+ * iterations per restart, one restart per thread, over ciphertext of a few
+ * lengths (each candidate decrypts and scores the whole ciphertext).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class KeyRecoveryBenchmark {
+	private static final int ITERATIONS = 20_000;
+
+	@Param({"500", "2000"})
+	public int ciphertextLen;
+
+	// 0 for one per core
+	@Param({"1", "0"})
+	public int threads;
+
+	private byte[] ciphertext;
+	private KeyRecovery recovery;
+
+	/**
+	 * Reports candidate keys tried as an extra "keys" column; with the
+	 * Throughput mode that column reads directly as keys/s.
+	 */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Keys {
+		public long keys;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			keys = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		byte[] training = Fixtures.corpus(Corpus.ASCII);
+		int threadCount = threads == 0 ? Runtime.getRuntime().availableProcessors() : threads;
+
+		ciphertext = Fixtures.buffer(Corpus.ASCII, ciphertextLen);
+		new Cipher(Cipher.generateRandomKey()).encryptAll(ciphertext, ciphertextLen);
+
+		recovery = new KeyRecovery(NgramModel.train(training, training.length, NgramModel.DEFAULT_N),
+				threadCount, ITERATIONS, threadCount);
+	}
+
+	@Benchmark
+	public KeyRecovery.Result recover(Keys keys) throws InterruptedException {
+		KeyRecovery.Result result = recovery.recover(ciphertext, ciphertextLen);
+
+		keys.keys += result.getCandidates();
+		return result;
+	}
+
+}
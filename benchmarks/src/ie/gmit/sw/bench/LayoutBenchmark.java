@@ -0,0 +1,81 @@
+package ie.gmit.sw.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ie.gmit.sw.Cipher;
+import ie.gmit.sw.TableLayout;
+import ie.gmit.sw.bench.CipherBenchmark.Bytes;
+import ie.gmit.sw.bench.Fixtures.Corpus;
+
+/**
+ * The three plain lookup table layouts against each other. Which one wins
+ * comes down to the CPU's cache sizes, so it's worth running on the target
+ * machine. (The SIMD kernel, TableLayout.VECTOR, is up against the plain
+ * loop in KernelBenchmark.)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class LayoutBenchmark {
+	@Param({"PACKED", "DENSE", "DIRECT"})
+	public TableLayout layout;
+
+	@Param({"4096", "1048576"})
+	public int size;
+
+	@Param({"ASCII", "NON_ASCII_HEAVY"})
+	public Corpus corpus;
+
+	private Cipher cipher;
+	private byte[] plain;
+	private byte[] encrypted;
+	private byte[] work;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		cipher = new Cipher(Cipher.generateRandomKey(), layout);
+		plain = Fixtures.buffer(corpus, size);
+		work = new byte[size];
+
+		encrypted = plain.clone();
+		cipher.encryptAll(encrypted, encrypted.length);
+	}
+
+	@Benchmark
+	public byte[] encryptAll(Bytes bytes) {
+		System.arraycopy(plain, 0, work, 0, size);
+		cipher.encryptAll(work, size);
+		bytes.megabytes += size / 1e6;
+		return work;
+	}
+
+	@Benchmark
+	public byte[] decryptAll(Bytes bytes) {
+		System.arraycopy(encrypted, 0, work, 0, size);
+		cipher.decryptAll(work, size);
+		bytes.megabytes += size / 1e6;
+		return work;
+	}
+
+	@Benchmark
+	public Cipher init() {
+		return new Cipher(Cipher.generateRandomKey(), layout);
+	}
+
+}
@@ -0,0 +1,68 @@
+package ie.gmit.sw.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ie.gmit.sw.Cipher;
+import ie.gmit.sw.CipherMetrics;
+import ie.gmit.sw.PipelinedCipherProcessor;
+import ie.gmit.sw.bench.CipherBenchmark.Bytes;
+import ie.gmit.sw.bench.Fixtures.Corpus;
+import ie.gmit.sw.bench.PipelineBenchmark.ThrottledChannel;
+
+/**
+ * What metrics cost: 16MB through the pipelined processor with I/O that's
+ * (practically) free, so the cipher is the bottleneck, with no metrics and
+ * with them recording every buffer.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Thread)
+public class MetricsBenchmark {
+	private static final int INPUT_LEN = 16 * 1024 * 1024;
+	// fast enough that the throttle never waits
+	private static final int UNTHROTTLED = 1_000_000;
+
+	@Param({"false", "true"})
+	public boolean metrics;
+
+	@Param({"ASCII", "NON_ASCII_HEAVY"})
+	public Corpus corpus;
+
+	private byte[] input;
+	private PipelinedCipherProcessor pipeline;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		input = Fixtures.buffer(corpus, INPUT_LEN);
+		pipeline = new PipelinedCipherProcessor(new Cipher(Cipher.generateRandomKey()));
+		pipeline.setMetrics(metrics ? new CipherMetrics() : null);
+	}
+
+	@Benchmark
+	public long encrypt(Bytes bytes) throws IOException {
+		ThrottledChannel channel = new ThrottledChannel(input, UNTHROTTLED);
+
+		pipeline.process(channel, channel, true);
+
+		bytes.megabytes += INPUT_LEN / 1e6;
+		return channel.written;
+	}
+
+}
@@ -0,0 +1,99 @@
+package ie.gmit.sw.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ie.gmit.sw.NgramModel;
+import ie.gmit.sw.NgramStatsBuilder;
+import ie.gmit.sw.bench.CipherBenchmark.Bytes;
+import ie.gmit.sw.bench.Fixtures.Corpus;
+
+/**
+ * Building n-gram counts from a file on one thread against every core, and
+ * scoring text with a model built in memory against one memory mapped from
+ * a saved table.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class NgramBenchmark {
+	private static final int CORPUS_LEN = 64 * 1024 * 1024;
+	private static final int SCORED_LEN = 4096;
+
+	@Param({"2", "3"})
+	public int n;
+
+	// 0 for one per core
+	@Param({"1", "0"})
+	public int threads;
+
+	private Path corpusFile;
+	private Path tableFile;
+	private NgramModel built;
+	private NgramModel mapped;
+	private byte[] packed;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		corpusFile = Files.createTempFile("corpus", ".txt");
+		tableFile = Files.createTempFile("model", ".ngrams");
+		Files.write(corpusFile, Fixtures.buffer(Corpus.ASCII, CORPUS_LEN));
+
+		built = new NgramStatsBuilder(n).add(corpusFile).toModel();
+		built.save(tableFile);
+		mapped = NgramModel.load(tableFile);
+
+		// scored as packed chars, as the key search does
+		packed = new byte[SCORED_LEN];
+		for (int i = 0; i < SCORED_LEN; ++i) {
+			packed[i] = (byte)(i * 31 % 81);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Files.delete(corpusFile);
+		Files.delete(tableFile);
+	}
+
+	@Benchmark
+	public long count(Bytes bytes) throws IOException {
+		NgramStatsBuilder builder = new NgramStatsBuilder(n,
+				threads == 0 ? Runtime.getRuntime().availableProcessors() : threads).add(corpusFile);
+
+		bytes.megabytes += CORPUS_LEN / 1e6;
+		return builder.getTotal();
+	}
+
+	@Benchmark
+	public float scoreBuilt(Bytes bytes) {
+		bytes.megabytes += SCORED_LEN / 1e6;
+		return built.score(packed, SCORED_LEN);
+	}
+
+	@Benchmark
+	public float scoreMapped(Bytes bytes) {
+		bytes.megabytes += SCORED_LEN / 1e6;
+		return mapped.score(packed, SCORED_LEN);
+	}
+
+}
@@ -0,0 +1,138 @@
+package ie.gmit.sw.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ie.gmit.sw.Alphabet;
+import ie.gmit.sw.Cipher;
+import ie.gmit.sw.PackedFormat;
+import ie.gmit.sw.PackedOutputStream;
+import ie.gmit.sw.bench.CipherBenchmark.Bytes;
+import ie.gmit.sw.bench.Fixtures.Corpus;
+
+/**
+ * The packed binary format against the plain one, over the same text: packing
+ * and unpacking in memory, and packing through PackedOutputStream in 4KB
+ * writes. The "megabytes" column is MB of text (not ciphertext) either way.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class PackedFormatBenchmark {
+	@Param({"default", "printable", "latin1"})
+	public String alphabet;
+
+	@Param({"1048576"})
+	public int size;
+
+	private Cipher cipher;
+	private PackedFormat format;
+	private byte[] plain;
+	private byte[] encrypted;
+	private byte[] packed;
+	private byte[] work;
+	private byte[] packedWork;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		final Alphabet chosen = Alphabet.forName(alphabet);
+
+		cipher = new Cipher(Cipher.generateRandomKey(chosen), chosen);
+		format = new PackedFormat(cipher);
+		plain = Fixtures.buffer(Corpus.ASCII, size);
+		work = new byte[size];
+
+		encrypted = plain.clone();
+		cipher.encryptAll(encrypted, encrypted.length);
+		packed = new byte[(int)format.packedLength(size)];
+		format.encrypt(plain, 0, size, packed, 0);
+		packedWork = new byte[packed.length];
+	}
+
+	@Benchmark
+	public byte[] plainEncrypt(Bytes bytes) {
+		System.arraycopy(plain, 0, work, 0, size);
+		cipher.encryptAll(work, size);
+		bytes.megabytes += size / 1e6;
+		return work;
+	}
+
+	@Benchmark
+	public byte[] packedEncrypt(Bytes bytes) {
+		format.encrypt(plain, 0, size, packedWork, 0);
+		bytes.megabytes += size / 1e6;
+		return packedWork;
+	}
+
+	@Benchmark
+	public byte[] plainDecrypt(Bytes bytes) {
+		System.arraycopy(encrypted, 0, work, 0, size);
+		cipher.decryptAll(work, size);
+		bytes.megabytes += size / 1e6;
+		return work;
+	}
+
+	@Benchmark
+	public byte[] packedDecrypt(Bytes bytes) {
+		format.decrypt(packed, 0, packed.length, work, 0);
+		bytes.megabytes += size / 1e6;
+		return work;
+	}
+
+	@Benchmark
+	public byte[] packedStream(Bytes bytes) throws IOException {
+		final ArrayOutput sink = new ArrayOutput(packedWork);
+		final PackedOutputStream out = new PackedOutputStream(sink, format);
+		int pos;
+
+		for (pos = 0; pos < size; pos += 4096) {
+			out.write(plain, pos, Math.min(4096, size - pos));
+		}
+		out.finish();
+
+		bytes.megabytes += size / 1e6;
+		return packedWork;
+	}
+
+	/**
+	 * Writes into a fixed array, so the stream benchmark measures packing and
+	 * not a ByteArrayOutputStream growing.
+	 */
+	private static final class ArrayOutput extends OutputStream {
+		private final byte[] array;
+		private int count;
+
+		ArrayOutput(byte[] array) {
+			this.array = array;
+		}
+
+		@Override
+		public void write(int b) {
+			array[count++] = (byte)b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			System.arraycopy(b, off, array, count, len);
+			count += len;
+		}
+	}
+
+}
@@ -0,0 +1,162 @@
+package ie.gmit.sw.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ie.gmit.sw.Cipher;
+import ie.gmit.sw.PipelinedCipherProcessor;
+import ie.gmit.sw.bench.CipherBenchmark.Bytes;
+import ie.gmit.sw.bench.Fixtures.Corpus;
+
+/**
+ * The serial read/encrypt/write loop (as in CipherProcessor) against the
+ * pipelined one, with the input and output throttled to a fixed rate to
+ * stand in for a disk or network. Serially the three stages add up; in the
+ * pipeline the total should come close to the slowest of them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Thread)
+public class PipelineBenchmark {
+	private static final int INPUT_LEN = 16 * 1024 * 1024;
+
+	// simulated read and write speed, in MB/s
+	@Param({"250", "1000"})
+	public int ioMegabytesPerSecond;
+
+	@Param({"65536"})
+	public int bufferLen;
+
+	@Param({"8"})
+	public int ringDepth;
+
+	private Cipher cipher;
+	private byte[] input;
+	private ByteBuffer serialBuffer;
+	private PipelinedCipherProcessor pipeline;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		cipher = new Cipher(Cipher.generateRandomKey());
+		input = Fixtures.buffer(Corpus.ASCII, INPUT_LEN);
+		serialBuffer = ByteBuffer.allocateDirect(bufferLen);
+		pipeline = new PipelinedCipherProcessor(cipher, bufferLen, ringDepth, 1);
+	}
+
+	@Benchmark
+	public long serial(Bytes bytes) throws IOException {
+		ThrottledChannel channel = new ThrottledChannel(input, ioMegabytesPerSecond);
+
+		do {
+			serialBuffer.clear();
+			while (serialBuffer.hasRemaining() && channel.read(serialBuffer) != -1);
+
+			serialBuffer.flip();
+			cipher.encrypt(serialBuffer);
+			serialBuffer.flip();
+
+			while (serialBuffer.hasRemaining()) {
+				channel.write(serialBuffer);
+			}
+		} while (serialBuffer.limit() == bufferLen);
+
+		bytes.megabytes += INPUT_LEN / 1e6;
+		return channel.written;
+	}
+
+	@Benchmark
+	public long pipelined(Bytes bytes) throws IOException {
+		ThrottledChannel channel = new ThrottledChannel(input, ioMegabytesPerSecond);
+
+		pipeline.process(channel, channel, true);
+
+		bytes.megabytes += INPUT_LEN / 1e6;
+		return channel.written;
+	}
+
+	/**
+	 * Reads from a byte array and throws writes away, each side no faster than
+	 * the given rate. Waits by parking, like real blocking I/O, so the waiting
+	 * thread leaves the CPU free for the others. Reads and writes are throttled
+	 * separately, as they would be on two different devices.
+	 */
+	static final class ThrottledChannel implements ReadableByteChannel, WritableByteChannel {
+		private final byte[] data;
+		private final double nanosPerByte;
+		private int position;
+		// earliest time the next read/write can finish
+		private long readClock;
+		private long writeClock;
+		long written;
+
+		ThrottledChannel(byte[] data, int megabytesPerSecond) {
+			this.data = data;
+			this.nanosPerByte = 1e3 / megabytesPerSecond;
+			readClock = writeClock = System.nanoTime();
+		}
+
+		@Override
+		public int read(ByteBuffer dst) {
+			int len = Math.min(dst.remaining(), data.length - position);
+
+			if (len <= 0) {
+				return -1;
+			}
+
+			dst.put(data, position, len);
+			position += len;
+			readClock = waitUntil(Math.max(readClock, System.nanoTime()) + (long)(len * nanosPerByte));
+			return len;
+		}
+
+		@Override
+		public int write(ByteBuffer src) {
+			int len = src.remaining();
+
+			src.position(src.limit());
+			written += len;
+			writeClock = waitUntil(Math.max(writeClock, System.nanoTime()) + (long)(len * nanosPerByte));
+			return len;
+		}
+
+		private static long waitUntil(long deadline) {
+			long remaining;
+
+			while ((remaining = deadline - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(remaining);
+			}
+
+			return deadline;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+}
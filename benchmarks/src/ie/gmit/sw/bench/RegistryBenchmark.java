@@ -0,0 +1,105 @@
+package ie.gmit.sw.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ie.gmit.sw.Cipher;
+import ie.gmit.sw.CipherRegistry;
+import ie.gmit.sw.CipherRegistry.KeyHandle;
+import ie.gmit.sw.KeySanitiser;
+import ie.gmit.sw.bench.CipherBenchmark.Bytes;
+import ie.gmit.sw.bench.Fixtures.Corpus;
+
+/**
+ * Lots of short records under a handful of keys: a Cipher built per record,
+ * against the registry's batch API.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class RegistryBenchmark {
+	private static final int BATCH_SIZE = 1024;
+
+	@Param({"64"})
+	public int messageSize;
+
+	@Param({"16", "256"})
+	public int keyCount;
+
+	private String[] rawKeys;
+	private KeyHandle[] handles;
+	private byte[][] plain;
+	private byte[][] messages;
+	private int[] lengths;
+	private CipherRegistry registry;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random random = new Random(42);
+		byte[] corpus = Fixtures.buffer(Corpus.ASCII, BATCH_SIZE * messageSize);
+		String[] tenantKeys = new String[keyCount];
+		int i;
+
+		registry = new CipherRegistry();
+		rawKeys = new String[BATCH_SIZE];
+		handles = new KeyHandle[BATCH_SIZE];
+		plain = new byte[BATCH_SIZE][messageSize];
+		messages = new byte[BATCH_SIZE][messageSize];
+		lengths = new int[BATCH_SIZE];
+
+		for (i = 0; i < keyCount; ++i) {
+			tenantKeys[i] = "tenant key number " + i;
+		}
+
+		for (i = 0; i < BATCH_SIZE; ++i) {
+			rawKeys[i] = tenantKeys[random.nextInt(keyCount)];
+			handles[i] = registry.register(rawKeys[i]);
+			System.arraycopy(corpus, i * messageSize, plain[i], 0, messageSize);
+			lengths[i] = messageSize;
+		}
+	}
+
+	private void reset() {
+		for (int i = 0; i < BATCH_SIZE; ++i) {
+			System.arraycopy(plain[i], 0, messages[i], 0, messageSize);
+		}
+	}
+
+	@Benchmark
+	public byte[][] cipherPerMessage(Bytes bytes) {
+		reset();
+
+		for (int i = 0; i < BATCH_SIZE; ++i) {
+			StringBuilder[] inputKeys = {new StringBuilder(rawKeys[i]), null};
+			new Cipher(new KeySanitiser(inputKeys).getSanitizedKey()).encryptAll(messages[i], lengths[i]);
+		}
+
+		bytes.megabytes += BATCH_SIZE * messageSize / 1e6;
+		return messages;
+	}
+
+	@Benchmark
+	public byte[][] registryBatch(Bytes bytes) {
+		reset();
+		registry.encryptBatch(handles, messages, lengths);
+		bytes.megabytes += BATCH_SIZE * messageSize / 1e6;
+		return messages;
+	}
+
+}
@@ -0,0 +1,250 @@
+package ie.gmit.sw.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import ie.gmit.sw.Cipher;
+import ie.gmit.sw.CipherRegistry;
+import ie.gmit.sw.CipherServer;
+import ie.gmit.sw.bench.Fixtures.Corpus;
+
+/**
+ * Load generator for CipherServer: opens lots of connections over loopback,
+ * each sending one message after another (the next as soon as the last one's
+ * result is back), and reports sustained MB/s and latency percentiles.
+ * Every result is checked against encrypting the message locally.
+ *
+ * Not a JMH benchmark (JMH doesn't do thousands of sockets); run it with
+ *   java -cp benchmarks.jar ie.gmit.sw.bench.ServerLoadGenerator [options]
+ *
+ * Options (all optional):
+ *   --connections N   number of connections (2000)
+ *   --size N          message size in bytes (4096)
+ *   --keys N          number of different keys, used in turn (16)
+ *   --seconds N       how long to measure for (10)
+ *   --warmup N        seconds to run first, not measured (3)
+ *   --loops N         server event loop threads (number of cores)
+ */
+public final class ServerLoadGenerator {
+	private int connectionCount = 2000;
+	private int size = 4096;
+	private int keyCount = 16;
+	private int seconds = 10;
+	private int warmupSeconds = 3;
+	private int loopCount = Runtime.getRuntime().availableProcessors();
+
+	// one request per key: header + message, and the expected result of each
+	private ByteBuffer[] requests;
+	private byte[][] expected;
+
+	// latencies of the measured messages, in ns
+	private long[] latencies = new long[1 << 16];
+	private int latencyCount;
+	private long measuredBytes;
+	private long errors;
+	private boolean measuring;
+
+	private ServerLoadGenerator() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		ServerLoadGenerator generator = new ServerLoadGenerator();
+		int i;
+
+		for (i = 0; i + 1 < args.length; i += 2) {
+			int value = Integer.parseInt(args[i + 1]);
+
+			switch (args[i]) {
+			case "--connections": generator.connectionCount = value; break;
+			case "--size": generator.size = value; break;
+			case "--keys": generator.keyCount = value; break;
+			case "--seconds": generator.seconds = value; break;
+			case "--warmup": generator.warmupSeconds = value; break;
+			case "--loops": generator.loopCount = value; break;
+			default: throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+
+		generator.run();
+	}
+
+	private void run() throws IOException {
+		final byte[] message = Fixtures.buffer(Corpus.ASCII, size);
+		final CipherRegistry registry = new CipherRegistry();
+		final Client[] clients = new Client[connectionCount];
+		long start, end;
+		int i;
+
+		try (CipherServer server = new CipherServer(registry, CipherServer.DEFAULT_BUFFER_LEN, loopCount);
+			Selector selector = Selector.open()) {
+			requests = new ByteBuffer[keyCount];
+			expected = new byte[keyCount][];
+
+			for (i = 0; i < keyCount; ++i) {
+				String key = Cipher.generateRandomKey();
+				int keyId = server.addKey(key);
+
+				requests[i] = ByteBuffer.allocateDirect(CipherServer.HEADER_LEN + size)
+						.put(CipherServer.ENCRYPT).putInt(keyId).putInt(size).put(message).flip();
+
+				// (an odd length message comes back padded with a space)
+				expected[i] = Arrays.copyOf(message, size + (size & 1));
+				if (size % 2 != 0) {
+					expected[i][size] = ' ';
+				}
+				registry.get(registry.register(key)).encryptAll(expected[i], expected[i].length);
+			}
+
+			InetSocketAddress address = server.start(new InetSocketAddress("127.0.0.1", 0));
+			System.out.printf("Server on %s with %d event loop(s); %d connections, %d byte messages, %d keys%n",
+					address, loopCount, connectionCount, size, keyCount);
+
+			for (i = 0; i < connectionCount; ++i) {
+				SocketChannel channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				channel.connect(address);
+				clients[i] = new Client(channel, i % keyCount);
+				channel.register(selector, SelectionKey.OP_CONNECT, clients[i]);
+			}
+
+			pump(selector, System.nanoTime() + warmupSeconds * 1_000_000_000L);
+
+			measuring = true;
+			start = System.nanoTime();
+			pump(selector, start + seconds * 1_000_000_000L);
+			end = System.nanoTime();
+			measuring = false;
+
+			for (Client client : clients) {
+				client.channel.close();
+			}
+
+			report(end - start, server);
+		}
+	}
+
+	/**
+	 * Runs the clients until the deadline.
+	 */
+	private void pump(Selector selector, long deadline) throws IOException {
+		Iterator<SelectionKey> it;
+		SelectionKey key;
+		Client client;
+
+		while (System.nanoTime() < deadline) {
+			selector.select(100);
+
+			it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				key = it.next();
+				it.remove();
+				client = (Client)key.attachment();
+
+				try {
+					if (key.isConnectable()) {
+						client.channel.finishConnect();
+						client.send(key);
+					}
+					else {
+						if (key.isWritable()) {
+							client.write(key);
+						}
+						if (key.isReadable()) {
+							client.read(key);
+						}
+					}
+				} catch (IOException e) {
+					++errors;
+					key.cancel();
+					client.channel.close();
+				}
+			}
+		}
+	}
+
+	private void report(long nanos, CipherServer server) {
+		long[] sorted = Arrays.copyOf(latencies, latencyCount);
+		Arrays.sort(sorted);
+
+		System.out.printf("%d messages in %.1fs: %.1f MB/s, %.0f messages/s, %d errors%n",
+				latencyCount, nanos / 1e9, measuredBytes / 1e6 / (nanos / 1e9), latencyCount / (nanos / 1e9), errors);
+		if (latencyCount > 0) {
+			System.out.printf("latency ms: p50 %.3f, p90 %.3f, p99 %.3f, p99.9 %.3f, max %.3f%n",
+					percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99),
+					percentile(sorted, 99.9), sorted[sorted.length - 1] / 1e6);
+		}
+		System.out.println(server);
+	}
+
+	private static double percentile(long[] sorted, double percent) {
+		int index = (int)Math.ceil(percent / 100 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+	}
+
+	private void record(long latency) {
+		if (!measuring) {
+			return;
+		}
+
+		if (latencyCount == latencies.length) {
+			latencies = Arrays.copyOf(latencies, latencies.length * 2);
+		}
+		latencies[latencyCount++] = latency;
+		measuredBytes += size;
+	}
+
+	/**
+	 * One connection: sends a message, reads back the result, checks it, repeats.
+	 */
+	private final class Client {
+		private final SocketChannel channel;
+		private final int keyIndex;
+		private final ByteBuffer response;
+		private ByteBuffer request;
+		private long sentAt;
+
+		Client(SocketChannel channel, int keyIndex) {
+			this.channel = channel;
+			this.keyIndex = keyIndex;
+			response = ByteBuffer.allocate(expected[keyIndex].length);
+		}
+
+		void send(SelectionKey key) throws IOException {
+			request = requests[keyIndex].duplicate();
+			response.clear();
+			sentAt = System.nanoTime();
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			write(key);
+		}
+
+		void write(SelectionKey key) throws IOException {
+			channel.write(request);
+			if (!request.hasRemaining()) {
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+		void read(SelectionKey key) throws IOException {
+			if (channel.read(response) == -1) {
+				throw new IOException("Server closed the connection");
+			}
+
+			if (!response.hasRemaining()) {
+				record(System.nanoTime() - sentAt);
+				if (!Arrays.equals(response.array(), expected[keyIndex])) {
+					++errors;
+				}
+				send(key);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,148 @@
+package ie.gmit.sw.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ie.gmit.sw.Cipher;
+import ie.gmit.sw.CipherProcessor;
+import ie.gmit.sw.bench.CipherBenchmark.Bytes;
+import ie.gmit.sw.bench.Fixtures.Corpus;
+
+/**
+ * Stress test for sharing one Cipher between threads: 4 threads run
+ * processFile on the same cipher (through the same CipherProcessor, set to
+ * the mode) at once, each on its own file, and every output is checked
+ * against the output of a cipher no other thread touches.
+ * Any corruption (eg. two jobs sharing a buffer) fails the run with an
+ * IllegalStateException.
+ *
+ * Run with shared=false too, for one cipher and processor per thread; the
+ * throughput should be the same. SharedCipherCheck covers every route with a
+ * plain pass/fail.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@Threads(4)
+public class SharedCipherBenchmark {
+	private static final int INPUT_LEN = 1024 * 1024;
+	// where CipherProcessor writes its output
+	private static final Path OUTPUT_DIR = Paths.get("output");
+
+	/**
+	 * The cipher and processor (shared or not) and the input; the same for
+	 * every thread.
+	 */
+	@State(Scope.Benchmark)
+	public static class Shared {
+		// channels: file to file; pipelined: reader/cipher/writer threads;
+		// utf8: the stream loop, in UTF-8 aware mode
+		@Param({"channels", "pipelined", "utf8"})
+		public String mode;
+
+		@Param({"true", "false"})
+		public boolean shared;
+
+		String key;
+		CipherProcessor processor;
+		byte[] input;
+		// what every job's output should be
+		byte[] expected;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			final Path inputPath = Files.createTempFile("shared-expected-", ".txt");
+			final CipherProcessor reference;
+
+			key = Cipher.generateRandomKey();
+			processor = newProcessor();
+			input = Fixtures.buffer(Corpus.IRISH, INPUT_LEN);
+			Files.createDirectories(OUTPUT_DIR);
+
+			// one job on a cipher of its own, to check the rest against
+			reference = newProcessor();
+			Files.write(inputPath, input);
+			reference.processFile(inputPath.toString(), true, false, true);
+			expected = Files.readAllBytes(outputPath(inputPath));
+			Files.delete(inputPath);
+			Files.delete(outputPath(inputPath));
+		}
+
+		/**
+		 * @return A processor set to the mode, on a new cipher
+		 */
+		CipherProcessor newProcessor() {
+			CipherProcessor p = new CipherProcessor(new Cipher(key));
+
+			p.setPipelined(mode.equals("pipelined"));
+			p.setCollapseUtf8(mode.equals("utf8"));
+			return p;
+		}
+	}
+
+	/**
+	 * Each thread's own input file (and cipher, if they aren't shared).
+	 */
+	@State(Scope.Thread)
+	public static class PerThread {
+		CipherProcessor processor;
+		Path inputPath;
+		Path outputPath;
+
+		@Setup(Level.Trial)
+		public void setUp(Shared shared) throws IOException {
+			processor = shared.shared ? shared.processor : shared.newProcessor();
+			inputPath = Files.createTempFile("shared-", ".txt");
+			outputPath = outputPath(inputPath);
+			Files.write(inputPath, shared.input);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			Files.deleteIfExists(inputPath);
+			Files.deleteIfExists(outputPath);
+		}
+	}
+
+	@Benchmark
+	public void processFile(Shared shared, PerThread thread, Bytes bytes) throws IOException {
+		thread.processor.processFile(thread.inputPath.toString(), true, false, true);
+
+		if (!Arrays.equals(Files.readAllBytes(thread.outputPath), shared.expected)) {
+			throw new IllegalStateException("Output of " + thread.inputPath + " doesn't match (mode "
+					+ shared.mode + ", shared " + shared.shared + ")");
+		}
+		bytes.megabytes += INPUT_LEN / 1e6;
+	}
+
+	/**
+	 * @return Where CipherProcessor writes the encrypted input file
+	 */
+	private static Path outputPath(Path inputPath) {
+		final String name = inputPath.getFileName().toString();
+
+		return OUTPUT_DIR.resolve(name.substring(0, name.lastIndexOf('.')) + "_enc.txt");
+	}
+
+}
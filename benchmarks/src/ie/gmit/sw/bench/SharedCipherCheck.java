@@ -0,0 +1,358 @@
+package ie.gmit.sw.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import ie.gmit.sw.Cipher;
+import ie.gmit.sw.CipherProcessor;
+import ie.gmit.sw.bench.Fixtures.Corpus;
+
+/**
+ * Plain pass/fail check that one Cipher can be shared between threads:
+ * every thread runs every way processFile can do a job (see
+ * CipherProcessor.processJob), plus encrypt/decrypt(ByteBuffer) on direct
+ * buffers, at the same time as all the others, on the same cipher. The
+ * pipelined and UTF-8 aware jobs go through a CipherProcessor for each mode
+ * (shared by every thread too), and the rest through the cipher's own
+ * processFile, which mustn't pick up either mode. Each result is compared
+ * with what a cipher no other thread touches gives for the same input. Exits with status 1 if anything doesn't match, so it can
+ * be run from a script or CI, unlike SharedCipherBenchmark.
+ *
+ * The routes, each both ways where they go both ways:
+ *   serial      a file: URL through the stream loop
+ *   channels    a small file to file
+ *   parallel    a file past the 16MB parallel threshold
+ *   pipelined   a file, and a file: URL, in pipelined mode
+ *   utf8        a file in UTF-8 aware mode (encrypting only)
+ *   direct      encrypt/decrypt of direct ByteBuffers, in place and from one
+ *               to another
+ * Writing to the console isn't covered, as System.out is one stream for the
+ * whole JVM.
+ *
+ * Run it with
+ *   java -cp benchmarks.jar ie.gmit.sw.bench.SharedCipherCheck [options]
+ * from a folder it can make an output folder in (CipherProcessor writes to
+ * ./output).
+ *
+ * Options (all optional):
+ *   --threads N   threads sharing the ciphers (4)
+ *   --rounds N    times each thread runs every route (3)
+ */
+public final class SharedCipherCheck {
+	private static final int SMALL_LEN = 1024 * 1024;
+	// just past CipherProcessor's PARALLEL_THRESHOLD
+	private static final int BIG_LEN = 16 * 1024 * 1024 + 4096;
+	// where CipherProcessor writes its output
+	private static final Path OUTPUT_DIR = Paths.get("output");
+
+	private int threads = 4;
+	private int rounds = 3;
+
+	// the cipher every thread shares, and a processor for each mode that
+	// isn't the default, also shared by every thread
+	private Cipher plain;
+	private CipherProcessor pipelined;
+	private CipherProcessor utf8;
+	private Path inputDir;
+	private final List<Route> routes = new ArrayList<>();
+	private final AtomicLong jobs = new AtomicLong();
+
+	private SharedCipherCheck() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		SharedCipherCheck check = new SharedCipherCheck();
+		int i;
+
+		for (i = 0; i + 1 < args.length; i += 2) {
+			int value = Integer.parseInt(args[i + 1]);
+
+			switch (args[i]) {
+			case "--threads": check.threads = value; break;
+			case "--rounds": check.rounds = value; break;
+			default: throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+
+		System.exit(check.run() ? 0 : 1);
+	}
+
+	/**
+	 * One way of processing one input, and what it should come out as.
+	 */
+	private abstract static class Route {
+		final String name;
+		byte[] expected;
+
+		Route(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @return The output of the route for the given thread's copy of the input
+		 */
+		abstract byte[] run(int thread) throws IOException;
+	}
+
+	/**
+	 * A processFile job on a thread's own copy of an input file.
+	 */
+	private final class FileRoute extends Route {
+		// (null for the shared cipher's own processFile)
+		private final CipherProcessor processor;
+		private final byte[] input;
+		private final boolean encryptMode;
+		private final boolean url;
+
+		FileRoute(String name, CipherProcessor processor, byte[] input, boolean encryptMode, boolean url) {
+			super(name);
+			this.processor = processor;
+			this.input = input;
+			this.encryptMode = encryptMode;
+			this.url = url;
+		}
+
+		@Override
+		byte[] run(int thread) throws IOException {
+			return process(processor, inputPath(thread));
+		}
+
+		/**
+		 * Runs the job on a cipher (and processor) of its own, for the
+		 * expected output.
+		 */
+		void prepare(String key) throws IOException {
+			final CipherProcessor reference = new CipherProcessor(new Cipher(key));
+			final Path path = inputPath(-1);
+
+			reference.setPipelined(processor == pipelined);
+			reference.setCollapseUtf8(processor == utf8);
+			Files.write(path, input);
+			expected = process(reference, path);
+			Files.delete(path);
+		}
+
+		/**
+		 * Writes every thread's copy of the input.
+		 */
+		void writeInputs() throws IOException {
+			int thread;
+
+			for (thread = 0; thread < threads; ++thread) {
+				Files.write(inputPath(thread), input);
+			}
+		}
+
+		private Path inputPath(int thread) {
+			return inputDir.resolve((thread < 0 ? "ref" : "t" + thread) + "-" + name + ".txt");
+		}
+
+		private byte[] process(CipherProcessor processor, Path path) throws IOException {
+			final String name = path.getFileName().toString();
+			final Path output = OUTPUT_DIR.resolve(name.substring(0, name.lastIndexOf('.'))
+					+ (encryptMode ? "_enc.txt" : "_dec.txt"));
+			final String resource = url ? path.toUri().toString() : path.toString();
+			final byte[] result;
+
+			if (processor == null) {
+				plain.processFile(resource, encryptMode, url, true);
+			}
+			else {
+				processor.processFile(resource, encryptMode, url, true);
+			}
+			result = Files.readAllBytes(output);
+			Files.delete(output);
+			return result;
+		}
+	}
+
+	/**
+	 * Encrypting and decrypting direct ByteBuffers, in place and into another
+	 * buffer; the output is all four results one after another.
+	 */
+	private final class DirectRoute extends Route {
+		private final byte[] input;
+
+		DirectRoute(byte[] input) {
+			super("direct");
+			this.input = input;
+		}
+
+		void prepare(String key) {
+			final Cipher reference = new Cipher(key);
+			final byte[] encrypted = input.clone();
+			final byte[] decrypted;
+
+			reference.encryptAll(encrypted, encrypted.length);
+			decrypted = encrypted.clone();
+			reference.decryptAll(decrypted, decrypted.length);
+
+			expected = concat(encrypted, decrypted, encrypted, decrypted);
+		}
+
+		@Override
+		byte[] run(int thread) {
+			final ByteBuffer a = ByteBuffer.allocateDirect(input.length);
+			final ByteBuffer b = ByteBuffer.allocateDirect(input.length);
+			final byte[] inPlace = new byte[input.length];
+			final byte[] inPlaceBack = new byte[input.length];
+			final byte[] copied = new byte[input.length];
+			final byte[] copiedBack = new byte[input.length];
+
+			a.put(input).flip();
+			plain.encrypt(a);
+			a.get(0, inPlace);
+			plain.decrypt(a.rewind());
+			a.get(0, inPlaceBack);
+
+			a.clear();
+			a.put(input).flip();
+			plain.encrypt(a, b);
+			b.get(0, copied);
+			a.clear();
+			plain.decrypt(b.flip(), a);
+			a.get(0, copiedBack);
+
+			return concat(inPlace, inPlaceBack, copied, copiedBack);
+		}
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		final byte[] all = new byte[Arrays.stream(parts).mapToInt(part -> part.length).sum()];
+		int pos = 0;
+
+		for (byte[] part : parts) {
+			System.arraycopy(part, 0, all, pos, part.length);
+			pos += part.length;
+		}
+		return all;
+	}
+
+	/**
+	 * @return true if every job on every thread gave the expected output
+	 */
+	private boolean run() throws IOException, InterruptedException {
+		final String key = Cipher.generateRandomKey();
+		final byte[] small = Fixtures.buffer(Corpus.IRISH, SMALL_LEN);
+		final byte[] big = Fixtures.buffer(Corpus.ASCII, BIG_LEN);
+		final byte[] accented = Fixtures.buffer(Corpus.NON_ASCII_HEAVY, SMALL_LEN);
+		final byte[] smallEncrypted = small.clone();
+		final byte[] bigEncrypted = big.clone();
+		final ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final CyclicBarrier start = new CyclicBarrier(threads);
+		final List<Future<List<String>>> results = new ArrayList<>();
+		final List<String> failures = new ArrayList<>();
+		DirectRoute direct;
+		int thread;
+
+		plain = new Cipher(key);
+		pipelined = new CipherProcessor(plain);
+		pipelined.setPipelined(true);
+		utf8 = new CipherProcessor(plain);
+		utf8.setCollapseUtf8(true);
+
+		plain.encryptAll(smallEncrypted, smallEncrypted.length);
+		plain.encryptAll(bigEncrypted, bigEncrypted.length);
+
+		inputDir = Files.createTempDirectory("shared-check-");
+		Files.createDirectories(OUTPUT_DIR);
+
+		routes.add(new FileRoute("serial-enc", null, small, true, true));
+		routes.add(new FileRoute("serial-dec", null, smallEncrypted, false, true));
+		routes.add(new FileRoute("channels-enc", null, small, true, false));
+		routes.add(new FileRoute("channels-dec", null, smallEncrypted, false, false));
+		routes.add(new FileRoute("parallel-enc", null, big, true, false));
+		routes.add(new FileRoute("parallel-dec", null, bigEncrypted, false, false));
+		routes.add(new FileRoute("pipelined-enc", pipelined, small, true, false));
+		routes.add(new FileRoute("pipelined-dec", pipelined, smallEncrypted, false, false));
+		routes.add(new FileRoute("pipelined-url-enc", pipelined, small, true, true));
+		routes.add(new FileRoute("utf8-enc", utf8, accented, true, false));
+		routes.add(direct = new DirectRoute(accented));
+
+		try {
+			for (Route route : routes) {
+				if (route instanceof FileRoute) {
+					((FileRoute)route).prepare(key);
+					((FileRoute)route).writeInputs();
+				}
+			}
+			direct.prepare(key);
+
+			for (thread = 0; thread < threads; ++thread) {
+				final int t = thread;
+
+				results.add(pool.submit(() -> {
+					start.await();
+					return runThread(t);
+				}));
+			}
+
+			for (Future<List<String>> result : results) {
+				try {
+					failures.addAll(result.get());
+				} catch (ExecutionException e) {
+					failures.add("thread failed: " + e.getCause());
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+			deleteInputs();
+		}
+
+		for (String failure : failures) {
+			System.err.println("MISMATCH " + failure);
+		}
+		System.err.printf("%d jobs on %d threads over %d routes: %s%n", jobs.get(), threads, routes.size(),
+				failures.isEmpty() ? "all match" : failures.size() + " failed");
+
+		return failures.isEmpty();
+	}
+
+	/**
+	 * Runs every route rounds times, starting each round at a different
+	 * route on each thread so that different routes overlap.
+	 *
+	 * @return Description of every mismatch
+	 */
+	private List<String> runThread(int thread) throws IOException {
+		final List<String> failures = new ArrayList<>();
+		Route route;
+		int round, i;
+
+		for (round = 0; round < rounds; ++round) {
+			for (i = 0; i < routes.size(); ++i) {
+				route = routes.get((i + thread + round) % routes.size());
+
+				if (!Arrays.equals(route.run(thread), route.expected)) {
+					failures.add(route.name + " on thread " + thread + ", round " + round);
+				}
+				jobs.incrementAndGet();
+			}
+		}
+
+		return failures;
+	}
+
+	private void deleteInputs() throws IOException {
+		try (Stream<Path> files = Files.list(inputDir)) {
+			for (Path path : (Iterable<Path>)files::iterator) {
+				Files.delete(path);
+			}
+		}
+		Files.delete(inputDir);
+	}
+
+}
@@ -0,0 +1,142 @@
+package ie.gmit.sw.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ie.gmit.sw.bench.Fixtures.Corpus;
+
+/**
+ * Cold start of the command line mode: each operation launches a brand new
+ * JVM running "java -jar four-square.jar encrypt" on a small file and waits
+ * for it to exit, so the time is everything a script calling it would see
+ * (JVM startup, class loading, building the tables, the I/O).
+ *
+ * Run with and without an AppCDS archive (made by a training run during
+ * setup), and with the default JIT/GC against the C1 only, serial GC flags
+ * used by bin/four-square. The jar is looked for in target/ and ../target/,
+ * or can be given with -Dfoursquare.jar=/path/to/four-square.jar.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class StartupBenchmark {
+	private static final String JAR_PROPERTY = "foursquare.jar";
+	private static final String[] DEFAULT_JARS = {"target/four-square.jar", "../target/four-square.jar"};
+
+	@Param({"false", "true"})
+	public boolean cds;
+
+	@Param({"false", "true"})
+	public boolean quickFlags;
+
+	@Param({"2048"})
+	public int size;
+
+	private Path tempDir;
+	private Path input;
+	private Path output;
+	private List<String> command;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, InterruptedException {
+		final Path archive;
+		List<String> training;
+
+		tempDir = Files.createTempDirectory("four-square-startup");
+		input = tempDir.resolve("input.txt");
+		output = tempDir.resolve("output.txt");
+		archive = tempDir.resolve("four-square.jsa");
+		Files.write(input, Fixtures.buffer(Corpus.ASCII, size));
+
+		command = new ArrayList<String>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		if (quickFlags) {
+			command.add("-XX:TieredStopAtLevel=1");
+			command.add("-XX:+UseSerialGC");
+		}
+
+		if (cds) {
+			// one training run dumps the classes it loaded into the archive
+			training = new ArrayList<String>(command);
+			training.add("-XX:ArchiveClassesAtExit=" + archive);
+			launch(withJob(training));
+			command.add("-XX:SharedArchiveFile=" + archive);
+		}
+
+		command = withJob(command);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		for (File file : tempDir.toFile().listFiles()) {
+			Files.delete(file.toPath());
+		}
+		Files.delete(tempDir);
+	}
+
+	@Benchmark
+	public int encryptSmallFile() throws IOException, InterruptedException {
+		return launch(command);
+	}
+
+	private List<String> withJob(List<String> jvm) {
+		List<String> full = new ArrayList<String>(jvm);
+
+		full.add("-jar");
+		full.add(findJar().toString());
+		full.addAll(Arrays.asList("encrypt", "--key", "Four square cipher",
+				"--in", input.toString(), "--out", output.toString()));
+		return full;
+	}
+
+	private static int launch(List<String> command) throws IOException, InterruptedException {
+		int exitCode = new ProcessBuilder(command).inheritIO().start().waitFor();
+
+		if (exitCode != 0) {
+			throw new IllegalStateException("Exit code " + exitCode + " from " + command);
+		}
+
+		return exitCode;
+	}
+
+	private static Path findJar() {
+		String override = System.getProperty(JAR_PROPERTY);
+		if (override != null) {
+			return Paths.get(override);
+		}
+
+		for (String jar : DEFAULT_JARS) {
+			Path path = Paths.get(jar);
+			if (Files.isRegularFile(path)) {
+				return path.toAbsolutePath();
+			}
+		}
+
+		throw new IllegalStateException("Can't find four-square.jar; run mvn install, or set -D" + JAR_PROPERTY);
+	}
+
+}
@@ -0,0 +1,388 @@
+package ie.gmit.sw.bench;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import ie.gmit.sw.Cipher;
+import ie.gmit.sw.FourSquareInputStream;
+import ie.gmit.sw.ParallelCipherProcessor;
+import ie.gmit.sw.PipelinedCipherProcessor;
+
+/**
+ * End-to-end throughput suite, and a gate against performance regressions.
+ *
+ * Encrypts synthetic files (see CorpusGenerator) of each size in each mode,
+ * from disk to disk, and reports the median MB/s of a few runs. Given a
+ * baseline (a previous run saved with --save-baseline), it fails with exit
+ * code 1 if any result is more than the tolerance below its baseline, so a
+ * change that slows down encryptAll or any of the I/O paths is caught; and
+ * with 2 if the baseline is missing, or has nothing for one of the results.
+ *
+ * The modes are:
+ *   memory     encryptAll over the file's bytes, already in memory (up to the first 128MB)
+ *   stream     FourSquareInputStream over a FileInputStream, as CipherProcessor does for URLs
+ *   channels   a FileChannel read into a direct buffer, encrypted in place and written back out
+ *   pipelined  PipelinedCipherProcessor (reader, cipher and writer threads)
+ *   parallel   ParallelCipherProcessor (memory mapped, on every core)
+ *
+ * Not a JMH benchmark (whole files, and GBs of them); run it with
+ *   java -cp benchmarks.jar ie.gmit.sw.bench.ThroughputSuite [options]
+ * or bin/throughput-gate, which builds everything first and checks against
+ * the stored baseline.
+ *
+ * Options (all optional):
+ *   --sizes LIST          comma separated file sizes (1M,64M,1G); K, M and G work
+ *   --modes LIST          comma separated modes (all of them)
+ *   --non-ascii R         share of non-ASCII letters in the files (0.01)
+ *   --crlf R              share of \r\n line endings (0.5)
+ *   --seed N              random seed for the files (42)
+ *   --runs N              measured runs of each, the median is reported (5)
+ *   --warmup N            runs of each before measuring, at least (2)
+ *   --dir DIR             where the files go (benchmarks/target/throughput)
+ *   --baseline FILE       compare against this baseline
+ *   --save-baseline FILE  save the results as a baseline
+ *   --tolerance R         how far below the baseline counts as a regression (0.15)
+ */
+public final class ThroughputSuite {
+	// exit codes
+	public static final int OK = 0;
+	public static final int REGRESSED = 1;
+	public static final int BAD_USAGE = 2;
+
+	private static final String[] ALL_MODES = {"memory", "stream", "channels", "pipelined", "parallel"};
+	// most of a file the memory mode holds at once (twice: the input and a copy)
+	private static final int MEMORY_LEN = 128 * 1024 * 1024;
+	// buffer size of the stream and channel modes, as in CipherProcessor
+	private static final int BUFFER_LEN = 65536;
+	// each run repeats the job until it's taken at least this long, so small
+	// files aren't timed on a single millisecond or two
+	private static final long MIN_RUN_NANOS = 100_000_000;
+	// the warmup runs keep going until they've taken at least this long and
+	// encrypted at least this much, so the JIT compiler has finished with the
+	// code before anything's measured (the SIMD kernel is very slow until it
+	// has, and takes a while on a machine with few cores)
+	private static final long MIN_WARMUP_NANOS = 2_000_000_000;
+	private static final long MIN_WARMUP_BYTES = 512L << 20;
+	// key in a baseline file for the generator settings it was made with
+	private static final String GENERATOR_KEY = "generator";
+
+	private long[] sizes = {1L << 20, 64L << 20, 1L << 30};
+	private String[] modes = ALL_MODES;
+	private double nonAsciiRatio = 0.01;
+	private double crlfRatio = 0.5;
+	private long seed = 42;
+	private int runs = 5;
+	private int warmupRuns = 2;
+	private Path dir = Paths.get(Files.isDirectory(Paths.get("benchmarks")) ? "benchmarks/target/throughput"
+			: "target/throughput");
+	private Path baselinePath;
+	private Path saveBaselinePath;
+	private double tolerance = 0.15;
+
+	private final Cipher cipher = new Cipher(Cipher.generateRandomKey());
+	// the file's bytes and a copy to encrypt, for memory mode; read in by the
+	// first run of each size
+	private byte[] memoryInput;
+	private byte[] memoryWork;
+
+	private ThroughputSuite() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		final ThroughputSuite suite = new ThroughputSuite();
+
+		try {
+			suite.parse(args);
+		} catch (RuntimeException e) {
+			System.err.println(e.getMessage());
+			System.exit(BAD_USAGE);
+		}
+
+		System.exit(suite.run());
+	}
+
+	private void parse(String[] args) {
+		int i;
+
+		if (args.length % 2 != 0) {
+			throw new IllegalArgumentException("Missing value for " + args[args.length - 1]);
+		}
+
+		for (i = 0; i < args.length; i += 2) {
+			String value = args[i + 1];
+
+			switch (args[i]) {
+			case "--sizes": sizes = Arrays.stream(value.split(",")).mapToLong(CorpusGenerator::parseSize).toArray(); break;
+			case "--modes": modes = value.split(","); break;
+			case "--non-ascii": nonAsciiRatio = Double.parseDouble(value); break;
+			case "--crlf": crlfRatio = Double.parseDouble(value); break;
+			case "--seed": seed = Long.parseLong(value); break;
+			case "--runs": runs = Integer.parseInt(value); break;
+			case "--warmup": warmupRuns = Integer.parseInt(value); break;
+			case "--dir": dir = Paths.get(value); break;
+			case "--baseline": baselinePath = Paths.get(value); break;
+			case "--save-baseline": saveBaselinePath = Paths.get(value); break;
+			case "--tolerance": tolerance = Double.parseDouble(value); break;
+			default: throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+
+		for (String mode : modes) {
+			if (!Arrays.asList(ALL_MODES).contains(mode)) {
+				throw new IllegalArgumentException("Unknown mode " + mode + " (" + String.join(", ", ALL_MODES) + ")");
+			}
+		}
+		if (runs < 1 || warmupRuns < 0) {
+			throw new IllegalArgumentException("Need at least one run");
+		}
+	}
+
+	/**
+	 * Runs every mode on every size, then checks the results against the
+	 * baseline (if there is one) and saves them (if asked to).
+	 *
+	 * @return The exit code
+	 */
+	private int run() throws IOException {
+		// "mode.size" -> MB/s, in order
+		final Map<String, Double> results = new TreeMap<String, Double>();
+		final Properties baseline = new Properties();
+		final String generator = new CorpusGenerator(0, nonAsciiRatio, crlfRatio, seed).toString();
+		final List<String> regressions = new ArrayList<String>();
+		// results with nothing in the baseline to check them against
+		final List<String> unchecked = new ArrayList<String>();
+		Path input;
+		String key;
+		double mbps;
+		double expected;
+
+		if (baselinePath != null) {
+			if (!Files.isRegularFile(baselinePath)) {
+				System.err.println("No baseline at " + baselinePath + "; make one with --save-baseline");
+				return BAD_USAGE;
+			}
+			try (InputStream in = Files.newInputStream(baselinePath)) {
+				baseline.load(in);
+			}
+			if (!generator.equals(baseline.getProperty(GENERATOR_KEY))) {
+				System.err.printf("The baseline was made from different files (%s, not %s)%n",
+						baseline.getProperty(GENERATOR_KEY), generator);
+				return BAD_USAGE;
+			}
+		}
+
+		System.out.printf("Cipher: %s, %d cores, Java %s%n",
+				cipher.isVectorised() ? "SIMD kernel" : "plain loop",
+				Runtime.getRuntime().availableProcessors(),
+				System.getProperty("java.version"));
+		System.out.printf("%-10s %6s %10s %10s %8s%n", "mode", "size", "MB/s", "baseline", "change");
+
+		for (long size : sizes) {
+			input = new CorpusGenerator(size, nonAsciiRatio, crlfRatio, seed).writeTo(dir);
+
+			for (String mode : modes) {
+				key = mode + "." + CorpusGenerator.formatSize(size);
+				mbps = measure(mode, input, size);
+				results.put(key, mbps);
+
+				if (baseline.containsKey(key)) {
+					expected = Double.parseDouble(baseline.getProperty(key));
+					System.out.printf(Locale.ROOT, "%-10s %6s %10.1f %10.1f %+7.1f%%%s%n",
+							mode, CorpusGenerator.formatSize(size), mbps, expected,
+							(mbps / expected - 1) * 100,
+							mbps < expected * (1 - tolerance) ? "  REGRESSION" : "");
+					if (mbps < expected * (1 - tolerance)) {
+						regressions.add(key);
+					}
+				}
+				else {
+					System.out.printf(Locale.ROOT, "%-10s %6s %10.1f %10s %8s%n",
+							mode, CorpusGenerator.formatSize(size), mbps, "-", "-");
+					if (baselinePath != null) {
+						unchecked.add(key);
+					}
+				}
+			}
+		}
+
+		if (saveBaselinePath != null) {
+			saveBaseline(results, generator);
+			System.out.println("Saved the results as the baseline in " + saveBaselinePath);
+		}
+
+		if (!regressions.isEmpty()) {
+			System.out.printf(Locale.ROOT, "FAILED: %s more than %.0f%% below the baseline%n",
+					String.join(", ", regressions), tolerance * 100);
+			return REGRESSED;
+		}
+
+		if (!unchecked.isEmpty()) {
+			System.out.printf("FAILED: no baseline for %s; save a new one with --save-baseline%n",
+					String.join(", ", unchecked));
+			return BAD_USAGE;
+		}
+
+		return OK;
+	}
+
+	/**
+	 * Running time: O(r * n)
+	 * Reasoning: The file is encrypted (warmup + runs) times (more for small
+	 * files; see MIN_RUN_NANOS).
+	 *
+	 * Space complexity: O(1), or O(n) up to MEMORY_LEN in memory mode
+	 *
+	 * @return The median MB/s of the measured runs
+	 */
+	private double measure(String mode, Path input, long size) throws IOException {
+		final double[] mbps = new double[runs];
+		final long warmupStart = System.nanoTime();
+		long start, elapsed;
+		long bytes = 0;
+		int run;
+
+		// warm up: at least warmupRuns runs, MIN_WARMUP_NANOS and MIN_WARMUP_BYTES
+		for (run = 0; run < warmupRuns || bytes < MIN_WARMUP_BYTES
+				|| System.nanoTime() - warmupStart < MIN_WARMUP_NANOS; ++run) {
+			bytes += runJob(mode, input, size);
+		}
+
+		for (run = 0; run < runs; ++run) {
+			start = System.nanoTime();
+			bytes = 0;
+			do {
+				bytes += runJob(mode, input, size);
+				elapsed = System.nanoTime() - start;
+			} while (elapsed < MIN_RUN_NANOS);
+
+			mbps[run] = bytes / 1e6 / (elapsed / 1e9);
+		}
+
+		Files.deleteIfExists(dir.resolve("output.txt"));
+		memoryInput = null;
+		memoryWork = null;
+		Arrays.sort(mbps);
+		return mbps[runs / 2];
+	}
+
+	/**
+	 * Encrypts the input once, in the given mode.
+	 *
+	 * @return The number of bytes encrypted
+	 */
+	private long runJob(String mode, Path input, long size) throws IOException {
+		final Path output = dir.resolve("output.txt");
+
+		switch (mode) {
+		case "memory":
+			if (memoryInput == null) {
+				// (an odd last byte is left off; encryptAll needs whole bigrams)
+				memoryInput = new byte[(int)Math.min(size, MEMORY_LEN) & ~1];
+				memoryWork = new byte[memoryInput.length];
+				try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ)) {
+					ByteBuffer buffer = ByteBuffer.wrap(memoryInput);
+					while (buffer.hasRemaining() && in.read(buffer) != -1);
+				}
+			}
+			// (the copy is counted too, but it's a fraction of the encryption)
+			System.arraycopy(memoryInput, 0, memoryWork, 0, memoryWork.length);
+			cipher.encryptAll(memoryWork, memoryWork.length);
+			return memoryWork.length;
+		case "stream":
+			stream(input, output);
+			return size;
+		case "channels":
+			channels(input, output);
+			return size;
+		case "pipelined":
+			new PipelinedCipherProcessor(cipher).processFile(input, output, true);
+			return size;
+		case "parallel":
+			new ParallelCipherProcessor(cipher).processFile(input, output, true);
+			return size;
+		default:
+			throw new IllegalArgumentException(mode);
+		}
+	}
+
+	/**
+	 * Reads through a FourSquareInputStream and writes the result out.
+	 */
+	private void stream(Path input, Path output) throws IOException {
+		final byte[] buffer = new byte[BUFFER_LEN];
+		int read;
+
+		try (InputStream in = new FourSquareInputStream(new BufferedInputStream(Files.newInputStream(input)),
+					cipher, true);
+			OutputStream out = Files.newOutputStream(output)) {
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		}
+	}
+
+	/**
+	 * File to file through one direct buffer, as CipherProcessor does for small
+	 * files.
+	 */
+	private void channels(Path input, Path output) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_LEN);
+
+		try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+			FileChannel out = FileChannel.open(output,
+					StandardOpenOption.WRITE,
+					StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+			do {
+				buffer.clear();
+				while (buffer.hasRemaining() && in.read(buffer) != -1);
+				if (buffer.position() % 2 != 0) {
+					buffer.put((byte)' ');
+				}
+
+				buffer.flip();
+				cipher.encrypt(buffer);
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					out.write(buffer);
+				}
+			} while (buffer.limit() == BUFFER_LEN);
+		}
+	}
+
+	/**
+	 * Writes the results as a properties file (sorted, so it diffs well), with
+	 * the generator settings they're only valid for.
+	 */
+	private void saveBaseline(Map<String, Double> results, String generator) throws IOException {
+		try (Writer out = Files.newBufferedWriter(saveBaselinePath, StandardCharsets.ISO_8859_1)) {
+			out.write(String.format("# Throughput baseline (MB/s); %d cores, Java %s, %s%n",
+					Runtime.getRuntime().availableProcessors(),
+					System.getProperty("java.version"),
+					cipher.isVectorised() ? "SIMD kernel" : "plain loop"));
+			out.write(GENERATOR_KEY + "=" + generator + System.lineSeparator());
+
+			for (Map.Entry<String, Double> result : results.entrySet()) {
+				out.write(String.format(Locale.ROOT, "%s=%.1f%n", result.getKey(), result.getValue()));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,245 @@
+package ie.gmit.sw;
+
+import java.util.Arrays;
+
+/**
+ * The set of characters a Cipher works with: each one has a "packed" form (its
+ * position in the alphabet), and the alphabet is laid out row by row in the
+ * squares, so its size must be a square number.
+ *
+ * Input is a stream of bytes, so an alphabet can have up to 256 characters
+ * (Latin-1). Every alphabet has a 256 entry pack table, covering every byte;
+ * bytes that aren't in the alphabet pack to the placeholder (or to whatever
+ * character they're folded onto, eg. J onto I in the classic alphabet). Each
+ * packed char takes packedBits bits: 5 for 25 chars, 7 for 81 or 100, 8 for
+ * anything bigger.
+ *
+ * DEFAULT is the cipher's original alphabet; it has the same tables as the
+ * static ones in Cipher, and ciphers using it keep using the loops and
+ * kernels written for it. Any other alphabet gets a kernel specialised for
+ * its size (see AlphabetKernel and Latin1Kernel).
+ */
+public final class Alphabet {
+	/**
+	 * The original 81 chars: A-Z, a-z, 0-9, some symbols and \n.
+	 * Unsupported chars become '?', and \r is read as a space.
+	 */
+	public static final Alphabet DEFAULT;
+
+	/**
+	 * The classic 25 letter four-square alphabet: A-Z without J. Lower case
+	 * letters are read as upper case, J as I, and anything else as X (the
+	 * classic filler letter).
+	 */
+	public static final Alphabet CLASSIC_25;
+
+	/**
+	 * 100 chars: all 95 printable ASCII chars plus \t, \n, \r, \u000B and \f.
+	 * Anything else becomes '?'.
+	 */
+	public static final Alphabet PRINTABLE_100;
+
+	/**
+	 * Every byte, 0 to 255 (ISO-8859-1). Nothing is ever replaced, so the
+	 * placeholder is never used.
+	 */
+	public static final Alphabet LATIN_1;
+
+	static {
+		StringBuilder chars = new StringBuilder();
+		char c;
+
+		DEFAULT = new Alphabet(Cipher.ALPHABET_STRING, (char)Cipher.UNKNOWN_PLACEHOLDER);
+		DEFAULT.fold('\r', ' ');
+
+		CLASSIC_25 = new Alphabet("ABCDEFGHIKLMNOPQRSTUVWXYZ", 'X');
+		for (c = 'a'; c <= 'z'; ++c) {
+			CLASSIC_25.fold(c, Character.toUpperCase(c));
+		}
+		CLASSIC_25.fold('J', 'I');
+		CLASSIC_25.fold('j', 'I');
+
+		for (c = ' '; c <= '~'; ++c) {
+			chars.append(c);
+		}
+		PRINTABLE_100 = new Alphabet(chars.append("\t\n\r\u000B\f").toString(), '?');
+
+		chars.setLength(0);
+		for (c = 0; c < 256; ++c) {
+			chars.append(c);
+		}
+		LATIN_1 = new Alphabet(chars.toString(), '?');
+	}
+
+	// the chars in order; packed char -> char
+	private final String chars;
+	private final int size;
+	// length of a side of one of the squares
+	private final int side;
+	// bits per packed char; ceil(log2(size))
+	private final int packedBits;
+	// raw byte -> packed char; for all 256 bytes
+	private final byte[] pack;
+	// packed char -> raw byte
+	private final byte[] unpack;
+	// raw byte -> packed char, or -1 if it isn't in the alphabet (or folded onto it)
+	private final short[] indexes;
+	// raw byte -> 1 if it's read as the placeholder without being it (ie.
+	// indexes is -1), otherwise 0; for CipherMetrics
+	private final byte[] replaced;
+	private final char placeholder;
+
+	private Alphabet(String chars, char placeholder) {
+		int i;
+		char c;
+
+		size = chars.length();
+		side = (int)Math.sqrt(size);
+		if (side * side != size || size < 4 || size > 256) {
+			throw new IllegalArgumentException("Alphabet size must be a square number from 4 to 256, not " + size);
+		}
+		if (chars.indexOf(placeholder) == -1) {
+			throw new IllegalArgumentException("The placeholder must be in the alphabet");
+		}
+
+		this.chars = chars;
+		this.placeholder = placeholder;
+		packedBits = 32 - Integer.numberOfLeadingZeros(size - 1);
+		pack = new byte[256];
+		unpack = new byte[size];
+		indexes = new short[256];
+		replaced = new byte[256];
+
+		Arrays.fill(indexes, (short)-1);
+		for (i = 0; i < size; ++i) {
+			c = chars.charAt(i);
+			if (c > 0xFF) {
+				throw new IllegalArgumentException("Alphabet chars must be single bytes (Latin-1): " + (int)c);
+			}
+			if (indexes[c] != -1) {
+				throw new IllegalArgumentException("Duplicate char in alphabet: " + (int)c);
+			}
+
+			indexes[c] = (short)i;
+			unpack[i] = (byte)c;
+		}
+
+		for (i = 0; i < 256; ++i) {
+			pack[i] = (byte)(indexes[i] != -1 ? indexes[i] : indexes[placeholder]);
+			replaced[i] = (byte)(indexes[i] != -1 ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Running time: O(n)
+	 * Reasoning: Checks each char once.
+	 *
+	 * Space complexity: O(1)
+	 * Reasoning: The tables are always 256 entries.
+	 *
+	 * @param chars The alphabet, in order; a square number of distinct chars
+	 * from 0 to 255 (at most 256 of them)
+	 * @param placeholder The char any other byte is replaced with; must be in
+	 * the alphabet
+	 * @return The alphabet
+	 */
+	public static Alphabet of(String chars, char placeholder) {
+		return new Alphabet(chars, placeholder);
+	}
+
+	/**
+	 * @param name default, classic, printable or latin1
+	 * @return The alphabet with that name
+	 */
+	public static Alphabet forName(String name) {
+		switch (name) {
+		case "default":
+			return DEFAULT;
+		case "classic":
+			return CLASSIC_25;
+		case "printable":
+			return PRINTABLE_100;
+		case "latin1":
+			return LATIN_1;
+		default:
+			throw new IllegalArgumentException("Unknown alphabet " + name + " (default, classic, printable or latin1)");
+		}
+	}
+
+	/**
+	 * Reads from (a char not in the alphabet) as to (one that is), in text
+	 * and in keys. Only used while building the alphabets above.
+	 */
+	private void fold(char from, char to) {
+		indexes[from] = indexes[to];
+		pack[from] = pack[to];
+		replaced[from] = 0;
+	}
+
+	/**
+	 * @return The packed char for c, or -1 if c isn't in the alphabet (chars
+	 * folded onto one that is, eg. J in the classic alphabet, count as that one)
+	 */
+	public int indexOf(char c) {
+		return c > 0xFF ? -1 : indexes[c];
+	}
+
+	/**
+	 * @return The char for a packed char
+	 */
+	public char charAt(int packed) {
+		return chars.charAt(packed);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return Length of a side of each square (the square root of the size)
+	 */
+	public int side() {
+		return side;
+	}
+
+	int packedBits() {
+		return packedBits;
+	}
+
+	/**
+	 * @return raw byte (& 0xFF) -> packed char, for every byte (the array
+	 * itself, not a copy)
+	 */
+	byte[] packTable() {
+		return pack;
+	}
+
+	/**
+	 * @return packed char -> raw byte (the array itself, not a copy)
+	 */
+	byte[] unpackTable() {
+		return unpack;
+	}
+
+	/**
+	 * @return raw byte (& 0xFF) -> 1 if it's read as the placeholder without
+	 * being in the alphabet (or folded onto it), otherwise 0 (the array
+	 * itself, not a copy)
+	 */
+	byte[] replacedTable() {
+		return replaced;
+	}
+
+	public char getPlaceholder() {
+		return placeholder;
+	}
+
+	/**
+	 * @return The chars of the alphabet, in order
+	 */
+	@Override
+	public String toString() {
+		return chars;
+	}
+
+}
@@ -0,0 +1,425 @@
+package ie.gmit.sw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Encrypts/decrypts a whole batch of files at once: every file in a folder,
+ * every file matching a glob, or every file named in a list file.
+ *
+ * Each file gets its own I/O thread (a virtual thread, on JVMs that have
+ * them), so thousands of small files are opened, read and written
+ * concurrently and the per-file setup overlaps. The cipher work itself is
+ * handed to a pool with one thread per core. Output files are named the same
+ * way as CipherProcessor's (name_enc.txt / name_dec.txt); files found in a
+ * folder or by a glob keep their path inside it under the output folder, so
+ * a/x.txt and b/x.txt don't end up in the same place. Any file that would
+ * still be written to the same place as an earlier one (eg. x.txt and x.log,
+ * or a file listed twice) is failed rather than processed, since both would
+ * be written at once.
+ */
+public class BatchProcessor {
+	// size of the chunks files are read and encrypted in; must be even
+	private static final int CHUNK_LEN = 256 * 1024;
+	// chunks smaller than this are encrypted on the I/O thread itself;
+	// handing them over to the CPU pool would cost more than the encryption
+	private static final int HANDOFF_THRESHOLD = 16 * 1024;
+	// maximum number of files open at once (and so chunk buffers allocated)
+	private static final int MAX_OPEN_FILES = 256;
+
+	// the cipher object to use for encryption/decryption
+	private final Cipher cipher;
+	// folder the output files are written to
+	private final String outputDir;
+
+	/**
+	 * A file that couldn't be processed, and why.
+	 */
+	public static final class Failure {
+		private final Path path;
+		private final Throwable cause;
+
+		private Failure(Path path, Throwable cause) {
+			this.path = path;
+			this.cause = cause;
+		}
+
+		public Path getPath() {
+			return path;
+		}
+
+		public Throwable getCause() {
+			return cause;
+		}
+
+		@Override
+		public String toString() {
+			return path + ": " + cause;
+		}
+	}
+
+	/**
+	 * The outcome of a batch: how much was done, how fast, and which files failed.
+	 */
+	public static final class Result {
+		private final int files;
+		private final List<Failure> failures;
+		private final long bytes;
+		private final long nanos;
+
+		private Result(int files, List<Failure> failures, long bytes, long nanos) {
+			this.files = files;
+			this.failures = failures;
+			this.bytes = bytes;
+			this.nanos = nanos;
+		}
+
+		public int getFiles() {
+			return files;
+		}
+
+		/**
+		 * @return Every file that failed, in the order they were given
+		 */
+		public List<Failure> getFailures() {
+			return Collections.unmodifiableList(failures);
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		public double getMillis() {
+			return nanos / 1e6;
+		}
+
+		public double getMegabytesPerSecond() {
+			return nanos == 0 ? 0 : bytes / 1e6 / (nanos / 1e9);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d files (%d failed), %.2fMB in %.2fms: %.2fMB/s, %.0f files/s",
+					files, failures.size(), bytes / 1e6, getMillis(), getMegabytesPerSecond(),
+					nanos == 0 ? 0 : files / (nanos / 1e9));
+		}
+	}
+
+	public BatchProcessor(Cipher cipher) {
+		this(cipher, CipherProcessor.OUTPUT_DIR);
+	}
+
+	public BatchProcessor(Cipher cipher, String outputDir) {
+		this.cipher = cipher;
+		this.outputDir = outputDir;
+	}
+
+	/**
+	 * Running time: O(n)
+	 * Reasoning: Proportional to the number of files found.
+	 *
+	 * Space complexity: O(n)
+	 * Reasoning: The list of paths.
+	 *
+	 *
+	 *
+	 * Works out which files a batch covers. The spec can be:
+	 *  - a folder: every file in it, and in the folders inside it
+	 *  - a glob, eg. ./input/*.txt: every file in the glob's folder that matches
+	 *  - @ then a path, eg. @files.txt: every file listed in that file, one per line
+	 */
+	public static List<Path> findInputs(String spec) throws IOException {
+		Path path;
+		int wildcard;
+
+		if (spec.startsWith("@")) {
+			// list file; skip any blank lines
+			try (Stream<String> lines = Files.lines(Paths.get(spec.substring(1)))) {
+				return lines.map(String::trim)
+						.filter(line -> !line.isEmpty())
+						.map(Paths::get)
+						.collect(Collectors.toList());
+			}
+		}
+
+		wildcard = firstWildcard(spec);
+		if (wildcard >= 0) {
+			// glob; match paths inside the folder the glob starts in
+			int slash = spec.replace('\\', '/').lastIndexOf('/', wildcard);
+			Path dir = Paths.get(slash < 0 ? "." : spec.substring(0, slash + 1));
+			PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + spec.substring(slash + 1));
+
+			try (Stream<Path> files = Files.walk(dir)) {
+				return files.filter(Files::isRegularFile)
+						.filter(file -> matcher.matches(dir.relativize(file)))
+						.collect(Collectors.toList());
+			}
+		}
+
+		path = Paths.get(spec);
+		if (Files.isDirectory(path)) {
+			try (Stream<Path> files = Files.walk(path)) {
+				return files.filter(Files::isRegularFile).collect(Collectors.toList());
+			}
+		}
+
+		// just the one file
+		List<Path> single = new ArrayList<Path>();
+		single.add(path);
+		return single;
+	}
+
+	/**
+	 * @return The folder the files of a batch are found in (see findInputs),
+	 * which their output paths are worked out relative to; null for a list
+	 * file or a single file, which aren't in any one folder
+	 */
+	static Path batchRoot(String spec) {
+		final int wildcard;
+		final int slash;
+
+		if (spec.startsWith("@")) {
+			return null;
+		}
+
+		wildcard = firstWildcard(spec);
+		if (wildcard >= 0) {
+			slash = spec.replace('\\', '/').lastIndexOf('/', wildcard);
+			return Paths.get(slash < 0 ? "." : spec.substring(0, slash + 1));
+		}
+
+		return Files.isDirectory(Paths.get(spec)) ? Paths.get(spec) : null;
+	}
+
+	/**
+	 * @return Index of the first glob special character in the string, or -1
+	 */
+	private static int firstWildcard(String spec) {
+		for (int i = 0; i < spec.length(); ++i) {
+			if ("*?[{".indexOf(spec.charAt(i)) >= 0) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Running time: O(n / p), for n bytes in total and p cores
+	 * Reasoning: Every byte is dealt with in O(1) time, shared between the cores
+	 * (as long as the disk keeps up).
+	 *
+	 * Space complexity: O(1)
+	 * Reasoning: At most MAX_OPEN_FILES chunk buffers, no matter how many files.
+	 *
+	 * @param spec A folder, glob or @list file; see findInputs
+	 * @param encryptMode true for encrypt, false for decrypt
+	 */
+	public Result process(String spec, boolean encryptMode) throws IOException {
+		return process(findInputs(spec), batchRoot(spec), encryptMode);
+	}
+
+	/**
+	 * (same as above, for a list of files, each written straight into the
+	 * output folder)
+	 */
+	public Result process(List<Path> inputs, boolean encryptMode) throws IOException {
+		return process(inputs, null, encryptMode);
+	}
+
+	/**
+	 * (same as above, with each file written under the output folder at its
+	 * path relative to root, or straight into it if root is null)
+	 */
+	public Result process(List<Path> inputs, Path root, boolean encryptMode) throws IOException {
+		final long start = System.nanoTime();
+		final AtomicLong bytes = new AtomicLong();
+		final Semaphore openFiles = new Semaphore(MAX_OPEN_FILES);
+		final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(MAX_OPEN_FILES);
+		final List<Future<?>> results = new ArrayList<Future<?>>(inputs.size());
+		final List<Failure> failures = new ArrayList<Failure>();
+		final Map<Path, Path> outputs = new HashMap<Path, Path>();
+		final Path[] outputPaths = new Path[inputs.size()];
+		// the earlier file each file's output clashes with (null if none)
+		final Path[] clashes = new Path[inputs.size()];
+		Path output;
+		Throwable cause;
+		int i;
+
+		Files.createDirectories(Paths.get(outputDir));
+
+		// work out every output up front, so no two files are ever written to the same one
+		for (i = 0; i < inputs.size(); ++i) {
+			output = outputPath(inputs.get(i), root, encryptMode);
+			clashes[i] = outputs.putIfAbsent(output.toAbsolutePath().normalize(), inputs.get(i));
+			if (clashes[i] == null) {
+				Files.createDirectories(output.getParent());
+				outputPaths[i] = output;
+			}
+		}
+
+		ExecutorService ioThreads = newIoExecutor();
+		ExecutorService cpuThreads = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+		try {
+			for (i = 0; i < inputs.size(); ++i) {
+				final Path input = inputs.get(i);
+				final Path inputOutput = outputPaths[i];
+
+				if (clashes[i] != null) {
+					results.add(CompletableFuture.failedFuture(
+							new IOException("Would be written to the same file as " + clashes[i])));
+					continue;
+				}
+
+				results.add(ioThreads.submit(() -> {
+					openFiles.acquire();
+					byte[] chunk = chunks.poll();
+					if (chunk == null) {
+						chunk = new byte[CHUNK_LEN];
+					}
+
+					try {
+						bytes.addAndGet(processOne(input, inputOutput, chunk, cpuThreads, encryptMode));
+					} finally {
+						// give the buffer back for the next file
+						chunks.offer(chunk);
+						openFiles.release();
+					}
+					return null;
+				}));
+			}
+
+			for (i = 0; i < results.size(); ++i) {
+				try {
+					results.get(i).get();
+				} catch (ExecutionException e) {
+					// one bad file shouldn't stop the rest; just note it (and what went
+					// wrong, rather than the CPU pool's wrapper around it)
+					cause = e.getCause();
+					if (cause instanceof ExecutionException && cause.getCause() != null) {
+						cause = cause.getCause();
+					}
+					failures.add(new Failure(inputs.get(i), cause));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while processing batch", e);
+				}
+			}
+		} finally {
+			ioThreads.shutdownNow();
+			cpuThreads.shutdownNow();
+		}
+
+		return new Result(inputs.size(), failures, bytes.get(), System.nanoTime() - start);
+	}
+
+	/**
+	 * @return Where the output of one file of a batch goes (see process)
+	 */
+	private Path outputPath(Path input, Path root, boolean encryptMode) {
+		final Path folder = (root == null ? null : root.relativize(input).getParent());
+		final String dir = (folder == null ? outputDir : Paths.get(outputDir).resolve(folder).toString());
+
+		return Paths.get(CipherProcessor.getOutputPath(dir, input.toString(), encryptMode));
+	}
+
+	/**
+	 * Encrypts/decrypts one file a chunk at a time, on the calling (I/O) thread,
+	 * handing big chunks over to the CPU pool.
+	 *
+	 * @return The number of bytes read
+	 */
+	private long processOne(Path input, Path output, byte[] chunk, ExecutorService cpuThreads, boolean encryptMode)
+			throws IOException, InterruptedException, ExecutionException {
+		final ByteBuffer chunkBuffer = ByteBuffer.wrap(chunk);
+		long total = 0;
+		int bytesRead;
+
+		try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+			FileChannel out = FileChannel.open(output,
+					StandardOpenOption.WRITE,
+					StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+			do {
+				chunkBuffer.clear();
+
+				// fill the chunk until it's full or the file has ended
+				while (chunkBuffer.hasRemaining() && in.read(chunkBuffer) != -1);
+
+				bytesRead = chunkBuffer.position();
+				if (bytesRead == 0) {
+					break;
+				}
+				total += bytesRead;
+
+				if (bytesRead % 2 != 0) {
+					// odd number of bytes; add the buffer character (space)
+					chunk[bytesRead++] = ' ';
+				}
+
+				final int len = bytesRead;
+				if (len < HANDOFF_THRESHOLD) {
+					transform(chunk, len, encryptMode);
+				}
+				else {
+					cpuThreads.submit(() -> transform(chunk, len, encryptMode)).get();
+				}
+
+				chunkBuffer.position(0).limit(len);
+				while (chunkBuffer.hasRemaining()) {
+					out.write(chunkBuffer);
+				}
+			} while (bytesRead == CHUNK_LEN);
+		}
+
+		return total;
+	}
+
+	private void transform(byte[] chunk, int len, boolean encryptMode) {
+		if (encryptMode) {
+			cipher.encryptAll(chunk, len);
+		}
+		else {
+			cipher.decryptAll(chunk, len);
+		}
+	}
+
+	/**
+	 * Creates the executor for the per-file I/O tasks: one virtual thread per
+	 * task if the JVM supports them (Java 21+), otherwise one platform thread
+	 * per file that can be open at once. (Looked up by name so this still
+	 * builds for Java 17.)
+	 */
+	private static ExecutorService newIoExecutor() {
+		try {
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(MAX_OPEN_FILES);
+		}
+	}
+
+}
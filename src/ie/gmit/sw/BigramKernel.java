@@ -0,0 +1,36 @@
+package ie.gmit.sw;
+
+/**
+ * An alternative bulk loop for running bigrams through one of the
+ * Cipher's lookup tables (eg. a SIMD one).
+ * 
+ * Kernels only need to handle whatever is convenient for them (eg. whole
+ * vectors); the Cipher finishes off the rest with its own loop. That loop
+ * only knows the default alphabet, though, so a kernel for any other
+ * alphabet has to do the whole range, odd last byte and all.
+ */
+interface BigramKernel {
+	
+	/**
+	 * Runs bigrams from src through the kernel's table into dst (which can
+	 * be the same array, at the same position), starting from the beginning
+	 * of the range and stopping whenever it likes.
+	 * 
+	 * @param src Input bytes
+	 * @param srcPos Where the input starts
+	 * @param dst Output array
+	 * @param dstPos Where the output starts
+	 * @param len How many bytes are available; odd only from encryptAll or
+	 * decryptAll with an odd limit, where the last bigram is made up with
+	 * the byte after it (in both arrays), as the Cipher's own loop does
+	 * @return How many bytes were processed; always even, so one more than
+	 * len if the odd bigram was done
+	 */
+	int translate(byte[] src, int srcPos, byte[] dst, int dstPos, int len);
+	
+	/**
+	 * @return Roughly how much memory the kernel's own tables take up, in bytes
+	 */
+	long sizeInBytes();
+	
+}
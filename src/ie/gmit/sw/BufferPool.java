@@ -0,0 +1,59 @@
+package ie.gmit.sw;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of same sized direct buffers, for one thread only (so there's no
+ * locking). Buffers are allocated when the pool runs dry, and up to maxIdle
+ * of them are kept for reuse when they're given back.
+ */
+final class BufferPool {
+	private final int bufferLen;
+	private final int maxIdle;
+	private final ArrayDeque<ByteBuffer> idle;
+	// number of buffers ever allocated, for the stats
+	private long allocated;
+
+	/**
+	 * @param bufferLen Size of each buffer; should be even
+	 * @param maxIdle Most buffers kept in the pool at once
+	 */
+	BufferPool(int bufferLen, int maxIdle) {
+		this.bufferLen = bufferLen;
+		this.maxIdle = maxIdle;
+		idle = new ArrayDeque<ByteBuffer>(maxIdle);
+	}
+
+	/**
+	 * Running time: O(1)
+	 *
+	 * Space complexity: O(1)
+	 *
+	 * @return A cleared buffer
+	 */
+	ByteBuffer acquire() {
+		ByteBuffer buffer = idle.pollLast();
+
+		if (buffer == null) {
+			++allocated;
+			return ByteBuffer.allocateDirect(bufferLen);
+		}
+
+		return buffer.clear();
+	}
+
+	/**
+	 * Gives a buffer back; dropped (for the GC) if the pool's already full.
+	 */
+	void release(ByteBuffer buffer) {
+		if (idle.size() < maxIdle) {
+			idle.addLast(buffer);
+		}
+	}
+
+	long getAllocated() {
+		return allocated;
+	}
+
+}
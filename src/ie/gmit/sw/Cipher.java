@@ -3,6 +3,10 @@ package ie.gmit.sw;
 import static java.lang.System.out;
 
 import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
@@ -13,6 +17,24 @@ import java.util.Random;
  * 
  * Also includes various methods including encrypting/decrypting batches of
  * characters at once.
+ * 
+ * The static constants below describe the default alphabet, which every
+ * cipher uses unless it's given another one (see Alphabet).
+ * 
+ * Thread safe, and never changes once it's built: the lookup tables are only
+ * written while the cipher is being built, and everything a call works on
+ * (the bytes, scratch arrays, processFile's buffers) belongs to the calling
+ * thread, so one cipher can be shared by any number of threads, eg. request
+ * handlers. To try lots of nearby keys, change a KeySquares instead.
+ * 
+ * processFile has no settings of its own, so it always runs the same way.
+ * For the UTF-8 aware or pipelined modes, or other metrics, make a
+ * CipherProcessor for the cipher; its settings only apply to the jobs run
+ * on it, not to anyone else sharing the cipher.
+ * 
+ * A cipher can also be made straight from a pair of lookup tables, with no
+ * key behind them (see CipherCascade, which fuses several ciphers into one).
+ * It encrypts and decrypts like any other, but has no key squares to show.
  */
 public final class Cipher {
 	// The alphabet. Any characters here found in the input will be put into a
@@ -27,16 +49,26 @@ public final class Cipher {
 	public static final int SQRT_ALPHABET_SIZE = (int)Math.sqrt(ALPHABET_SIZE);
 	// number of bits needed to fit a "packed" char.
 	// should be ceil(log2(ALPBHABET_SIZE))
-	private static final byte packedBits = 7;
+	static final byte packedBits = 7;
 	// maximum value for packedBits bits
-	private static final byte packedBitsMax = 0xFF >> (8 - packedBits);
+	static final byte packedBitsMax = 0xFF >> (8 - packedBits);
 	
 	// any unsupported characters will be replaced by this character
 	public static final byte UNKNOWN_PLACEHOLDER = '?';
 	public static final byte UNKNOWN_PLACEHOLDER_PACKED;
+	// the top bit of each byte in a long; if any are set, so is a non-ASCII byte
+	static final long NON_ASCII_MASK = 0x8080808080808080L;
+	// the UNKNOWN_PLACEHOLDER, in every byte of a long
+	static final long PLACEHOLDER_WORD = 0x0101010101010101L * UNKNOWN_PLACEHOLDER;
+	// reads 8 bytes from a byte array as one long
+	static final VarHandle LONG_VIEW
+		= MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
 	
-	// The key for the cipher. Should be (2 * ALPHABET_SIZE) characters long
+	// The key for the cipher. Should be (2 * alphabet size) characters long.
+	// (null, like fourSq and sqChars, for a cipher with no key)
 	private final String key;
+	// the alphabet the key and the tables are for
+	private final Alphabet alphabet;
 	// 3d array (3x 2 dim), containing the characters in the four squares,
 	// in "packed" form.
 	private final byte[][][] fourSq;
@@ -50,11 +82,47 @@ public final class Cipher {
 	private final short[] encryptArr;
 	// simply the reverse of above; indexes swapped with values
 	private final short[] decryptArr;
+	// how the tables used by the encryption/decryption loops are laid out
+	// (only set while the cipher's being built; see initKernels)
+	private TableLayout layout;
+	// loops for the chosen layout/SIMD, built from the two tables above;
+	// null to use the plain PACKED loop in translate()
+	private BigramKernel encryptKernel;
+	private BigramKernel decryptKernel;
+	// true if the kernels above are the SIMD ones
+	private boolean vectorised;
 	// same as fourSq, but instead represented as java chars
 	private final char[][] sqChars;
 	
-	// the object used to process files/URLs
-	private CipherProcessor cipherProcessor;
+	// the object used to process files/URLs; created the first time it's needed,
+	// since plenty of ciphers never touch a file (see CipherRegistry). Its
+	// settings are never changed, as every thread sharing the cipher shares it
+	private volatile CipherProcessor cipherProcessor;
+	
+	// size of the per-thread scratch array used to encrypt direct ByteBuffers;
+	// must be even, and small enough to stay in the L1 cache
+	private static final int SCRATCH_LEN = 4096;
+	// (a subclass rather than withInitial and a lambda, which would cost the
+	// command line mode a few milliseconds of bootstrapping at startup)
+	private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[SCRATCH_LEN];
+		}
+	};
+	
+	// The SIMD kernel needs the incubating Vector API, which is only there if the
+	// JVM was started with --add-modules jdk.incubator.vector. It can also be
+	// turned off with -Dfoursquare.vector=false.
+	private static final boolean VECTOR_ENABLED
+		= Boolean.parseBoolean(System.getProperty("foursquare.vector", "true"))
+			&& vectorModulePresent();
+	
+	/**
+	 * The layout ciphers get unless they're given one: VECTOR if the SIMD
+	 * kernel can be used, otherwise PACKED (the original loop).
+	 */
+	public static final TableLayout DEFAULT_LAYOUT = VECTOR_ENABLED ? TableLayout.VECTOR : TableLayout.PACKED;
 	
 	/**
 	 * Running time: O(n)
@@ -111,24 +179,95 @@ public final class Cipher {
 	 * from the alphabet. This is n * n characters, or n^2.
 	 */
 	public Cipher(String key) {
+		this(key, Alphabet.DEFAULT, DEFAULT_LAYOUT);
+	}
+	
+	/**
+	 * (same as above)
+	 * 
+	 * @param key The key; should be (2 * ALPHABET_SIZE) characters long
+	 * @param layout Which lookup table layout the encryption/decryption loops
+	 * use; always the one given, except VECTOR without the Vector API (see
+	 * TableLayout.VECTOR)
+	 */
+	public Cipher(String key, TableLayout layout) {
+		this(key, Alphabet.DEFAULT, layout);
+	}
+	
+	/**
+	 * (same as above, for any alphabet)
+	 * 
+	 * @param key The key; (2 * alphabet size) characters, each half made up of
+	 * every char of the alphabet once (see KeySanitiser.sanitise(Alphabet, ...))
+	 * @param alphabet The alphabet to use
+	 */
+	public Cipher(String key, Alphabet alphabet) {
+		this(key, alphabet, DEFAULT_LAYOUT);
+	}
+	
+	/**
+	 * (same as above)
+	 * 
+	 * @param key The key, as above
+	 * @param alphabet The alphabet to use
+	 * @param layout Which lookup table layout the encryption/decryption loops use;
+	 * only the default alphabet has a choice, any other has its own (see initKernels)
+	 */
+	public Cipher(String key, Alphabet alphabet, TableLayout layout) {
 		this.key = key;
+		this.alphabet = alphabet;
+		this.layout = layout;
+		
+		if (key.length() != 2 * alphabet.size()) {
+			throw new IllegalArgumentException("Key must be " + 2 * alphabet.size()
+					+ " characters long for this alphabet, not " + key.length());
+		}
 		
 		// must initialise these arrays here instead of in init() as they are marked final
-		final int fullSqSize = 2 * SQRT_ALPHABET_SIZE;
+		final int side = alphabet.side();
+		final int fullSqSize = 2 * side;
 		
-		// lookup tables need to house every permutation of 2x numbers of max size ALPHABET_SIZE
-		final int ENCDEC_TABLE_SIZE = ((ALPHABET_SIZE - 1) << packedBits | ALPHABET_SIZE);
+		// lookup tables need to house every permutation of 2x numbers of max size
+		// alphabet size (one more than the biggest index)
+		final int ENCDEC_TABLE_SIZE = ((alphabet.size() - 1) << alphabet.packedBits() | (alphabet.size() - 1)) + 1;
 		encryptArr = new short[ENCDEC_TABLE_SIZE];
 		decryptArr = new short[ENCDEC_TABLE_SIZE];
 		
-		fourSq = new byte[3][SQRT_ALPHABET_SIZE][SQRT_ALPHABET_SIZE];
+		fourSq = new byte[3][side][side];
 		sqChars = new char[fullSqSize][fullSqSize];
 		
-		cipherProcessor = new CipherProcessor(this);
-		
 		init(key);
 	}
 	
+	/**
+	 * Running time: O(1)
+	 * Reasoning: The tables are used as they are; only the kernels' own
+	 * tables (a fixed size) are built.
+	 * 
+	 * Space complexity: O(1)
+	 * Reasoning: Same as above.
+	 * 
+	 * 
+	 * 
+	 * A cipher with the given lookup tables and no key (see CipherCascade).
+	 * 
+	 * @param encryptArr Encryption table, laid out as the one built by init;
+	 * a one to one mapping of every used index, -1 everywhere else. Kept, not copied
+	 * @param decryptArr Its reverse
+	 */
+	Cipher(Alphabet alphabet, TableLayout layout, short[] encryptArr, short[] decryptArr) {
+		this.key = null;
+		this.alphabet = alphabet;
+		this.layout = layout;
+		this.encryptArr = encryptArr;
+		this.decryptArr = decryptArr;
+		
+		fourSq = null;
+		sqChars = null;
+		
+		initKernels();
+	}
+	
 	/**
 	 * Running time: O(n^4)
 	 * Reasoning: At one point this method pairs every character in a 2d array
@@ -140,24 +279,28 @@ public final class Cipher {
 	 * Reasoning: Some extra variables.
 	 */
 	private void init(String key) {
+		final int side = alphabet.side();
+		final int size = alphabet.size();
+		final int bits = alphabet.packedBits();
+		final byte[] pack = alphabet.packTable();
 		int keyIndex = 0;
-		int inputBigram = 0;
+		int inputBigram;
 		int c1x, c2x;
 		int c1y, c2y;
 		int i, j, k;
 		
 		// populate the alphabet quadrant
 		// (only needs to be done once; having two would be a waste)
-		byte compactVal = 0;
-		for (i = 0; i < SQRT_ALPHABET_SIZE; ++i) {
-			for (j = 0; j < SQRT_ALPHABET_SIZE; ++j) {
+		int compactVal = 0;
+		for (i = 0; i < side; ++i) {
+			for (j = 0; j < side; ++j) {
 				// 3d array used to initialise the lookup tables
-				fourSq[0][i][j] = compactVal;
-				char charVal = (char)UNPACKED_CHARS[compactVal];
+				fourSq[0][i][j] = (byte)compactVal;
+				char charVal = alphabet.charAt(compactVal);
 				
 				// 2d array used to display the four squares to the user
 				sqChars[i][j] = charVal;
-				sqChars[i + SQRT_ALPHABET_SIZE][j + SQRT_ALPHABET_SIZE] = charVal;
+				sqChars[i + side][j + side] = charVal;
 				
 				++compactVal;
 			}
@@ -165,19 +308,19 @@ public final class Cipher {
 		
 		// populate top right / bottom left quadrants with the encryption key
 		for (i = 1; i <= 2; ++i) {
-			for (j = 0; j < SQRT_ALPHABET_SIZE; ++j) {
-				for (k = 0; k < SQRT_ALPHABET_SIZE; ++k) {
+			for (j = 0; j < side; ++j) {
+				for (k = 0; k < side; ++k) {
 					char keyChar = key.charAt(keyIndex++);
 					// put the packed version of the key char in the square
-					fourSq[i][j][k] = PACKED_CHARS[(byte) keyChar];
+					fourSq[i][j][k] = pack[keyChar & 0xFF];
 					
 					if (i == 1) {
 						// first key; put it in the top right of the square
-						sqChars[j][k + SQRT_ALPHABET_SIZE] = keyChar;
+						sqChars[j][k + side] = keyChar;
 					}
 					else {
 						// first key; put it in the bottom left of the square
-						sqChars[j + SQRT_ALPHABET_SIZE][k] = keyChar;
+						sqChars[j + side][k] = keyChar;
 					}
 				}
 			}
@@ -189,14 +332,12 @@ public final class Cipher {
 		}
 		
 		// generate the encryption lookup table
-		// Note: counting up conveniently cycles through all permutations
-		// of bigrams when we represent them as 1 number.
-		// (We do have to jump a few indexes sometimes though,
-		// since from 81 to 127 is unused)
-		for (c1y = 0; c1y < SQRT_ALPHABET_SIZE; ++c1y) {
-			for (c1x = 0; c1x < SQRT_ALPHABET_SIZE; ++c1x) {
-				for (c2y = 0; c2y < SQRT_ALPHABET_SIZE; ++c2y) {
-					for (c2x = 0; c2x < SQRT_ALPHABET_SIZE; ++c2x) {
+		// (Packed chars only go up to size - 1, so some indexes are unused,
+		// eg. from 81 to 127 for the default alphabet)
+		for (c1y = 0; c1y < side; ++c1y) {
+			for (c1x = 0; c1x < side; ++c1x) {
+				for (c2y = 0; c2y < side; ++c2y) {
+					for (c2x = 0; c2x < side; ++c2x) {
 						// the two characters we're generating the encrypted lookup for
 						// (all of this is in packed form)
 						
@@ -205,39 +346,226 @@ public final class Cipher {
 						// encryption is only done once per bigram permutation, in the
 						// Initialisation here. After that, the resulting lookup tables
 						// are used.
-						short toChar1 = fourSq[1][c1y][c2x];
-						short toChar2 = fourSq[2][c2y][c1x];
+						// (& 0xFF, as packed chars go up to 255 in a 256 char alphabet)
+						int toChar1 = fourSq[1][c1y][c2x] & 0xFF;
+						int toChar2 = fourSq[2][c2y][c1x] & 0xFF;
 						
 						// use bit shifts to store the 2 characters in 1 short
-						short combined = (short)(toChar1 << packedBits | toChar2);
+						short combined = (short)(toChar1 << bits | toChar2);
+						
+						// the 2 input characters, combined the same way
+						inputBigram = (c1y * side + c1x) << bits | (c2y * side + c2x);
 						
 						// Set the value. This  way, later when we look up a combined
 						// bigram short in this array, we get the resulting encrypted
 						// bigram. So the encryption itself is actually performed in
 						// a single array lookup.
 						encryptArr[inputBigram] = combined;
-						
-						// move on to the next bigram permutation
-						++inputBigram;
-						if ((inputBigram & packedBitsMax) == ALPHABET_SIZE) {
-							// these next few indexes are unused; skip to the next used one
-							inputBigram = ((inputBigram >> packedBits) + 1) << packedBits;
-						}
 					}
 				}
 			}
 		}
 		
 		// decryption array is just the reverse of the encryption array
-		// (indexes swapped with values at that index)
-		for (short s = 0; s < encryptArr.length; ++s) {
-			// skip any unused indexes
-			if (encryptArr[s] != -1) {
-				decryptArr[encryptArr[s]] = s;
+		// (indexes swapped with values at that index), for every used index
+		for (i = 0; i < size; ++i) {
+			for (j = 0; j < size; ++j) {
+				inputBigram = i << bits | j;
+				decryptArr[encryptArr[inputBigram] & 0xFFFF] = (short)inputBigram;
+			}
+		}
+		
+		initKernels();
+	}
+	
+	/**
+	 * Running time: O(1)
+	 * Reasoning: Any extra tables are a fixed size (see the kernel classes).
+	 * 
+	 * Space complexity: O(1)
+	 * Reasoning: Same as above.
+	 * 
+	 * 
+	 * 
+	 * Picks the encryption/decryption loops for the layout, and builds any
+	 * extra tables they need from encryptArr/decryptArr. If the layout is
+	 * VECTOR but the SIMD kernel can't be made, it's changed to PACKED.
+	 * 
+	 * The plain loops, the layouts and the SIMD kernel are all built around
+	 * the default alphabet; any other alphabet gets a kernel made for its size
+	 * instead, which does all of the work.
+	 */
+	private void initKernels() {
+		if (alphabet != Alphabet.DEFAULT) {
+			if (alphabet.size() == 256) {
+				encryptKernel = new Latin1Kernel(encryptArr, alphabet);
+				decryptKernel = new Latin1Kernel(decryptArr, alphabet);
+			}
+			else {
+				encryptKernel = new AlphabetKernel(encryptArr, alphabet);
+				decryptKernel = new AlphabetKernel(decryptArr, alphabet);
+			}
+			vectorised = false;
+			return;
+		}
+		
+		if (layout == TableLayout.VECTOR) {
+			encryptKernel = newVectorKernel(encryptArr);
+			decryptKernel = newVectorKernel(decryptArr);
+			vectorised = (encryptKernel != null);
+			
+			if (vectorised) {
+				return;
 			}
+			// no Vector API; the original loop instead
+			layout = TableLayout.PACKED;
+		}
+		
+		switch (layout) {
+		case DENSE:
+			encryptKernel = new DenseKernel(encryptArr);
+			decryptKernel = new DenseKernel(decryptArr);
+			break;
+		case DIRECT:
+			encryptKernel = new DirectKernel(encryptArr);
+			decryptKernel = new DirectKernel(decryptArr);
+			break;
+		default:
+			// PACKED; the loop in translate() works on the tables as they are
+			encryptKernel = null;
+			decryptKernel = null;
 		}
 	}
 	
+	/**
+	 * Running time: O(1)
+	 * Reasoning: The kernel's table is always the same size.
+	 * 
+	 * Space complexity: O(1)
+	 * Reasoning: Same as above.
+	 * 
+	 * 
+	 * 
+	 * Creates a SIMD kernel for the given lookup table, if the JVM supports it.
+	 * The class is loaded by name so that it's never linked (and the missing
+	 * jdk.incubator.vector module never noticed) unless it's going to be used.
+	 * 
+	 * @return The kernel, or null to use the plain loops
+	 */
+	private static BigramKernel newVectorKernel(short[] table) {
+		if (!VECTOR_ENABLED) {
+			return null;
+		}
+		
+		try {
+			return (BigramKernel)Class.forName("ie.gmit.sw.VectorKernel")
+					.getDeclaredConstructor(short[].class)
+					.newInstance(table);
+		} catch (ReflectiveOperationException | LinkageError e) {
+			// no vector support after all; fall back to the plain loops
+			return null;
+		}
+	}
+	
+	/**
+	 * Checks for the Vector API by asking the boot class loader for one of its
+	 * classes (without initialising it), which it can only find if the module
+	 * was added. Much cheaper at startup than looking the module up through
+	 * ModuleLayer, which costs several milliseconds the first time.
+	 */
+	private static boolean vectorModulePresent() {
+		try {
+			Class.forName("jdk.incubator.vector.IntVector", false, null);
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * @return true if encryption/decryption is done with the SIMD kernel
+	 */
+	public boolean isVectorised() {
+		return vectorised;
+	}
+	
+	/**
+	 * Running time: O(1)
+	 * 
+	 * Space complexity: O(1)
+	 * 
+	 * 
+	 * 
+	 * Roughly how much memory this cipher's tables take up; used to keep
+	 * caches of ciphers to a size limit.
+	 * 
+	 * @return Size in bytes
+	 */
+	public long sizeInBytes() {
+		long size = (encryptArr.length + decryptArr.length) * (long)Short.BYTES;
+		
+		if (fourSq != null) {
+			size += alphabet.size() * 3
+					+ sqChars.length * sqChars.length * (long)Character.BYTES
+					+ key.length() * (long)Character.BYTES;
+		}
+		
+		if (encryptKernel != null) {
+			size += encryptKernel.sizeInBytes() + decryptKernel.sizeInBytes();
+		}
+		
+		return size;
+	}
+	
+	/**
+	 * @return The sanitised key this cipher was created with
+	 * @throws UnsupportedOperationException if the cipher has no key
+	 */
+	public String getKey() {
+		checkKeyed();
+		return key;
+	}
+	
+	/**
+	 * @throws UnsupportedOperationException if the cipher was made from tables
+	 * (see CipherCascade), so has no key squares
+	 */
+	private void checkKeyed() {
+		if (fourSq == null) {
+			throw new UnsupportedOperationException("This cipher has no key; it was made from lookup tables");
+		}
+	}
+	
+	/**
+	 * @return The encryption lookup table itself (not a copy), for the other
+	 * ciphertext formats (see PackedFormat); mustn't be changed
+	 */
+	short[] encryptTable() {
+		return encryptArr;
+	}
+	
+	/**
+	 * (same as above, for decryption)
+	 */
+	short[] decryptTable() {
+		return decryptArr;
+	}
+	
+	/**
+	 * @return The alphabet this cipher was created with
+	 */
+	public Alphabet getAlphabet() {
+		return alphabet;
+	}
+	
+	/**
+	 * @return The lookup table layout the cipher uses; the one it was created
+	 * with, except PACKED for VECTOR without the Vector API
+	 */
+	public TableLayout getLayout() {
+		return layout;
+	}
+	
 	/**
 	 * Running time: O(n)
 	 * Reasoning: Scales with ALPHABET_SIZE (for every character in the alphabet,
@@ -247,8 +575,15 @@ public final class Cipher {
 	 * Reasoning: Same reasoning as above.
 	 */
 	public static String generateRandomKey() {
+		return generateRandomKey(Alphabet.DEFAULT);
+	}
+	
+	/**
+	 * (same as above, for any alphabet)
+	 */
+	public static String generateRandomKey(Alphabet alphabet) {
 		Random random = new Random();
-		char[] key = new char[ALPHABET_SIZE * 2];
+		char[] key = new char[alphabet.size() * 2];
 		int pos = 0;
 		int i;
 		short j;
@@ -257,8 +592,8 @@ public final class Cipher {
 		
 		for (i = 0; i < 2; ++i) {
 			// add all the chars from the alphabet into a linkedlist pool of chars
-			for (j = 0; j < ALPHABET_SIZE; ++j) {
-				charPool.add((char)UNPACKED_CHARS[j]);
+			for (j = 0; j < alphabet.size(); ++j) {
+				charPool.add(alphabet.charAt(j));
 			}
 			
 			// pluck them out at random to generate a random key
@@ -281,45 +616,14 @@ public final class Cipher {
 	 * is for a few variables.
 	 * 
 	 * @param buffer The array of bytes to encrypt
-	 * @param limit How much of the array to encrypt
+	 * @param limit How much of the array to encrypt; if it's odd, the byte
+	 * after it is encrypted too, to make up the last bigram
 	 */
 	public void encryptAll(byte[] buffer, int limit) {
-		int i;
-		short combinedResult;
-		
-		// go through the buffer, in steps of 2
-		for (i = 0; i < limit; i += 2) {
-			try {
-				// use bit shifts to store 2 characters in 1 short, then use the lookup table
-				combinedResult = encryptArr[PACKED_CHARS[buffer[i]] << packedBits | PACKED_CHARS[buffer[i + 1]]];
-			} catch(ArrayIndexOutOfBoundsException e) {
-				// Bigram contains a non-ASCII character.
-				// Using a try catch like this is faster than fixing it beforehand
-				// with if statements for ASCII characters, but slower for non-ASCII
-				// characters.
-				
-				// Files with a large amount of non-ASCII characters (ie. large Irish text files)
-				// probably shouldn't be used anyway since all those characters would be replaced
-				// by question marks.
-				
-				if (buffer[i] >> 7 == -1) {
-					// non-ASCII; convert to UNKNOWN_PLACEHOLDER
-					buffer[i] = UNKNOWN_PLACEHOLDER;
-				}
-				
-				if (buffer[i + 1] >> 7 == -1) {
-					// non-ASCII; convert to UNKNOWN_PLACEHOLDER
-					buffer[i + 1] = UNKNOWN_PLACEHOLDER;
-				}
-				
-				// now that the non-ASCII characters are replaced with placeholders, encrypt again
-				combinedResult = encryptArr[PACKED_CHARS[buffer[i]] << packedBits | PACKED_CHARS[buffer[i + 1]]];
-			}
-			
-			// use bit shifts to get the 2 characters back out of the single short value
-			buffer[i] = UNPACKED_CHARS[(combinedResult >> packedBits)];
-			buffer[i + 1] = UNPACKED_CHARS[(combinedResult & packedBitsMax)];
-		}
+		// Non-ASCII bytes are encrypted as if they were the UNKNOWN_PLACEHOLDER.
+		// This is done 8 bytes at a time with bit masks (see translate), so Irish
+		// text and the like is no slower than plain ASCII.
+		translate(buffer, 0, buffer, 0, limit, encryptArr, encryptKernel);
 	}
 	
 	/**
@@ -338,21 +642,344 @@ public final class Cipher {
 	 * @param limit How much of the array to encrypt
 	 */
 	public void decryptAll(byte[] buffer, int limit) {
-		int i;
+		// (encrypted bytes will be ASCII anyway; any non-ASCII characters in the
+		// input before encrypting were thrown out)
+		translate(buffer, 0, buffer, 0, limit, decryptArr, decryptKernel);
+	}
+
+	/**
+	 * Running time: O(n)
+	 * Reasoning: Same as encryptAll.
+	 * 
+	 * Space complexity: O(1)
+	 * Reasoning: Bytes are encrypted straight into the destination array.
+	 * 
+	 * 
+	 * 
+	 * Encrypts len bytes of src into dst, leaving src untouched (the arrays can
+	 * be the same one). len should be even; an odd last byte is left alone.
+	 * 
+	 * @param src The bytes to encrypt
+	 * @param srcPos Where to start in src
+	 * @param dst Where to put the encrypted bytes
+	 * @param dstPos Where to start in dst
+	 * @param len How many bytes to encrypt
+	 */
+	public void encrypt(byte[] src, int srcPos, byte[] dst, int dstPos, int len) {
+		translate(src, srcPos, dst, dstPos, len & ~1, encryptArr, encryptKernel);
+	}
+	
+	/**
+	 * (same as above, for decryption)
+	 */
+	public void decrypt(byte[] src, int srcPos, byte[] dst, int dstPos, int len) {
+		translate(src, srcPos, dst, dstPos, len & ~1, decryptArr, decryptKernel);
+	}
+
+	/**
+	 * Running time: O(n)
+	 * Reasoning: Same as encryptAll.
+	 * 
+	 * Space complexity: O(1)
+	 * Reasoning: Conversions are done in place.
+	 * 
+	 * 
+	 * 
+	 * ByteBuffer version of encryptAll. Encrypts the bytes between the buffer's
+	 * position and limit in place, without copying them anywhere first, so it works
+	 * the same on heap, direct and memory mapped buffers.
+	 * 
+	 * Only whole bigrams are encrypted: if there's an odd number of bytes remaining,
+	 * the last one is left alone. The position is moved past the encrypted bytes.
+	 * 
+	 * @param buffer The bytes to encrypt
+	 */
+	public void encrypt(ByteBuffer buffer) {
+		translate(buffer, buffer, encryptArr, encryptKernel);
+	}
+	
+	/**
+	 * (same as above, for decryption)
+	 * 
+	 * @param buffer The bytes to decrypt
+	 */
+	public void decrypt(ByteBuffer buffer) {
+		translate(buffer, buffer, decryptArr, decryptKernel);
+	}
+	
+	/**
+	 * Running time: O(n)
+	 * Reasoning: Same as encryptAll.
+	 * 
+	 * Space complexity: O(1)
+	 * Reasoning: Bytes are encrypted straight into the destination buffer.
+	 * 
+	 * 
+	 * 
+	 * Encrypts the remaining bytes of src into dst, leaving src untouched.
+	 * As many whole bigrams are encrypted as fit in both buffers, and the
+	 * positions of both are moved past them.
+	 * 
+	 * @param src The bytes to encrypt
+	 * @param dst Where to put the encrypted bytes
+	 */
+	public void encrypt(ByteBuffer src, ByteBuffer dst) {
+		translate(src, dst, encryptArr, encryptKernel);
+	}
+	
+	/**
+	 * (same as above, for decryption)
+	 * 
+	 * @param src The bytes to decrypt
+	 * @param dst Where to put the decrypted bytes
+	 */
+	public void decrypt(ByteBuffer src, ByteBuffer dst) {
+		translate(src, dst, decryptArr, decryptKernel);
+	}
+	
+	/**
+	 * Running time: O(n)
+	 * Reasoning: One bigram at a time, each in O(1) time.
+	 * 
+	 * Space complexity: O(1)
+	 * Reasoning: Some extra variables.
+	 * 
+	 * 
+	 * 
+	 * Runs the remaining bytes of src through one of the lookup tables, into dst
+	 * (which may be the same buffer). Buffers backed by an array are worked on
+	 * through that array; anything else (direct/mapped buffers) is read and written
+	 * with absolute gets and puts, so nothing is copied either way.
+	 */
+	private static void translate(ByteBuffer src, ByteBuffer dst, short[] table, BigramKernel kernel) {
+		final int srcPos = src.position();
+		final int dstPos = dst.position();
+		// only whole bigrams, and only as many as fit
+		final int len = Math.min(src.remaining(), dst.remaining()) & ~1;
+		final int srcEnd = srcPos + len;
+		int i, j;
+		
+		if (src.hasArray() && dst.hasArray()) {
+			translate(src.array(), src.arrayOffset() + srcPos,
+					dst.array(), dst.arrayOffset() + dstPos,
+					len, table, kernel);
+		}
+		else {
+			// Direct/mapped buffers: individual gets and puts cost a lot more than
+			// array accesses, so the bytes are moved through a small scratch array a
+			// chunk at a time with bulk gets/puts (which are just memory copies),
+			// and encrypted there. The chunk stays in the L1 cache the whole time.
+			byte[] scratch = SCRATCH.get();
+			int chunkLen;
+			
+			for (i = srcPos, j = dstPos; i < srcEnd; i += chunkLen, j += chunkLen) {
+				chunkLen = Math.min(SCRATCH_LEN, srcEnd - i);
+				
+				src.get(i, scratch, 0, chunkLen);
+				translate(scratch, 0, scratch, 0, chunkLen, table, kernel);
+				dst.put(j, scratch, 0, chunkLen);
+			}
+		}
+		
+		// move the buffers past what was processed
+		// (set dst second, in case they're the same buffer)
+		src.position(srcEnd);
+		dst.position(dstPos + len);
+	}
+	
+	/**
+	 * Running time: O(n)
+	 * Reasoning: One bigram at a time (or 4 at a time), each in O(1) time.
+	 * 
+	 * Space complexity: O(1)
+	 * Reasoning: Some extra variables.
+	 * 
+	 * 
+	 * 
+	 * Array version of translate, and the loop behind encryptAll/decryptAll;
+	 * src and dst can be the same array.
+	 * 
+	 * The input is read 8 bytes (4 bigrams) at a time as a long. Non-ASCII bytes
+	 * are swapped for the UNKNOWN_PLACEHOLDER with a few bitwise operations on the
+	 * whole long, so there are no per-byte checks, branches or exceptions, and
+	 * text full of non-ASCII characters runs about as fast as pure ASCII.
+	 */
+	private static void translate(byte[] src, int srcPos, byte[] dst, int dstPos, int len,
+			short[] table, BigramKernel kernel) {
+		final int srcEnd = srcPos + len;
+		final int wordEnd;
+		int i = srcPos, j = dstPos;
+		long word;
+		long nonAscii;
+		
+		if (kernel != null) {
+			// SIMD/other layout loop; does as much as it can (all of it for any
+			// alphabet but the default, whose tables the loops below are for;
+			// that can be one past srcEnd for an odd len, so they're skipped)
+			i += kernel.translate(src, srcPos, dst, dstPos, len);
+			j += i - srcPos;
+		}
+		
+		wordEnd = i + ((srcEnd - i) & ~7);
+		for (; i < wordEnd; i += 8, j += 8) {
+			// little endian, so the first byte is the lowest one
+			word = (long)LONG_VIEW.get(src, i);
+			
+			// Swap any non-ASCII bytes for the UNKNOWN_PLACEHOLDER, without
+			// branching: the top bit of each non-ASCII byte is spread out over
+			// the whole byte, and used to mask in the placeholder instead.
+			nonAscii = word & NON_ASCII_MASK;
+			if (nonAscii != 0) {
+				nonAscii = (nonAscii >>> 7) * 0xFF;
+				word = (word & ~nonAscii) | (PLACEHOLDER_WORD & nonAscii);
+			}
+			
+			translateWord(word, dst, j, table);
+		}
+		
+		// whatever's left (less than 8 bytes), a bigram at a time
+		for (; i < srcEnd; i += 2, j += 2) {
+			translateBigram(src, i, dst, j, table);
+		}
+	}
+	
+	/**
+	 * Runs 4 bigrams of ASCII, packed into a little endian long, through
+	 * the table, into dst[j] onwards. (Written out by hand; the JIT compiler
+	 * doesn't unroll it as well as this.)
+	 */
+	private static void translateWord(long word, byte[] dst, int j, short[] table) {
+		final int c0 = table[PACKED_CHARS[(int)word & 0x7F] << packedBits | PACKED_CHARS[(int)(word >>> 8) & 0x7F]];
+		final int c1 = table[PACKED_CHARS[(int)(word >>> 16) & 0x7F] << packedBits | PACKED_CHARS[(int)(word >>> 24) & 0x7F]];
+		final int c2 = table[PACKED_CHARS[(int)(word >>> 32) & 0x7F] << packedBits | PACKED_CHARS[(int)(word >>> 40) & 0x7F]];
+		final int c3 = table[PACKED_CHARS[(int)(word >>> 48) & 0x7F] << packedBits | PACKED_CHARS[(int)(word >>> 56) & 0x7F]];
+		
+		dst[j + 7] = UNPACKED_CHARS[c3 & packedBitsMax];
+		dst[j] = UNPACKED_CHARS[c0 >> packedBits];
+		dst[j + 1] = UNPACKED_CHARS[c0 & packedBitsMax];
+		dst[j + 2] = UNPACKED_CHARS[c1 >> packedBits];
+		dst[j + 3] = UNPACKED_CHARS[c1 & packedBitsMax];
+		dst[j + 4] = UNPACKED_CHARS[c2 >> packedBits];
+		dst[j + 5] = UNPACKED_CHARS[c2 & packedBitsMax];
+		dst[j + 6] = UNPACKED_CHARS[c3 >> packedBits];
+	}
+	
+	/**
+	 * Runs the single bigram at src[i] through the table, into dst[j].
+	 */
+	private static void translateBigram(byte[] src, int i, byte[] dst, int j, short[] table) {
+		byte b1 = src[i];
+		byte b2 = src[i + 1];
 		short combinedResult;
 		
-		for (i = 0; i < limit; i += 2) {
-			// Note: No need for try/catch here as in the encryptAll method, as we know
-			// encrypted bytes will be ASCII; any non-ASCII characters in the input before
-			// encrypting were thrown out.
+		// a negative byte is non-ASCII; convert to UNKNOWN_PLACEHOLDER
+		// (both checked at once; the sign bit is set if either is negative)
+		if ((b1 | b2) < 0) {
+			if (b1 < 0) b1 = UNKNOWN_PLACEHOLDER;
+			if (b2 < 0) b2 = UNKNOWN_PLACEHOLDER;
+		}
+		
+		// use bit shifts to store 2 characters in 1 short, then use the lookup table
+		combinedResult = table[PACKED_CHARS[b1] << packedBits | PACKED_CHARS[b2]];
+		
+		// use bit shifts to get the 2 characters back out of the single short value
+		dst[j] = UNPACKED_CHARS[(combinedResult >> packedBits)];
+		dst[j + 1] = UNPACKED_CHARS[(combinedResult & packedBitsMax)];
+	}
+	
+	/**
+	 * Running time: O(n)
+	 * Reasoning: Each byte is looked at once (the leading ASCII 8 at a time).
+	 * 
+	 * Space complexity: O(1)
+	 * Reasoning: Done in place.
+	 * 
+	 * 
+	 * 
+	 * Replaces each multi-byte UTF-8 character in the buffer with a single
+	 * UNKNOWN_PLACEHOLDER, shuffling everything after it back. Any other stray
+	 * non-ASCII byte (ie. the input isn't really UTF-8) is replaced on its own.
+	 * 
+	 * @param buffer The bytes to collapse
+	 * @param limit How much of the array to collapse
+	 * @return The new number of bytes in the buffer; never more than limit
+	 */
+	public static int collapseUtf8(byte[] buffer, int limit) {
+		int i = 0, j;
+		int expected, found;
+		byte b;
+		
+		// skip over leading ASCII, 8 bytes at a time; nothing to move there
+		while (i + 8 <= limit && ((long)LONG_VIEW.get(buffer, i) & NON_ASCII_MASK) == 0) {
+			i += 8;
+		}
+		
+		for (j = i; i < limit; ++j) {
+			b = buffer[i++];
 			
-			// use bit shifts to store 2 characters in 1 short, then use the lookup table
-			combinedResult = decryptArr[PACKED_CHARS[buffer[i]] << packedBits | PACKED_CHARS[buffer[i + 1]]];
+			if (b >= 0) {
+				// plain ASCII
+				buffer[j] = b;
+				continue;
+			}
 			
-			// use bit shifts to get the 2 characters back out of the single short value
-			buffer[i] = UNPACKED_CHARS[(combinedResult >> packedBits)];
-			buffer[i + 1] = UNPACKED_CHARS[(combinedResult & packedBitsMax)];
+			// skip over the continuation bytes (10xxxxxx) the lead byte says follow it
+			expected = utf8Continuations(b);
+			for (found = 0; found < expected && i < limit && (buffer[i] & 0xC0) == 0x80; ++found) {
+				++i;
+			}
+			
+			buffer[j] = UNKNOWN_PLACEHOLDER;
 		}
+		
+		return j;
+	}
+	
+	/**
+	 * Running time: O(1)
+	 * Reasoning: Looks at no more than the last 3 bytes.
+	 * 
+	 * Space complexity: O(1)
+	 * Reasoning: Some extra variables.
+	 * 
+	 * 
+	 * 
+	 * Finds where the last complete UTF-8 character in the buffer ends, ie. where
+	 * a character that's been cut off by the end of the buffer starts.
+	 * 
+	 * @return The index of the cut off character, or limit if there isn't one
+	 */
+	public static int utf8Boundary(byte[] buffer, int limit) {
+		int i;
+		byte b;
+		
+		for (i = limit - 1; i >= 0 && i >= limit - 3; --i) {
+			b = buffer[i];
+			
+			if ((b & 0xC0) == 0x80) {
+				// continuation byte; keep looking for its lead byte
+				continue;
+			}
+			
+			if (b < 0 && limit - 1 - i < utf8Continuations(b)) {
+				// lead byte without all of its continuation bytes
+				return i;
+			}
+			
+			break;
+		}
+		
+		return limit;
+	}
+	
+	/**
+	 * @return How many continuation bytes should follow the given UTF-8 lead byte
+	 */
+	private static int utf8Continuations(byte lead) {
+		if ((lead & 0xE0) == 0xC0) return 1;
+		if ((lead & 0xF0) == 0xE0) return 2;
+		if ((lead & 0xF8) == 0xF0) return 3;
+		return 0;
 	}
 	
 	/**
@@ -363,6 +990,7 @@ public final class Cipher {
 	 * Reasoning: Some extra variables.
 	 */
 	public void printKey() {
+		final String key = getKey();
 		int i;
 		char c;
 		
@@ -371,9 +999,9 @@ public final class Cipher {
 		for (i = 0; i < key.length(); ++i) {
 			c = key.charAt(i);
 			
-			// don't print newlines as newlines
+			// don't print newlines (or any other control char) as they are
 			// should use a placeholder character, '^'
-			if (c == '\n') {
+			if (Character.isISOControl(c)) {
 				out.print("^");
 			}
 			else {
@@ -402,14 +1030,15 @@ public final class Cipher {
 		int i, r, c;
 		char sqc;
 		
+		checkKeyed();
 		for (r = 0; r < sqChars.length; ++r) {
 			out.print(" ");
 			// print the alphabet/key characters
 			for (c = 0; c < sqChars[r].length; ++c) {
 				sqc = sqChars[r][c];
-				// don't print newlines as newlines
+				// don't print newlines (or any other control char) as they are
 				// should use a placeholder character, '^'
-				if (sqc == '\n') {
+				if (Character.isISOControl(sqc)) {
 					out.print("^ ");
 				}
 				else {
@@ -440,13 +1069,35 @@ public final class Cipher {
 	
 	/**
 	 * Just calls another object's; see that method for Big O details.
+	 * 
+	 * Always runs with CipherProcessor's default settings (see the class
+	 * comment above).
 	 */
 	public void processFile(String fileName,
 			boolean encryptMode,
 			boolean readFromURL,
 			boolean writeToFile)
 				throws IOException {
-		cipherProcessor.processFile(fileName, encryptMode, readFromURL, writeToFile);
+		getCipherProcessor().processFile(fileName, encryptMode, readFromURL, writeToFile);
+	}
+	
+	/**
+	 * Creates the CipherProcessor the first time it's asked for (only once,
+	 * even if several threads ask at the same time).
+	 */
+	private CipherProcessor getCipherProcessor() {
+		CipherProcessor processor = cipherProcessor;
+		
+		if (processor == null) {
+			synchronized (this) {
+				processor = cipherProcessor;
+				if (processor == null) {
+					cipherProcessor = processor = new CipherProcessor(this);
+				}
+			}
+		}
+		
+		return processor;
 	}
 	
 }
@@ -0,0 +1,28 @@
+package ie.gmit.sw;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event for one buffer going through the cipher. There are
+ * thousands of these per job, so they're off unless turned on in the
+ * recording settings (ie.gmit.sw.CipherBuffer#enabled=true).
+ */
+@Name("ie.gmit.sw.CipherBuffer")
+@Label("Cipher Buffer")
+@Category("Four Square")
+@Description("One buffer encrypted or decrypted")
+@Enabled(false)
+final class CipherBufferEvent extends Event {
+	@Label("Encrypt")
+	boolean encrypt;
+
+	@Label("Bytes")
+	@DataAmount
+	int bytes;
+}
@@ -0,0 +1,174 @@
+package ie.gmit.sw;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fuses a run of ciphers, each encrypting or decrypting in turn, into one.
+ *
+ * A cipher's encryption table maps every bigram to another one, one to one,
+ * and so does its decryption table; following one table's output into the
+ * next's input for every bigram gives a single table that does the whole
+ * run in one go. The fused cipher encrypts with the same single lookup per
+ * bigram as any other cipher (SIMD kernels and all), however many stages
+ * went into it, and decrypts back through all of them the same way.
+ *
+ * Eg. text encrypted with key A and then again with key B:
+ *
+ *     Cipher both = new CipherCascade().encrypt(a).encrypt(b).toCipher();
+ *     both.decryptAll(buffer, len);
+ *
+ * Re-keying (decrypting with the old key, then encrypting with the new) is
+ * just another cascade; see rekey.
+ */
+public final class CipherCascade {
+	private Alphabet alphabet;
+	private TableLayout layout;
+	// the table of each stage, in order
+	private final List<short[]> tables = new ArrayList<>();
+
+	/**
+	 * Adds a stage encrypting with the given cipher.
+	 *
+	 * @return this cascade
+	 * @throws IllegalArgumentException if the cipher's alphabet isn't the
+	 * same as the other stages'
+	 */
+	public CipherCascade encrypt(Cipher cipher) {
+		return add(cipher, cipher.encryptTable());
+	}
+
+	/**
+	 * (same as above, for a stage decrypting with the given cipher)
+	 */
+	public CipherCascade decrypt(Cipher cipher) {
+		return add(cipher, cipher.decryptTable());
+	}
+
+	private CipherCascade add(Cipher cipher, short[] table) {
+		if (alphabet == null) {
+			alphabet = cipher.getAlphabet();
+			layout = cipher.getLayout();
+		}
+		else if (cipher.getAlphabet() != alphabet) {
+			throw new IllegalArgumentException("Every cipher in a cascade must use the same alphabet ("
+					+ alphabet + "), not " + cipher.getAlphabet());
+		}
+
+		tables.add(table);
+		return this;
+	}
+
+	/**
+	 * @return Number of stages so far
+	 */
+	public int size() {
+		return tables.size();
+	}
+
+	/**
+	 * Running time: O(k * n^2), for k stages
+	 * Reasoning: Every one of the n^2 bigrams is looked up once per stage.
+	 *
+	 * Space complexity: O(n^2)
+	 * Reasoning: The fused cipher's lookup tables.
+	 *
+	 * @return A cipher encrypting with every stage in order (and decrypting
+	 * back through them in reverse), with the lookup table layout of the first
+	 * stage's cipher. It has no key (see Cipher.getKey)
+	 * @throws IllegalStateException if there are no stages
+	 */
+	public Cipher toCipher() {
+		return toCipher(layout);
+	}
+
+	/**
+	 * (same as above, with the given layout)
+	 */
+	public Cipher toCipher(TableLayout layout) {
+		final int size, bits;
+		final short[] encryptArr, decryptArr;
+		int i, j, bigram, fused;
+
+		if (tables.isEmpty()) {
+			throw new IllegalStateException("A cascade needs at least one cipher");
+		}
+
+		size = alphabet.size();
+		bits = alphabet.packedBits();
+		encryptArr = new short[tables.get(0).length];
+		decryptArr = new short[encryptArr.length];
+
+		// any unused indexes stay unused, as in Cipher.init
+		Arrays.fill(encryptArr, (short)-1);
+		Arrays.fill(decryptArr, (short)-1);
+
+		for (i = 0; i < size; ++i) {
+			for (j = 0; j < size; ++j) {
+				bigram = i << bits | j;
+				fused = bigram;
+
+				// (& 0xFFFF, as indexes go past Short.MAX_VALUE in a 256 char alphabet)
+				for (short[] table : tables) {
+					fused = table[fused] & 0xFFFF;
+				}
+
+				encryptArr[bigram] = (short)fused;
+				decryptArr[fused] = (short)bigram;
+			}
+		}
+
+		return new Cipher(alphabet, layout, encryptArr, decryptArr);
+	}
+
+	/**
+	 * Running time: O(n^2)
+	 * Reasoning: See toCipher.
+	 *
+	 * Space complexity: O(n^2)
+	 *
+	 * @param from The cipher the text is encrypted with now
+	 * @param to The cipher it should be encrypted with instead
+	 * @return A cipher whose encryption turns text encrypted with from into
+	 * the same text encrypted with to, in one pass; eg. through a
+	 * ParallelCipherProcessor to re-key a big file
+	 */
+	public static Cipher rekey(Cipher from, Cipher to) {
+		return new CipherCascade().decrypt(from).encrypt(to).toCipher();
+	}
+
+	/**
+	 * Running time: O(n / p), for p cores
+	 * Reasoning: The file goes through a ParallelCipherProcessor once, whatever
+	 * the keys.
+	 *
+	 * Space complexity: O(1)
+	 * Reasoning: See ParallelCipherProcessor.processFile.
+	 *
+	 *
+	 *
+	 * Re-keys an encrypted file from the command line:
+	 * rekey OLD_KEY_FILE NEW_KEY_FILE ENCRYPTED_FILE OUTPUT_FILE
+	 */
+	public static void run(String[] args) throws IOException {
+		final long start = System.nanoTime();
+		final Cipher rekeyed;
+
+		if (args.length != 4) {
+			System.err.println("Usage: rekey OLD_KEY_FILE NEW_KEY_FILE ENCRYPTED_FILE OUTPUT_FILE");
+			return;
+		}
+
+		rekeyed = rekey(new Cipher(KeySanitiser.sanitise(KeySanitiser.readKeyFile(Paths.get(args[0])))),
+				new Cipher(KeySanitiser.sanitise(KeySanitiser.readKeyFile(Paths.get(args[1])))));
+		new ParallelCipherProcessor(rekeyed).processFile(Paths.get(args[2]), Paths.get(args[3]), true);
+
+		System.err.printf("Re-keyed %.2fMB in %.0fms%n", Files.size(Paths.get(args[2])) / 1e6,
+				(System.nanoTime() - start) / 1e6);
+	}
+
+}
@@ -0,0 +1,555 @@
+package ie.gmit.sw;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.stream.LongStream;
+
+/**
+ * A seekable encrypted file. The text is split into fixed size chunks, each
+ * encrypted on its own, with an index at the end saying where each chunk
+ * starts and how many lines come before it. Any byte range or range of lines
+ * can then be decrypted by mapping and decrypting just the chunks it covers
+ * (usually one or two), instead of the whole file: a few lines from the
+ * middle of a 10GB log take a millisecond or so, not a full pass.
+ *
+ * The length of the original text is in the header, so, unlike a plain
+ * encrypted file, the padding space added to an odd length text is never
+ * mistaken for part of it.
+ *
+ * The file is made up of (all little endian):
+ *  - a HEADER_LEN byte header:
+ *    - 4 bytes: MAGIC ("4SQC")
+ *    - 4 bytes: format VERSION
+ *    - 4 bytes: flags (FLAG_PACKED if the chunks are in the packed format)
+ *    - 4 bytes: bytes of text per chunk (a multiple of PackedFormat.GROUP_LEN)
+ *    - 8 bytes: fingerprint of the alphabet and key it was encrypted with
+ *    - 8 bytes: length of the text
+ *    - 8 bytes: number of lines in the text
+ *    - 8 bytes: where the index starts
+ *  - the chunks, one after another; each one is the chunk of text encrypted
+ *    in the plain or packed format (the last one padded if it's odd)
+ *  - the index; for each chunk, 8 bytes for where it starts in the file,
+ *    then 8 bytes for the number of newlines before it
+ *
+ * An open container can be read by any number of threads at once.
+ */
+public final class CipherContainer implements Closeable {
+	public static final int DEFAULT_CHUNK_LEN = 64 * 1024;
+
+	static final int MAGIC = '4' | 'S' << 8 | 'Q' << 16 | 'C' << 24;
+	static final int VERSION = 1;
+	static final int HEADER_LEN = 48;
+	static final int FLAG_PACKED = 1;
+	// bytes per index entry
+	static final int ENTRY_LEN = 16;
+
+	private final FileChannel channel;
+	private final Cipher cipher;
+	// null unless the chunks are packed
+	private final PackedFormat format;
+	private final int chunkLen;
+	private final long length;
+	private final long lines;
+	private final long indexOffset;
+	// where each chunk starts in the file, and the number of newlines before it
+	private final long[] offsets;
+	private final long[] linesBefore;
+
+	private CipherContainer(FileChannel channel, Cipher cipher, PackedFormat format, int chunkLen, long length,
+			long lines, long indexOffset, long[] offsets, long[] linesBefore) {
+		this.channel = channel;
+		this.cipher = cipher;
+		this.format = format;
+		this.chunkLen = chunkLen;
+		this.length = length;
+		this.lines = lines;
+		this.indexOffset = indexOffset;
+		this.offsets = offsets;
+		this.linesBefore = linesBefore;
+	}
+
+	/**
+	 * Running time: O(n / p), for p cores
+	 * Reasoning: Each chunk is read, its newlines counted and encrypted in
+	 * O(chunk) time, and the chunks are shared out between all the cores.
+	 *
+	 * Space complexity: O(p + n / c), for chunks of c bytes
+	 * Reasoning: Each core works on one chunk at a time, plus the index.
+	 *
+	 * @param cipher The cipher to encrypt with
+	 * @param inputPath File to read
+	 * @param outputPath Container to write; created or overwritten
+	 * @param chunkLen Bytes of text per chunk; a multiple of 16. The smaller it
+	 * is, the less has to be decrypted to read a few lines, and the bigger the
+	 * index (16 bytes per chunk)
+	 * @param packed true to store the chunks in the packed format (see PackedFormat)
+	 */
+	public static void create(Cipher cipher, Path inputPath, Path outputPath, int chunkLen, boolean packed)
+			throws IOException {
+		final PackedFormat format = packed ? new PackedFormat(cipher) : null;
+		final long inputLen;
+		final int chunks;
+		final long encryptedChunkLen, indexOffset;
+		final long[] newlines;
+		final ByteBuffer header, index;
+		long lineCount;
+		int chunk;
+
+		if (chunkLen <= 0 || chunkLen % PackedFormat.GROUP_LEN != 0) {
+			throw new IllegalArgumentException("Chunk length must be a positive multiple of "
+					+ PackedFormat.GROUP_LEN + ", not " + chunkLen);
+		}
+
+		try (FileChannel in = FileChannel.open(inputPath, StandardOpenOption.READ);
+			FileChannel out = FileChannel.open(outputPath,
+					StandardOpenOption.WRITE,
+					StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+			inputLen = in.size();
+			if ((inputLen + chunkLen - 1) / chunkLen > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Too many chunks; use bigger ones");
+			}
+			chunks = (int)((inputLen + chunkLen - 1) / chunkLen);
+			encryptedChunkLen = packed ? format.packedLength(chunkLen) : chunkLen;
+			newlines = new long[chunks];
+
+			try {
+				LongStream.range(0, chunks).parallel().forEach(c -> {
+					final long start = c * (long)chunkLen;
+					final int len = (int)Math.min(chunkLen, inputLen - start);
+					final byte[] text = new byte[len + 1];
+					final byte[] encrypted;
+					int i, count = 0;
+
+					readFully(in, text, len, start);
+					for (i = 0; i < len; ++i) {
+						if (text[i] == '\n') {
+							++count;
+						}
+					}
+					newlines[(int)c] = count;
+
+					if (packed) {
+						encrypted = new byte[(int)format.packedLength(len)];
+						format.encrypt(text, 0, len, encrypted, 0);
+					}
+					else {
+						// odd number of bytes (only ever the last chunk); add the buffer character (space)
+						text[len] = ' ';
+						encrypted = text;
+						cipher.encrypt(text, 0, encrypted, 0, len + 1);
+					}
+					writeFully(out, encrypted, packed ? encrypted.length : (len + 1) & ~1,
+							HEADER_LEN + c * encryptedChunkLen);
+				});
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+
+			// the index, straight after the last chunk (which may be short; but
+			// every other chunk is a whole number of groups, so together they're
+			// the same length as the whole text encrypted in one go)
+			indexOffset = HEADER_LEN + (packed ? format.packedLength(inputLen) : (inputLen + 1) & ~1);
+			index = ByteBuffer.allocate(chunks * ENTRY_LEN).order(ByteOrder.LITTLE_ENDIAN);
+			lineCount = 0;
+			for (chunk = 0; chunk < chunks; ++chunk) {
+				index.putLong(HEADER_LEN + chunk * encryptedChunkLen).putLong(lineCount);
+				lineCount += newlines[chunk];
+			}
+			if (inputLen > 0 && !endsWithNewline(in, inputLen)) {
+				// the last line has no newline, but it's still a line
+				++lineCount;
+			}
+			index.flip();
+			writeFully(out, index, indexOffset);
+
+			header = ByteBuffer.allocate(HEADER_LEN).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putInt(packed ? FLAG_PACKED : 0).putInt(chunkLen)
+					.putLong(fingerprint(cipher)).putLong(inputLen).putLong(lineCount)
+					.putLong(indexOffset).flip();
+			writeFully(out, header, 0);
+		}
+	}
+
+	/**
+	 * Running time: O(n / c), for chunks of c bytes
+	 * Reasoning: Only the header and index are read.
+	 *
+	 * Space complexity: O(n / c)
+	 * Reasoning: The index is kept in memory (16 bytes per chunk).
+	 *
+	 * @param path A container made by create
+	 * @param cipher A cipher with the same alphabet and key it was made with
+	 * @throws IllegalArgumentException If the cipher's alphabet or key is wrong
+	 */
+	public static CipherContainer open(Path path, Cipher cipher) throws IOException {
+		final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_LEN).order(ByteOrder.LITTLE_ENDIAN);
+		final ByteBuffer index;
+		final long indexOffset;
+		final int chunkLen, chunks;
+		final long length;
+		final long[] offsets, linesBefore;
+		int i;
+
+		try {
+			readFully(channel, header, 0);
+			if (header.getInt(0) != MAGIC) {
+				throw new IOException(path + " isn't an encrypted container");
+			}
+			if (header.getInt(4) != VERSION) {
+				throw new IOException(path + " was made by a different version");
+			}
+			if (header.getLong(16) != fingerprint(cipher)) {
+				throw new IllegalArgumentException(path + " was encrypted with a different key or alphabet");
+			}
+
+			chunkLen = header.getInt(12);
+			length = header.getLong(24);
+			indexOffset = header.getLong(40);
+			chunks = (int)((length + chunkLen - 1) / chunkLen);
+			if (chunkLen <= 0 || channel.size() != indexOffset + (long)chunks * ENTRY_LEN) {
+				throw new IOException(path + " is the wrong size; it may have been cut short");
+			}
+
+			index = channel.map(MapMode.READ_ONLY, indexOffset, (long)chunks * ENTRY_LEN).order(ByteOrder.LITTLE_ENDIAN);
+			offsets = new long[chunks];
+			linesBefore = new long[chunks];
+			for (i = 0; i < chunks; ++i) {
+				offsets[i] = index.getLong();
+				linesBefore[i] = index.getLong();
+			}
+
+			return new CipherContainer(channel, cipher,
+					(header.getInt(8) & FLAG_PACKED) != 0 ? new PackedFormat(cipher) : null,
+					chunkLen, length, header.getLong(32), indexOffset, offsets, linesBefore);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Running time: O(n + c), for chunks of c bytes
+	 * Reasoning: Only the chunks the range covers are decrypted.
+	 *
+	 * Space complexity: O(n + c)
+	 * Reasoning: As above.
+	 *
+	 * @param offset Where to start in the text
+	 * @param len How many bytes to read; less are returned if the text ends first
+	 * @return The decrypted bytes
+	 */
+	public byte[] read(long offset, int len) throws IOException {
+		final long end;
+		final int first, last;
+		final byte[] text;
+
+		if (offset < 0 || len < 0) {
+			throw new IllegalArgumentException("Offset and length can't be negative");
+		}
+
+		end = Math.min(length, offset + len);
+		if (offset >= end) {
+			return new byte[0];
+		}
+
+		first = (int)(offset / chunkLen);
+		last = (int)((end - 1) / chunkLen);
+		if ((last + 1L - first) * chunkLen > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("Too much to read at once; read it in pieces");
+		}
+		text = decryptChunks(first, last);
+
+		return Arrays.copyOfRange(text, (int)(offset - (long)first * chunkLen),
+				(int)(end - (long)first * chunkLen));
+	}
+
+	/**
+	 * Running time: O(n + c), for n bytes of lines and chunks of c bytes
+	 * Reasoning: The chunks where the lines start and end are found from the
+	 * index by binary search, then only the chunks from one to the other are
+	 * decrypted.
+	 *
+	 * Space complexity: O(n + c)
+	 * Reasoning: As above.
+	 *
+	 * @param first The first line to read, counting from 0
+	 * @param count How many lines to read; less are returned if the text ends first
+	 * @return The lines, with their newlines
+	 */
+	public byte[] readLines(long first, long count) throws IOException {
+		final long start, end;
+
+		if (first < 0 || count < 0) {
+			throw new IllegalArgumentException("Line numbers can't be negative");
+		}
+
+		start = lineOffset(first);
+		end = lineOffset(first + Math.min(count, lines));
+		if (end - start > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Too much to read at once; read fewer lines at a time");
+		}
+
+		return read(start, (int)(end - start));
+	}
+
+	/**
+	 * Running time: O(log(n / c) + c), for chunks of c bytes
+	 * Reasoning: Binary search of the index for the chunk the line starts in,
+	 * then that one chunk is decrypted and searched.
+	 *
+	 * Space complexity: O(c)
+	 * Reasoning: One decrypted chunk.
+	 *
+	 * @param line A line number, counting from 0
+	 * @return Where the line starts in the text; the length of the text if
+	 * there are fewer lines than that
+	 */
+	public long lineOffset(long line) throws IOException {
+		final int chunk;
+		final byte[] text;
+		long newlines;
+		int i;
+
+		if (line <= 0) {
+			return 0;
+		}
+		if (line >= lines) {
+			return length;
+		}
+
+		// line starts after the line'th newline, which is in the last chunk with fewer newlines before it
+		chunk = lastChunkBefore(line);
+		text = decryptChunks(chunk, chunk);
+		newlines = linesBefore[chunk];
+		for (i = 0; i < text.length; ++i) {
+			if (text[i] == '\n' && ++newlines == line) {
+				break;
+			}
+		}
+
+		return (long)chunk * chunkLen + i + 1;
+	}
+
+	/**
+	 * @return The length of the original text
+	 */
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * @return The number of lines in the text (the last one may not end in a newline)
+	 */
+	public long lineCount() {
+		return lines;
+	}
+
+	/**
+	 * @return The number of chunks
+	 */
+	public int chunkCount() {
+		return offsets.length;
+	}
+
+	/**
+	 * @return Bytes of text per chunk
+	 */
+	public int getChunkLen() {
+		return chunkLen;
+	}
+
+	/**
+	 * @return true if the chunks are in the packed format
+	 */
+	public boolean isPacked() {
+		return format != null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Command line entry point, run with "container" as the first argument:
+	 *
+	 *   container create KEY_FILE INPUT_FILE CONTAINER [packed]
+	 *   container lines KEY_FILE CONTAINER FIRST COUNT
+	 *   container range KEY_FILE CONTAINER OFFSET LENGTH
+	 *
+	 * lines and range write the decrypted text to stdout; lines count from 0.
+	 */
+	public static void run(String[] args) throws IOException {
+		final long start = System.nanoTime();
+		final Cipher cipher;
+		final byte[] text;
+
+		if (args.length < 4 || (args[0].equals("create") ? args.length > 5
+				: !(args[0].equals("lines") || args[0].equals("range")) || args.length != 5)) {
+			System.err.println("Usage: container create KEY_FILE INPUT_FILE CONTAINER [packed]");
+			System.err.println("       container lines|range KEY_FILE CONTAINER FIRST_LINE|OFFSET COUNT|LENGTH");
+			return;
+		}
+
+		cipher = new Cipher(KeySanitiser.sanitise(KeySanitiser.readKeyFile(Paths.get(args[1]))));
+
+		if (args[0].equals("create")) {
+			create(cipher, Paths.get(args[2]), Paths.get(args[3]), DEFAULT_CHUNK_LEN,
+					args.length == 5 && args[4].equals("packed"));
+			System.err.printf("Wrote %s in %.0fms%n", args[3], (System.nanoTime() - start) / 1e6);
+			return;
+		}
+
+		try (CipherContainer container = open(Paths.get(args[2]), cipher)) {
+			if (args[0].equals("lines")) {
+				text = container.readLines(Long.parseLong(args[3]), Long.parseLong(args[4]));
+			}
+			else {
+				text = container.read(Long.parseLong(args[3]), Integer.parseInt(args[4]));
+			}
+		}
+
+		new FileOutputStream(FileDescriptor.out).write(text);
+		System.err.printf("%d bytes in %.1fms%n", text.length, (System.nanoTime() - start) / 1e6);
+	}
+
+	/**
+	 * Maps and decrypts chunks first to last (which sit one after another in
+	 * the file). The padding on the end of the last chunk is left out.
+	 */
+	private byte[] decryptChunks(int first, int last) throws IOException {
+		final long start = offsets[first];
+		final long end = last + 1 < offsets.length ? offsets[last + 1] : indexOffset;
+		final int textLen = (int)(Math.min(length, (last + 1L) * chunkLen) - (long)first * chunkLen);
+		final ByteBuffer encrypted = channel.map(MapMode.READ_ONLY, start, end - start);
+		final byte[] text, packed;
+
+		if (format == null) {
+			text = new byte[(int)(end - start)];
+			cipher.decrypt(encrypted, ByteBuffer.wrap(text));
+		}
+		else {
+			packed = new byte[(int)(end - start)];
+			encrypted.get(packed);
+			text = new byte[(int)format.plainLength(packed.length)];
+			try {
+				format.decrypt(packed, 0, packed.length, text, 0);
+			} catch (IllegalArgumentException e) {
+				throw new IOException("Corrupt packed ciphertext: " + e.getMessage(), e);
+			}
+		}
+
+		return text.length == textLen ? text : Arrays.copyOf(text, textLen);
+	}
+
+	/**
+	 * @return The last chunk with fewer than line newlines before it
+	 */
+	private int lastChunkBefore(long line) {
+		int low = 0, high = linesBefore.length - 1, mid;
+
+		// (linesBefore[0] is always 0, so there is one)
+		while (low < high) {
+			mid = (low + high + 1) >>> 1;
+			if (linesBefore[mid] < line) {
+				low = mid;
+			}
+			else {
+				high = mid - 1;
+			}
+		}
+
+		return low;
+	}
+
+	/**
+	 * @return The first 8 bytes of the SHA-256 of the alphabet and the
+	 * encryption table (which the key decides), so a container opened with the
+	 * wrong cipher is caught straight away (without giving the key away)
+	 */
+	static long fingerprint(Cipher cipher) {
+		final Alphabet alphabet = cipher.getAlphabet();
+		final MessageDigest digest;
+		int i;
+
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every JVM has SHA-256
+			throw new IllegalStateException(e);
+		}
+
+		for (i = 0; i < alphabet.size(); ++i) {
+			digest.update((byte)alphabet.charAt(i));
+		}
+		// the table rather than the key, which a fused cipher doesn't have (see CipherCascade)
+		for (short entry : cipher.encryptTable()) {
+			digest.update((byte)entry);
+			digest.update((byte)(entry >> 8));
+		}
+
+		return ByteBuffer.wrap(digest.digest()).order(ByteOrder.LITTLE_ENDIAN).getLong();
+	}
+
+	private static boolean endsWithNewline(FileChannel in, long len) throws IOException {
+		final ByteBuffer last = ByteBuffer.allocate(1);
+
+		readFully(in, last, len - 1);
+
+		return last.get(0) == '\n';
+	}
+
+	/**
+	 * Fills the first len bytes of b from the channel, starting at pos. (An
+	 * IOException is thrown as unchecked, to get it out of the parallel stream.)
+	 */
+	private static void readFully(FileChannel in, byte[] b, int len, long pos) {
+		try {
+			readFully(in, ByteBuffer.wrap(b, 0, len), pos);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static void readFully(FileChannel in, ByteBuffer buffer, long pos) throws IOException {
+		final int start = buffer.position();
+
+		while (buffer.hasRemaining()) {
+			if (in.read(buffer, pos + buffer.position() - start) == -1) {
+				throw new IOException("File is shorter than expected");
+			}
+		}
+	}
+
+	private static void writeFully(FileChannel out, byte[] b, int len, long pos) {
+		try {
+			writeFully(out, ByteBuffer.wrap(b, 0, len), pos);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static void writeFully(FileChannel out, ByteBuffer buffer, long pos) throws IOException {
+		final int start = buffer.position();
+
+		while (buffer.hasRemaining()) {
+			out.write(buffer, pos + buffer.position() - start);
+		}
+	}
+
+}
@@ -0,0 +1,28 @@
+package ie.gmit.sw;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event for a whole job: one file, stream or command line
+ * run through the cipher. On in the default recording settings; costs next
+ * to nothing when no recording is running.
+ */
+@Name("ie.gmit.sw.CipherJob")
+@Label("Cipher Job")
+@Category("Four Square")
+@Description("A file or stream encrypted or decrypted")
+final class CipherJobEvent extends Event {
+	@Label("Source")
+	String source;
+
+	@Label("Encrypt")
+	boolean encrypt;
+
+	@Label("Mode")
+	@Description("serial, channels, pipelined, parallel or cli")
+	String mode;
+}
@@ -0,0 +1,579 @@
+package ie.gmit.sw;
+
+import static ie.gmit.sw.Cipher.*;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Counters for what the cipher's processors are doing: bytes in and out,
+ * buffers, the time spent reading, encrypting and writing, and how much of
+ * the input had to be replaced with the placeholder.
+ *
+ * Replaced bytes are counted with the alphabet of the cipher doing the
+ * encrypting (see scan), so they're the same bytes its loop replaces: for
+ * the classic alphabet, eg., digits and punctuation count but lower case
+ * letters and J (read as upper case and I) don't, and for LATIN_1 nothing
+ * ever does.
+ *
+ * Metrics are off unless a CipherMetrics is given to a processor (see
+ * CipherProcessor.setMetrics); a processor with none only ever checks one
+ * field for null per buffer. Every counter is a LongAdder, so the threads of
+ * the parallel and pipelined processors can all record at once without
+ * fighting over a cache line.
+ *
+ * Turning metrics on for the whole JVM: -Dfoursquare.metrics=true records
+ * every job (in any processor, the menu or the command line mode) into one
+ * global instance, which is printed to stderr as a log line at exit.
+ * -Dfoursquare.metrics.port=PORT does the same, and also serves the counters
+ * at http://localhost:PORT/metrics in the Prometheus text format.
+ *
+ * Whether or not metrics are on, each job and (if turned on in the
+ * recording settings) each buffer is also a JDK Flight Recorder event;
+ * see CipherJobEvent and CipherBufferEvent.
+ */
+public final class CipherMetrics {
+	// the metrics for the whole JVM, or null if they're off
+	private static final CipherMetrics GLOBAL;
+	// chunk size scan copies direct buffers through; a multiple of 8
+	private static final int SCAN_LEN = 4096;
+	private static final ThreadLocal<byte[]> SCAN_SCRATCH = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[SCAN_LEN];
+		}
+	};
+
+	static {
+		final String port = System.getProperty("foursquare.metrics.port");
+
+		if (port != null || Boolean.getBoolean("foursquare.metrics")) {
+			GLOBAL = new CipherMetrics();
+
+			if (port != null) {
+				try {
+					GLOBAL.serve(new InetSocketAddress(Integer.parseInt(port)));
+				} catch (IOException e) {
+					throw new UncheckedIOException("Can't serve metrics on port " + port, e);
+				}
+			}
+
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.println(GLOBAL.snapshot())));
+		}
+		else {
+			GLOBAL = null;
+		}
+	}
+
+	private final LongAdder jobs = new LongAdder();
+	private final LongAdder jobNanos = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final LongAdder buffers = new LongAdder();
+	private final LongAdder readNanos = new LongAdder();
+	private final LongAdder cipherNanos = new LongAdder();
+	private final LongAdder writeNanos = new LongAdder();
+	private final LongAdder placeholders = new LongAdder();
+	private final LongAdder nonAsciiWords = new LongAdder();
+
+	/**
+	 * @return The metrics for the whole JVM, or null if they're off (see above)
+	 */
+	public static CipherMetrics global() {
+		return GLOBAL;
+	}
+
+	/**
+	 * A whole job (one file, stream or command line run) has finished.
+	 */
+	public void recordJob(long nanos) {
+		jobs.increment();
+		jobNanos.add(nanos);
+	}
+
+	public void recordRead(long bytes, long nanos) {
+		bytesIn.add(bytes);
+		readNanos.add(nanos);
+	}
+
+	/**
+	 * Some buffers have been encrypted or decrypted.
+	 */
+	public void recordCipher(long buffers, long nanos) {
+		this.buffers.add(buffers);
+		cipherNanos.add(nanos);
+	}
+
+	public void recordWrite(long bytes, long nanos) {
+		bytesOut.add(bytes);
+		writeNanos.add(nanos);
+	}
+
+	/**
+	 * Running time: O(n)
+	 * Reasoning: One table lookup per byte.
+	 *
+	 * Space complexity: O(1)
+	 *
+	 *
+	 *
+	 * Counts the bytes of some plain text that the alphabet will encrypt as
+	 * its placeholder without being it, and (for the default alphabet) the 8
+	 * byte words that take the non-ASCII path of the cipher's loop. Other
+	 * alphabets' loops have no such path, so they never count any. Only
+	 * called when metrics are on; this is the one extra pass over the data
+	 * they cost.
+	 *
+	 * @param alphabet The alphabet of the cipher the text is going through
+	 */
+	public void scan(Alphabet alphabet, byte[] buffer, int off, int len) {
+		final byte[] replacedTable = alphabet.replacedTable();
+		final boolean countWords = (alphabet == Alphabet.DEFAULT);
+		final int end = off + len;
+		long replaced = 0;
+		long words = 0;
+		int i;
+
+		// a word (little endian long) at a time, like the cipher's loop
+		for (i = off; i + 8 <= end; i += 8) {
+			if (countWords && ((long)LONG_VIEW.get(buffer, i) & NON_ASCII_MASK) != 0) {
+				++words;
+			}
+
+			replaced += replacedTable[buffer[i] & 0xFF] + replacedTable[buffer[i + 1] & 0xFF]
+					+ replacedTable[buffer[i + 2] & 0xFF] + replacedTable[buffer[i + 3] & 0xFF]
+					+ replacedTable[buffer[i + 4] & 0xFF] + replacedTable[buffer[i + 5] & 0xFF]
+					+ replacedTable[buffer[i + 6] & 0xFF] + replacedTable[buffer[i + 7] & 0xFF];
+		}
+
+		for (; i < end; ++i) {
+			replaced += replacedTable[buffer[i] & 0xFF];
+		}
+
+		placeholders.add(replaced);
+		nonAsciiWords.add(words);
+	}
+
+	/**
+	 * Running time: O(n)
+	 * Reasoning: 8 bytes at a time.
+	 *
+	 * Space complexity: O(1)
+	 *
+	 *
+	 *
+	 * For UTF-8 aware mode (see CipherProcessor.setCollapseUtf8), where scan
+	 * would count every byte of a multi-byte character as a placeholder:
+	 * counts the non-ASCII bytes of some text before it's collapsed. Every
+	 * collapsed character is one placeholder, so the number of them is this
+	 * count less the number of bytes collapsing removed (see recordCollapsed).
+	 */
+	public static int countNonAscii(byte[] buffer, int len) {
+		int count = 0;
+		int i;
+
+		for (i = 0; i + 8 <= len; i += 8) {
+			count += Long.bitCount((long)LONG_VIEW.get(buffer, i) & NON_ASCII_MASK);
+		}
+
+		for (; i < len; ++i) {
+			count += buffer[i] >>> 7 & 1;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Some characters were collapsed into UNKNOWN_PLACEHOLDERs before being
+	 * encrypted (see above). If the alphabet has it, scan can't tell those
+	 * from one in the text itself, so they're counted here; if it doesn't (eg.
+	 * the classic alphabet), scan has already counted them as replaced.
+	 */
+	public void recordCollapsed(Alphabet alphabet, long chars) {
+		if (alphabet.replacedTable()[UNKNOWN_PLACEHOLDER] == 0) {
+			placeholders.add(chars);
+		}
+	}
+
+	/**
+	 * A padding space was added to the end of the text to make up the last
+	 * bigram, and scanned along with it. It isn't part of the input, so if
+	 * the alphabet replaces it (eg. the classic one), it's taken back off.
+	 */
+	public void recordPadding(Alphabet alphabet) {
+		placeholders.add(-alphabet.replacedTable()[' ']);
+	}
+
+	/**
+	 * (same as scan above, for the bytes between a buffer's position and
+	 * limit; the position isn't moved)
+	 */
+	public void scan(Alphabet alphabet, ByteBuffer buffer) {
+		final int off = buffer.position();
+		final int end = buffer.limit();
+		final byte[] scratch;
+		int i;
+
+		if (buffer.hasArray()) {
+			scan(alphabet, buffer.array(), buffer.arrayOffset() + off, end - off);
+			return;
+		}
+
+		// direct/mapped buffers; copied out a chunk at a time in bulk (as in
+		// Cipher.translate), since single gets are a lot slower. SCAN_LEN is a
+		// multiple of 8, so the words line up the same as in one big scan.
+		scratch = SCAN_SCRATCH.get();
+		for (i = off; i < end; i += SCAN_LEN) {
+			buffer.get(i, scratch, 0, Math.min(SCAN_LEN, end - i));
+			scan(alphabet, scratch, 0, Math.min(SCAN_LEN, end - i));
+		}
+	}
+
+	/**
+	 * Encrypts/decrypts the remaining bytes of the buffer in place (see
+	 * Cipher.encrypt(ByteBuffer)), recording it in the metrics if there are
+	 * any, and as a CipherBufferEvent.
+	 */
+	static void transform(Cipher cipher, ByteBuffer buffer, boolean encryptMode, CipherMetrics metrics) {
+		transform(cipher, buffer, buffer, encryptMode, metrics);
+	}
+
+	/**
+	 * (same as above, from one buffer to another)
+	 */
+	static void transform(Cipher cipher, ByteBuffer src, ByteBuffer dst, boolean encryptMode, CipherMetrics metrics) {
+		final CipherBufferEvent event = new CipherBufferEvent();
+		final int len = src.remaining();
+		long start = 0;
+
+		if (metrics != null) {
+			if (encryptMode) {
+				metrics.scan(cipher.getAlphabet(), src);
+			}
+			start = System.nanoTime();
+		}
+
+		event.begin();
+		if (encryptMode) {
+			cipher.encrypt(src, dst);
+		}
+		else {
+			cipher.decrypt(src, dst);
+		}
+		event.end();
+
+		if (metrics != null) {
+			metrics.recordCipher(1, System.nanoTime() - start);
+		}
+		if (event.shouldCommit()) {
+			event.encrypt = encryptMode;
+			event.bytes = len;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Wraps a stream so that every read is timed, counted and (if there's an
+	 * alphabet, ie. when encrypting) scanned; see scan.
+	 *
+	 * @param scanAs The alphabet of the cipher the input is going through, or
+	 * null not to scan it
+	 */
+	public MeteredInputStream meter(InputStream in, Alphabet scanAs) {
+		return new MeteredInputStream(in, scanAs);
+	}
+
+	/**
+	 * Wraps a stream so that every write (and flush) is timed and counted.
+	 */
+	public MeteredOutputStream meter(OutputStream out) {
+		return new MeteredOutputStream(out);
+	}
+
+	/**
+	 * (see meter)
+	 */
+	public final class MeteredInputStream extends FilterInputStream {
+		// (null not to scan)
+		private final Alphabet scanAs;
+		// time spent in this stream's reads, so the time spent on everything
+		// else can be worked out
+		private long nanos;
+
+		private MeteredInputStream(InputStream in, Alphabet scanAs) {
+			super(in);
+			this.scanAs = scanAs;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final byte[] one = new byte[1];
+
+			return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			final long start = System.nanoTime();
+			final int read = in.read(b, off, len);
+			final long taken = System.nanoTime() - start;
+
+			nanos += taken;
+			if (read > 0) {
+				recordRead(read, taken);
+				if (scanAs != null) {
+					scan(scanAs, b, off, read);
+				}
+			}
+
+			return read;
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+	}
+
+	/**
+	 * (see meter)
+	 */
+	public final class MeteredOutputStream extends FilterOutputStream {
+		private long nanos;
+
+		private MeteredOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte)b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			final long start = System.nanoTime();
+			final long taken;
+
+			out.write(b, off, len);
+			taken = System.nanoTime() - start;
+			nanos += taken;
+			recordWrite(len, taken);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			final long start = System.nanoTime();
+			final long taken;
+
+			out.flush();
+			taken = System.nanoTime() - start;
+			nanos += taken;
+			recordWrite(0, taken);
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+	}
+
+	/**
+	 * @return The counters as they are right now (each one is read separately,
+	 * so jobs still running can be caught half way through a buffer)
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(jobs.sum(), jobNanos.sum(), bytesIn.sum(), bytesOut.sum(), buffers.sum(),
+				readNanos.sum(), cipherNanos.sum(), writeNanos.sum(), placeholders.sum(), nonAsciiWords.sum());
+	}
+
+	public void reset() {
+		for (LongAdder counter : new LongAdder[] {jobs, jobNanos, bytesIn, bytesOut, buffers,
+				readNanos, cipherNanos, writeNanos, placeholders, nonAsciiWords}) {
+			counter.reset();
+		}
+	}
+
+	/**
+	 * Serves the counters at /metrics, in the Prometheus text format, on a
+	 * single background thread.
+	 *
+	 * @return The running server; stop it to stop serving
+	 */
+	public HttpServer serve(InetSocketAddress address) throws IOException {
+		final HttpServer server = HttpServer.create(address, 0);
+
+		server.createContext("/metrics", exchange -> {
+			final byte[] body = snapshot().toPrometheus().getBytes(StandardCharsets.US_ASCII);
+
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+
+		return server;
+	}
+
+	@Override
+	public String toString() {
+		return snapshot().toString();
+	}
+
+	/**
+	 * The counters at one point in time.
+	 */
+	public static final class Snapshot {
+		private final long jobs;
+		private final long jobNanos;
+		private final long bytesIn;
+		private final long bytesOut;
+		private final long buffers;
+		private final long readNanos;
+		private final long cipherNanos;
+		private final long writeNanos;
+		private final long placeholders;
+		private final long nonAsciiWords;
+
+		private Snapshot(long jobs, long jobNanos, long bytesIn, long bytesOut, long buffers,
+				long readNanos, long cipherNanos, long writeNanos, long placeholders, long nonAsciiWords) {
+			this.jobs = jobs;
+			this.jobNanos = jobNanos;
+			this.bytesIn = bytesIn;
+			this.bytesOut = bytesOut;
+			this.buffers = buffers;
+			this.readNanos = readNanos;
+			this.cipherNanos = cipherNanos;
+			this.writeNanos = writeNanos;
+			this.placeholders = placeholders;
+			this.nonAsciiWords = nonAsciiWords;
+		}
+
+		/**
+		 * @return What's been recorded since the earlier snapshot
+		 */
+		public Snapshot minus(Snapshot earlier) {
+			return new Snapshot(jobs - earlier.jobs, jobNanos - earlier.jobNanos,
+					bytesIn - earlier.bytesIn, bytesOut - earlier.bytesOut, buffers - earlier.buffers,
+					readNanos - earlier.readNanos, cipherNanos - earlier.cipherNanos, writeNanos - earlier.writeNanos,
+					placeholders - earlier.placeholders, nonAsciiWords - earlier.nonAsciiWords);
+		}
+
+		public long getJobs() {
+			return jobs;
+		}
+
+		public long getJobNanos() {
+			return jobNanos;
+		}
+
+		public long getBytesIn() {
+			return bytesIn;
+		}
+
+		public long getBytesOut() {
+			return bytesOut;
+		}
+
+		public long getBuffers() {
+			return buffers;
+		}
+
+		public long getReadNanos() {
+			return readNanos;
+		}
+
+		/**
+		 * @return Time spent encrypting/decrypting, added up over every thread
+		 * (so it can be more than the job time with the parallel processor)
+		 */
+		public long getCipherNanos() {
+			return cipherNanos;
+		}
+
+		public long getWriteNanos() {
+			return writeNanos;
+		}
+
+		/**
+		 * @return Number of input bytes encrypted as the UNKNOWN_PLACEHOLDER
+		 */
+		public long getPlaceholders() {
+			return placeholders;
+		}
+
+		/**
+		 * @return Number of 8 byte words of input that had non-ASCII bytes
+		 * masked out (the cipher loop's only slow path)
+		 */
+		public long getNonAsciiWords() {
+			return nonAsciiWords;
+		}
+
+		/**
+		 * @return A short report for a person, eg. at the end of a job in the menu
+		 */
+		public String summary() {
+			return String.format("%.2fMB in, %.2fMB out in %.2fms (read %.2fms, cipher %.2fms, write %.2fms; "
+					+ "%d buffers, %d bytes replaced with '%c')",
+					bytesIn / 1e6, bytesOut / 1e6, jobNanos / 1e6,
+					readNanos / 1e6, cipherNanos / 1e6, writeNanos / 1e6,
+					buffers, placeholders, (char)UNKNOWN_PLACEHOLDER);
+		}
+
+		/**
+		 * @return The counters in the Prometheus text exposition format
+		 */
+		public String toPrometheus() {
+			final StringBuilder out = new StringBuilder();
+
+			counter(out, "jobs_total", "Jobs finished", jobs);
+			counter(out, "job_seconds_total", "Time spent on whole jobs", jobNanos / 1e9);
+			counter(out, "bytes_in_total", "Bytes read", bytesIn);
+			counter(out, "bytes_out_total", "Bytes written", bytesOut);
+			counter(out, "buffers_total", "Buffers encrypted or decrypted", buffers);
+			counter(out, "read_seconds_total", "Time spent reading", readNanos / 1e9);
+			counter(out, "cipher_seconds_total", "Time spent encrypting or decrypting, over all threads", cipherNanos / 1e9);
+			counter(out, "write_seconds_total", "Time spent writing", writeNanos / 1e9);
+			counter(out, "placeholder_bytes_total", "Input bytes encrypted as the unknown placeholder", placeholders);
+			counter(out, "non_ascii_words_total", "8 byte words of input with non-ASCII bytes", nonAsciiWords);
+
+			return out.toString();
+		}
+
+		private static void counter(StringBuilder out, String name, String help, double value) {
+			out.append("# HELP foursquare_").append(name).append(' ').append(help).append('\n');
+			out.append("# TYPE foursquare_").append(name).append(" counter\n");
+			out.append("foursquare_").append(name).append(' ');
+			if (value == (long)value) {
+				out.append((long)value);
+			}
+			else {
+				out.append(value);
+			}
+			out.append('\n');
+		}
+
+		/**
+		 * @return The counters as one key=value log line
+		 */
+		@Override
+		public String toString() {
+			return String.format("four-square metrics: jobs=%d job_ms=%.2f bytes_in=%d bytes_out=%d buffers=%d "
+					+ "read_ms=%.2f cipher_ms=%.2f write_ms=%.2f placeholders=%d non_ascii_words=%d",
+					jobs, jobNanos / 1e6, bytesIn, bytesOut, buffers,
+					readNanos / 1e6, cipherNanos / 1e6, writeNanos / 1e6, placeholders, nonAsciiWords);
+		}
+	}
+
+}
@@ -9,24 +9,105 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 /**
  * Handles reading from file/URL and writing to a file/console,
  * feeding all bytes through the Cipher object.
+ *
+ * Thread safe: any number of threads can run jobs at once. Nothing a job
+ * works on is kept in the processor itself; the buffers come from the
+ * thread running the job (one of each per thread, reused for every job it
+ * runs), and the pipelined/parallel processors keep their working state per
+ * job too. The settings (setCollapseUtf8 etc.) apply to every job started
+ * on this processor after they're changed, so they're up to whoever made
+ * it; the one behind Cipher.processFile is never changed from the defaults.
  */
 public class CipherProcessor {
 	// number of bytes to be used in the byte buffer
 	// MUST be an even number, should be a power of 2, bigger
 	// or equal to 8192
 	private static final int BUFFER_LEN = 65536;
-	// the input byte buffer
-	private byte[] buffer;
+	// files at least this big are processed on every core at once
+	// (when reading from a file and writing to a file)
+	private static final long PARALLEL_THRESHOLD = 16 * 1024 * 1024;
+	// where output files go
+	static final String OUTPUT_DIR = "./output";
+	// the input byte buffer of each thread running a job; allocated the
+	// first time a thread needs it
+	// (subclasses rather than withInitial and a lambda, as in Cipher)
+	private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[BUFFER_LEN];
+		}
+	};
+	// same again, as a direct buffer for file channels
+	private static final ThreadLocal<ByteBuffer> CHANNEL_BUFFER = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(BUFFER_LEN);
+		}
+	};
 	// the cipher object to use for encryption/decryption
-	private Cipher cipher;
+	private final Cipher cipher;
+	// used for large files (neither allocates anything until it's used)
+	private final ParallelCipherProcessor parallelProcessor;
+	// used in pipelined mode
+	private final PipelinedCipherProcessor pipelinedProcessor;
+	// true to encrypt each multi-byte UTF-8 character as a single
+	// UNKNOWN_PLACEHOLDER, instead of one per byte
+	private volatile boolean collapseUtf8;
+	// true to read, encrypt and write on separate threads at once
+	private volatile boolean pipelined;
+	// where to record what's processed, or null for nowhere
+	private volatile CipherMetrics metrics = CipherMetrics.global();
 	
 	public CipherProcessor(Cipher cipher) {
 		this.cipher = cipher;
-		buffer = new byte[BUFFER_LEN];
+		parallelProcessor = new ParallelCipherProcessor(cipher);
+		pipelinedProcessor = new PipelinedCipherProcessor(cipher);
+	}
+	
+	/**
+	 * Running time: O(n)
+	 * Reasoning: See processJob.
+	 * 
+	 * Space complexity: O(1)
+	 * Reasoning: See processJob.
+	 * 
+	 * 
+	 * 
+	 * Runs the job (see processJob for the parameters), recording it in the
+	 * metrics if there are any, and as a CipherJobEvent.
+	 */
+	public void processFile(String resourcePath,
+							boolean encryptMode,
+							boolean readFromURL,
+							boolean writeToFile)
+								throws IOException {
+		final CipherJobEvent event = new CipherJobEvent();
+		final long start = System.nanoTime();
+		final String mode;
+		
+		event.begin();
+		mode = processJob(resourcePath, encryptMode, readFromURL, writeToFile);
+		event.end();
+		
+		if (metrics != null) {
+			metrics.recordJob(System.nanoTime() - start);
+		}
+		if (event.shouldCommit()) {
+			event.source = resourcePath;
+			event.encrypt = encryptMode;
+			event.mode = mode;
+			event.commit();
+		}
 	}
 	
 	/**
@@ -43,23 +124,54 @@ public class CipherProcessor {
 	 * @param encryptMode true for encrypt, false for decrypt
 	 * @param readFromURL true to read from URL, false to read from file
 	 * @param writeToFile true to write to file, false to write to console
+	 * @return Which way the job was done (parallel, pipelined, channels or serial)
 	 */
-	public void processFile(String resourcePath,
+	private String processJob(String resourcePath,
 							boolean encryptMode,
 							boolean readFromURL,
 							boolean writeToFile)
 								throws IOException {
 		// number of bytes that were read into the buffer
 		int bytesRead;
+		// number of buffers that went through the cipher
+		long buffers = 0;
+		// start of the loop, for working out how long the cipher took
+		long loopStart;
+		// whether to collapse UTF-8 characters this time; only makes sense when encrypting
+		final boolean collapseUtf8 = this.collapseUtf8 && encryptMode;
+		// (read once, in case it's changed part way through the job)
+		final CipherMetrics metrics = this.metrics;
 		
-		String inputFileName = new File(resourcePath).getName();
 		// full path to the output file
 		String fileOutputPath;
 		
 		InputStream inStream;
 		OutputStream outStream;
+		// the raw input and output, timed (only if there are metrics)
+		CipherMetrics.MeteredInputStream meteredIn = null;
+		CipherMetrics.MeteredOutputStream meteredOut = null;
 		URL url;
 		
+		if (!readFromURL && writeToFile && !collapseUtf8
+				&& new File(resourcePath).length() >= PARALLEL_THRESHOLD) {
+			// big file to file job; share it out between all the cores
+			parallelProcessor.processFile(Paths.get(resourcePath),
+					Paths.get(getOutputPath(resourcePath, encryptMode)),
+					encryptMode, metrics);
+			return "parallel";
+		}
+		
+		if (pipelined && !collapseUtf8) {
+			processPipelined(resourcePath, encryptMode, readFromURL, writeToFile, metrics);
+			return "pipelined";
+		}
+		
+		if (!readFromURL && writeToFile && !collapseUtf8) {
+			// file to file; skip the stream buffers
+			processChannels(resourcePath, getOutputPath(resourcePath, encryptMode), encryptMode, metrics);
+			return "channels";
+		}
+		
 		if (readFromURL) {
 			url = new URL(resourcePath);
 			inStream = url.openStream();
@@ -70,15 +182,7 @@ public class CipherProcessor {
 		}
 		
 		if (writeToFile) {
-			// strip off the file extension, if there is one
-			if (inputFileName.contains(".")) {
-				inputFileName = inputFileName.substring(0, inputFileName.lastIndexOf('.'));
-			}
-			
-			// form the output path string
-			fileOutputPath = String.format("./output/%s%s.txt",
-					inputFileName,
-					(encryptMode ? "_enc" : "_dec"));
+			fileOutputPath = getOutputPath(resourcePath, encryptMode);
 			
 			outStream = new FileOutputStream(fileOutputPath);
 		}
@@ -87,26 +191,34 @@ public class CipherProcessor {
 			outStream = System.out;
 		}
 		
-		BufferedInputStream in = new BufferedInputStream(inStream);
+		if (metrics != null) {
+			// time the raw reads and writes; whatever's left of the loop is the cipher
+			// (UTF-8 aware mode scans the bytes once they're collapsed instead, as
+			// every byte of a multi-byte character would count as a placeholder here)
+			inStream = meteredIn = metrics.meter(inStream, encryptMode && !collapseUtf8 ? cipher.getAlphabet() : null);
+			outStream = meteredOut = metrics.meter(outStream);
+		}
+		
 		BufferedOutputStream out = new BufferedOutputStream(outStream);
+		InputStream in;
 		
-		// fill the buffer until no more bytes are available
-		while ((bytesRead = in.read(buffer)) != -1) {
-			if (bytesRead % 2 != 0) {
-				// odd number of bytes; add the buffer character (space)
-				buffer[bytesRead++] = ' ';
-			}
+		loopStart = System.nanoTime();
+		if (!collapseUtf8) {
+			// A read from a URL (or any stream) can return an odd number of bytes
+			// at any point, not just at the end; the cipher stream holds the odd
+			// byte back for the next read instead of padding it there and then.
+			final byte[] buffer = BUFFER.get();
 			
-			// encrypt/decrypt byte pairs in place
-			if (encryptMode) {
-				cipher.encryptAll(buffer, bytesRead);
-			}
-			else {
-				cipher.decryptAll(buffer, bytesRead);
-			}
+			in = new FourSquareInputStream(inStream, cipher, encryptMode);
 			
-			// write the buffer
-			out.write(buffer, 0, bytesRead);
+			while ((bytesRead = in.read(buffer, 0, BUFFER_LEN)) != -1) {
+				out.write(buffer, 0, bytesRead);
+				++buffers;
+			}
+		}
+		else {
+			in = new BufferedInputStream(inStream);
+			buffers = processCollapsedUtf8(in, out, metrics);
 		}
 		
 		// close files etc.
@@ -119,6 +231,274 @@ public class CipherProcessor {
 			out.flush();
 			System.out.print("\n\n");
 		}
+		
+		if (metrics != null) {
+			// the cipher runs inside the stream's reads, so it gets whatever
+			// time the raw input and output didn't take
+			metrics.recordCipher(buffers,
+					System.nanoTime() - loopStart - meteredIn.getNanos() - meteredOut.getNanos());
+		}
+		
+		return "serial";
+	}
+	
+	/**
+	 * Running time: O(n)
+	 * Reasoning: Same as processFile.
+	 * 
+	 * Space complexity: O(1)
+	 * Reasoning: The same buffer is reused for the whole stream.
+	 * 
+	 * 
+	 * 
+	 * The encrypting loop of processFile for UTF-8 aware mode (see setCollapseUtf8).
+	 * 
+	 * @param metrics Counts the placeholders in the collapsed bytes (see
+	 * CipherMetrics.countNonAscii), or null
+	 * @return The number of buffers encrypted
+	 */
+	private long processCollapsedUtf8(InputStream in, OutputStream out, CipherMetrics metrics) throws IOException {
+		final byte[] buffer = BUFFER.get();
+		// number of bytes that were read into the buffer
+		int bytesRead;
+		// number of bytes held back from the previous read
+		int pending = 0;
+		// end of the whole UTF-8 characters in the buffer, and their collapsed length
+		int complete, collapsed;
+		// non-ASCII bytes before collapsing (only counted if there are metrics)
+		int nonAscii = 0;
+		long buffers = 0;
+		
+		// fill the buffer until no more bytes are available
+		// (after any bytes held back from the last read)
+		while ((bytesRead = in.read(buffer, pending, BUFFER_LEN - pending)) != -1) {
+			bytesRead += pending;
+			
+			// Collapsing changes the number of bytes, and a character can be cut in
+			// half by the end of the buffer, so hold back any unfinished character
+			// and the last byte if there's an odd number, for the next read.
+			complete = Cipher.utf8Boundary(buffer, bytesRead);
+			if (metrics != null) {
+				nonAscii = CipherMetrics.countNonAscii(buffer, complete);
+			}
+			collapsed = Cipher.collapseUtf8(buffer, complete);
+			System.arraycopy(buffer, complete, buffer, collapsed, bytesRead - complete);
+			
+			pending = collapsed % 2 + (bytesRead - complete);
+			bytesRead = collapsed - collapsed % 2;
+			
+			if (metrics != null) {
+				metrics.recordCollapsed(cipher.getAlphabet(), nonAscii - (complete - collapsed));
+				metrics.scan(cipher.getAlphabet(), buffer, 0, bytesRead);
+			}
+			
+			// encrypt byte pairs in place
+			cipher.encryptAll(buffer, bytesRead);
+			
+			// write the buffer
+			out.write(buffer, 0, bytesRead);
+			
+			// move anything held back to the start, for the next read
+			System.arraycopy(buffer, bytesRead, buffer, 0, pending);
+			++buffers;
+		}
+		
+		if (pending > 0) {
+			// end of the input; whatever was held back is all that's left
+			// (an unfinished character at the very end still counts as one)
+			if (metrics != null) {
+				nonAscii = CipherMetrics.countNonAscii(buffer, pending);
+			}
+			bytesRead = Cipher.collapseUtf8(buffer, pending);
+			if (metrics != null) {
+				metrics.recordCollapsed(cipher.getAlphabet(), nonAscii - (pending - bytesRead));
+			}
+			// (scanned before padding; the padding isn't part of the input)
+			if (metrics != null) {
+				metrics.scan(cipher.getAlphabet(), buffer, 0, bytesRead);
+			}
+			if (bytesRead % 2 != 0) {
+				buffer[bytesRead++] = ' ';
+			}
+			
+			cipher.encryptAll(buffer, bytesRead);
+			out.write(buffer, 0, bytesRead);
+			++buffers;
+		}
+		
+		return buffers;
+	}
+	
+	/**
+	 * UTF-8 aware mode: when encrypting, a multi-byte UTF-8 character (eg. an 'é')
+	 * becomes a single UNKNOWN_PLACEHOLDER rather than one for each of its bytes.
+	 * Off by default, since the output is then shorter than the input.
+	 */
+	public void setCollapseUtf8(boolean collapseUtf8) {
+		this.collapseUtf8 = collapseUtf8;
+	}
+	
+	/**
+	 * Pipelined mode: reading, encryption and writing are done side by side on
+	 * separate threads (see PipelinedCipherProcessor), which helps most when the
+	 * input or output is slow, eg. a URL. Off by default.
+	 */
+	public void setPipelined(boolean pipelined) {
+		this.pipelined = pipelined;
+	}
+	
+	/**
+	 * Where to record the bytes, buffers and times of every job from now on
+	 * (see CipherMetrics); null to stop recording. Defaults to
+	 * CipherMetrics.global().
+	 */
+	public void setMetrics(CipherMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Running time: O(n)
+	 * Reasoning: See PipelinedCipherProcessor.
+	 * 
+	 * Space complexity: O(1)
+	 * Reasoning: See PipelinedCipherProcessor.
+	 * 
+	 * 
+	 * 
+	 * Pipelined version of processFile; same parameters, plus the metrics to
+	 * record the job in.
+	 */
+	private void processPipelined(String resourcePath,
+									boolean encryptMode,
+									boolean readFromURL,
+									boolean writeToFile,
+									CipherMetrics metrics)
+										throws IOException {
+		try (ReadableByteChannel in = readFromURL
+				? Channels.newChannel(new URL(resourcePath).openStream())
+				: FileChannel.open(Paths.get(resourcePath), StandardOpenOption.READ)) {
+			if (writeToFile) {
+				try (FileChannel out = FileChannel.open(Paths.get(getOutputPath(resourcePath, encryptMode)),
+						StandardOpenOption.WRITE,
+						StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+					pipelinedProcessor.process(in, out, encryptMode, metrics);
+				}
+			}
+			else {
+				// (not closed; that would close System.out)
+				pipelinedProcessor.process(in, Channels.newChannel(System.out), encryptMode, metrics);
+				System.out.flush();
+				System.out.print("\n\n");
+			}
+		}
+	}
+	
+	/**
+	 * Running time: O(n)
+	 * Reasoning: Same as processFile; each byte is read, dealt with in O(1)
+	 * time, then written.
+	 * 
+	 * Space complexity: O(1)
+	 * Reasoning: The same buffer is reused for the whole file.
+	 * 
+	 * 
+	 * 
+	 * File to file version of processFile. The file channels read straight into
+	 * a direct buffer, which is encrypted in place and written straight back out,
+	 * so the bytes are never copied onto the heap or through the internal buffers
+	 * of a BufferedInputStream and BufferedOutputStream.
+	 * 
+	 * The buffer is filled completely before each encryption, so an odd number of
+	 * bytes (and with it, the padding character) can only happen at the very end.
+	 */
+	private void processChannels(String inputPath, String outputPath, boolean encryptMode,
+			CipherMetrics metrics) throws IOException {
+		final ByteBuffer channelBuffer = CHANNEL_BUFFER.get();
+		
+		try (FileChannel in = FileChannel.open(Paths.get(inputPath), StandardOpenOption.READ);
+			FileChannel out = FileChannel.open(Paths.get(outputPath),
+					StandardOpenOption.WRITE,
+					StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+			// (only timed if there are metrics)
+			long start = 0;
+			
+			do {
+				channelBuffer.clear();
+				if (metrics != null) {
+					start = System.nanoTime();
+				}
+				
+				// fill the buffer until it's full or the file has ended
+				while (channelBuffer.hasRemaining() && in.read(channelBuffer) != -1);
+				
+				if (channelBuffer.position() == 0) {
+					break;
+				}
+				if (metrics != null) {
+					metrics.recordRead(channelBuffer.position(), System.nanoTime() - start);
+				}
+				
+				if (channelBuffer.position() % 2 != 0) {
+					// odd number of bytes; add the buffer character (space)
+					channelBuffer.put((byte)' ');
+					if (metrics != null && encryptMode) {
+						metrics.recordPadding(cipher.getAlphabet());
+					}
+				}
+				
+				// encrypt/decrypt byte pairs in place
+				channelBuffer.flip();
+				CipherMetrics.transform(cipher, channelBuffer, encryptMode, metrics);
+				
+				// write the buffer
+				channelBuffer.flip();
+				if (metrics != null) {
+					start = System.nanoTime();
+				}
+				while (channelBuffer.hasRemaining()) {
+					out.write(channelBuffer);
+				}
+				if (metrics != null) {
+					metrics.recordWrite(channelBuffer.limit(), System.nanoTime() - start);
+				}
+			} while (channelBuffer.limit() == BUFFER_LEN);
+		}
+	}
+	
+	/**
+	 * Running time: O(n)
+	 * Reasoning: Proportional to the length of the path.
+	 * 
+	 * Space complexity: O(n)
+	 * Reasoning: Builds a new string of roughly the same length.
+	 * 
+	 * 
+	 * 
+	 * Works out where the output of a job should be written: the input file
+	 * name, without its extension, with _enc or _dec added, in the output folder.
+	 */
+	static String getOutputPath(String resourcePath, boolean encryptMode) {
+		return getOutputPath(OUTPUT_DIR, resourcePath, encryptMode);
+	}
+	
+	/**
+	 * (same as above, for any output folder)
+	 */
+	static String getOutputPath(String outputDir, String resourcePath, boolean encryptMode) {
+		String inputFileName = new File(resourcePath).getName();
+		
+		// strip off the file extension, if there is one
+		if (inputFileName.contains(".")) {
+			inputFileName = inputFileName.substring(0, inputFileName.lastIndexOf('.'));
+		}
+		
+		// form the output path string
+		return String.format("%s/%s%s.txt",
+				outputDir,
+				inputFileName,
+				(encryptMode ? "_enc" : "_dec"));
 	}
 	
 }
@@ -0,0 +1,338 @@
+package ie.gmit.sw;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * A cache of initialised Ciphers, for when lots of (short) messages are
+ * encrypted under a much smaller number of keys.
+ *
+ * Keys are sanitised once, when they're registered, and the resulting
+ * KeyHandle is used from then on. Ciphers are kept in least recently used
+ * order and evicted once their tables add up to more than the size limit;
+ * an evicted cipher is simply rebuilt the next time its handle is used.
+ *
+ * All methods are thread safe. A cipher is built outside the registry's
+ * lock, so one key being built never holds up any other key: the cache holds
+ * a future for each key, and anything else that wants the same key while
+ * it's being built waits on that future rather than building it again.
+ */
+public final class CipherRegistry {
+	// default size limit; enough for a few hundred ciphers with the default layout
+	public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+	// sanitised key -> cipher (or the cipher being built), in least recently used order
+	private final LinkedHashMap<String, Entry> ciphers;
+	// layout of every cipher created by this registry
+	private final TableLayout layout;
+	// size limit, and the current total size, of all cached ciphers
+	private final long maxBytes;
+	private long sizeInBytes;
+
+	// statistics
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * A cached cipher, or one still being built.
+	 */
+	private static final class Entry {
+		private final CompletableFuture<Cipher> cipher = new CompletableFuture<Cipher>();
+		// 0 until it's built
+		private long sizeInBytes;
+	}
+
+	/**
+	 * A sanitised key, ready to be used with the registry.
+	 */
+	public static final class KeyHandle {
+		private final String sanitizedKey;
+
+		private KeyHandle(String sanitizedKey) {
+			this.sanitizedKey = sanitizedKey;
+		}
+
+		public String getSanitizedKey() {
+			return sanitizedKey;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof KeyHandle && ((KeyHandle)o).sanitizedKey.equals(sanitizedKey);
+		}
+
+		@Override
+		public int hashCode() {
+			return sanitizedKey.hashCode();
+		}
+	}
+
+	public CipherRegistry() {
+		this(DEFAULT_MAX_BYTES, Cipher.DEFAULT_LAYOUT);
+	}
+
+	public CipherRegistry(long maxBytes, TableLayout layout) {
+		this.maxBytes = maxBytes;
+		this.layout = layout;
+		// access order; iteration starts at the least recently used
+		ciphers = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	}
+
+	/**
+	 * Running time: O(n)
+	 * Reasoning: Sanitising the key; see KeySanitiser.
+	 *
+	 * Space complexity: O(n)
+	 * Reasoning: The sanitised key.
+	 *
+	 *
+	 *
+	 * Sanitises any input key (see KeySanitiser) and returns a handle for it.
+	 * The cipher itself is built the first time the handle is used.
+	 */
+	public KeyHandle register(String rawKey) {
+		return new KeyHandle(KeySanitiser.sanitise(rawKey));
+	}
+
+	/**
+	 * Running time: O(1) if cached, otherwise the same as creating a Cipher
+	 *
+	 * Space complexity: O(1) if cached, otherwise the same as a Cipher
+	 *
+	 *
+	 *
+	 * Returns the cipher for a handle, building (and caching) it on the
+	 * calling thread if necessary, or waiting for it if another thread is
+	 * already building it.
+	 */
+	public Cipher get(KeyHandle handle) {
+		Entry entry;
+		final boolean building;
+
+		synchronized (this) {
+			entry = lookUp(handle);
+			building = (entry == null);
+			if (building) {
+				entry = newEntry(handle);
+			}
+		}
+
+		return building ? build(handle, entry) : await(entry.cipher);
+	}
+
+	/**
+	 * (same as above, but never blocks: a cipher that isn't cached yet is
+	 * built by the given executor)
+	 *
+	 * @return The cipher, which is already done if it was cached
+	 */
+	public CompletableFuture<Cipher> getAsync(KeyHandle handle, Executor executor) {
+		final Entry cached, entry;
+
+		synchronized (this) {
+			cached = lookUp(handle);
+			if (cached != null) {
+				return cached.cipher;
+			}
+			entry = newEntry(handle);
+		}
+
+		executor.execute(() -> {
+			try {
+				build(handle, entry);
+			} catch (RuntimeException e) {
+				// already passed on through the future
+			}
+		});
+
+		return entry.cipher;
+	}
+
+	/**
+	 * (called with the lock held)
+	 *
+	 * @return The entry for a handle (counted as a hit), or null (counted as a miss)
+	 */
+	private Entry lookUp(KeyHandle handle) {
+		final Entry entry = ciphers.get(handle.sanitizedKey);
+
+		if (entry != null) {
+			++hits;
+		}
+		else {
+			++misses;
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Adds an entry for a cipher about to be built; from then on, anything
+	 * else that wants it waits for it instead of building it too.
+	 * (Only called straight after lookUp has missed, under the same lock.)
+	 */
+	private Entry newEntry(KeyHandle handle) {
+		final Entry entry = new Entry();
+
+		ciphers.put(handle.sanitizedKey, entry);
+		return entry;
+	}
+
+	/**
+	 * Builds a cipher outside the lock, then counts its size (if it's still
+	 * in the cache) and hands it to anything waiting for it.
+	 */
+	private Cipher build(KeyHandle handle, Entry entry) {
+		final Cipher cipher;
+
+		try {
+			cipher = new Cipher(handle.sanitizedKey, layout);
+		} catch (RuntimeException e) {
+			synchronized (this) {
+				ciphers.remove(handle.sanitizedKey, entry);
+			}
+			entry.cipher.completeExceptionally(e);
+			throw e;
+		}
+
+		synchronized (this) {
+			// (it may have been evicted, or the cache cleared, while it was built)
+			if (ciphers.get(handle.sanitizedKey) == entry) {
+				entry.sizeInBytes = cipher.sizeInBytes();
+				sizeInBytes += entry.sizeInBytes;
+				evictToSize();
+			}
+		}
+
+		entry.cipher.complete(cipher);
+		return cipher;
+	}
+
+	/**
+	 * Waits for a cipher being built by another thread.
+	 */
+	private static Cipher await(CompletableFuture<Cipher> cipher) {
+		try {
+			return cipher.join();
+		} catch (CompletionException e) {
+			// the exception building it threw, as it would have been if built here
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Removes the least recently used ciphers until the cache fits its size
+	 * limit again. The most recently used one is always kept.
+	 */
+	private void evictToSize() {
+		Iterator<Map.Entry<String, Entry>> it = ciphers.entrySet().iterator();
+
+		while (sizeInBytes > maxBytes && ciphers.size() > 1) {
+			sizeInBytes -= it.next().getValue().sizeInBytes;
+			it.remove();
+			++evictions;
+		}
+	}
+
+	/**
+	 * Running time: O(n), for the total length of all messages
+	 * Reasoning: Each message is encrypted in linear time; each handle is
+	 * resolved in O(1) time (unless it needs to be built).
+	 *
+	 * Space complexity: O(1)
+	 * Reasoning: Messages are encrypted in place; nothing is allocated per message.
+	 *
+	 *
+	 *
+	 * Encrypts a whole batch of messages, each under its own key, in place.
+	 * Runs of messages with the same key only look the cipher up once.
+	 *
+	 * @param keys The key handle for each message
+	 * @param messages The messages to encrypt
+	 * @param lengths How much of each message to encrypt; must be even and not negative
+	 */
+	public void encryptBatch(KeyHandle[] keys, byte[][] messages, int[] lengths) {
+		processBatch(keys, messages, lengths, true);
+	}
+
+	/**
+	 * (same as above, for decryption)
+	 */
+	public void decryptBatch(KeyHandle[] keys, byte[][] messages, int[] lengths) {
+		processBatch(keys, messages, lengths, false);
+	}
+
+	private void processBatch(KeyHandle[] keys, byte[][] messages, int[] lengths, boolean encryptMode) {
+		int i;
+		KeyHandle lastKey = null;
+		Cipher cipher = null;
+
+		if (keys.length != messages.length || keys.length != lengths.length) {
+			throw new IllegalArgumentException("Need exactly one key and one length per message");
+		}
+
+		// check everything first, so a bad message doesn't leave the batch half done
+		for (i = 0; i < lengths.length; ++i) {
+			if (lengths[i] < 0 || lengths[i] % 2 != 0 || lengths[i] > messages[i].length) {
+				throw new IllegalArgumentException("Bad length for message " + i + ": " + lengths[i]);
+			}
+		}
+
+		for (i = 0; i < messages.length; ++i) {
+			if (keys[i] != lastKey) {
+				cipher = get(keys[i]);
+				lastKey = keys[i];
+			}
+
+			if (encryptMode) {
+				cipher.encryptAll(messages[i], lengths[i]);
+			}
+			else {
+				cipher.decryptAll(messages[i], lengths[i]);
+			}
+		}
+	}
+
+	/**
+	 * Empties the cache (but keeps the statistics).
+	 */
+	public synchronized void clear() {
+		ciphers.clear();
+		sizeInBytes = 0;
+	}
+
+	public synchronized int size() {
+		return ciphers.size();
+	}
+
+	public synchronized long getSizeInBytes() {
+		return sizeInBytes;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("CipherRegistry[%d ciphers, %d/%d bytes, %d hits, %d misses, %d evictions]",
+				ciphers.size(), sizeInBytes, maxBytes, hits, misses, evictions);
+	}
+
+}
@@ -0,0 +1,586 @@
+package ie.gmit.sw;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Encrypts/decrypts streams sent over TCP, for lots of clients at once, so
+ * jobs don't each need a new JVM.
+ *
+ * Each message from a client starts with a 9 byte header:
+ *  - 1 byte: ENCRYPT ('E') or DECRYPT ('D')
+ *  - 4 bytes: key id, as returned by addKey (big endian)
+ *  - 4 bytes: length of the message body in bytes (big endian)
+ * followed by the body. The result is streamed back as the body arrives:
+ * the same length, plus a padding space if the length was odd. A connection
+ * can send as many messages as it likes, one after another.
+ *
+ * All sockets are non-blocking and shared between a few event loop threads,
+ * each with its own Selector and its own pool of direct buffers. A buffer is
+ * only held by a connection while it has data on the way through, so idle
+ * connections cost next to nothing. Bigrams split across packets are put
+ * back together (an odd byte is carried over to the next read), and only the
+ * end of a message is padded.
+ *
+ * The event loops never build a cipher themselves. A message whose key's
+ * cipher isn't cached (eg. it was evicted from the registry) has it built on
+ * another thread, and only that connection stops reading until it's ready.
+ */
+public class CipherServer implements Closeable {
+	public static final byte ENCRYPT = 'E';
+	public static final byte DECRYPT = 'D';
+	public static final int HEADER_LEN = 9;
+
+	public static final int DEFAULT_BUFFER_LEN = 16 * 1024;
+	// idle buffers kept per event loop
+	private static final int MAX_IDLE_BUFFERS = 256;
+	// reads handled for one connection before moving on to the next,
+	// so one fast client can't starve the rest
+	private static final int READS_PER_EVENT = 4;
+
+	// where the ciphers come from
+	private final CipherRegistry registry;
+	// key id -> key handle; replaced (not changed) when a key is added
+	private volatile CipherRegistry.KeyHandle[] keys = new CipherRegistry.KeyHandle[0];
+	private final int bufferLen;
+	private final EventLoop[] loops;
+	private ServerSocketChannel serverChannel;
+	// next loop to hand a new connection to
+	private int nextLoop;
+
+	// statistics
+	private final LongAdder connections = new LongAdder();
+	private final LongAdder messages = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	// null unless metrics are on; the reads and writes never block, so only
+	// their bytes are recorded, not their times
+	private final CipherMetrics metrics = CipherMetrics.global();
+
+	public CipherServer(CipherRegistry registry) {
+		this(registry, DEFAULT_BUFFER_LEN, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param registry Where to get the ciphers from
+	 * @param bufferLen Size of each pooled buffer; must be even
+	 * @param loopCount Number of event loop threads
+	 */
+	public CipherServer(CipherRegistry registry, int bufferLen, int loopCount) {
+		if (bufferLen < 2 || bufferLen % 2 != 0) {
+			throw new IllegalArgumentException("Buffer length must be even and positive: " + bufferLen);
+		}
+		if (loopCount < 1) {
+			throw new IllegalArgumentException("Need at least one event loop");
+		}
+
+		this.registry = registry;
+		this.bufferLen = bufferLen;
+		loops = new EventLoop[loopCount];
+	}
+
+	/**
+	 * Sanitises a key (see CipherRegistry.register) and makes it available to
+	 * clients. Its cipher is built here and now, on the calling thread, so the
+	 * first message using it doesn't have to wait for it.
+	 *
+	 * @return The id clients should put in their message headers
+	 */
+	public synchronized int addKey(String rawKey) {
+		CipherRegistry.KeyHandle[] newKeys = Arrays.copyOf(keys, keys.length + 1);
+
+		newKeys[keys.length] = registry.register(rawKey);
+		registry.get(newKeys[keys.length]);
+		keys = newKeys;
+
+		return keys.length - 1;
+	}
+
+	/**
+	 * Starts listening, and starts the event loop threads.
+	 *
+	 * @param address Where to listen; port 0 for any free port
+	 * @return The address actually listened on
+	 */
+	public synchronized InetSocketAddress start(SocketAddress address) throws IOException {
+		int i;
+
+		if (serverChannel != null) {
+			throw new IllegalStateException("Already started");
+		}
+
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(address, 4096);
+		serverChannel.configureBlocking(false);
+
+		for (i = 0; i < loops.length; ++i) {
+			loops[i] = new EventLoop(i);
+		}
+		// the first loop does the accepting too
+		serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+
+		for (EventLoop loop : loops) {
+			loop.thread.start();
+		}
+
+		return (InetSocketAddress)serverChannel.getLocalAddress();
+	}
+
+	/**
+	 * Stops the event loops, and closes every connection.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (serverChannel == null) {
+			return;
+		}
+
+		for (EventLoop loop : loops) {
+			loop.running = false;
+			loop.selector.wakeup();
+		}
+
+		for (EventLoop loop : loops) {
+			try {
+				loop.thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		serverChannel.close();
+	}
+
+	/**
+	 * Server mode of the jar: java -jar four-square.jar serve [port] [key file...]
+	 *
+	 * Each key file gets a key id, in the order given (0, 1, 2...). With no key
+	 * files, a random key is generated and printed. Runs until the JVM is stopped.
+	 */
+	public static void serve(String[] args) throws IOException {
+		final CipherServer server = new CipherServer(new CipherRegistry());
+		int port = 4444;
+		int i = 0;
+		String key;
+
+		if (args.length > 0 && args[0].matches("\\d+")) {
+			port = Integer.parseInt(args[i++]);
+		}
+
+		if (i == args.length) {
+			key = Cipher.generateRandomKey();
+			System.out.printf("Key id %d: %s%n", server.addKey(key), key);
+		}
+
+		for (; i < args.length; ++i) {
+			key = KeySanitiser.readKeyFile(Paths.get(args[i]));
+			System.out.printf("Key id %d: %s%n", server.addKey(key), args[i]);
+		}
+
+		System.out.println("Listening on " + server.start(new InetSocketAddress(port)));
+
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				server.close();
+			} catch (IOException e) {
+				// shutting down anyway
+			}
+			System.out.println(server);
+		}));
+
+		for (EventLoop loop : server.loops) {
+			try {
+				loop.thread.join();
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	public long getConnections() {
+		return connections.sum();
+	}
+
+	public long getMessages() {
+		return messages.sum();
+	}
+
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("CipherServer[%d connections, %d messages, %d bytes]",
+				getConnections(), getMessages(), getBytes());
+	}
+
+	/**
+	 * One thread, with a Selector and the connections registered with it.
+	 */
+	private final class EventLoop implements Runnable {
+		private final Selector selector;
+		private final Thread thread;
+		private final BufferPool pool;
+		// connections accepted by the first loop, waiting to be registered here
+		private final Queue<SocketChannel> incoming = new ConcurrentLinkedQueue<SocketChannel>();
+		// connections whose cipher has been built, waiting to start reading again
+		private final Queue<Connection> ready = new ConcurrentLinkedQueue<Connection>();
+		private volatile boolean running = true;
+
+		EventLoop(int index) throws IOException {
+			selector = Selector.open();
+			pool = new BufferPool(bufferLen, MAX_IDLE_BUFFERS);
+			thread = new Thread(this, "four-square-server-" + index);
+			thread.setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			Iterator<SelectionKey> it;
+			SelectionKey key;
+
+			try {
+				while (running) {
+					selector.select();
+					registerIncoming();
+					resumeReady();
+
+					it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						key = it.next();
+						it.remove();
+
+						if (!key.isValid()) {
+							continue;
+						}
+
+						if (key.isAcceptable()) {
+							accept();
+						}
+						else {
+							((Connection)key.attachment()).handle(key);
+						}
+					}
+				}
+			} catch (IOException | ClosedSelectorException e) {
+				// the selector itself failed; nothing more this loop can do
+			} finally {
+				for (SelectionKey k : selector.keys()) {
+					if (k.attachment() instanceof Connection) {
+						((Connection)k.attachment()).close();
+					}
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					// closing anyway
+				}
+			}
+		}
+
+		/**
+		 * Accepts every waiting connection and deals them out to the loops in turn.
+		 */
+		private void accept() throws IOException {
+			SocketChannel channel;
+			EventLoop loop;
+
+			while ((channel = serverChannel.accept()) != null) {
+				connections.increment();
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+				loop = loops[nextLoop++ % loops.length];
+				loop.incoming.add(channel);
+				if (loop != this) {
+					loop.selector.wakeup();
+				}
+			}
+
+			registerIncoming();
+		}
+
+		private void registerIncoming() {
+			SocketChannel channel;
+			Connection connection;
+
+			while ((channel = incoming.poll()) != null) {
+				try {
+					connection = new Connection(channel, this);
+					connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+				} catch (IOException e) {
+					closeQuietly(channel);
+				}
+			}
+		}
+
+		private void resumeReady() {
+			Connection connection;
+
+			while ((connection = ready.poll()) != null) {
+				connection.resume();
+			}
+		}
+	}
+
+	/**
+	 * The state of one client connection. Only ever used by its event loop's thread.
+	 */
+	private final class Connection {
+		private final SocketChannel channel;
+		private final EventLoop loop;
+		private final BufferPool pool;
+		private SelectionKey key;
+		// the header of the message being read
+		private final ByteBuffer header = ByteBuffer.allocate(HEADER_LEN);
+		// true while reading a message body; false while reading a header
+		private boolean inBody;
+		// the cipher for the current message, and the key id it was found for
+		private Cipher cipher;
+		private int cipherKeyId = -1;
+		// the cipher being built for the current message; null unless waiting for it
+		private CompletableFuture<Cipher> building;
+		private boolean encryptMode;
+		// bytes of the current message body still to be read
+		private long remaining;
+		// first byte of a bigram split across reads; -1 if none
+		private int carry = -1;
+		// processed bytes the socket hasn't taken yet; null if none
+		private ByteBuffer pending;
+
+		Connection(SocketChannel channel, EventLoop loop) {
+			this.channel = channel;
+			this.loop = loop;
+			this.pool = loop.pool;
+		}
+
+		void handle(SelectionKey key) {
+			int reads;
+
+			try {
+				if (key.isWritable() && !flushPending(key)) {
+					return;
+				}
+
+				if (key.isReadable()) {
+					for (reads = 0; reads < READS_PER_EVENT && pending == null; ++reads) {
+						if (!(inBody ? readBody(key) : readHeader())) {
+							break;
+						}
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				// bad header, client went away, etc.; just drop the connection
+				key.cancel();
+				close();
+			}
+		}
+
+		/**
+		 * @return true if a whole header was read (and the body can be read next)
+		 */
+		private boolean readHeader() throws IOException {
+			final CipherRegistry.KeyHandle[] keys = CipherServer.this.keys;
+			final int keyId;
+			final byte op;
+
+			if (channel.read(header) == -1) {
+				// the client has finished; fine between messages, not halfway through a header
+				if (header.position() > 0) {
+					throw new IOException("Connection closed in the middle of a header");
+				}
+				close();
+				return false;
+			}
+
+			if (header.hasRemaining()) {
+				return false;
+			}
+
+			op = header.get(0);
+			keyId = header.getInt(1);
+			remaining = header.getInt(5);
+			header.clear();
+
+			if ((op != ENCRYPT && op != DECRYPT) || keyId < 0 || keyId >= keys.length || remaining < 0) {
+				throw new IOException("Bad header");
+			}
+
+			encryptMode = (op == ENCRYPT);
+			inBody = remaining > 0;
+			messages.increment();
+
+			if (keyId != cipherKeyId) {
+				cipherKeyId = keyId;
+				building = registry.getAsync(keys[keyId], ForkJoinPool.commonPool());
+
+				if (!building.isDone()) {
+					// not cached; stop reading until it's built (see resume), without
+					// holding up any other connection
+					cipher = null;
+					key.interestOps(0);
+					building.whenComplete((built, e) -> {
+						loop.ready.add(this);
+						loop.selector.wakeup();
+					});
+					return false;
+				}
+
+				cipher = building.join();
+				building = null;
+			}
+
+			return true;
+		}
+
+		/**
+		 * Starts reading again once the cipher being built is ready (or drops
+		 * the connection if it couldn't be built). Called on the event loop's thread.
+		 */
+		void resume() {
+			if (!key.isValid()) {
+				return;
+			}
+
+			try {
+				cipher = building.join();
+			} catch (CompletionException | CancellationException e) {
+				key.cancel();
+				close();
+				return;
+			}
+
+			building = null;
+			key.interestOps(SelectionKey.OP_READ);
+		}
+
+		/**
+		 * Reads what it can of the message body into a pooled buffer,
+		 * encrypts/decrypts it and sends it back.
+		 *
+		 * @return true if it's worth reading again straight away
+		 */
+		private boolean readBody(SelectionKey key) throws IOException {
+			final ByteBuffer buffer = pool.acquire();
+			int bytesRead;
+			int len;
+
+			if (carry != -1) {
+				buffer.put((byte)carry);
+				carry = -1;
+			}
+
+			// never read past the end of this message
+			buffer.limit(buffer.position() + (int)Math.min(buffer.remaining(), remaining));
+			bytesRead = channel.read(buffer);
+			buffer.limit(buffer.capacity());
+
+			if (bytesRead == -1) {
+				pool.release(buffer);
+				throw new IOException("Connection closed in the middle of a message");
+			}
+
+			remaining -= bytesRead;
+			len = buffer.position();
+			bytes.add(bytesRead);
+			if (metrics != null) {
+				metrics.recordRead(bytesRead, 0);
+			}
+
+			if (remaining == 0) {
+				// end of the message; the only place an odd byte gets padded
+				if (len % 2 != 0) {
+					buffer.put((byte)' ');
+					++len;
+					if (metrics != null && encryptMode) {
+						metrics.recordPadding(cipher.getAlphabet());
+					}
+				}
+				inBody = false;
+			}
+			else if (len % 2 != 0) {
+				// hold back the odd byte until the rest of its bigram arrives
+				carry = buffer.get(--len) & 0xFF;
+			}
+
+			if (len == 0) {
+				pool.release(buffer);
+				return false;
+			}
+
+			buffer.position(0).limit(len);
+			CipherMetrics.transform(cipher, buffer, encryptMode, metrics);
+			buffer.flip();
+
+			pending = buffer;
+			return flushPending(key) && bytesRead > 0;
+		}
+
+		/**
+		 * Writes as much of the pending buffer as the socket will take. If it
+		 * won't take it all, stops reading (so a slow reader can't make the
+		 * server buffer up everything it sends) until it's written.
+		 *
+		 * @return true if everything was written
+		 */
+		private boolean flushPending(SelectionKey key) throws IOException {
+			final int written;
+
+			if (pending == null) {
+				return true;
+			}
+
+			written = channel.write(pending);
+			if (metrics != null) {
+				metrics.recordWrite(written, 0);
+			}
+
+			if (pending.hasRemaining()) {
+				key.interestOps(SelectionKey.OP_WRITE);
+				return false;
+			}
+
+			pool.release(pending);
+			pending = null;
+			key.interestOps(SelectionKey.OP_READ);
+			return true;
+		}
+
+		void close() {
+			if (pending != null) {
+				pool.release(pending);
+				pending = null;
+			}
+			closeQuietly(channel);
+		}
+	}
+
+	private static void closeQuietly(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// nothing else to do
+		}
+	}
+
+}
@@ -0,0 +1,475 @@
+package ie.gmit.sw;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+/**
+ * Searches encrypted files (in the plain format) for any number of patterns,
+ * without decrypting them.
+ *
+ * Every aligned bigram is always encrypted the same way, so a pattern shows
+ * up in the ciphertext as one of two fixed byte strings, depending on whether
+ * it starts on an even or odd offset. The part of the pattern made of whole
+ * bigrams at that alignment (its "core") is encrypted once, up front, and the
+ * ciphertext is searched for the cores directly. The chars on either end that
+ * only fill half a bigram (the first char at an odd offset; the last char if
+ * the rest of the pattern doesn't fill whole bigrams) encrypt differently
+ * depending on their unknown neighbour, so each time a core is found, just
+ * those one or two bigrams are decrypted and checked.
+ *
+ * The cores of every pattern are matched at once with an Aho-Corasick
+ * automaton, with a row of 256 transitions per state so that each raw byte
+ * of ciphertext costs one lookup however many patterns there are. A single
+ * pattern's two cores are searched for with Horspool's algorithm instead,
+ * which skips ahead by up to a core's length at a time. Big files are memory
+ * mapped in chunks, searched where they're mapped on every core at once.
+ *
+ * Patterns match as the text would decrypt: chars outside the alphabet match
+ * the placeholder, and in the classic alphabet J matches I.
+ */
+public final class CiphertextSearch {
+	// size of each chunk of a file searched on its own
+	private static final int CHUNK_LEN = 4 * 1024 * 1024;
+	// shortest pattern that has a core at both alignments
+	public static final int MIN_PATTERN_LEN = 3;
+	// most states the automaton can have (see next); about 16K chars of patterns
+	private static final int MAX_STATES = 1 << 15;
+	private static final Comparator<Match> BY_OFFSET =
+			Comparator.comparingLong(Match::getOffset).thenComparingInt(Match::getPattern);
+
+	private final Cipher cipher;
+	private final String[] patterns;
+	// the patterns as they'd decrypt (see above)
+	private final byte[][] folded;
+	// the automaton: the next state for each state and raw byte of ciphertext,
+	// at state * 256 + byte (bytes that pack the same go the same way). The
+	// next state is flipped (~) if something's found on reaching it, so each
+	// byte costs one lookup and a sign check. (Shorts rather than ints keep
+	// twice as much of it in the cache, for at most MAX_STATES states.)
+	private final short[] next;
+	// what's found on reaching each state: pattern * 2 + alignment (null for nothing)
+	private final int[][] found;
+	// length of the core of each pattern * 2 + alignment
+	private final int[] coreLens;
+	private final int maxPatternLen;
+	// for a single pattern, its cores (pattern * 2 + alignment) and their
+	// Horspool shift tables: how far on the core can be from a raw byte
+	// under its last char (null for more than one pattern)
+	private final byte[][] cores;
+	private final int[][] shifts;
+
+	/**
+	 * A pattern found in the text.
+	 */
+	public static final class Match {
+		private final long offset;
+		private final int pattern;
+
+		private Match(long offset, int pattern) {
+			this.offset = offset;
+			this.pattern = pattern;
+		}
+
+		/**
+		 * @return Where the pattern starts in the text (the same offset in the ciphertext)
+		 */
+		public long getOffset() {
+			return offset;
+		}
+
+		/**
+		 * @return Which pattern it is (its index in the patterns given)
+		 */
+		public int getPattern() {
+			return pattern;
+		}
+
+		@Override
+		public String toString() {
+			return offset + ":" + pattern;
+		}
+	}
+
+	/**
+	 * Running time: O(m * a), for patterns m chars long in total, and an
+	 * alphabet of a chars
+	 * Reasoning: Each pattern is encrypted at both alignments, and the
+	 * automaton has at most m states per alignment, each with a transition for
+	 * every char.
+	 *
+	 * Space complexity: O(m)
+	 * Reasoning: As above, with 256 transitions per state whatever the alphabet.
+	 *
+	 * @param cipher The cipher the files were encrypted with
+	 * @param patterns What to look for; each at least MIN_PATTERN_LEN chars
+	 * @throws IllegalArgumentException if a pattern's too short, or they're too
+	 * long all together for the automaton (see MAX_STATES)
+	 */
+	public CiphertextSearch(Cipher cipher, String... patterns) {
+		final byte[] pack = cipher.getAlphabet().packTable();
+		final byte[] unpack = cipher.getAlphabet().unpackTable();
+		final int size = cipher.getAlphabet().size();
+		final byte[][] cores = new byte[patterns.length * 2][];
+		final int maxStates;
+		final int[] trie, fail;
+		final List<int[]> outputs = new ArrayList<>();
+		final ArrayDeque<Integer> queue = new ArrayDeque<>();
+		int states = 1, state, c, child;
+		int i, j, a, b, max = 0;
+
+		if (patterns.length == 0) {
+			throw new IllegalArgumentException("Nothing to search for");
+		}
+
+		this.cipher = cipher;
+		this.patterns = patterns.clone();
+		folded = new byte[patterns.length][];
+		coreLens = new int[patterns.length * 2];
+
+		for (i = 0; i < patterns.length; ++i) {
+			if (patterns[i].length() < MIN_PATTERN_LEN) {
+				throw new IllegalArgumentException("Patterns must be at least " + MIN_PATTERN_LEN
+						+ " chars long: \"" + patterns[i] + "\"");
+			}
+
+			// (chars past Latin-1 become '?', which packs as the placeholder like any other unknown char)
+			folded[i] = patterns[i].getBytes(StandardCharsets.ISO_8859_1);
+			for (j = 0; j < folded[i].length; ++j) {
+				folded[i][j] = unpack[pack[folded[i][j] & 0xFF] & 0xFF];
+			}
+			max = Math.max(max, folded[i].length);
+
+			for (a = 0; a < 2; ++a) {
+				coreLens[i * 2 + a] = (folded[i].length - a) & ~1;
+				cores[i * 2 + a] = new byte[coreLens[i * 2 + a]];
+				cipher.encrypt(folded[i], a, cores[i * 2 + a], 0, coreLens[i * 2 + a]);
+			}
+		}
+		maxPatternLen = max;
+
+		// the trie of every core, then the failure links (by breadth first search)
+		maxStates = Arrays.stream(coreLens).sum() + 1;
+		if (maxStates > MAX_STATES) {
+			throw new IllegalArgumentException("Too many patterns to search for at once (" + maxStates
+					+ " states, at most " + MAX_STATES + ")");
+		}
+		trie = new int[maxStates * size];
+		fail = new int[maxStates];
+		Arrays.fill(trie, -1);
+		for (i = 0; i < maxStates; ++i) {
+			outputs.add(null);
+		}
+
+		for (i = 0; i < cores.length; ++i) {
+			state = 0;
+			for (j = 0; j < cores[i].length; ++j) {
+				c = pack[cores[i][j] & 0xFF] & 0xFF;
+				if (trie[state * size + c] == -1) {
+					trie[state * size + c] = states++;
+				}
+				state = trie[state * size + c];
+			}
+			outputs.set(state, append(outputs.get(state), i));
+		}
+
+		for (c = 0; c < size; ++c) {
+			if (trie[c] == -1) {
+				trie[c] = 0;
+			}
+			else {
+				fail[trie[c]] = 0;
+				queue.add(trie[c]);
+			}
+		}
+		while (!queue.isEmpty()) {
+			state = queue.poll();
+			for (c = 0; c < size; ++c) {
+				child = trie[state * size + c];
+				if (child == -1) {
+					// no such edge; go where the longest suffix would
+					trie[state * size + c] = trie[fail[state] * size + c];
+				}
+				else {
+					fail[child] = trie[fail[state] * size + c];
+					outputs.set(child, concat(outputs.get(child), outputs.get(fail[child])));
+					queue.add(child);
+				}
+			}
+		}
+
+		next = new short[states << 8];
+		for (state = 0; state < states; ++state) {
+			for (b = 0; b < 256; ++b) {
+				child = trie[state * size + (pack[b] & 0xFF)];
+				next[state << 8 | b] = (short)(outputs.get(child) == null ? child : ~child);
+			}
+		}
+		found = outputs.subList(0, states).toArray(new int[0][]);
+
+		if (patterns.length == 1) {
+			this.cores = cores;
+			shifts = new int[2][256];
+			for (a = 0; a < 2; ++a) {
+				Arrays.fill(shifts[a], cores[a].length);
+				for (j = 0; j < cores[a].length - 1; ++j) {
+					shifts[a][cores[a][j] & 0xFF] = cores[a].length - 1 - j;
+				}
+			}
+		}
+		else {
+			this.cores = null;
+			shifts = null;
+		}
+	}
+
+	/**
+	 * Running time: O(n)
+	 * Reasoning: Each byte of ciphertext is one step of the automaton, plus a
+	 * bigram or two decrypted for each core found.
+	 *
+	 * Space complexity: O(k), for k matches
+	 *
+	 * @param ciphertext Encrypted text (in the plain format)
+	 * @param len How much of it to search
+	 * @return Every match, in order of offset (then pattern)
+	 */
+	public List<Match> search(byte[] ciphertext, int len) {
+		final List<Match> matches = new ArrayList<>();
+
+		scan(ByteBuffer.wrap(ciphertext), 0, 0, len, len, matches);
+		matches.sort(BY_OFFSET);
+
+		return matches;
+	}
+
+	/**
+	 * Running time: O(n / p), for p cores
+	 * Reasoning: Same as above, with the chunks of the file shared out between
+	 * all the cores.
+	 *
+	 * Space complexity: O(k), for k matches
+	 * Reasoning: Each chunk is searched where it's mapped, without copying it.
+	 *
+	 *
+	 *
+	 * Searches a whole encrypted file. Each chunk is mapped with enough of its
+	 * neighbours either side to see any pattern starting in it.
+	 *
+	 * @param path An encrypted file (in the plain format)
+	 * @return Every match, in order of offset (then pattern)
+	 */
+	public List<Match> search(Path path) throws IOException {
+		final List<Match> matches;
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			final long len = channel.size();
+			final long chunks = (len + CHUNK_LEN - 1) / CHUNK_LEN;
+
+			matches = LongStream.range(0, chunks).parallel().mapToObj(chunk -> {
+				final long from = chunk * CHUNK_LEN;
+				final long to = Math.min(len, from + CHUNK_LEN);
+				// (a bigram before the chunk for an odd start; a whole pattern and a bigram after)
+				final long windowStart = Math.max(0, from - 2);
+				final long windowEnd = Math.min(len, to + maxPatternLen + 2);
+				final List<Match> found = new ArrayList<>();
+
+				try {
+					scan(channel.map(MapMode.READ_ONLY, windowStart, windowEnd - windowStart),
+							windowStart, from, to, len, found);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+
+				return found;
+			}).flatMap(List::stream).collect(Collectors.toList());
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+
+		matches.sort(BY_OFFSET);
+		return matches;
+	}
+
+	/**
+	 * @return The pattern a match is of
+	 */
+	public String getPattern(Match match) {
+		return patterns[match.pattern];
+	}
+
+	/**
+	 * Command line entry point, run with "grep" as the first argument:
+	 *
+	 *   grep KEY_FILE ENCRYPTED_FILE PATTERN...
+	 *
+	 * Prints the offset (in the text) and pattern of every match, one per line.
+	 */
+	public static void run(String[] args) throws IOException {
+		final long start = System.nanoTime();
+		final CiphertextSearch search;
+		final List<Match> matches;
+		final StringBuilder out = new StringBuilder();
+
+		if (args.length < 3) {
+			System.err.println("Usage: grep KEY_FILE ENCRYPTED_FILE PATTERN...");
+			return;
+		}
+
+		search = new CiphertextSearch(new Cipher(KeySanitiser.sanitise(KeySanitiser.readKeyFile(Paths.get(args[0])))),
+				Arrays.copyOfRange(args, 2, args.length));
+		matches = search.search(Paths.get(args[1]));
+
+		for (Match match : matches) {
+			out.append(match.offset).append('\t').append(search.getPattern(match)).append('\n');
+		}
+		System.out.print(out);
+		System.err.printf("%d matches in %.2fMB in %.0fms%n", matches.size(), Files.size(Paths.get(args[1])) / 1e6,
+				(System.nanoTime() - start) / 1e6);
+	}
+
+	/**
+	 * Adds every match whose core starts from from up to to, in window (which
+	 * starts at windowStart in the ciphertext); with Horspool for a single
+	 * pattern, or the automaton for more.
+	 *
+	 * @param len Length of the whole ciphertext
+	 */
+	private void scan(ByteBuffer window, long windowStart, long from, long to, long len, List<Match> matches) {
+		final int end = (int)(Math.min(len, to + maxPatternLen) - windowStart);
+		int state = 0;
+		int i;
+		long coreStart;
+
+		if (shifts != null) {
+			horspool(window, windowStart, from, to, len, 0, matches);
+			horspool(window, windowStart, from, to, len, 1, matches);
+			return;
+		}
+
+		for (i = (int)(from - windowStart); i < end; ++i) {
+			state = next[state << 8 | (window.get(i) & 0xFF)];
+
+			if (state < 0) {
+				state = ~state;
+				for (int entry : found[state]) {
+					coreStart = windowStart + i + 1 - coreLens[entry];
+					// cores only ever start on a whole bigram
+					if ((coreStart & 1) == 0 && coreStart >= from && coreStart < to
+							&& endsMatch(window, windowStart, coreStart, entry, len)) {
+						matches.add(new Match(coreStart - (entry & 1), entry >> 1));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Running time: O(n), or about O(n / c) for a core c bytes long
+	 * Reasoning: Each try compares the core from its last byte back, and then
+	 * moves on by that byte's shift, which is up to c for bytes not in the core.
+	 *
+	 * Space complexity: O(1)
+	 *
+	 *
+	 *
+	 * Same as scan, for the one core (pattern 0 * 2 + alignment) of a single
+	 * pattern.
+	 */
+	private void horspool(ByteBuffer window, long windowStart, long from, long to, long len, int entry,
+			List<Match> matches) {
+		final byte[] core = cores[entry];
+		final int[] shift = shifts[entry];
+		final int last = core.length - 1;
+		final byte lastByte = core[last];
+		// (past the last place a core can start, in the window)
+		final int end = (int)(Math.min(to, len - core.length + 1) - windowStart);
+		int pos, i;
+		byte b;
+
+		for (pos = (int)(from - windowStart); pos < end; pos += shift[b & 0xFF]) {
+			b = window.get(pos + last);
+
+			if (b == lastByte) {
+				for (i = last - 1; i >= 0 && window.get(pos + i) == core[i]; --i) {
+				}
+
+				// (cores only ever start on a whole bigram, as above)
+				if (i < 0 && ((windowStart + pos) & 1) == 0
+						&& endsMatch(window, windowStart, windowStart + pos, entry, len)) {
+					matches.add(new Match(windowStart + pos - (entry & 1), entry >> 1));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Decrypts the bigrams holding the half-bigram chars at either end of the
+	 * pattern (if there are any), and checks they're the right ones.
+	 */
+	private boolean endsMatch(ByteBuffer window, long windowStart, long coreStart, int entry, long len) {
+		final byte[] pattern = folded[entry >> 1];
+		final int align = entry & 1;
+		final byte[] bigram = new byte[2];
+		final long last;
+
+		if (align == 1) {
+			// the first char is the second half of the bigram before the core
+			if (coreStart < 2) {
+				return false;
+			}
+			window.get((int)(coreStart - 2 - windowStart), bigram);
+			cipher.decrypt(bigram, 0, bigram, 0, 2);
+			if (bigram[1] != pattern[0]) {
+				return false;
+			}
+		}
+
+		if ((pattern.length - align) % 2 != 0) {
+			// the last char is the first half of the bigram after the core
+			last = coreStart + coreLens[entry];
+			if (last + 1 >= len) {
+				return false;
+			}
+			window.get((int)(last - windowStart), bigram);
+			cipher.decrypt(bigram, 0, bigram, 0, 2);
+			if (bigram[0] != pattern[pattern.length - 1]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static int[] append(int[] array, int value) {
+		return concat(array, new int[] {value});
+	}
+
+	private static int[] concat(int[] a, int[] b) {
+		final int[] both;
+
+		if (a == null || b == null) {
+			return a == null ? b : a;
+		}
+
+		both = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, both, a.length, b.length);
+
+		return both;
+	}
+
+}
@@ -0,0 +1,342 @@
+package ie.gmit.sw;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Non-interactive command line mode, for scripts and pipelines:
+ *
+ *   java -jar four-square.jar encrypt|decrypt (--key KEY | --key-file FILE) [--in FILE] [--out FILE]
+ *       [--alphabet default|classic|printable|latin1] [--format plain|packed]
+ *
+ * Input and output default to stdin and stdout (or use "-"), so it can sit in
+ * the middle of a pipe. With --format packed, the ciphertext is in the packed
+ * binary format (see PackedFormat) instead of chars. Nothing is ever asked for, and nothing but the result
+ * goes to stdout; errors go to stderr, with a non-zero exit code.
+ *
+ * Built for a fast start: none of the menu's Swing/AWT classes are loaded, and
+ * the cipher's lookup tables aren't built until the first bytes of input have
+ * actually arrived.
+ *
+ * Each run is a CipherJobEvent, and is recorded in CipherMetrics.global() if
+ * metrics are on (-Dfoursquare.metrics=true prints them to stderr at exit).
+ */
+public final class Cli {
+	// exit codes
+	public static final int OK = 0;
+	public static final int FAILED = 1;
+	public static final int BAD_USAGE = 2;
+
+	// size of the buffer the input is read through; must be even
+	private static final int BUFFER_LEN = 65536;
+	// file to file jobs at least this big are shared out between every core
+	private static final long PARALLEL_THRESHOLD = 16 * 1024 * 1024;
+
+	private static final String USAGE =
+			"Usage: java -jar four-square.jar encrypt|decrypt (--key KEY | --key-file FILE) [--in FILE] [--out FILE]%n"
+			+ "    [--alphabet default|classic|printable|latin1] [--format plain|packed]%n"
+			+ "  --in/--out default to stdin/stdout (or pass -)%n";
+
+	private boolean encryptMode;
+	private String rawKey;
+	private String keyFile;
+	private String inPath = "-";
+	private String outPath = "-";
+	private Alphabet alphabet = Alphabet.DEFAULT;
+	private boolean packed;
+	// null unless metrics are on
+	private final CipherMetrics metrics = CipherMetrics.global();
+
+	private Cli() {
+	}
+
+	/**
+	 * Parses the arguments and runs the job.
+	 *
+	 * @param args The command line, starting with encrypt or decrypt
+	 * @return The exit code
+	 */
+	public static int run(String[] args) {
+		Cli cli = new Cli();
+		String problem = cli.parse(args);
+
+		if (problem != null) {
+			System.err.println(problem);
+			System.err.printf(USAGE);
+			return BAD_USAGE;
+		}
+
+		try {
+			cli.processJob();
+			return OK;
+		} catch (IOException e) {
+			// (whatever was reading the output has gone away, eg. head; nothing to report)
+			if (!"Broken pipe".equals(e.getMessage())) {
+				System.err.println("four-square: " + e);
+			}
+			return FAILED;
+		}
+	}
+
+	/**
+	 * @return A description of what's wrong with the arguments, or null if they're fine
+	 */
+	private String parse(String[] args) {
+		int i;
+
+		if (args.length == 0 || !(args[0].equals("encrypt") || args[0].equals("decrypt"))) {
+			return "First argument must be encrypt or decrypt";
+		}
+		encryptMode = args[0].equals("encrypt");
+
+		for (i = 1; i < args.length; i += 2) {
+			if (i + 1 == args.length) {
+				return "Missing value for " + args[i];
+			}
+
+			switch (args[i]) {
+			case "--key":
+				rawKey = args[i + 1];
+				break;
+			case "--key-file":
+				keyFile = args[i + 1];
+				break;
+			case "--in":
+				inPath = args[i + 1];
+				break;
+			case "--out":
+				outPath = args[i + 1];
+				break;
+			case "--alphabet":
+				try {
+					alphabet = Alphabet.forName(args[i + 1]);
+				} catch (IllegalArgumentException e) {
+					return e.getMessage();
+				}
+				break;
+			case "--format":
+				if (!args[i + 1].equals("plain") && !args[i + 1].equals("packed")) {
+					return "Unknown format " + args[i + 1] + " (plain or packed)";
+				}
+				packed = args[i + 1].equals("packed");
+				break;
+			default:
+				return "Unknown option " + args[i];
+			}
+		}
+
+		if ((rawKey == null) == (keyFile == null)) {
+			return "Exactly one of --key and --key-file is needed";
+		}
+		if (packed && !PackedFormat.supports(alphabet)) {
+			return "The packed format needs an alphabet of at least 16 chars";
+		}
+
+		return null;
+	}
+
+	/**
+	 * Runs the job, recording it in the metrics (if they're on) and as a
+	 * CipherJobEvent.
+	 */
+	private void processJob() throws IOException {
+		final CipherJobEvent event = new CipherJobEvent();
+		final long start = System.nanoTime();
+
+		event.begin();
+		process();
+		event.end();
+
+		if (metrics != null) {
+			metrics.recordJob(System.nanoTime() - start);
+		}
+		if (event.shouldCommit()) {
+			event.source = inPath;
+			event.encrypt = encryptMode;
+			event.mode = "cli";
+			event.commit();
+		}
+	}
+
+	/**
+	 * Running time: O(n)
+	 * Reasoning: Each byte is read, dealt with in O(1) time, then written.
+	 *
+	 * Space complexity: O(1)
+	 * Reasoning: A single buffer is reused for the whole input.
+	 */
+	private void process() throws IOException {
+		final boolean toFile = !outPath.equals("-");
+		final boolean fromFile = !inPath.equals("-");
+		final String key;
+		final ByteBuffer buffer;
+		// built when the first bytes of input arrive
+		Cipher cipher = null;
+		// (only timed if there are metrics)
+		long start = metrics == null ? 0 : System.nanoTime();
+		int read;
+
+		if (keyFile != null) {
+			key = KeySanitiser.sanitise(alphabet, KeySanitiser.readKeyFile(Paths.get(keyFile)));
+		}
+		else {
+			key = KeySanitiser.sanitise(alphabet, rawKey);
+		}
+
+		if (packed) {
+			processPacked(key, fromFile, toFile);
+			return;
+		}
+
+		if (fromFile && toFile && Files.size(Paths.get(inPath)) >= PARALLEL_THRESHOLD) {
+			// big file to file job; share it out between all the cores
+			new ParallelCipherProcessor(new Cipher(key, alphabet)).processFile(Paths.get(inPath), Paths.get(outPath), encryptMode);
+			return;
+		}
+
+		try (ReadableByteChannel in = fromFile ? FileChannel.open(Paths.get(inPath), StandardOpenOption.READ)
+					: new FileInputStream(FileDescriptor.in).getChannel();
+			WritableByteChannel out = toFile ? openOutput(Paths.get(outPath))
+					: new FileOutputStream(FileDescriptor.out).getChannel()) {
+			buffer = ByteBuffer.allocateDirect(BUFFER_LEN);
+
+			// Whatever a read returns is passed straight on (so it works as part of
+			// a pipe), except an odd last byte, which stays at the start of the
+			// buffer until the rest of its bigram arrives.
+			while ((read = in.read(buffer)) != -1) {
+				if (metrics != null) {
+					metrics.recordRead(read, System.nanoTime() - start);
+				}
+				if (buffer.position() < 2) {
+					continue;
+				}
+
+				// the tables are only built once there's something to encrypt
+				if (cipher == null) {
+					cipher = new Cipher(key, alphabet);
+				}
+				transformAndWrite(cipher, buffer, out);
+
+				if (metrics != null) {
+					start = System.nanoTime();
+				}
+			}
+
+			if (buffer.position() == 1) {
+				// odd number of bytes; add the buffer character (space)
+				buffer.put((byte)' ');
+				if (metrics != null && encryptMode) {
+					metrics.recordPadding(alphabet);
+				}
+				if (cipher == null) {
+					cipher = new Cipher(key, alphabet);
+				}
+				transformAndWrite(cipher, buffer, out);
+			}
+		}
+	}
+
+	/**
+	 * Encrypts/decrypts the whole bigrams in the buffer and writes them out,
+	 * then moves any odd byte left over to the start, ready for the next read.
+	 */
+	private void transformAndWrite(Cipher cipher, ByteBuffer buffer, WritableByteChannel out) throws IOException {
+		final int len;
+
+		long start = 0;
+
+		buffer.flip();
+		len = buffer.limit();
+
+		CipherMetrics.transform(cipher, buffer, encryptMode, metrics);
+
+		// write the whole bigrams
+		buffer.flip();
+		if (metrics != null) {
+			start = System.nanoTime();
+		}
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+		if (metrics != null) {
+			metrics.recordWrite(buffer.limit(), System.nanoTime() - start);
+		}
+
+		buffer.limit(len);
+		buffer.compact();
+	}
+
+	/**
+	 * Running time: O(n)
+	 * Reasoning: Each byte is read, packed/unpacked in O(1) time, then written.
+	 *
+	 * Space complexity: O(1)
+	 * Reasoning: The streams reuse the same buffers for the whole input.
+	 *
+	 *
+	 *
+	 * Same as process(), but to/from the packed format. Whatever's been packed
+	 * is written out after every read, so it still works as part of a pipe.
+	 */
+	private void processPacked(String key, boolean fromFile, boolean toFile) throws IOException {
+		final PackedFormat format = new PackedFormat(new Cipher(key, alphabet));
+		final byte[] buffer = new byte[BUFFER_LEN];
+		int read;
+
+		if (fromFile && toFile && Files.size(Paths.get(inPath)) >= PARALLEL_THRESHOLD) {
+			// big file to file job; share it out between all the cores
+			if (encryptMode) {
+				format.encryptFile(Paths.get(inPath), Paths.get(outPath));
+			}
+			else {
+				try {
+					format.decryptFile(Paths.get(inPath), Paths.get(outPath));
+				} catch (IllegalArgumentException e) {
+					throw new IOException("Corrupt packed ciphertext: " + e.getMessage(), e);
+				}
+			}
+			return;
+		}
+
+		try (InputStream in = fromFile ? Files.newInputStream(Paths.get(inPath)) : new FileInputStream(FileDescriptor.in);
+			OutputStream out = toFile ? Files.newOutputStream(Paths.get(outPath)) : new FileOutputStream(FileDescriptor.out)) {
+			if (encryptMode) {
+				final PackedOutputStream packedOut = new PackedOutputStream(out, format);
+
+				while ((read = in.read(buffer)) != -1) {
+					packedOut.write(buffer, 0, read);
+					packedOut.flush();
+				}
+				packedOut.finish();
+			}
+			else {
+				final PackedInputStream packedIn = new PackedInputStream(in, format);
+
+				while ((read = packedIn.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+				}
+			}
+		}
+	}
+
+	private static WritableByteChannel openOutput(Path path) throws IOException {
+		return FileChannel.open(path,
+				StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+
+}
@@ -0,0 +1,89 @@
+package ie.gmit.sw;
+
+import static ie.gmit.sw.Cipher.*;
+
+/**
+ * The encryption/decryption loop for TableLayout.DENSE.
+ */
+final class DenseKernel implements BigramKernel {
+	// (packed char 1 * ALPHABET_SIZE + packed char 2) -> output char 1 << 8 | output char 2
+	private final char[] denseTable;
+	
+	/**
+	 * Running time: O(n^2)
+	 * Reasoning: One entry for every pair of characters in the alphabet.
+	 * 
+	 * Space complexity: O(n^2)
+	 * Reasoning: Same as above.
+	 * 
+	 * @param table One of the Cipher's lookup tables (encryptArr or decryptArr)
+	 */
+	DenseKernel(short[] table) {
+		int c1, c2;
+		short combinedResult;
+		
+		denseTable = new char[SQUARED_ALPHABET_SIZE];
+		
+		for (c1 = 0; c1 < ALPHABET_SIZE; ++c1) {
+			for (c2 = 0; c2 < ALPHABET_SIZE; ++c2) {
+				combinedResult = table[c1 << packedBits | c2];
+				
+				denseTable[c1 * ALPHABET_SIZE + c2] = (char)(UNPACKED_CHARS[combinedResult >> packedBits] << 8
+						| UNPACKED_CHARS[combinedResult & packedBitsMax]);
+			}
+		}
+	}
+	
+	/**
+	 * Running time: O(n)
+	 * Reasoning: 4 bigrams at a time, each in O(1) time.
+	 * 
+	 * Space complexity: O(1)
+	 * Reasoning: Some extra variables.
+	 * 
+	 * 
+	 * 
+	 * Same approach as Cipher.translate (8 bytes at a time, non-ASCII bytes
+	 * masked out), with the dense table.
+	 */
+	@Override
+	public int translate(byte[] src, int srcPos, byte[] dst, int dstPos, int len) {
+		final int wordLen = len & ~7;
+		int i;
+		long word, nonAscii;
+		
+		for (i = 0; i < wordLen; i += 8) {
+			word = (long)LONG_VIEW.get(src, srcPos + i);
+			
+			nonAscii = word & NON_ASCII_MASK;
+			if (nonAscii != 0) {
+				nonAscii = (nonAscii >>> 7) * 0xFF;
+				word = (word & ~nonAscii) | (PLACEHOLDER_WORD & nonAscii);
+			}
+			
+			translateBigram((int)word, dst, dstPos + i);
+			translateBigram((int)(word >>> 16), dst, dstPos + i + 2);
+			translateBigram((int)(word >>> 32), dst, dstPos + i + 4);
+			translateBigram((int)(word >>> 48), dst, dstPos + i + 6);
+		}
+		
+		return wordLen;
+	}
+	
+	/**
+	 * Looks up the ASCII bigram in the bottom 16 bits of 'pair' (first char
+	 * lowest), and writes the result to dst[j].
+	 */
+	private void translateBigram(int pair, byte[] dst, int j) {
+		char result = denseTable[PACKED_CHARS[pair & 0x7F] * ALPHABET_SIZE + PACKED_CHARS[(pair >>> 8) & 0x7F]];
+		
+		dst[j] = (byte)(result >> 8);
+		dst[j + 1] = (byte)result;
+	}
+	
+	@Override
+	public long sizeInBytes() {
+		return denseTable.length * (long)Character.BYTES;
+	}
+	
+}
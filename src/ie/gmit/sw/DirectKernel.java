@@ -0,0 +1,72 @@
+package ie.gmit.sw;
+
+import static ie.gmit.sw.Cipher.*;
+
+/**
+ * The encryption/decryption loop for TableLayout.DIRECT.
+ */
+final class DirectKernel implements BigramKernel {
+	// raw byte 1 << 8 | raw byte 2 -> output byte 1 << 8 | output byte 2
+	private final char[] directTable;
+	
+	/**
+	 * Running time: O(1)
+	 * Reasoning: Always 256 * 256 entries, no matter what the key is.
+	 * 
+	 * Space complexity: O(1)
+	 * Reasoning: Same as above; 128KB.
+	 * 
+	 * @param table One of the Cipher's lookup tables (encryptArr or decryptArr)
+	 */
+	DirectKernel(short[] table) {
+		int b1, b2;
+		int c1, c2;
+		short combinedResult;
+		
+		directTable = new char[1 << 16];
+		
+		for (b1 = 0; b1 < 256; ++b1) {
+			// non-ASCII bytes are encrypted as the UNKNOWN_PLACEHOLDER, as always;
+			// here, it's just worked out in advance
+			c1 = (b1 < 128 ? PACKED_CHARS[b1] : UNKNOWN_PLACEHOLDER_PACKED);
+			
+			for (b2 = 0; b2 < 256; ++b2) {
+				c2 = (b2 < 128 ? PACKED_CHARS[b2] : UNKNOWN_PLACEHOLDER_PACKED);
+				combinedResult = table[c1 << packedBits | c2];
+				
+				directTable[b1 << 8 | b2] = (char)(UNPACKED_CHARS[combinedResult >> packedBits] << 8
+						| UNPACKED_CHARS[combinedResult & packedBitsMax]);
+			}
+		}
+	}
+	
+	/**
+	 * Running time: O(n)
+	 * Reasoning: One lookup per bigram.
+	 * 
+	 * Space complexity: O(1)
+	 * Reasoning: Some extra variables.
+	 */
+	@Override
+	public int translate(byte[] src, int srcPos, byte[] dst, int dstPos, int len) {
+		final int end = len & ~1;
+		int i;
+		char result;
+		
+		for (i = 0; i < end; i += 2) {
+			// no packing, unpacking or non-ASCII checks; just the one lookup
+			result = directTable[(src[srcPos + i] & 0xFF) << 8 | (src[srcPos + i + 1] & 0xFF)];
+			
+			dst[dstPos + i] = (byte)(result >> 8);
+			dst[dstPos + i + 1] = (byte)result;
+		}
+		
+		return end;
+	}
+	
+	@Override
+	public long sizeInBytes() {
+		return directTable.length * (long)Character.BYTES;
+	}
+	
+}
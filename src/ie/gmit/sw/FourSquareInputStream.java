@@ -0,0 +1,175 @@
+package ie.gmit.sw;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream that encrypts/decrypts everything read through it.
+ *
+ * A read from the underlying stream (a socket, a pipe...) can return any
+ * number of bytes, so an odd byte at the end of a read is held back until
+ * the next one, when the rest of its bigram has arrived. The padding
+ * character (space) is only added at the real end of the stream, so the
+ * output is exactly the same as encrypting the whole input in one go.
+ *
+ * Bytes are read straight into the caller's array and encrypted there.
+ */
+public class FourSquareInputStream extends FilterInputStream {
+	// the cipher object to use for encryption/decryption
+	private final Cipher cipher;
+	// true for encrypt, false for decrypt
+	private final boolean encryptMode;
+	// the first byte of an unfinished bigram, held back from the last read; -1 if none
+	private int carry = -1;
+	// the second byte of a bigram that's already been processed, but didn't
+	// fit in the caller's array last time; -1 if none
+	private int ready = -1;
+	// used to process a bigram when only a single byte was asked for
+	private final byte[] pair = new byte[2];
+
+	/**
+	 * @param in The stream to read from
+	 * @param cipher The cipher object to use
+	 * @param encryptMode true for encrypt, false for decrypt
+	 */
+	public FourSquareInputStream(InputStream in, Cipher cipher, boolean encryptMode) {
+		super(in);
+		this.cipher = cipher;
+		this.encryptMode = encryptMode;
+	}
+
+	@Override
+	public int read() throws IOException {
+		return read(pair, 0, 1) == -1 ? -1 : pair[0] & 0xFF;
+	}
+
+	/**
+	 * Running time: O(n)
+	 * Reasoning: Each byte read is processed in O(1) time.
+	 *
+	 * Space complexity: O(1)
+	 * Reasoning: The bytes are processed in the caller's array.
+	 *
+	 *
+	 *
+	 * Reads up to len bytes and encrypts/decrypts them. Always returns whole
+	 * bigrams, except when len is 1 (or a single held over byte is returned).
+	 */
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		// number of bytes in b so far
+		int n = 0;
+		int bytesRead;
+		// only ask for an even number of bytes, so there's always
+		// room to pad an odd byte at the end of the stream
+		final int room;
+
+		if (len == 0) {
+			return 0;
+		}
+
+		if (ready != -1) {
+			// the other half of the last bigram
+			b[off] = (byte)ready;
+			ready = -1;
+			return 1;
+		}
+
+		if (len == 1) {
+			// process a whole bigram, give back the first byte and keep the second
+			if (read(pair, 0, 2) == -1) {
+				return -1;
+			}
+			b[off] = pair[0];
+			ready = pair[1] & 0xFF;
+			return 1;
+		}
+
+		room = len & ~1;
+
+		if (carry != -1) {
+			b[off] = (byte)carry;
+			carry = -1;
+			n = 1;
+		}
+
+		// keep reading until there's at least one whole bigram
+		do {
+			bytesRead = in.read(b, off + n, room - n);
+
+			if (bytesRead == -1) {
+				if (n == 0) {
+					return -1;
+				}
+
+				// end of the stream; the only place an odd byte gets padded
+				if (n % 2 != 0) {
+					b[off + n++] = ' ';
+				}
+				break;
+			}
+
+			n += bytesRead;
+		} while (n < 2);
+
+		if (n % 2 != 0) {
+			// hold back the odd byte until the rest of its bigram arrives
+			carry = b[off + --n] & 0xFF;
+		}
+
+		if (encryptMode) {
+			cipher.encrypt(b, off, b, off, n);
+		}
+		else {
+			cipher.decrypt(b, off, b, off, n);
+		}
+
+		return n;
+	}
+
+	/**
+	 * Skips by reading (and throwing away) bytes, so that the carried over
+	 * byte stays lined up.
+	 */
+	@Override
+	public long skip(long n) throws IOException {
+		final byte[] skipBuffer = new byte[(int)Math.min(8192, Math.max(n, 2))];
+		long remaining = n;
+		int bytesRead;
+
+		while (remaining > 0) {
+			bytesRead = read(skipBuffer, 0, (int)Math.min(skipBuffer.length, remaining));
+			if (bytesRead == -1) {
+				break;
+			}
+			remaining -= bytesRead;
+		}
+
+		return n - remaining;
+	}
+
+	/**
+	 * @return The number of bytes that can be returned without blocking;
+	 * only whole bigrams count, since an odd byte needs the next one
+	 */
+	@Override
+	public int available() throws IOException {
+		return (ready != -1 ? 1 : 0) + ((in.available() + (carry != -1 ? 1 : 0)) & ~1);
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+
+}
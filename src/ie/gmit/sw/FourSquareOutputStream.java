@@ -0,0 +1,168 @@
+package ie.gmit.sw;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An OutputStream that encrypts/decrypts everything written through it.
+ *
+ * Writes can be any length; an odd byte at the end of one is held back until
+ * the next write completes its bigram. The padding character (space) is only
+ * added by finish() or close(), so the output is exactly the same as
+ * encrypting the whole input in one go.
+ *
+ * The caller's array is never changed; bytes are encrypted from it straight
+ * into this stream's own buffer, which is written out whenever it fills up
+ * (so there's no need for a BufferedOutputStream on top).
+ */
+public class FourSquareOutputStream extends FilterOutputStream {
+	// size of the output buffer; must be even
+	private static final int BUFFER_LEN = 8192;
+
+	// the cipher object to use for encryption/decryption
+	private final Cipher cipher;
+	// true for encrypt, false for decrypt
+	private final boolean encryptMode;
+	// processed bytes waiting to be written, and how many there are
+	private final byte[] buffer = new byte[BUFFER_LEN];
+	private int count;
+	// the first byte of an unfinished bigram; -1 if none
+	private int carry = -1;
+	// true once finish() has been called; nothing more can be written
+	private boolean finished;
+
+	/**
+	 * @param out The stream to write to
+	 * @param cipher The cipher object to use
+	 * @param encryptMode true for encrypt, false for decrypt
+	 */
+	public FourSquareOutputStream(OutputStream out, Cipher cipher, boolean encryptMode) {
+		super(out);
+		this.cipher = cipher;
+		this.encryptMode = encryptMode;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureOpen();
+
+		if (carry == -1) {
+			carry = b & 0xFF;
+			return;
+		}
+
+		if (count == BUFFER_LEN) {
+			flushBuffer();
+		}
+
+		buffer[count] = (byte)carry;
+		buffer[count + 1] = (byte)b;
+		process(buffer, count, 2);
+		count += 2;
+		carry = -1;
+	}
+
+	/**
+	 * Running time: O(n)
+	 * Reasoning: Each byte written is processed in O(1) time.
+	 *
+	 * Space complexity: O(1)
+	 * Reasoning: The same buffer is reused for every write.
+	 */
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		final int end = off + len;
+		int chunkLen;
+
+		ensureOpen();
+
+		if (len > 0 && carry != -1) {
+			// finish off the bigram from the last write
+			write(b[off++]);
+		}
+
+		// whole bigrams, straight from b into the buffer
+		while (end - off >= 2) {
+			if (count == BUFFER_LEN) {
+				flushBuffer();
+			}
+
+			chunkLen = Math.min(end - off, BUFFER_LEN - count) & ~1;
+			if (encryptMode) {
+				cipher.encrypt(b, off, buffer, count, chunkLen);
+			}
+			else {
+				cipher.decrypt(b, off, buffer, count, chunkLen);
+			}
+
+			count += chunkLen;
+			off += chunkLen;
+		}
+
+		if (off < end) {
+			// odd byte left over; keep it for the next write
+			carry = b[off] & 0xFF;
+		}
+	}
+
+	/**
+	 * Writes out everything processed so far. A held back odd byte stays held
+	 * back, since padding it here would break up the bigrams of the next write.
+	 */
+	@Override
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	/**
+	 * Pads and processes any held back odd byte, and writes everything out,
+	 * without closing the underlying stream. Nothing can be written after this.
+	 */
+	public void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+
+		if (carry != -1) {
+			// odd number of bytes; add the buffer character (space)
+			write(' ');
+		}
+
+		finished = true;
+		flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			out.close();
+		}
+	}
+
+	private void process(byte[] b, int off, int len) {
+		if (encryptMode) {
+			cipher.encrypt(b, off, b, off, len);
+		}
+		else {
+			cipher.decrypt(b, off, b, off, len);
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		if (count > 0) {
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (finished) {
+			throw new IOException("Stream already finished");
+		}
+	}
+
+}
@@ -0,0 +1,164 @@
+package ie.gmit.sw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A ReadableByteChannel that encrypts/decrypts everything read through it.
+ * Works the same way as FourSquareInputStream: an odd byte at the end of a
+ * read is held back until the rest of its bigram arrives, and the padding
+ * character is only added at the real end of the stream.
+ *
+ * Bytes are read straight into the caller's buffer (heap or direct) and
+ * encrypted there. Non-blocking channels are fine too; a read that has
+ * nothing to return (or only half a bigram) returns 0.
+ */
+public class FourSquareReadableChannel implements ReadableByteChannel {
+	// the channel to read from
+	private final ReadableByteChannel in;
+	// the cipher object to use for encryption/decryption
+	private final Cipher cipher;
+	// true for encrypt, false for decrypt
+	private final boolean encryptMode;
+	// holds the first byte of an unfinished bigram between reads (position 1
+	// if there is one), and is used to process a bigram when the caller's
+	// buffer only has room for a single byte
+	private final ByteBuffer pair = ByteBuffer.allocate(2);
+	// the second byte of a bigram that didn't fit in the caller's buffer; -1 if none
+	private int ready = -1;
+
+	/**
+	 * @param in The channel to read from
+	 * @param cipher The cipher object to use
+	 * @param encryptMode true for encrypt, false for decrypt
+	 */
+	public FourSquareReadableChannel(ReadableByteChannel in, Cipher cipher, boolean encryptMode) {
+		this.in = in;
+		this.cipher = cipher;
+		this.encryptMode = encryptMode;
+	}
+
+	/**
+	 * Running time: O(n)
+	 * Reasoning: Each byte read is processed in O(1) time.
+	 *
+	 * Space complexity: O(1)
+	 * Reasoning: The bytes are processed in the caller's buffer.
+	 */
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		final int start = dst.position();
+		final int limit = dst.limit();
+		int bytesRead;
+		int n;
+
+		if (!dst.hasRemaining()) {
+			return 0;
+		}
+
+		if (ready != -1) {
+			// the other half of the last bigram
+			dst.put((byte)ready);
+			ready = -1;
+			return 1;
+		}
+
+		if (dst.remaining() == 1) {
+			return readSingle(dst);
+		}
+
+		// only read an even number of bytes, so there's always
+		// room to pad an odd byte at the end of the stream
+		dst.limit(start + (dst.remaining() & ~1));
+
+		if (pair.position() == 1) {
+			// the byte held back from the last read
+			dst.put(pair.get(0));
+			pair.clear();
+		}
+
+		try {
+			// keep reading until there's a whole bigram (or nothing more right now)
+			do {
+				bytesRead = in.read(dst);
+			} while (bytesRead > 0 && dst.position() - start < 2);
+
+			n = dst.position() - start;
+
+			if (bytesRead == -1) {
+				if (n == 0) {
+					return -1;
+				}
+
+				// end of the stream; the only place an odd byte gets padded
+				if (n % 2 != 0) {
+					dst.put((byte)' ');
+					++n;
+				}
+			}
+			else if (n % 2 != 0) {
+				// hold back the odd byte until the rest of its bigram arrives
+				pair.put(dst.get(start + --n));
+			}
+
+			dst.position(start).limit(start + n);
+			if (encryptMode) {
+				cipher.encrypt(dst);
+			}
+			else {
+				cipher.decrypt(dst);
+			}
+		} finally {
+			dst.limit(limit);
+		}
+
+		return n;
+	}
+
+	/**
+	 * Processes a whole bigram, puts the first byte in dst and keeps the second.
+	 */
+	private int readSingle(ByteBuffer dst) throws IOException {
+		int bytesRead = 0;
+
+		while (pair.hasRemaining() && (bytesRead = in.read(pair)) > 0);
+
+		if (pair.hasRemaining()) {
+			if (bytesRead != -1) {
+				// only half a bigram so far; try again later
+				return 0;
+			}
+			if (pair.position() == 0) {
+				return -1;
+			}
+			// end of the stream; pad it
+			pair.put((byte)' ');
+		}
+
+		pair.flip();
+		if (encryptMode) {
+			cipher.encrypt(pair);
+		}
+		else {
+			cipher.decrypt(pair);
+		}
+
+		dst.put(pair.get(0));
+		ready = pair.get(1) & 0xFF;
+		pair.clear();
+
+		return 1;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return in.isOpen();
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+}
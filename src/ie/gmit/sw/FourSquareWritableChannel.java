@@ -0,0 +1,172 @@
+package ie.gmit.sw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A WritableByteChannel that encrypts/decrypts everything written through it.
+ * Works the same way as FourSquareOutputStream: an odd byte at the end of a
+ * write is held back until the next write completes its bigram, and the
+ * padding character is only added by finish() or close().
+ *
+ * The caller's buffer is never changed; bytes are encrypted from it straight
+ * into a direct buffer owned by this channel, and written out from there.
+ * With a non-blocking channel, write() only takes as many bytes as it can
+ * pass on, and can return 0.
+ */
+public class FourSquareWritableChannel implements WritableByteChannel {
+	// size of the output buffer; must be even
+	private static final int BUFFER_LEN = 65536;
+
+	// the channel to write to
+	private final WritableByteChannel out;
+	// the cipher object to use for encryption/decryption
+	private final Cipher cipher;
+	// true for encrypt, false for decrypt
+	private final boolean encryptMode;
+	// processed bytes waiting to be written (between position and limit)
+	private final ByteBuffer buffer;
+	// the first byte of an unfinished bigram; -1 if none
+	private int carry = -1;
+	// used to process the bigram made from the carried over byte
+	private final byte[] pair = new byte[2];
+	// true once finish() has been called; nothing more can be written
+	private boolean finished;
+
+	/**
+	 * @param out The channel to write to
+	 * @param cipher The cipher object to use
+	 * @param encryptMode true for encrypt, false for decrypt
+	 */
+	public FourSquareWritableChannel(WritableByteChannel out, Cipher cipher, boolean encryptMode) {
+		this.out = out;
+		this.cipher = cipher;
+		this.encryptMode = encryptMode;
+
+		buffer = ByteBuffer.allocateDirect(BUFFER_LEN);
+		buffer.flip();
+	}
+
+	/**
+	 * Running time: O(n)
+	 * Reasoning: Each byte written is processed in O(1) time.
+	 *
+	 * Space complexity: O(1)
+	 * Reasoning: The same buffer is reused for every write.
+	 *
+	 * @return The number of bytes taken from src (including a held back odd one)
+	 */
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		final int start = src.remaining();
+		final int limit = src.limit();
+
+		if (finished) {
+			throw new IOException("Channel already finished");
+		}
+
+		// stop if the last lot can't be written yet (non-blocking channels)
+		while (drain() && src.remaining() + (carry != -1 ? 1 : 0) >= 2) {
+			buffer.clear();
+
+			if (carry != -1) {
+				// finish off the bigram from the last write
+				pair[0] = (byte)carry;
+				pair[1] = src.get();
+				process(pair);
+				buffer.put(pair);
+				carry = -1;
+			}
+
+			// whole bigrams, straight from src into the buffer
+			src.limit(src.position() + (Math.min(src.remaining(), buffer.remaining()) & ~1));
+			if (encryptMode) {
+				cipher.encrypt(src, buffer);
+			}
+			else {
+				cipher.decrypt(src, buffer);
+			}
+			src.limit(limit);
+
+			buffer.flip();
+		}
+
+		if (src.remaining() == 1 && carry == -1) {
+			// odd byte left over; keep it for the next write
+			carry = src.get() & 0xFF;
+		}
+
+		return start - src.remaining();
+	}
+
+	/**
+	 * Pads and processes any held back odd byte, and writes everything out,
+	 * without closing the underlying channel. Nothing can be written after this.
+	 * (Spins until everything's written, if the channel is non-blocking.)
+	 */
+	public void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+
+		while (!drain()) {
+			Thread.onSpinWait();
+		}
+
+		if (carry != -1) {
+			// odd number of bytes; add the buffer character (space)
+			pair[0] = (byte)carry;
+			pair[1] = ' ';
+			process(pair);
+			buffer.clear();
+			buffer.put(pair).flip();
+			carry = -1;
+
+			while (!drain()) {
+				Thread.onSpinWait();
+			}
+		}
+
+		finished = true;
+	}
+
+	/**
+	 * Writes out as much of the buffer as the channel will take.
+	 *
+	 * @return true if the buffer is now empty
+	 */
+	private boolean drain() throws IOException {
+		while (buffer.hasRemaining()) {
+			if (out.write(buffer) == 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private void process(byte[] bigram) {
+		if (encryptMode) {
+			cipher.encryptAll(bigram, 2);
+		}
+		else {
+			cipher.decryptAll(bigram, 2);
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return out.isOpen();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			out.close();
+		}
+	}
+
+}
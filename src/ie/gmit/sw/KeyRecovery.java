@@ -0,0 +1,369 @@
+package ie.gmit.sw;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recovers a lost key from ciphertext alone, by simulated annealing.
+ *
+ * Starting from a random key (in the same format as Cipher.generateRandomKey),
+ * small changes are made over and over: two cells, two rows or two columns of
+ * one of the key squares are swapped. After each change the ciphertext is
+ * decrypted with the candidate key and scored with an NgramModel. Better keys
+ * are always kept; worse ones are kept now and again, less and less often as
+ * the "temperature" cools, so the search can climb out of dead ends early on.
+ *
+ * Each restart starts from a new random key and runs on its own, so restarts
+ * are shared out over one thread per core, and the best key of them all wins.
+ *
+ * Building a Cipher (and all of its tables) for every candidate key would
+ * cost far more than decrypting a few KB with it. So each thread keeps its
+ * own KeySquares, whose decryption table is laid out exactly like Cipher's
+ * (two 7 bit packed chars in, two out) and only has the entries a change
+ * touches patched: 2 * 81 of them after swapping two cells. The ciphertext is
+ * packed into bigram indexes once, and every candidate is decrypted into the
+ * same preallocated buffer, so the search loop allocates nothing.
+ */
+public final class KeyRecovery {
+	public static final int DEFAULT_ITERATIONS = 500_000;
+
+	// chance (out of 100) of a change being a row or column swap rather than
+	// a swap of two cells; they're big jumps, needed less often
+	private static final int ROW_COL_SWAP_PERCENT = 4;
+	// starting temperature, per char of ciphertext; found by trial and error
+	private static final double START_TEMPERATURE_PER_CHAR = 0.015;
+
+	private final NgramModel model;
+	private final int restarts;
+	private final int iterations;
+	private final int threads;
+
+	/**
+	 * @param model Scores the trial decryptions
+	 * @param restarts Number of independent searches
+	 * @param iterations Candidate keys tried per search
+	 * @param threads Threads to run the searches on
+	 */
+	public KeyRecovery(NgramModel model, int restarts, int iterations, int threads) {
+		if (restarts < 1 || iterations < 1 || threads < 1) {
+			throw new IllegalArgumentException("restarts, iterations and threads must all be at least 1");
+		}
+
+		this.model = model;
+		this.restarts = restarts;
+		this.iterations = iterations;
+		this.threads = threads;
+	}
+
+	/**
+	 * (one thread per core)
+	 */
+	public KeyRecovery(NgramModel model, int restarts, int iterations) {
+		this(model, restarts, iterations, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Command line entry point, run with "recover" as the first argument:
+	 *
+	 *   recover CIPHERTEXT_FILE TRAINING_FILE [restarts] [iterations]
+	 *
+	 * The training file is any long plain text in the same language as the
+	 * lost plaintext (eg. export/input/WarAndPeace-LeoTolstoy.txt), or an
+	 * n-gram table saved by the "ngrams" command. Prints the best key found
+	 * and the start of the text decrypted with it.
+	 */
+	public static void recover(String[] args) throws IOException, InterruptedException {
+		final byte[] ciphertext;
+		final byte[] training;
+		final NgramModel model;
+		final int restarts;
+		final int iterations;
+		final Result result;
+
+		if (args.length < 2) {
+			System.err.println("Usage: recover CIPHERTEXT_FILE TRAINING_FILE [restarts] [iterations]");
+			return;
+		}
+
+		ciphertext = Files.readAllBytes(Paths.get(args[0]));
+		restarts = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		iterations = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_ITERATIONS;
+
+		if (NgramModel.isTable(Paths.get(args[1]))) {
+			model = NgramModel.load(Paths.get(args[1]));
+		}
+		else {
+			training = Files.readAllBytes(Paths.get(args[1]));
+			model = NgramModel.train(training, training.length, NgramModel.DEFAULT_N);
+		}
+
+		result = new KeyRecovery(model, restarts, iterations).recover(ciphertext, ciphertext.length);
+
+		System.out.println(result);
+		System.out.println("Key: " + result.getKey());
+		System.out.println(new String(result.getPlaintext(), 0, Math.min(500, result.getPlaintext().length), "US-ASCII"));
+	}
+
+	/**
+	 * Running time: O(r * i * n / p), for r restarts of i iterations over n
+	 * bytes of ciphertext, on p threads
+	 * Reasoning: Each candidate key costs one decryption and one scoring pass,
+	 * both O(n), plus an O(1) table patch (at most 18 * 81 entries).
+	 *
+	 * Space complexity: O(n * p)
+	 * Reasoning: Each thread has its own buffer for the decrypted text, plus its
+	 * own fixed size decryption table.
+	 *
+	 * @param ciphertext Text encrypted with an unknown key
+	 * @param len How much of it to use; an odd last byte is ignored
+	 * @return The best key found, and the text decrypted with it
+	 */
+	public Result recover(byte[] ciphertext, int len) throws InterruptedException {
+		final long start = System.nanoTime();
+		final short[] bigrams = packBigrams(ciphertext, len & ~1);
+		final AtomicInteger nextRestart = new AtomicInteger();
+		final List<Future<Search>> results = new ArrayList<Future<Search>>(threads);
+		final ExecutorService pool = Executors.newFixedThreadPool(threads);
+		Search best = null;
+		long candidates = 0;
+		int i;
+
+		try {
+			for (i = 0; i < threads; ++i) {
+				final long seed = System.nanoTime() + i;
+
+				results.add(pool.submit(() -> {
+					Search search = new Search(bigrams, new SplittableRandom(seed));
+
+					// take restarts until they run out; the best one is kept
+					while (nextRestart.getAndIncrement() < restarts) {
+						search.run();
+					}
+					return search;
+				}));
+			}
+
+			for (Future<Search> result : results) {
+				Search search = result.get();
+
+				candidates += search.candidates;
+				if (search.bestKey != null && (best == null || search.bestScore > best.bestScore)) {
+					best = search;
+				}
+			}
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Key search failed", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+
+		return new Result(best.bestKey, best.bestScore, ciphertext, len & ~1, candidates, System.nanoTime() - start);
+	}
+
+	/**
+	 * Packs each bigram of ciphertext into the index of its entry in the
+	 * decryption table (first char << 7 | second char), as Cipher does.
+	 */
+	private static short[] packBigrams(byte[] ciphertext, int len) {
+		final short[] bigrams = new short[len / 2];
+		int i;
+
+		for (i = 0; i < bigrams.length; ++i) {
+			bigrams[i] = (short)(pack(ciphertext[2 * i]) << Cipher.packedBits | pack(ciphertext[2 * i + 1]));
+		}
+
+		return bigrams;
+	}
+
+	private static byte pack(byte c) {
+		return c < 0 ? Cipher.UNKNOWN_PLACEHOLDER_PACKED : Cipher.PACKED_CHARS[c];
+	}
+
+	/**
+	 * The state of one thread's searches: the candidate key, its decryption
+	 * table and the buffer it decrypts into, all reused from one restart to
+	 * the next. Only ever used by one thread.
+	 */
+	private final class Search {
+		private static final int SIDE = Cipher.SQRT_ALPHABET_SIZE;
+		private static final int CELLS = Cipher.ALPHABET_SIZE;
+
+		private final short[] bigrams;
+		private final SplittableRandom random;
+		// the current candidate key, and its tables
+		private final KeySquares squares
+			= new KeySquares(Cipher.ALPHABET_STRING + Cipher.ALPHABET_STRING);
+		// the current candidate's decryption, in packed chars
+		private final byte[] plain;
+
+		private float bestScore = Float.NEGATIVE_INFINITY;
+		private String bestKey;
+		private long candidates;
+
+		Search(short[] bigrams, SplittableRandom random) {
+			this.bigrams = bigrams;
+			this.random = random;
+			plain = new byte[2 * bigrams.length];
+		}
+
+		/**
+		 * One restart: anneals from a random key for the set number of
+		 * iterations, keeping the best key seen.
+		 */
+		void run() {
+			final double startTemperature = START_TEMPERATURE_PER_CHAR * plain.length;
+			float score;
+			float newScore;
+			double temperature;
+			int square, a, b, kind;
+			int i;
+
+			squares.shuffle(random);
+			score = decryptAndScore();
+
+			for (i = 0; i < iterations; ++i) {
+				// cools linearly to (almost) nothing
+				temperature = startTemperature * (iterations - i) / iterations;
+
+				square = random.nextInt(2) + 1;
+				kind = random.nextInt(100) < ROW_COL_SWAP_PERCENT ? random.nextInt(2) + 1 : 0;
+				if (kind == 0) {
+					a = random.nextInt(CELLS);
+					b = random.nextInt(CELLS - 1);
+					// (never the same cell twice)
+					b += b >= a ? 1 : 0;
+				}
+				else {
+					a = random.nextInt(SIDE);
+					b = random.nextInt(SIDE - 1);
+					b += b >= a ? 1 : 0;
+				}
+
+				change(square, kind, a, b);
+				newScore = decryptAndScore();
+				++candidates;
+
+				if (newScore >= score
+						|| random.nextDouble() < Math.exp((newScore - score) / temperature)) {
+					score = newScore;
+					if (score > bestScore) {
+						bestScore = score;
+						bestKey = squares.getKey();
+					}
+				}
+				else {
+					// every change is its own opposite; undo it
+					change(square, kind, a, b);
+				}
+			}
+
+			// (a short search may never improve on where it started)
+			if (score > bestScore) {
+				bestScore = score;
+				bestKey = squares.getKey();
+			}
+		}
+
+		/**
+		 * Running time: O(1)
+		 * Reasoning: At most 2 rows/columns (18 chars) are moved, and each moved
+		 * char has ALPHABET_SIZE table entries to patch.
+		 *
+		 * Space complexity: O(1)
+		 *
+		 *
+		 *
+		 * Swaps two cells (kind 0), rows (1) or columns (2) of key square 1 or 2.
+		 */
+		private void change(int square, int kind, int a, int b) {
+			if (kind == 0) {
+				squares.swapCells(square, a / SIDE, a % SIDE, b / SIDE, b % SIDE);
+			}
+			else if (kind == 1) {
+				squares.swapRows(square, a, b);
+			}
+			else {
+				squares.swapColumns(square, a, b);
+			}
+		}
+
+		/**
+		 * Decrypts the whole ciphertext with the current table, into the
+		 * preallocated buffer, and scores it.
+		 */
+		private float decryptAndScore() {
+			final short[] bigrams = this.bigrams;
+			final short[] table = squares.decryptTable();
+			final byte[] plain = this.plain;
+			int i;
+			short bigram;
+
+			for (i = 0; i < bigrams.length; ++i) {
+				bigram = table[bigrams[i]];
+				plain[2 * i] = (byte)(bigram >> Cipher.packedBits);
+				plain[2 * i + 1] = (byte)(bigram & Cipher.packedBitsMax);
+			}
+
+			return model.score(plain, plain.length);
+		}
+	}
+
+	/**
+	 * The best key found, with the ciphertext decrypted by a real Cipher
+	 * built from it.
+	 */
+	public static final class Result {
+		private final String key;
+		private final float score;
+		private final byte[] plaintext;
+		private final long candidates;
+		private final long nanos;
+
+		private Result(String key, float score, byte[] ciphertext, int len, long candidates, long nanos) {
+			this.key = key;
+			this.score = score;
+			this.candidates = candidates;
+			this.nanos = nanos;
+
+			plaintext = Arrays.copyOf(ciphertext, len);
+			new Cipher(key).decryptAll(plaintext, len);
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public float getScore() {
+			return score;
+		}
+
+		public byte[] getPlaintext() {
+			return plaintext;
+		}
+
+		public long getCandidates() {
+			return candidates;
+		}
+
+		public double getCandidatesPerSecond() {
+			return nanos == 0 ? 0 : candidates / (nanos / 1e9);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("score %.1f after %d candidate keys in %.2fs (%.0f keys/s)",
+					score, candidates, nanos / 1e9, getCandidatesPerSecond());
+		}
+	}
+
+}
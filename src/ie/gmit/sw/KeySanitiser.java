@@ -2,168 +2,279 @@ package ie.gmit.sw;
 
 import static ie.gmit.sw.Cipher.*;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
 /**
  * Converts any input from the user into a usable key for
  * the Cipher.
+ *
+ * The input is turned into a key in 4 distinct steps:
+ *  1. Any chars past ALPHABET_SIZE in key 1 are spilled over onto the end of key 2
+ *  2. Any characters not in the cipher's alphabet are removed
+ *  3. Duplicate characters are removed from each key (the first one is kept)
+ *  4. The rest of the alphabet is appended to each key, in order, to get the
+ *     desired key length
+ *
+ * The outputted key is guaranteed to be in the correct format to
+ * be used in the four square cipher, regardless of what the input
+ * key(s) are.
+ *
+ * All 4 steps are done together, in one pass over each key: each char is
+ * checked against the alphabet and against a bitset of the chars already
+ * used (one bit for each of the 128 ASCII codes, in two longs), and copied
+ * straight into the output if it passes.
  */
 public final class KeySanitiser {
-	// the (possibly invalid) input key(s)
-	private StringBuilder[] inputKeys;
+	// bitset of the ASCII chars a key can have, as for the chars seen (see
+	// sanitiseKey): anything that doesn't pack to the UNKNOWN_PLACEHOLDER, so
+	// the placeholder itself is only ever added as padding, and '\r' is kept
+	private static final long[] SUPPORTED = new long[2];
+
+	static {
+		for (char c = 0; c < 128; ++c) {
+			if (PACKED_CHARS[c] != UNKNOWN_PLACEHOLDER_PACKED) {
+				SUPPORTED[c >> 6] |= 1L << c;
+			}
+		}
+	}
+
+	// the (possibly invalid) input key(s); the second can be null
+	private final CharSequence[] inputKeys;
 	// holds the output "sanitised" key
 	private String sanitizedKey = null;
-	
+
 	public KeySanitiser(StringBuilder[] inputKeys) {
 		this.inputKeys = inputKeys;
-		if (this.inputKeys[1] == null) this.inputKeys[1] = new StringBuilder(ALPHABET_SIZE);
 	}
-	
+
 	/**
 	 * First sanitises the input keys if they haven't been already,
 	 * then returns the "clean" key.
-	 * 
+	 *
 	 * This works similar to the singleton design pattern.
 	 * @return A "clean" key, ready to be used in a four square cipher.
 	 */
 	public String getSanitizedKey() {
 		if (sanitizedKey == null) {
 			// keys not yet sanitised; sanitise them
-			sanitiseKeys();
+			sanitizedKey = sanitise(inputKeys[0], inputKeys[1]);
 		}
-		
+
 		return sanitizedKey;
 	}
-	
+
 	/**
-	 * Sanitises the input keys in 4 distinct steps.
-	 * 
-	 * The outputted key is guaranteed to be in the correct format to
-	 * be used in the four square cipher, regardless of what the input
-	 * key(s) are (for as much as I've tested it, anyway).
+	 * (same as below, for a single key)
 	 */
-	private void sanitiseKeys() {
-		// Step 1: Spill any additional chars from key 1 to key 2
-		equaliseKeys();
-		
-		// Step 2: Remove any characters not in the cipher's alphabet
-		removeUnsupportedChars();
-		
-		// Step 3: Remove duplicate characters
-		removeDuplicateChar();
-		
-		// Step 4: Append characters, if necessary, to get the desired key length
-		addPadding();
-		
-		sanitizedKey = inputKeys[0].append(inputKeys[1]).toString();
+	public static String sanitise(CharSequence rawKey) {
+		return sanitise(rawKey, null);
 	}
-	
+
 	/**
-	 * Running time: O(n)?
-	 * Reasoning: Depends on the running time of StringBuilder.append(), which
-	 * might be O(n), since it has n characters to append. Otherwise, O(1).
-	 * 
-	 * Space complexity: 0
-	 * Reasoning: No extra variables.
+	 * Running time: O(n)
+	 * Reasoning: Each input char is checked in O(1) time (an array lookup and
+	 * a bit test), then each char of the alphabet is checked the same way
+	 * for the padding.
+	 *
+	 * Space complexity: O(1)
+	 * Reasoning: Just the output key (always 2 * ALPHABET_SIZE chars) and a
+	 * few extra variables.
+	 *
+	 * @param key1 The first input key
+	 * @param key2 The second input key, or null for none
+	 * @return A "clean" key, ready to be used in a four square cipher.
 	 */
-	private void equaliseKeys() {
-		if (inputKeys[0].length() > ALPHABET_SIZE) {
-			// append any extra characters to the second key
-			inputKeys[1].append(inputKeys[0].substring(ALPHABET_SIZE));
-			// remove those appended characters from the first key
-			inputKeys[0].delete(ALPHABET_SIZE, inputKeys[0].length());
-		}
+	public static String sanitise(CharSequence key1, CharSequence key2) {
+		final char[] out = new char[2 * ALPHABET_SIZE];
+		final int key1Len = Math.min(key1.length(), ALPHABET_SIZE);
+		int pos;
+
+		// key 1 only gets its first ALPHABET_SIZE chars...
+		pos = sanitiseKey(key1, 0, key1Len, null, out, 0);
+		// ...and the rest of them go on the end of key 2
+		sanitiseKey(key2, 0, key2 == null ? 0 : key2.length(), key1.subSequence(key1Len, key1.length()), out, pos);
+
+		return new String(out);
 	}
-	
+
 	/**
-	 * Running time: O(n)
-	 * Reasoning: Running time is proportional time to the size of the
-	 * input key.
-	 * 
-	 * Space complexity: 0
-	 * Reasoning: O(1)
-	 * Just a few extra variables whose size remains the same when the
-	 * input changes.
+	 * Copies the supported chars of key[start, end) and then extra into out
+	 * (skipping any already copied), then pads it with the unused chars of the
+	 * alphabet up to ALPHABET_SIZE chars.
+	 *
+	 * @return The position in out after the key
 	 */
-	private void removeUnsupportedChars() {
-		int i, j;
+	private static int sanitiseKey(CharSequence key, int start, int end, CharSequence extra, char[] out, int pos) {
+		final int keyStart = pos;
+		final int extraLen = (extra == null ? 0 : extra.length());
+		// the chars seen so far; bits 0-63 in [0], 64-127 in [1]
+		final long[] seen = new long[2];
+		int i;
 		char c;
-		
-		// loop through all chars in both keys
-		for (i = 0; i < 2; ++i) {
-			for (j = 0; j < inputKeys[i].length(); ++j) {
-				c = inputKeys[i].charAt(j);
-				boolean unsupported = c < 0 || c > 127 || PACKED_CHARS[(int) c] == UNKNOWN_PLACEHOLDER_PACKED;
-				
-				if (unsupported) {
-					// unsupported character; delete it
-					inputKeys[i].deleteCharAt(j);
-					// move j back one since all chars were shuffled back 1
-					--j;
-				}
+
+		for (i = start; i < end + extraLen; ++i) {
+			c = i < end ? key.charAt(i) : extra.charAt(i - end);
+
+			// (c >> 6 picks the long, and a shift only uses the bottom 6 bits of c)
+			if (c > 127 || (SUPPORTED[c >> 6] & ~seen[c >> 6] & 1L << c) == 0) {
+				// unsupported or duplicate character; skip it
+				continue;
 			}
+
+			seen[c >> 6] |= 1L << c;
+			out[pos++] = c;
 		}
+
+		// pad with the rest of the alphabet, in order
+		for (i = 0; i < ALPHABET_SIZE && pos - keyStart < ALPHABET_SIZE; ++i) {
+			c = (char)UNPACKED_CHARS[i];
+
+			if ((seen[c >> 6] & 1L << c) == 0) {
+				out[pos++] = c;
+			}
+		}
+
+		return pos;
 	}
-	
+
 	/**
-	 * Running time: O(n^2)
-	 * Reasoning: Compares every char in each key to every other
-	 * char, giving n^2.
-	 * 
-	 * Space complexity: 0
-	 * Reasoning: O(1)
-	 * Just a few extra variables whose size remains the same when the
-	 * input changes.
+	 * Running time: O(n)
+	 * Reasoning: As above; each char is looked up in the alphabet's 256 entry
+	 * table, and checked against a 256 bit bitset of the chars seen.
+	 *
+	 * Space complexity: O(1)
+	 * Reasoning: Just the output key (always 2 * alphabet size chars).
+	 *
+	 *
+	 *
+	 * (same as sanitise(rawKey), for any alphabet) Chars the alphabet folds
+	 * onto another one (eg. j onto I in the classic alphabet) are written as
+	 * that one, so they count as duplicates of it.
+	 *
+	 * @param alphabet The alphabet the key is for
+	 * @param rawKey The input key
+	 * @return A "clean" key, ready to be used in a four square cipher with
+	 * this alphabet
 	 */
-	private void removeDuplicateChar() {
-		int i, j, k;
-		StringBuilder inputKey;
-		
-		for (i = 0; i < 2; ++i) {
-			inputKey = inputKeys[i];
-			for (j = 0; j < inputKey.length(); ++j) {
-				for (k = 0; k < inputKey.length(); ++k) {
-					// char isn't be a duplicate of itself
-					if (k == j) continue;
-					
-					if (inputKey.charAt(k) == inputKey.charAt(j)) {
-						// duplicate character found
-						inputKey.deleteCharAt(k);
-						// move k back one since all chars were shuffled back 1
-						--k;
-					}
-				}
+	public static String sanitise(Alphabet alphabet, CharSequence rawKey) {
+		if (alphabet == Alphabet.DEFAULT) {
+			return sanitise(rawKey);
+		}
+
+		final int size = alphabet.size();
+		final char[] out = new char[2 * size];
+		// the chars seen by each key, one bit for each packed char
+		final long[][] seen = new long[2][4];
+		int keyNum = 0;
+		int pos = 0;
+		int i, packed;
+
+		for (i = 0; i < rawKey.length() && keyNum < 2; ++i) {
+			if (pos == size && keyNum == 0) {
+				// key 1 is full; the rest goes onto key 2
+				keyNum = 1;
+			}
+
+			packed = alphabet.indexOf(rawKey.charAt(i));
+			if (packed == -1 || (seen[keyNum][packed >> 6] & 1L << packed) != 0) {
+				// unsupported or duplicate character; skip it
+				continue;
+			}
+
+			seen[keyNum][packed >> 6] |= 1L << packed;
+			out[pos++] = alphabet.charAt(packed);
+			if (pos == 2 * size) {
+				break;
 			}
 		}
+
+		// pad each key with the rest of the alphabet, in order
+		// (if key 1 didn't fill up, key 2 is still empty)
+		pos = padKey(alphabet, seen[0], out, pos, size);
+		padKey(alphabet, seen[1], out, pos, 2 * size);
+
+		return new String(out);
 	}
-	
+
 	/**
-	 * Running time: O(n^2)
-	 * Reasoning: Loops through the alphabet and searches the key
-	 * each time for that character, giving n^2.
-	 * 
-	 * Space complexity: 0
-	 * Reasoning: O(1)
-	 * Just a few extra variables whose size remains the same when the
-	 * input changes.
+	 * Appends the chars of the alphabet that aren't in seen to out, in order,
+	 * until pos reaches end.
+	 *
+	 * @return The position in out after the padding
 	 */
-	private void addPadding() {
-		int i, j, k;
-		StringBuilder inputKey;
-		char c;
-		
-		for (i = 0; i < 2; ++i) {
-			inputKey = inputKeys[i];
-			outerLoop:
-			for (j = 0; j < UNPACKED_CHARS.length && inputKey.length() < ALPHABET_SIZE; ++j) {
-				c = (char)UNPACKED_CHARS[j];
-				for (k = 0; k < inputKey.length(); ++k) {
-					// char already included in the key; no need to add it
-					if (inputKey.charAt(k) == c) continue outerLoop;
-				}
-				
-				// character not found in the key; append it
-				inputKey.append(c);
+	private static int padKey(Alphabet alphabet, long[] seen, char[] out, int pos, int end) {
+		for (int packed = 0; packed < alphabet.size() && pos < end; ++packed) {
+			if ((seen[packed >> 6] & 1L << packed) == 0) {
+				out[pos++] = alphabet.charAt(packed);
 			}
 		}
+
+		return pos;
 	}
-	
+
+	/**
+	 * Running time: O(k * n / p), for k keys on p cores
+	 * Reasoning: Each key is sanitised in O(n) time, and the keys are shared
+	 * out between all the cores.
+	 *
+	 * Space complexity: O(k * n)
+	 * Reasoning: The sanitised keys.
+	 *
+	 *
+	 *
+	 * Sanitises lots of keys at once (eg. a whole key store being loaded), in
+	 * parallel. Each output key is exactly what getSanitizedKey would give
+	 * for the same input.
+	 *
+	 * @param rawKeys Input keys, one each
+	 * @return The sanitised keys, in the same order
+	 */
+	public static String[] sanitiseAll(CharSequence[] rawKeys) {
+		final String[] keys = new String[rawKeys.length];
+
+		Arrays.parallelSetAll(keys, i -> sanitise(rawKeys[i]));
+
+		return keys;
+	}
+
+	/**
+	 * (same as above, for a stream of keys; sanitised in parallel, but kept in
+	 * order if the stream was ordered)
+	 */
+	public static Stream<String> sanitiseAll(Stream<? extends CharSequence> rawKeys) {
+		return rawKeys.parallel().map(KeySanitiser::sanitise);
+	}
+
+	/**
+	 * Running time: O(n)
+	 * Reasoning: One pass to read the file.
+	 *
+	 * Space complexity: O(n)
+	 *
+	 *
+	 *
+	 * Reads a key from a file, for every mode that takes a key file (the server,
+	 * command line mode, containers, grep and rekey), so they all get the same
+	 * key from the same file. The bytes are read as Latin-1, so any alphabet's
+	 * chars (up to all 256 of LATIN_1) come through as they are. The line
+	 * ending an editor or echo leaves at the end is dropped, since '\n' is a
+	 * char of the default alphabet and would otherwise end up in the key.
+	 *
+	 * @return The key as written in the file (not sanitised)
+	 */
+	public static String readKeyFile(Path path) throws IOException {
+		String key = new String(Files.readAllBytes(path), StandardCharsets.ISO_8859_1);
+
+		if (key.endsWith("\n")) {
+			key = key.substring(0, key.length() - (key.endsWith("\r\n") ? 2 : 1));
+		}
+
+		return key;
+	}
+
 }
@@ -0,0 +1,382 @@
+package ie.gmit.sw;
+
+import java.util.Arrays;
+import java.util.random.RandomGenerator;
+
+/**
+ * The two key squares of a four-square key, changeable in place, with
+ * encryption and decryption tables (laid out exactly like Cipher's) kept up
+ * to date as they change. For trying lots of nearby keys one after another,
+ * eg. in a key search (see KeyRecovery).
+ *
+ * Swapping two cells, rows or columns only patches the table entries that
+ * use the moved chars: plain chars at (r1, c1) and (r2, c2) of the alphabet
+ * square encrypt to the char at (r1, c2) of the first key square and the
+ * char at (r2, c1) of the second (see Cipher.init), so a char of the first
+ * key square only appears as the first char of size ciphertext bigrams, and
+ * one of the second only as the second char. Swapping two cells patches 2 *
+ * 81 entries each way for the default alphabet, instead of all 6561.
+ *
+ * Ciphers themselves never change once they're built (so they can be shared
+ * between threads and cached); toCipher makes one from the current key.
+ * Not thread safe; each thread searching keys should have its own.
+ */
+public final class KeySquares {
+	// default for setVerifyUpdates; turned on with -Dfoursquare.verifyUpdates=true
+	private static final boolean VERIFY_UPDATES = Boolean.getBoolean("foursquare.verifyUpdates");
+
+	private final Alphabet alphabet;
+	private final int side;
+	private final int size;
+	private final int bits;
+	// the packed char in each cell of the two key squares (row * side + col)
+	private final byte[][] squares;
+	// the reverse: the row and column of each packed char in each square
+	private final byte[][] rows;
+	private final byte[][] cols;
+	// same layout as Cipher's encryptArr and decryptArr
+	private final short[] encryptArr;
+	private final short[] decryptArr;
+	// cells whose chars have moved, and need their table entries patching
+	private final int[] touched;
+
+	// if true, every change is checked against a full rebuild
+	private boolean verifyUpdates = VERIFY_UPDATES;
+
+	/**
+	 * (for the default alphabet)
+	 */
+	public KeySquares(String key) {
+		this(key, Alphabet.DEFAULT);
+	}
+
+	/**
+	 * Running time: O(n^2)
+	 * Reasoning: Every table entry is worked out once.
+	 *
+	 * Space complexity: O(n^2)
+	 * Reasoning: The two tables.
+	 *
+	 * @param key The key to start from, as for Cipher; (2 * alphabet size)
+	 * chars, each half made up of every char of the alphabet once
+	 * @param alphabet The alphabet to use
+	 */
+	public KeySquares(String key, Alphabet alphabet) {
+		final byte[] pack = alphabet.packTable();
+		int square, i;
+
+		if (key.length() != 2 * alphabet.size()) {
+			throw new IllegalArgumentException("Key must be " + 2 * alphabet.size()
+					+ " characters long for this alphabet, not " + key.length());
+		}
+
+		this.alphabet = alphabet;
+		side = alphabet.side();
+		size = alphabet.size();
+		bits = alphabet.packedBits();
+		squares = new byte[2][size];
+		rows = new byte[2][size];
+		cols = new byte[2][size];
+		encryptArr = new short[((size - 1) << bits | (size - 1)) + 1];
+		decryptArr = new short[encryptArr.length];
+		touched = new int[2 * side];
+
+		for (square = 0; square < 2; ++square) {
+			for (i = 0; i < size; ++i) {
+				squares[square][i] = pack[key.charAt(square * size + i) & 0xFF];
+			}
+		}
+
+		rebuild();
+	}
+
+	/**
+	 * Running time: O(n^2)
+	 * Reasoning: Every table entry is worked out again.
+	 *
+	 * Space complexity: O(1)
+	 *
+	 *
+	 *
+	 * Shuffles both key squares (Fisher-Yates) into a new random key.
+	 */
+	public void shuffle(RandomGenerator random) {
+		int square, i, j;
+		byte swap;
+
+		for (square = 0; square < 2; ++square) {
+			for (i = size - 1; i > 0; --i) {
+				j = random.nextInt(i + 1);
+				swap = squares[square][i];
+				squares[square][i] = squares[square][j];
+				squares[square][j] = swap;
+			}
+		}
+
+		rebuild();
+		updated();
+	}
+
+	/**
+	 * Running time: O(n)
+	 * Reasoning: 2 chars move, and each is in n ciphertext bigrams.
+	 *
+	 * Space complexity: O(1)
+	 * Reasoning: Entries are patched in place.
+	 *
+	 *
+	 *
+	 * Swaps two cells of one of the key squares. Every swap is its own
+	 * opposite, so doing it again undoes it.
+	 *
+	 * @param square 1 for the first key square (top right), 2 for the second
+	 * (bottom left)
+	 */
+	public void swapCells(int square, int row1, int col1, int row2, int col2) {
+		final int s = checkSquare(square);
+
+		swap(s, row1 * side + col1, row2 * side + col2, 0);
+		patchTouched(s, 2);
+	}
+
+	/**
+	 * Running time: O(n^1.5)
+	 * Reasoning: Same as swapCells, for the 2 * sqrt(n) cells of two rows.
+	 *
+	 * Space complexity: O(1)
+	 *
+	 *
+	 *
+	 * Swaps two whole rows of one of the key squares; see swapCells.
+	 */
+	public void swapRows(int square, int row1, int row2) {
+		final int s = checkSquare(square);
+		int col;
+
+		for (col = 0; col < side; ++col) {
+			swap(s, row1 * side + col, row2 * side + col, 2 * col);
+		}
+		patchTouched(s, 2 * side);
+	}
+
+	/**
+	 * (same as above, for two columns)
+	 */
+	public void swapColumns(int square, int col1, int col2) {
+		final int s = checkSquare(square);
+		int row;
+
+		for (row = 0; row < side; ++row) {
+			swap(s, row * side + col1, row * side + col2, 2 * row);
+		}
+		patchTouched(s, 2 * side);
+	}
+
+	/**
+	 * @return The index of the key square in squares
+	 */
+	private static int checkSquare(int square) {
+		if (square != 1 && square != 2) {
+			throw new IllegalArgumentException("Key square must be 1 or 2, not " + square);
+		}
+
+		return square - 1;
+	}
+
+	/**
+	 * Swaps two cells, noting them in touched[count] onwards.
+	 */
+	private void swap(int square, int a, int b, int count) {
+		final byte swap = squares[square][a];
+
+		squares[square][a] = squares[square][b];
+		squares[square][b] = swap;
+		touched[count] = a;
+		touched[count + 1] = b;
+	}
+
+	/**
+	 * Places and patches the first count touched cells of a square.
+	 */
+	private void patchTouched(int square, int count) {
+		int i;
+
+		for (i = 0; i < count; ++i) {
+			place(square, touched[i]);
+		}
+		for (i = 0; i < count; ++i) {
+			patch(square, touched[i]);
+		}
+
+		updated();
+	}
+
+	/**
+	 * Places every char and works out every table entry from scratch.
+	 */
+	private void rebuild() {
+		int square, cell;
+
+		// (unused indexes are left as Cipher.init leaves them)
+		Arrays.fill(encryptArr, (short)-1);
+
+		for (square = 0; square < 2; ++square) {
+			for (cell = 0; cell < size; ++cell) {
+				place(square, cell);
+			}
+		}
+
+		// every ciphertext bigram starts with a char of the first square
+		for (cell = 0; cell < size; ++cell) {
+			patch(0, cell);
+		}
+	}
+
+	/**
+	 * Records where the char in the given cell now is.
+	 */
+	private void place(int square, int cell) {
+		final int c = squares[square][cell] & 0xFF;
+
+		rows[square][c] = (byte)(cell / side);
+		cols[square][c] = (byte)(cell % side);
+	}
+
+	/**
+	 * Running time: O(n)
+	 * Reasoning: One entry each way per char of the alphabet.
+	 *
+	 * Space complexity: O(1)
+	 *
+	 *
+	 *
+	 * Works out again every ciphertext bigram with the char in the given cell
+	 * in its position (first char for the first key square, second for the
+	 * second), both ways. The encryption table is a one to one mapping both
+	 * before and after a swap, so setting the reverse of each new decryption
+	 * entry fixes up the encryption table too.
+	 */
+	private void patch(int square, int cell) {
+		final int c = squares[square][cell] & 0xFF;
+		int other, encrypted, plain;
+
+		for (other = 0; other < size; ++other) {
+			if (square == 0) {
+				encrypted = c << bits | other;
+				plain = plainBigram(c, other);
+			}
+			else {
+				encrypted = other << bits | c;
+				plain = plainBigram(other, c);
+			}
+
+			decryptArr[encrypted] = (short)plain;
+			encryptArr[plain] = (short)encrypted;
+		}
+	}
+
+	/**
+	 * @return The plain bigram (packed char 1 << bits | packed char 2) that
+	 * encrypts to the given chars
+	 */
+	private int plainBigram(int first, int second) {
+		final int plain1 = rows[0][first] * side + cols[1][second];
+		final int plain2 = rows[1][second] * side + cols[0][first];
+
+		return plain1 << bits | plain2;
+	}
+
+	/**
+	 * Called after every change to a key square.
+	 */
+	private void updated() {
+		if (verifyUpdates) {
+			verifyTables();
+		}
+	}
+
+	/**
+	 * Running time: O(n^2)
+	 * Reasoning: Builds a whole new cipher and compares the tables.
+	 *
+	 * Space complexity: O(n^2)
+	 * Reasoning: The new cipher's tables.
+	 *
+	 *
+	 *
+	 * Checks the (patched) tables against the ones a Cipher builds from
+	 * scratch for the current key.
+	 *
+	 * @throws IllegalStateException if anything's different
+	 */
+	public void verifyTables() {
+		final Cipher rebuilt = new Cipher(getKey(), alphabet);
+
+		if (!Arrays.equals(encryptArr, rebuilt.encryptTable())
+				|| !Arrays.equals(decryptArr, rebuilt.decryptTable())) {
+			throw new IllegalStateException("Patched lookup tables don't match a full rebuild");
+		}
+	}
+
+	/**
+	 * Turns on or off checking every change against a full rebuild (see
+	 * verifyTables); slow, for testing. Off unless the JVM was started with
+	 * -Dfoursquare.verifyUpdates=true.
+	 */
+	public void setVerifyUpdates(boolean verifyUpdates) {
+		this.verifyUpdates = verifyUpdates;
+	}
+
+	/**
+	 * Running time: O(n)
+	 *
+	 * Space complexity: O(n)
+	 *
+	 * @return The current key, as used by Cipher
+	 */
+	public String getKey() {
+		final char[] key = new char[2 * size];
+		int i;
+
+		for (i = 0; i < size; ++i) {
+			key[i] = alphabet.charAt(squares[0][i] & 0xFF);
+			key[size + i] = alphabet.charAt(squares[1][i] & 0xFF);
+		}
+
+		return new String(key);
+	}
+
+	/**
+	 * @return A new Cipher for the current key (which won't change with it)
+	 */
+	public Cipher toCipher(TableLayout layout) {
+		return new Cipher(getKey(), alphabet, layout);
+	}
+
+	/**
+	 * (same as above, with the default layout)
+	 */
+	public Cipher toCipher() {
+		return new Cipher(getKey(), alphabet);
+	}
+
+	public Alphabet getAlphabet() {
+		return alphabet;
+	}
+
+	/**
+	 * @return The encryption table itself (not a copy), laid out as Cipher's;
+	 * changes with the key, and mustn't be changed by the caller
+	 */
+	short[] encryptTable() {
+		return encryptArr;
+	}
+
+	/**
+	 * (same as above, for decryption)
+	 */
+	short[] decryptTable() {
+		return decryptArr;
+	}
+
+}
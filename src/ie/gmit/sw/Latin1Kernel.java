@@ -0,0 +1,71 @@
+package ie.gmit.sw;
+
+/**
+ * The encryption/decryption loop for 256 char alphabets (eg.
+ * Alphabet.LATIN_1). Every byte is in the alphabet, so nothing is ever
+ * replaced, and the table is indexed straight by the two raw bytes of a
+ * bigram: no pack or unpack lookups and no placeholder, just the one lookup
+ * per bigram.
+ */
+final class Latin1Kernel implements BigramKernel {
+	private final byte[] unpack;
+	// raw byte 1 << 8 | raw byte 2 -> output byte 1 << 8 | output byte 2
+	private final char[] directTable;
+
+	/**
+	 * Running time: O(1)
+	 * Reasoning: Always 256 * 256 entries.
+	 *
+	 * Space complexity: O(1)
+	 * Reasoning: Same as above; 128KB.
+	 *
+	 * @param table One of the Cipher's lookup tables (encryptArr or decryptArr)
+	 * @param alphabet The alphabet the table was built for; 256 chars
+	 */
+	Latin1Kernel(short[] table, Alphabet alphabet) {
+		int i;
+		int combinedResult;
+
+		unpack = alphabet.unpackTable();
+		directTable = new char[1 << 16];
+
+		for (i = 0; i < directTable.length; ++i) {
+			combinedResult = table[i] & 0xFFFF;
+
+			// (the alphabet can be in any order, so the packed chars still need unpacking here)
+			directTable[(unpack[i >> 8] & 0xFF) << 8 | (unpack[i & 0xFF] & 0xFF)]
+					= (char)((unpack[combinedResult >> 8] & 0xFF) << 8 | (unpack[combinedResult & 0xFF] & 0xFF));
+		}
+	}
+
+	/**
+	 * Running time: O(n)
+	 * Reasoning: One lookup per bigram.
+	 *
+	 * Space complexity: O(1)
+	 * Reasoning: Some extra variables.
+	 */
+	@Override
+	public int translate(byte[] src, int srcPos, byte[] dst, int dstPos, int len) {
+		final char[] directTable = this.directTable;
+		// (the whole range, odd last bigram included; see BigramKernel)
+		final int end = (len + 1) & ~1;
+		int i;
+		char result;
+
+		for (i = 0; i < end; i += 2) {
+			result = directTable[(src[srcPos + i] & 0xFF) << 8 | (src[srcPos + i + 1] & 0xFF)];
+
+			dst[dstPos + i] = (byte)(result >> 8);
+			dst[dstPos + i + 1] = (byte)result;
+		}
+
+		return end;
+	}
+
+	@Override
+	public long sizeInBytes() {
+		return directTable.length * (long)Character.BYTES;
+	}
+
+}
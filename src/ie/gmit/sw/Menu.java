@@ -45,8 +45,11 @@ public final class Menu {
 		boolean validURL;
 		File resource;
 		String resourcePath;
-		long timerStart;
-		double msTaken;
+		// what each job did: bytes, buffers, and where the time went
+		// (the global metrics if they're on, so they count menu jobs too)
+		final CipherMetrics metrics = CipherMetrics.global() != null ? CipherMetrics.global() : new CipherMetrics();
+		CipherMetrics.Snapshot before;
+		CipherProcessor processor;
 		
 		// (this anonymous inner class taken from StackOverflow in an attempt to
 		// ensure the file chooser appears on top of all other windows)
@@ -81,7 +84,8 @@ public final class Menu {
 		
 		while (running) {
 			// print main menu and get the user's option choice
-			choice = getUserOption("Encrypt", "Decrypt", "Change the key", "Print cipher key & four squares", "Exit");
+			choice = getUserOption("Encrypt", "Decrypt", "Batch encrypt/decrypt many files",
+									"Change the key", "Print cipher key & four squares", "Exit");
 			
 			switch (choice) {
 			// encryption an decryption roll into the same branch of code
@@ -161,13 +165,14 @@ public final class Menu {
 				out.printf("%s data...%n%s",
 							(encryptMode ? "Encrypting" : "Decrypting"),
 							(writeToFile ? "" : "\n")); // make some more space if we're writing to the console
-				// start the timer to measure how long encryption/decryption takes
-				timerStart = System.nanoTime();
+				// (a processor of its own, so the metrics are only set for this job)
+				processor = new CipherProcessor(cipher);
+				processor.setMetrics(metrics);
+				before = metrics.snapshot();
 				try {
-					cipher.processFile(resourcePath, encryptMode, readFromURL, writeToFile);
-					msTaken = (System.nanoTime() - timerStart) / 1000000f;
+					processor.processFile(resourcePath, encryptMode, readFromURL, writeToFile);
 					out.println("\nFinished.\n");
-					out.printf("Contents read, encrypted, and written in: %.2fms.%n%n", msTaken);
+					out.printf("%s%n%n", metrics.snapshot().minus(before).summary());
 				}
 				catch (FileNotFoundException e) {
 					System.err.println("Error while processing file:\n");
@@ -182,16 +187,41 @@ public final class Menu {
 				}
 				break;
 			case 3:
+				// Batch mode
+				encryptMode = (getUserOption("Encrypt", "Decrypt") == 1);
+				
+				out.println("Enter a folder, a glob (eg. ./input/*.txt) or @ and a file listing one path per line\n");
+				out.print("> ");
+				resourcePath = console.nextLine();
+				
+				out.printf("%n(files will be written to the \"output\" folder of this project, with the extension %s appended)%n%n",
+							(encryptMode ? "_enc" : "_dec"));
+				out.printf("%s files...%n", (encryptMode ? "Encrypting" : "Decrypting"));
+				try {
+					BatchProcessor.Result result = new BatchProcessor(cipher).process(resourcePath, encryptMode);
+					out.println("\nFinished.\n");
+					out.println(result);
+					for (BatchProcessor.Failure failure : result.getFailures()) {
+						out.println("Failed: " + failure);
+					}
+					out.println();
+				}
+				catch (IOException e) {
+					System.err.print("Error occured while trying to find the input files!\n\n");
+					e.printStackTrace(System.out);
+				}
+				break;
+			case 4:
 				// Change the key
 				cipher = initCipher();
 				break;
-			case 4:
+			case 5:
 				// Print cipher key & four squares
 				cipher.printKey();
 				cipher.printSquares();
 				out.println("\n\n(new lines are represented as the character \'^\')");
 				break;
-			case 5:
+			case 6:
 				// Exit
 				System.exit(0);
 			}
@@ -0,0 +1,317 @@
+package ie.gmit.sw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Log probabilities of every n-gram of packed characters (see
+ * Cipher.PACKED_CHARS), used to score how much a piece of text looks like
+ * the language it was trained on. The higher (closer to 0) the score, the
+ * more likely the text.
+ *
+ * The table is indexed by the n packed characters read as one base
+ * ALPHABET_SIZE number, so it has ALPHABET_SIZE^n entries: ~26KB for
+ * bigrams, ~2MB for trigrams, ~172MB for quadgrams. Trigrams are a good
+ * default; the table still (mostly) fits in the L2/L3 cache.
+ *
+ * A model can be saved as a binary table and loaded again by memory mapping
+ * it, so even a quadgram table is ready to use straight away, and is shared
+ * (through the page cache) by every JVM that loads it. The file is a 32 byte
+ * header, all little endian:
+ *  - 4 bytes: MAGIC ("NGRM")
+ *  - 4 bytes: format VERSION
+ *  - 4 bytes: n
+ *  - 4 bytes: ALPHABET_SIZE it was built with
+ *  - 8 bytes: number of n-grams counted
+ *  - 8 bytes: unused
+ * followed by the table: one unsigned 16 bit fixed point number per n-gram,
+ * the log probability times -QUANTUM_SCALE (so 0 to about -64, in steps of
+ * about 0.001; much finer than the model is accurate to). Half the size of
+ * floats, and a whole text's score is summed in integers.
+ */
+public final class NgramModel {
+	public static final int MIN_N = 2;
+	public static final int MAX_N = 4;
+	public static final int DEFAULT_N = 3;
+
+	static final int MAGIC = 'N' | 'G' << 8 | 'R' << 16 | 'M' << 24;
+	static final int VERSION = 1;
+	static final int HEADER_LEN = 32;
+	// fixed point scale of the saved log probabilities
+	static final int QUANTUM_SCALE = 1024;
+
+	// length of the n-grams
+	private final int n;
+	// ALPHABET_SIZE^(n - 1); the place value of the first char of an n-gram
+	private final int firstPlace;
+	// log10 probability of each n-gram; null if the model was loaded
+	private final float[] logProbs;
+	// the table of a loaded model, as saved (see above); null if it was built
+	private final CharBuffer quantised;
+	// number of n-grams the model was built from
+	private final long total;
+
+	private NgramModel(int n, float[] logProbs, CharBuffer quantised, long total) {
+		this.n = n;
+		this.logProbs = logProbs;
+		this.quantised = quantised;
+		this.total = total;
+		firstPlace = tableSize(n - 1);
+	}
+
+	/**
+	 * Running time: O(t + a^n), for t bytes of training text
+	 * Reasoning: Each n-gram of the text is counted in O(1) time, then each
+	 * entry of the table is turned into a log probability.
+	 *
+	 * Space complexity: O(a^n)
+	 * Reasoning: One count, then one float, per possible n-gram.
+	 *
+	 *
+	 *
+	 * Builds a model from plain text (on one thread; see NgramStatsBuilder for
+	 * big corpora). Characters outside the alphabet count as the
+	 * UNKNOWN_PLACEHOLDER, as they would be when encrypted.
+	 *
+	 * @param text Plain text in the language being modelled
+	 * @param len How much of text to use
+	 * @param n Length of the n-grams, from MIN_N to MAX_N
+	 */
+	public static NgramModel train(byte[] text, int len, int n) {
+		return new NgramStatsBuilder(n, 1).add(text, len).toModel();
+	}
+
+	/**
+	 * Running time: O(a^n)
+	 * Reasoning: One log per table entry.
+	 *
+	 * Space complexity: O(a^n)
+	 * Reasoning: The table of log probabilities.
+	 *
+	 *
+	 *
+	 * Turns n-gram counts into log probabilities. An n-gram that was never
+	 * seen gets the log of a hundredth of a count, so it's very unlikely but
+	 * never impossible (which would make one bad n-gram outweigh the rest).
+	 *
+	 * @param n Length of the n-grams
+	 * @param counts Count of each n-gram, indexed as described above
+	 * @param total Sum of the counts
+	 */
+	static NgramModel fromCounts(int n, long[] counts, long total) {
+		final float[] logProbs = new float[counts.length];
+		final double logTotal = Math.log10(Math.max(total, 1));
+		final float floor = (float)(Math.log10(0.01) - logTotal);
+		int i;
+
+		for (i = 0; i < counts.length; ++i) {
+			logProbs[i] = counts[i] == 0 ? floor : (float)(Math.log10(counts[i]) - logTotal);
+		}
+
+		return new NgramModel(n, logProbs, null, total);
+	}
+
+	/**
+	 * Running time: O(n)
+	 * Reasoning: One table lookup per n-gram in the text.
+	 *
+	 * Space complexity: O(1)
+	 * Reasoning: A few variables.
+	 *
+	 * @param packed Text of packed characters (0 to ALPHABET_SIZE - 1)
+	 * @param len How much of it to score
+	 * @return The sum of the log probabilities of every n-gram in the text
+	 */
+	public float score(byte[] packed, int len) {
+		final float[] logProbs = this.logProbs;
+		final int firstPlace = this.firstPlace;
+		float score = 0;
+		int index = 0;
+		int i;
+
+		if (logProbs == null) {
+			return scoreQuantised(packed, len);
+		}
+
+		// the first n - 1 chars only start the first n-gram
+		for (i = 0; i < n - 1 && i < len; ++i) {
+			index = index * Cipher.ALPHABET_SIZE + packed[i];
+		}
+
+		for (; i < len; ++i) {
+			index = index * Cipher.ALPHABET_SIZE + packed[i];
+			score += logProbs[index];
+			index -= packed[i - n + 1] * firstPlace;
+		}
+
+		return score;
+	}
+
+	/**
+	 * (same as above, straight from the mapped table of a loaded model)
+	 */
+	private float scoreQuantised(byte[] packed, int len) {
+		final CharBuffer quantised = this.quantised;
+		final int firstPlace = this.firstPlace;
+		long score = 0;
+		int index = 0;
+		int i;
+
+		for (i = 0; i < n - 1 && i < len; ++i) {
+			index = index * Cipher.ALPHABET_SIZE + packed[i];
+		}
+
+		for (; i < len; ++i) {
+			index = index * Cipher.ALPHABET_SIZE + packed[i];
+			score += quantised.get(index);
+			index -= packed[i - n + 1] * firstPlace;
+		}
+
+		return -score / (float)QUANTUM_SCALE;
+	}
+
+	/**
+	 * Running time: O(a^n)
+	 * Reasoning: Each table entry is written once.
+	 *
+	 * Space complexity: O(1)
+	 * Reasoning: The table is written straight into a memory mapped file.
+	 *
+	 * @param path File to save the table to (see the format above); overwritten
+	 */
+	public void save(Path path) throws IOException {
+		final long len = HEADER_LEN + 2L * tableSize(n);
+		final ByteBuffer out;
+		int i;
+
+		try (FileChannel channel = FileChannel.open(path,
+				StandardOpenOption.READ,
+				StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			out = channel.map(MapMode.READ_WRITE, 0, len).order(ByteOrder.LITTLE_ENDIAN);
+
+			out.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(Cipher.ALPHABET_SIZE).putLong(total).putLong(0);
+
+			if (logProbs == null) {
+				out.asCharBuffer().put(quantised.duplicate().clear());
+				return;
+			}
+
+			for (i = 0; i < logProbs.length; ++i) {
+				out.putChar((char)Math.min(Character.MAX_VALUE, Math.round(-logProbs[i] * QUANTUM_SCALE)));
+			}
+		}
+	}
+
+	/**
+	 * @return true if the file starts like a table saved by save
+	 */
+	public static boolean isTable(Path path) throws IOException {
+		final ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			while (magic.hasRemaining() && channel.read(magic) != -1);
+		}
+
+		return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+	}
+
+	/**
+	 * Running time: O(1)
+	 * Reasoning: The table is mapped, not read; pages are read in by the OS
+	 * as they're first used.
+	 *
+	 * Space complexity: O(1)
+	 * Reasoning: Same as above; the table stays in the page cache.
+	 *
+	 * @param path A table saved by save
+	 */
+	public static NgramModel load(Path path) throws IOException {
+		final ByteBuffer in;
+		final int n;
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			// (stays mapped after the channel is closed)
+			in = channel.map(MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		if (in.limit() < HEADER_LEN || in.getInt(0) != MAGIC) {
+			throw new IOException(path + " isn't an n-gram table");
+		}
+		if (in.getInt(4) != VERSION || in.getInt(12) != Cipher.ALPHABET_SIZE) {
+			throw new IOException(path + " was saved by a different version, or for a different alphabet");
+		}
+
+		n = in.getInt(8);
+		checkN(n);
+		if (in.limit() != HEADER_LEN + 2L * tableSize(n)) {
+			throw new IOException(path + " is the wrong size; it may have been cut short");
+		}
+
+		return new NgramModel(n, null, in.position(HEADER_LEN).slice().order(ByteOrder.LITTLE_ENDIAN).asCharBuffer(),
+				in.getLong(16));
+	}
+
+	/**
+	 * (same as above, for ordinary (unpacked) text)
+	 */
+	public float scoreText(byte[] text, int len) {
+		final byte[] packed = new byte[len];
+		int i;
+
+		for (i = 0; i < len; ++i) {
+			packed[i] = pack(text[i]);
+		}
+
+		return score(packed, len);
+	}
+
+	public int getN() {
+		return n;
+	}
+
+	/**
+	 * @return The number of n-grams the model was built from
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * @return The size of the table, in bytes
+	 */
+	public long sizeInBytes() {
+		return logProbs != null ? (long)logProbs.length * Float.BYTES : 2L * quantised.capacity();
+	}
+
+	private static byte pack(byte c) {
+		return c < 0 ? Cipher.UNKNOWN_PLACEHOLDER_PACKED : Cipher.PACKED_CHARS[c];
+	}
+
+	/**
+	 * @return ALPHABET_SIZE^n
+	 */
+	static int tableSize(int n) {
+		int size = 1;
+
+		while (n-- > 0) {
+			size *= Cipher.ALPHABET_SIZE;
+		}
+
+		return size;
+	}
+
+	static void checkN(int n) {
+		if (n < MIN_N || n > MAX_N) {
+			throw new IllegalArgumentException("n-gram length must be from " + MIN_N + " to " + MAX_N + ", not " + n);
+		}
+	}
+
+}
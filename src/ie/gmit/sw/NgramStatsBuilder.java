@@ -0,0 +1,324 @@
+package ie.gmit.sw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Counts the n-grams in any amount of text, on every core, for building an
+ * NgramModel (which can then be saved as a binary table; see NgramModel.save).
+ *
+ * Text goes through the same mapping as the cipher (Cipher.PACKED_CHARS), so
+ * each n-gram is a base ALPHABET_SIZE number indexing an array of counts.
+ * Files are memory mapped a window at a time and each window is split into
+ * one slice per thread. Every thread counts its slice into its own int array
+ * (no sharing, no locking), then the partial counts are added into one long
+ * array, the table itself shared out between the threads. A thread counts
+ * under 1GB per window, so its int counts can't overflow, and the totals can
+ * grow as big as the corpus.
+ *
+ * N-grams don't run from one file (or array) into the next, but do run over
+ * slice and window boundaries, so the counts don't depend on how the text
+ * was split up.
+ *
+ * Memory is all in the tables: ~2MB per thread plus ~4MB of totals for
+ * trigrams, but ~170MB per thread plus ~350MB of totals for quadgrams. So
+ * only as many threads count as there's room for partial tables in half of
+ * what the heap has left after the totals (eg. 10 threads for quadgrams in
+ * a 4GB heap, however many cores there are); the rest only help merge.
+ */
+public final class NgramStatsBuilder {
+	// Largest region mapped at once (plus n - 1 bytes to finish the last n-gram)
+	private static final long WINDOW_LEN = 1L << 30;
+	// Slices aren't made smaller than this; not worth a thread
+	private static final int MIN_SLICE_LEN = 1 << 16;
+	// Share of the heap (after the totals) the partial tables can take up
+	private static final double PARTIALS_HEAP_SHARE = 0.5;
+
+	private final int n;
+	private final int threads;
+	// number of threads counting, each with its own partial table; at most threads
+	private final int countThreads;
+	// ALPHABET_SIZE^(n - 1); the place value of the first char of an n-gram
+	private final int firstPlace;
+	// count of every n-gram so far
+	private final long[] counts;
+	// each thread's counts for the current window; allocated when first needed
+	private final int[][] partials;
+	private long total;
+
+	/**
+	 * @param n Length of the n-grams, from NgramModel.MIN_N to MAX_N
+	 * @param threads Number of threads to count on
+	 */
+	public NgramStatsBuilder(int n, int threads) {
+		NgramModel.checkN(n);
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1");
+		}
+
+		this.n = n;
+		this.threads = threads;
+		firstPlace = NgramModel.tableSize(n - 1);
+		counts = new long[NgramModel.tableSize(n)];
+		countThreads = (int)Math.max(1, Math.min(threads,
+				(long)((Runtime.getRuntime().maxMemory() - counts.length * (long)Long.BYTES) * PARTIALS_HEAP_SHARE)
+						/ (counts.length * (long)Integer.BYTES)));
+		partials = new int[countThreads][];
+	}
+
+	/**
+	 * (one thread per core)
+	 */
+	public NgramStatsBuilder(int n) {
+		this(n, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Running time: O(t / p + a^n), for t bytes of text on p threads
+	 * Reasoning: Each n-gram is counted in O(1) time, with the text shared out
+	 * evenly; then each table entry is merged once per window.
+	 *
+	 * Space complexity: O(p * a^n)
+	 * Reasoning: One partial table per counting thread (capped by the heap; see
+	 * above). The file is mapped rather than read in, so it's paged in and out
+	 * by the OS.
+	 *
+	 * @param file Plain text file to count the n-grams of
+	 * @return this, to chain calls
+	 */
+	public NgramStatsBuilder add(Path file) throws IOException {
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+			final long size = in.size();
+			long windowStart;
+			long windowLen;
+
+			for (windowStart = 0; windowStart < size; windowStart += WINDOW_LEN) {
+				windowLen = Math.min(WINDOW_LEN, size - windowStart);
+
+				// (the extra n - 1 bytes finish off the n-grams starting near the end)
+				addWindow(in.map(MapMode.READ_ONLY, windowStart,
+						Math.min(windowLen + n - 1, size - windowStart)), (int)windowLen);
+			}
+		}
+
+		return this;
+	}
+
+	/**
+	 * (same as above, for text already in memory)
+	 */
+	public NgramStatsBuilder add(byte[] text, int len) {
+		try {
+			addWindow(ByteBuffer.wrap(text, 0, len).slice(), len);
+		} catch (IOException e) {
+			// (only reading a file can fail)
+			throw new IllegalStateException(e);
+		}
+
+		return this;
+	}
+
+	/**
+	 * Counts every n-gram that starts in the first starts bytes of the buffer,
+	 * then adds the counts into the totals.
+	 */
+	private void addWindow(ByteBuffer text, int starts) throws IOException {
+		final int ngrams = Math.max(0, Math.min(starts, text.limit() - n + 1));
+		final int slices = Math.max(1, Math.min(countThreads, ngrams / MIN_SLICE_LEN));
+		final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(slices);
+		int i;
+
+		if (ngrams == 0) {
+			return;
+		}
+
+		for (i = 0; i < slices; ++i) {
+			final int slice = i;
+			final int from = (int)((long)ngrams * i / slices);
+			final int to = (int)((long)ngrams * (i + 1) / slices);
+
+			tasks.add(() -> {
+				if (partials[slice] == null) {
+					partials[slice] = new int[counts.length];
+				}
+				countSlice(text, from, to, partials[slice]);
+				return null;
+			});
+		}
+		run(tasks);
+
+		// merge; the table is split between the threads, and each adds up
+		// every partial count in its own part
+		tasks.clear();
+		for (i = 0; i < threads; ++i) {
+			final int from = (int)((long)counts.length * i / threads);
+			final int to = (int)((long)counts.length * (i + 1) / threads);
+
+			tasks.add(() -> {
+				merge(slices, from, to);
+				return null;
+			});
+		}
+		run(tasks);
+
+		total += ngrams;
+	}
+
+	/**
+	 * Running time: O(t)
+	 * Reasoning: One table increment per n-gram.
+	 *
+	 * Space complexity: O(1)
+	 *
+	 *
+	 *
+	 * Counts the n-grams starting at from up to (not including) to.
+	 */
+	private void countSlice(ByteBuffer text, int from, int to, int[] partial) {
+		final int firstPlace = this.firstPlace;
+		int index = 0;
+		int i;
+
+		// the first n - 1 chars only start the first n-gram
+		for (i = from; i < from + n - 1; ++i) {
+			index = index * Cipher.ALPHABET_SIZE + pack(text.get(i));
+		}
+
+		for (; i < to + n - 1; ++i) {
+			index = index * Cipher.ALPHABET_SIZE + pack(text.get(i));
+			++partial[index];
+			// drop the first char, ready for the next one
+			index -= pack(text.get(i - n + 1)) * firstPlace;
+		}
+	}
+
+	/**
+	 * Adds the partial counts in [from, to) of the table into the totals,
+	 * clearing them for the next window.
+	 */
+	private void merge(int slices, int from, int to) {
+		int slice, i;
+		int[] partial;
+
+		for (slice = 0; slice < slices; ++slice) {
+			partial = partials[slice];
+
+			for (i = from; i < to; ++i) {
+				counts[i] += partial[i];
+				partial[i] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Runs the tasks on their own threads, and waits for them all to finish.
+	 */
+	private void run(List<Callable<Void>> tasks) throws IOException {
+		final ExecutorService pool;
+
+		if (tasks.size() == 1) {
+			// not worth a thread; do it here
+			try {
+				tasks.get(0).call();
+				return;
+			} catch (Exception e) {
+				throw new IOException("Counting n-grams failed", e);
+			}
+		}
+
+		pool = Executors.newFixedThreadPool(tasks.size());
+		try {
+			for (Future<Void> result : pool.invokeAll(tasks)) {
+				result.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while counting n-grams", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Counting n-grams failed", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private static byte pack(byte c) {
+		return c < 0 ? Cipher.UNKNOWN_PLACEHOLDER_PACKED : Cipher.PACKED_CHARS[c];
+	}
+
+	/**
+	 * @return The log probability model of the n-grams counted so far
+	 */
+	public NgramModel toModel() {
+		return NgramModel.fromCounts(n, counts, total);
+	}
+
+	/**
+	 * @return The count of each n-gram, indexed by its packed chars as a base
+	 * ALPHABET_SIZE number (the array itself, not a copy)
+	 */
+	public long[] getCounts() {
+		return counts;
+	}
+
+	/**
+	 * @return The number of n-grams counted
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	public int getN() {
+		return n;
+	}
+
+	/**
+	 * @return The number of threads counting n-grams (each with its own table),
+	 * which the heap size can make fewer than the threads asked for
+	 */
+	public int getCountThreads() {
+		return countThreads;
+	}
+
+	/**
+	 * Command line entry point, run with "ngrams" as the first argument:
+	 *
+	 *   ngrams OUTPUT_FILE n INPUT_FILE...
+	 *
+	 * Counts the n-grams of every input file together and saves the model as
+	 * a binary table, ready for NgramModel.load.
+	 */
+	public static void build(String[] args) throws IOException {
+		final long start = System.nanoTime();
+		final NgramStatsBuilder builder;
+		long bytes = 0;
+		int i;
+
+		if (args.length < 3) {
+			System.err.println("Usage: ngrams OUTPUT_FILE n INPUT_FILE...");
+			return;
+		}
+
+		builder = new NgramStatsBuilder(Integer.parseInt(args[1]));
+		for (i = 2; i < args.length; ++i) {
+			builder.add(Paths.get(args[i]));
+			bytes += Paths.get(args[i]).toFile().length();
+		}
+		builder.toModel().save(Paths.get(args[0]));
+
+		System.out.printf("%d %d-grams from %.2fMB in %.0fms; saved to %s%n",
+				builder.getTotal(), builder.getN(), bytes / 1e6, (System.nanoTime() - start) / 1e6, args[0]);
+	}
+
+}
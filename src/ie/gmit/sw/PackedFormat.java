@@ -0,0 +1,345 @@
+package ie.gmit.sw;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.LongStream;
+
+/**
+ * The packed binary ciphertext format: instead of 2 bytes (2 chars) per
+ * encrypted bigram, each bigram is written as a single number, first char *
+ * alphabet size + second char, in just enough bits to hold every bigram of
+ * the alphabet. With the default 81 char alphabet there are 6561 bigrams,
+ * which fit in 13 bits, so the ciphertext is 13/16 the size of the plain
+ * format (about 19% smaller).
+ *
+ * The bits are written one after another, highest bit first, with no gaps;
+ * the last byte is padded with 0 bits. Every 8 bigrams (16 bytes of text)
+ * take a whole number of bytes (13 with the default alphabet), so text split
+ * into chunks of a multiple of 16 bytes can be packed, and unpacked, a chunk
+ * at a time, in any order. That's how the streams (PackedOutputStream and
+ * PackedInputStream) and the parallel file methods here work.
+ *
+ * Encryption goes straight from the packed chars to encryptArr to the number
+ * written out, and decryption from the number read in to decryptArr to the
+ * output bytes, so the ciphertext is never unpacked into chars at all. Like
+ * the plain format, an odd length text is padded with a space, and any byte
+ * not in the alphabet is encrypted as the placeholder.
+ *
+ * Only alphabets of at least 16 chars can be packed; with fewer, a bigram
+ * takes less than 8 bits, and the padding at the end could be mistaken for
+ * another bigram.
+ */
+public final class PackedFormat {
+	// plain bytes per group of bigrams that packs into a whole number of bytes
+	public static final int GROUP_LEN = 16;
+	// size of each chunk the parallel file methods work on; a multiple of GROUP_LEN
+	private static final int CHUNK_LEN = 1 << 20;
+
+	private final Cipher cipher;
+	private final short[] encryptArr;
+	private final short[] decryptArr;
+	private final byte[] pack;
+	private final byte[] unpack;
+	private final int size;
+	// bits per packed char (as in the lookup tables), and the mask for the second one
+	private final int charBits;
+	private final int charMask;
+	// bits per packed bigram
+	private final int bits;
+	// packed bigram -> the index of the same bigram in the lookup tables
+	// (first char << charBits | second char); numbers past the end aren't bigrams
+	private final char[] codeToIndex;
+
+	/**
+	 * Running time: O(n^2), for an alphabet of n chars
+	 * Reasoning: One table entry for each bigram.
+	 *
+	 * Space complexity: O(n^2)
+	 * Reasoning: As above (13KB for the default alphabet).
+	 *
+	 * @param cipher The cipher to encrypt/decrypt with; any changes made to its
+	 * key squares afterwards are picked up too
+	 */
+	public PackedFormat(Cipher cipher) {
+		final Alphabet alphabet = cipher.getAlphabet();
+		int code;
+
+		if (!supports(alphabet)) {
+			throw new IllegalArgumentException("The packed format needs an alphabet of at least 16 chars, not "
+					+ alphabet.size());
+		}
+
+		this.cipher = cipher;
+		encryptArr = cipher.encryptTable();
+		decryptArr = cipher.decryptTable();
+		pack = alphabet.packTable();
+		unpack = alphabet.unpackTable();
+		size = alphabet.size();
+		charBits = alphabet.packedBits();
+		charMask = (1 << charBits) - 1;
+		bits = 32 - Integer.numberOfLeadingZeros(size * size - 1);
+
+		codeToIndex = new char[size * size];
+		for (code = 0; code < codeToIndex.length; ++code) {
+			codeToIndex[code] = (char)((code / size) << charBits | code % size);
+		}
+	}
+
+	/**
+	 * @return true if text in this alphabet can be packed
+	 */
+	public static boolean supports(Alphabet alphabet) {
+		return alphabet.size() >= 16;
+	}
+
+	/**
+	 * @return Bits per bigram; 13 for the default alphabet
+	 */
+	public int getBitsPerBigram() {
+		return bits;
+	}
+
+	/**
+	 * @return The packed length of a text of plainLen bytes
+	 */
+	public long packedLength(long plainLen) {
+		return ((plainLen + 1) / 2 * bits + 7) / 8;
+	}
+
+	/**
+	 * @return The length of the text (padded to an even length) that packs to
+	 * packedLen bytes
+	 */
+	public long plainLength(long packedLen) {
+		return packedLen * 8 / bits * 2;
+	}
+
+	/**
+	 * Running time: O(n)
+	 * Reasoning: Each bigram is encrypted and written out in O(1) time.
+	 *
+	 * Space complexity: O(1)
+	 * Reasoning: Some extra variables.
+	 *
+	 *
+	 *
+	 * Encrypts len bytes of text into the packed format. Unless it's the end of
+	 * the text, len must be a multiple of GROUP_LEN, so that the next chunk
+	 * starts on a whole byte; at the end, an odd byte is padded with a space.
+	 * src and dst can be the same array, as long as dstPos <= srcPos.
+	 *
+	 * @return The number of bytes written to dst (packedLength(len))
+	 */
+	public int encrypt(byte[] src, int srcPos, int len, byte[] dst, int dstPos) {
+		final int end = srcPos + (len & ~1);
+		// bits waiting to be written (only the bottom accBits of them matter)
+		long acc = 0;
+		int accBits = 0;
+		int i, j = dstPos;
+		int out;
+
+		for (i = srcPos; i < end; i += 2) {
+			out = encryptArr[(pack[src[i] & 0xFF] & 0xFF) << charBits | pack[src[i + 1] & 0xFF] & 0xFF] & 0xFFFF;
+			acc = acc << bits | (out >> charBits) * size + (out & charMask);
+			accBits += bits;
+
+			// a bigram is at most 16 bits, so this writes at most 2 bytes
+			while (accBits >= 8) {
+				accBits -= 8;
+				dst[j++] = (byte)(acc >>> accBits);
+			}
+		}
+
+		if (len % 2 != 0) {
+			// odd number of bytes; add the buffer character (space)
+			out = encryptArr[(pack[src[end] & 0xFF] & 0xFF) << charBits | pack[' '] & 0xFF] & 0xFFFF;
+			acc = acc << bits | (out >> charBits) * size + (out & charMask);
+			accBits += bits;
+			while (accBits >= 8) {
+				accBits -= 8;
+				dst[j++] = (byte)(acc >>> accBits);
+			}
+		}
+
+		if (accBits > 0) {
+			// end of the text; pad the last byte with 0 bits
+			dst[j++] = (byte)(acc << (8 - accBits));
+		}
+
+		return j - dstPos;
+	}
+
+	/**
+	 * Running time: O(n)
+	 * Reasoning: Each bigram is read and decrypted in O(1) time.
+	 *
+	 * Space complexity: O(1)
+	 * Reasoning: Some extra variables.
+	 *
+	 *
+	 *
+	 * Decrypts len bytes of the packed format. Unless it's the end of the
+	 * ciphertext, len must be a multiple of the packed length of a group
+	 * (packedLength(GROUP_LEN)); at the end, any leftover bits are padding.
+	 * dst needs room for plainLength(len) bytes.
+	 *
+	 * @return The number of bytes written to dst (plainLength(len))
+	 * @throws IllegalArgumentException If a number in the ciphertext isn't a
+	 * bigram (ie. it isn't in the packed format, or it's corrupt)
+	 */
+	public int decrypt(byte[] src, int srcPos, int len, byte[] dst, int dstPos) {
+		final int end = srcPos + len;
+		final int codeMask = (1 << bits) - 1;
+		long acc = 0;
+		int accBits = 0;
+		int i, j = dstPos;
+		int code, out;
+
+		for (i = srcPos; i < end; ++i) {
+			acc = acc << 8 | (src[i] & 0xFF);
+			accBits += 8;
+
+			// a bigram is at least 8 bits, so there's at most one per byte
+			if (accBits >= bits) {
+				accBits -= bits;
+				code = (int)(acc >>> accBits) & codeMask;
+				if (code >= codeToIndex.length) {
+					throw new IllegalArgumentException("Not a packed bigram: " + code + " (byte " + (i - srcPos) + ")");
+				}
+
+				out = decryptArr[codeToIndex[code]] & 0xFFFF;
+				dst[j] = unpack[out >> charBits];
+				dst[j + 1] = unpack[out & charMask];
+				j += 2;
+			}
+		}
+
+		return j - dstPos;
+	}
+
+	/**
+	 * Running time: O(n / p), for p cores
+	 * Reasoning: Each chunk is packed in O(chunk) time, and the chunks are
+	 * shared out between all the cores.
+	 *
+	 * Space complexity: O(p)
+	 * Reasoning: Each core works on one chunk (and its packed form) at a time.
+	 *
+	 *
+	 *
+	 * Encrypts a whole file into the packed format, on every core at once. Each
+	 * chunk is read, packed and written at its own offset, since a chunk of
+	 * text always packs to the same length wherever it is.
+	 *
+	 * @param inputPath File to read
+	 * @param outputPath File to write to; created or overwritten
+	 * @return The packed length
+	 */
+	public long encryptFile(Path inputPath, Path outputPath) throws IOException {
+		try (FileChannel in = FileChannel.open(inputPath, StandardOpenOption.READ);
+			FileChannel out = openOutput(outputPath)) {
+			final long inputLen = in.size();
+			final long chunks = (inputLen + CHUNK_LEN - 1) / CHUNK_LEN;
+			final int packedChunkLen = (int)packedLength(CHUNK_LEN);
+
+			try {
+				LongStream.range(0, chunks).parallel().forEach(chunk -> {
+					final long start = chunk * CHUNK_LEN;
+					final byte[] text = new byte[(int)Math.min(CHUNK_LEN, inputLen - start)];
+					final byte[] packed = new byte[packedChunkLen];
+
+					readFully(in, text, start);
+					writeFully(out, packed, encrypt(text, 0, text.length, packed, 0), chunk * packedChunkLen);
+				});
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+
+			return packedLength(inputLen);
+		}
+	}
+
+	/**
+	 * (same as above, the other way round)
+	 *
+	 * @param inputPath Packed file to read
+	 * @param outputPath File to write the text to; created or overwritten
+	 * @return The length of the text
+	 * @throws IllegalArgumentException If the input isn't in the packed format
+	 */
+	public long decryptFile(Path inputPath, Path outputPath) throws IOException {
+		try (FileChannel in = FileChannel.open(inputPath, StandardOpenOption.READ);
+			FileChannel out = openOutput(outputPath)) {
+			final long inputLen = in.size();
+			final int packedChunkLen = (int)packedLength(CHUNK_LEN);
+			final long chunks = (inputLen + packedChunkLen - 1) / packedChunkLen;
+
+			try {
+				LongStream.range(0, chunks).parallel().forEach(chunk -> {
+					final long start = chunk * packedChunkLen;
+					final byte[] packed = new byte[(int)Math.min(packedChunkLen, inputLen - start)];
+					final byte[] text = new byte[CHUNK_LEN];
+
+					readFully(in, packed, start);
+					writeFully(out, text, decrypt(packed, 0, packed.length, text, 0), chunk * CHUNK_LEN);
+				});
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+
+			return plainLength(inputLen);
+		}
+	}
+
+	/**
+	 * @return The cipher this format encrypts/decrypts with
+	 */
+	public Cipher getCipher() {
+		return cipher;
+	}
+
+	private static FileChannel openOutput(Path path) throws IOException {
+		return FileChannel.open(path,
+				StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/**
+	 * Fills b from the channel, starting at pos. (Positional reads and writes
+	 * are safe from any number of threads at once; an IOException is thrown
+	 * as unchecked, to get it out of the parallel stream.)
+	 */
+	private static void readFully(FileChannel in, byte[] b, long pos) {
+		final ByteBuffer buffer = ByteBuffer.wrap(b);
+		int read;
+
+		try {
+			while (buffer.hasRemaining()) {
+				read = in.read(buffer, pos + buffer.position());
+				if (read == -1) {
+					throw new IOException("File shrank while it was being read");
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static void writeFully(FileChannel out, byte[] b, int len, long pos) {
+		final ByteBuffer buffer = ByteBuffer.wrap(b, 0, len);
+
+		try {
+			while (buffer.hasRemaining()) {
+				out.write(buffer, pos + buffer.position());
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+}
@@ -0,0 +1,151 @@
+package ie.gmit.sw;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream that decrypts packed binary ciphertext (see PackedFormat)
+ * read through it, giving back the text.
+ *
+ * A read from the underlying stream can return any number of bytes, so
+ * anything short of a whole group is held back until the rest arrives; only
+ * at the real end of the stream are the last few bits treated as padding.
+ * The text is exactly the same as unpacking the whole ciphertext in one go.
+ */
+public class PackedInputStream extends FilterInputStream {
+	// size of the ciphertext buffer, in groups
+	private static final int BUFFER_GROUPS = 512;
+
+	private final PackedFormat format;
+	// ciphertext read in but not unpacked yet, and how much there is
+	private final byte[] packed;
+	private int held;
+	// length of a packed group; packed is only unpacked in multiples of this
+	private final int groupLen;
+	// unpacked text waiting to be read, from textPos to textLen
+	private final byte[] text;
+	private int textPos;
+	private int textLen;
+	// true once the underlying stream has ended
+	private boolean eof;
+
+	/**
+	 * @param in The stream of packed ciphertext to read from
+	 * @param format The packed format of the cipher to decrypt with
+	 */
+	public PackedInputStream(InputStream in, PackedFormat format) {
+		super(in);
+		this.format = format;
+		groupLen = (int)format.packedLength(PackedFormat.GROUP_LEN);
+		packed = new byte[groupLen * BUFFER_GROUPS];
+		text = new byte[PackedFormat.GROUP_LEN * BUFFER_GROUPS];
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (textPos == textLen && !fill()) {
+			return -1;
+		}
+
+		return text[textPos++] & 0xFF;
+	}
+
+	/**
+	 * Running time: O(n)
+	 * Reasoning: Each byte read is unpacked in O(1) time.
+	 *
+	 * Space complexity: O(1)
+	 * Reasoning: The same buffers are reused for every read.
+	 */
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n;
+
+		if (len == 0) {
+			return 0;
+		}
+		if (textPos == textLen && !fill()) {
+			return -1;
+		}
+
+		n = Math.min(len, textLen - textPos);
+		System.arraycopy(text, textPos, b, off, n);
+		textPos += n;
+
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return textLen - textPos;
+	}
+
+	/**
+	 * Skips by reading (and throwing away) text, since the ciphertext can
+	 * only be unpacked from the start of a group.
+	 */
+	@Override
+	public long skip(long n) throws IOException {
+		long remaining = n;
+
+		while (remaining > 0 && (textPos < textLen || fill())) {
+			int skipped = (int)Math.min(remaining, textLen - textPos);
+
+			textPos += skipped;
+			remaining -= skipped;
+		}
+
+		return n - remaining;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * Reads and unpacks ciphertext until there's some text to give back.
+	 *
+	 * @return false at the end of the stream
+	 */
+	private boolean fill() throws IOException {
+		int read, whole;
+
+		textPos = textLen = 0;
+
+		while (textLen == 0) {
+			if (eof) {
+				return false;
+			}
+
+			read = in.read(packed, held, packed.length - held);
+			if (read == -1) {
+				// the end; whatever's held is the last of it (padding and all)
+				eof = true;
+				textLen = unpack(held);
+				held = 0;
+			}
+			else {
+				held += read;
+				whole = held - held % groupLen;
+				if (whole > 0) {
+					textLen = unpack(whole);
+					System.arraycopy(packed, whole, packed, 0, held - whole);
+					held -= whole;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	private int unpack(int len) throws IOException {
+		try {
+			return format.decrypt(packed, 0, len, text, 0);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Corrupt packed ciphertext: " + e.getMessage(), e);
+		}
+	}
+
+}
@@ -0,0 +1,141 @@
+package ie.gmit.sw;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An OutputStream that encrypts everything written through it into the
+ * packed binary format (see PackedFormat).
+ *
+ * Writes can be any length. Text is only packed a whole group (16 bytes) at
+ * a time, so anything less is held back until the next write fills the
+ * group; the end of the text (padding and all) is only written by finish()
+ * or close(). The output is exactly the same as packing the whole text in
+ * one go.
+ *
+ * Big writes are packed straight from the caller's array; small ones are
+ * collected in a buffer first.
+ */
+public class PackedOutputStream extends FilterOutputStream {
+	// size of the text buffer; must be a multiple of PackedFormat.GROUP_LEN
+	private static final int BUFFER_LEN = 8192;
+
+	private final PackedFormat format;
+	// text waiting to be packed, and how much there is
+	private final byte[] text = new byte[BUFFER_LEN];
+	private int count;
+	// the packed form of a buffer's worth of text
+	private final byte[] packed;
+	// true once finish() has been called; nothing more can be written
+	private boolean finished;
+
+	/**
+	 * @param out The stream to write the packed ciphertext to
+	 * @param format The packed format of the cipher to encrypt with
+	 */
+	public PackedOutputStream(OutputStream out, PackedFormat format) {
+		super(out);
+		this.format = format;
+		packed = new byte[(int)format.packedLength(BUFFER_LEN)];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureOpen();
+
+		text[count++] = (byte)b;
+		if (count == BUFFER_LEN) {
+			packText();
+		}
+	}
+
+	/**
+	 * Running time: O(n)
+	 * Reasoning: Each byte written is packed in O(1) time.
+	 *
+	 * Space complexity: O(1)
+	 * Reasoning: The same buffers are reused for every write.
+	 */
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		int n;
+
+		ensureOpen();
+
+		while (len > 0) {
+			if (count == 0 && len >= PackedFormat.GROUP_LEN) {
+				// whole groups, straight from b
+				n = Math.min(len, BUFFER_LEN) & ~(PackedFormat.GROUP_LEN - 1);
+				out.write(packed, 0, format.encrypt(b, off, n, packed, 0));
+			}
+			else {
+				n = Math.min(len, BUFFER_LEN - count);
+				System.arraycopy(b, off, text, count, n);
+				count += n;
+				if (count == BUFFER_LEN) {
+					packText();
+				}
+			}
+
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Writes out everything packed so far. Less than a group of text stays
+	 * held back, since packing it here would put padding in the middle.
+	 */
+	@Override
+	public void flush() throws IOException {
+		packText();
+		out.flush();
+	}
+
+	/**
+	 * Packs the rest of the text (padding the last byte), and writes
+	 * everything out, without closing the underlying stream. Nothing can be
+	 * written after this.
+	 */
+	public void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+
+		out.write(packed, 0, format.encrypt(text, 0, count, packed, 0));
+		count = 0;
+		finished = true;
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Packs and writes the whole groups in the text buffer, and moves what's
+	 * left to the start.
+	 */
+	private void packText() throws IOException {
+		final int whole = count & ~(PackedFormat.GROUP_LEN - 1);
+
+		if (whole > 0) {
+			out.write(packed, 0, format.encrypt(text, 0, whole, packed, 0));
+			System.arraycopy(text, whole, text, 0, count - whole);
+			count -= whole;
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (finished) {
+			throw new IOException("Stream already finished");
+		}
+	}
+
+}
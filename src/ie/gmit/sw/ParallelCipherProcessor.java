@@ -0,0 +1,181 @@
+package ie.gmit.sw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Encrypts/decrypts a file on every core at once.
+ *
+ * Each bigram is encrypted independently of the ones around it, so as long
+ * as a file is split on even offsets, the pieces can be processed in any
+ * order. The input file is memory mapped, split into bigram-aligned segments
+ * which are run through the Cipher on a ForkJoinPool, and written straight
+ * into a memory mapped output file of the same (padded) size.
+ *
+ * Thread safe: each job keeps its own state, so any number of files can be
+ * processed at once (sharing the pool).
+ */
+public class ParallelCipherProcessor {
+	// Segments are split until they're no bigger than this. Must be even.
+	// Big enough to make the fork/join overhead negligible, small enough
+	// to keep all the cores busy until the end.
+	private static final int SEGMENT_LEN = 1 << 20;
+	// Largest region mapped at once; a MappedByteBuffer is indexed by an
+	// int, so files over 2GB are processed one window at a time.
+	// Must be a multiple of SEGMENT_LEN.
+	private static final long WINDOW_LEN = 1L << 30;
+
+	// the cipher object to use for encryption/decryption
+	private final Cipher cipher;
+	// the pool the segments are processed on
+	private final ForkJoinPool pool;
+	// where to record what's processed, or null for nowhere
+	private volatile CipherMetrics metrics = CipherMetrics.global();
+
+	public ParallelCipherProcessor(Cipher cipher) {
+		this(cipher, ForkJoinPool.commonPool());
+	}
+
+	public ParallelCipherProcessor(Cipher cipher, ForkJoinPool pool) {
+		this.cipher = cipher;
+		this.pool = pool;
+	}
+
+	/**
+	 * Where to record the bytes and times of every segment from now on (see
+	 * CipherMetrics); null to stop recording. The files are mapped, so there's
+	 * no separate read or write time: paging the bytes in and out is counted
+	 * as cipher time, added up over every core.
+	 */
+	public void setMetrics(CipherMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Running time: O(n / p), for p cores
+	 * Reasoning: Each byte is still dealt with in O(1) time, but the bytes are
+	 * shared out evenly between all the cores.
+	 *
+	 * Space complexity: O(1)
+	 * Reasoning: The files are mapped rather than read in, so they're paged in and
+	 * out by the OS, and segments are encrypted straight from one to the other.
+	 *
+	 * @param inputPath File to read
+	 * @param outputPath File to write to; created or overwritten
+	 * @param encryptMode true for encrypt, false for decrypt
+	 */
+	public void processFile(Path inputPath, Path outputPath, boolean encryptMode) throws IOException {
+		processFile(inputPath, outputPath, encryptMode, metrics);
+	}
+	
+	/**
+	 * (same as above, recording the job in the given metrics, or nowhere if
+	 * null, instead of this processor's)
+	 */
+	void processFile(Path inputPath, Path outputPath, boolean encryptMode, CipherMetrics metrics) throws IOException {
+		try (FileChannel in = FileChannel.open(inputPath, StandardOpenOption.READ);
+			FileChannel out = FileChannel.open(outputPath,
+					StandardOpenOption.READ,
+					StandardOpenOption.WRITE,
+					StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+			final long inputLen = in.size();
+			// an odd length file gets a padding character, as in CipherProcessor
+			final long outputLen = inputLen + (inputLen & 1);
+			long windowStart;
+			long windowLen;
+
+			for (windowStart = 0; windowStart < outputLen; windowStart += WINDOW_LEN) {
+				windowLen = Math.min(WINDOW_LEN, outputLen - windowStart);
+
+				// the last window of an odd length input file is one byte short
+				MappedByteBuffer inMap = in.map(MapMode.READ_ONLY, windowStart,
+						Math.min(windowLen, inputLen - windowStart));
+				// mapping past the end grows the output file to the full size
+				MappedByteBuffer outMap = out.map(MapMode.READ_WRITE, windowStart, windowLen);
+
+				pool.invoke(new SegmentTask(inMap, outMap, 0, (int)windowLen, encryptMode, metrics));
+			}
+		}
+	}
+
+	/**
+	 * Splits a range of a mapped window in half until it's small enough, then
+	 * encrypts/decrypts it.
+	 */
+	private final class SegmentTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final MappedByteBuffer inMap;
+		private final MappedByteBuffer outMap;
+		// start and end offsets in the window; both even, except
+		// possibly the end of the very last segment
+		private final int start;
+		private final int end;
+		private final boolean encryptMode;
+		// where to record the segment, or null for nowhere
+		private final CipherMetrics metrics;
+
+		SegmentTask(MappedByteBuffer inMap, MappedByteBuffer outMap, int start, int end, boolean encryptMode,
+				CipherMetrics metrics) {
+			this.inMap = inMap;
+			this.outMap = outMap;
+			this.start = start;
+			this.end = end;
+			this.encryptMode = encryptMode;
+			this.metrics = metrics;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= SEGMENT_LEN) {
+				processSegment();
+				return;
+			}
+
+			// split in the middle, on an even offset
+			int mid = (start + (end - start) / 2) & ~1;
+			invokeAll(new SegmentTask(inMap, outMap, start, mid, encryptMode, metrics),
+					new SegmentTask(inMap, outMap, mid, end, encryptMode, metrics));
+		}
+
+		private void processSegment() {
+			int len = end - start;
+			// the input is one byte shorter than the output if its length was odd
+			int inputLen = Math.min(len, inMap.limit() - start);
+			ByteBuffer src = inMap.slice(start, inputLen);
+			ByteBuffer dst = outMap.slice(start, len);
+
+			// straight from one mapping to the other, whole bigrams only
+			CipherMetrics.transform(cipher, src, dst, encryptMode, metrics);
+
+			if (inputLen < len) {
+				// odd number of bytes; add the buffer character (space)
+				// to the last one and process that bigram on its own
+				byte[] lastBigram = {src.get(), (byte)' '};
+
+				if (encryptMode) {
+					cipher.encryptAll(lastBigram, 2);
+				}
+				else {
+					cipher.decryptAll(lastBigram, 2);
+				}
+
+				dst.put(lastBigram);
+			}
+
+			if (metrics != null) {
+				metrics.recordRead(inputLen, 0);
+				metrics.recordWrite(len, 0);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,367 @@
+package ie.gmit.sw;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Encrypts/decrypts a stream with reading, encryption and writing all
+ * happening at the same time, on different threads.
+ *
+ * A reader thread fills buffers and passes them to the cipher workers, which
+ * pass them on to the writer (the calling thread); the writer hands the empty
+ * buffers back to the reader. Every link is a single producer/single consumer
+ * ring (see SpscRing), and a fixed set of buffers goes round and round, so
+ * nothing is allocated per chunk. With more than one worker, chunks are dealt
+ * out to them in turn and collected in the same order, so the output stays
+ * in order.
+ *
+ * While the disk (or network) is busy with one chunk, the cipher can be
+ * working on another, so the total time tends towards that of the slowest
+ * stage, rather than the sum of all three.
+ *
+ * Thread safe: each job gets its own set of buffers, taken from the sets
+ * left over by earlier jobs (or allocated if there are none free), so one
+ * processor can run any number of jobs at once.
+ */
+public class PipelinedCipherProcessor {
+	public static final int DEFAULT_BUFFER_LEN = 65536;
+	public static final int DEFAULT_RING_DEPTH = 8;
+
+	// marks the end of the stream, in place of a buffer
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	// the cipher object to use for encryption/decryption
+	private final Cipher cipher;
+	// size of each buffer; even
+	private final int bufferLen;
+	// number of buffers going round the pipeline
+	private final int ringDepth;
+	// number of cipher worker threads
+	private final int workers;
+	// sets of buffers (ringDepth each) not in use by a job; a job takes one
+	// to go round its pipeline, or allocates a new one if there are none,
+	// and gives it back at the end
+	private final ConcurrentLinkedQueue<ByteBuffer[]> idleBuffers = new ConcurrentLinkedQueue<ByteBuffer[]>();
+	// where to record what's processed, or null for nowhere
+	private volatile CipherMetrics metrics = CipherMetrics.global();
+
+	public PipelinedCipherProcessor(Cipher cipher) {
+		this(cipher, DEFAULT_BUFFER_LEN, DEFAULT_RING_DEPTH, 1);
+	}
+
+	/**
+	 * @param cipher The cipher object to use
+	 * @param bufferLen Size of each buffer; must be even
+	 * @param ringDepth Number of buffers in the pipeline at once
+	 * @param workers Number of cipher worker threads
+	 */
+	public PipelinedCipherProcessor(Cipher cipher, int bufferLen, int ringDepth, int workers) {
+		if (bufferLen < 2 || bufferLen % 2 != 0) {
+			throw new IllegalArgumentException("Buffer length must be even and positive: " + bufferLen);
+		}
+		if (ringDepth < 1 || workers < 1) {
+			throw new IllegalArgumentException("Need at least one buffer and one worker");
+		}
+
+		this.cipher = cipher;
+		this.bufferLen = bufferLen;
+		this.ringDepth = ringDepth;
+		this.workers = workers;
+	}
+
+	/**
+	 * Where to record the bytes and times of every stage from now on (see
+	 * CipherMetrics); null to stop recording. Each stage records its own
+	 * time, so the read, cipher and write times overlap.
+	 */
+	public void setMetrics(CipherMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * (see process below)
+	 *
+	 * @param inputPath File to read
+	 * @param outputPath File to write to; created or overwritten
+	 * @param encryptMode true for encrypt, false for decrypt
+	 * @return The number of bytes read
+	 */
+	public long processFile(Path inputPath, Path outputPath, boolean encryptMode) throws IOException {
+		try (FileChannel in = FileChannel.open(inputPath, StandardOpenOption.READ);
+			FileChannel out = FileChannel.open(outputPath,
+					StandardOpenOption.WRITE,
+					StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+			return process(in, out, encryptMode);
+		}
+	}
+
+	/**
+	 * Running time: O(n)
+	 * Reasoning: Each byte is read, dealt with in O(1) time, then written; but
+	 * the three happen side by side, so the time taken is roughly that of the
+	 * slowest of them.
+	 *
+	 * Space complexity: O(1)
+	 * Reasoning: A fixed number of buffers (ringDepth), whatever the input size.
+	 *
+	 *
+	 *
+	 * Reads everything from in, encrypts/decrypts it, and writes it to out. The
+	 * buffers are filled completely before being passed on, so the padding
+	 * character is only ever added at the very end. Neither channel is closed.
+	 *
+	 * @param in Where to read from
+	 * @param out Where to write to
+	 * @param encryptMode true for encrypt, false for decrypt
+	 * @return The number of bytes read
+	 */
+	public long process(ReadableByteChannel in, WritableByteChannel out, boolean encryptMode) throws IOException {
+		return process(in, out, encryptMode, metrics);
+	}
+	
+	/**
+	 * (same as above, recording the job in the given metrics, or nowhere if
+	 * null, instead of this processor's)
+	 */
+	long process(ReadableByteChannel in, WritableByteChannel out, boolean encryptMode,
+			CipherMetrics metrics) throws IOException {
+		final SpscRing<ByteBuffer> free = new SpscRing<ByteBuffer>(ringDepth);
+		final SpscRing<ByteBuffer>[] toWorker = newRings();
+		final SpscRing<ByteBuffer>[] toWriter = newRings();
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final Thread writer = Thread.currentThread();
+		final Thread[] threads = new Thread[workers + 1];
+		final long[] bytesRead = new long[1];
+		ByteBuffer[] buffers = idleBuffers.poll();
+		ByteBuffer buffer;
+		long start = 0;
+		long sequence;
+		int i;
+		// true if this thread itself was interrupted (rather than woken by fail())
+		boolean interrupted = false;
+
+		if (buffers == null) {
+			buffers = new ByteBuffer[ringDepth];
+			for (i = 0; i < ringDepth; ++i) {
+				buffers[i] = ByteBuffer.allocateDirect(bufferLen);
+			}
+		}
+
+		for (ByteBuffer b : buffers) {
+			free.offer(b.clear());
+		}
+
+		threads[0] = new Thread(() -> {
+			try {
+				bytesRead[0] = read(in, free, toWorker, encryptMode, metrics);
+			} catch (Throwable e) {
+				fail(error, e, writer);
+			}
+		}, "four-square-reader");
+
+		for (i = 0; i < workers; ++i) {
+			final SpscRing<ByteBuffer> from = toWorker[i];
+			final SpscRing<ByteBuffer> to = toWriter[i];
+
+			threads[i + 1] = new Thread(() -> {
+				try {
+					transform(from, to, encryptMode, metrics);
+				} catch (Throwable e) {
+					fail(error, e, writer);
+				}
+			}, "four-square-cipher-" + i);
+		}
+
+		for (Thread thread : threads) {
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		try {
+			// the writer; takes the chunks back in the order they were read
+			for (sequence = 0; (buffer = toWriter[(int)(sequence % workers)].take()) != END; ++sequence) {
+				if (metrics != null) {
+					start = System.nanoTime();
+				}
+				while (buffer.hasRemaining()) {
+					out.write(buffer);
+				}
+				if (metrics != null) {
+					metrics.recordWrite(buffer.limit(), System.nanoTime() - start);
+				}
+
+				buffer.clear();
+				free.put(buffer);
+			}
+
+			// wait for the reader to finish, so its count is visible
+			threads[0].join();
+		} catch (InterruptedException e) {
+			// one of the other threads failed (see fail()), or this one was interrupted
+			interrupted = error.compareAndSet(null, e);
+		} catch (IOException | RuntimeException e) {
+			error.compareAndSet(null, e);
+		} finally {
+			if (error.get() != null) {
+				for (Thread thread : threads) {
+					thread.interrupt();
+				}
+				// let them wind down (briefly; a thread stuck in a read that can't
+				// be interrupted is left behind, it's a daemon) before clearing
+				// any interrupt meant to wake this thread up
+				for (Thread thread : threads) {
+					joinQuietly(thread);
+				}
+				Thread.interrupted();
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (error.get() != null) {
+			// (the buffers aren't given back; a thread left behind could still be using one)
+			throw asIOException(error.get());
+		}
+
+		idleBuffers.offer(buffers);
+		return bytesRead[0];
+	}
+
+	/**
+	 * The reader stage: fills empty buffers from the channel and deals them out
+	 * to the workers in turn, followed by an END for each worker.
+	 */
+	private long read(ReadableByteChannel in, SpscRing<ByteBuffer> free, SpscRing<ByteBuffer>[] toWorker,
+			boolean encryptMode, CipherMetrics metrics) throws IOException, InterruptedException {
+		long total = 0;
+		long sequence = 0;
+		long start = 0;
+		ByteBuffer buffer;
+		int len;
+		int i;
+
+		while (true) {
+			buffer = free.take();
+			if (metrics != null) {
+				start = System.nanoTime();
+			}
+
+			// fill the buffer until it's full or the input has ended
+			while (buffer.hasRemaining() && in.read(buffer) != -1);
+
+			if (buffer.position() == 0) {
+				break;
+			}
+			total += buffer.position();
+			if (metrics != null) {
+				metrics.recordRead(buffer.position(), System.nanoTime() - start);
+			}
+
+			if (buffer.position() % 2 != 0) {
+				// odd number of bytes; add the buffer character (space)
+				buffer.put((byte)' ');
+				if (metrics != null && encryptMode) {
+					metrics.recordPadding(cipher.getAlphabet());
+				}
+			}
+
+			buffer.flip();
+			// (the buffer belongs to the worker once it's passed on)
+			len = buffer.limit();
+			toWorker[(int)(sequence++ % workers)].put(buffer);
+
+			if (len < bufferLen) {
+				// short buffer; must be the end of the input
+				break;
+			}
+		}
+
+		// starting with the worker the next chunk would have gone to, so that
+		// the writer meets the END at exactly that point in the sequence
+		for (i = 0; i < workers; ++i) {
+			toWorker[(int)((sequence + i) % workers)].put(END);
+		}
+
+		return total;
+	}
+
+	/**
+	 * A cipher worker stage: encrypts/decrypts buffers in place and passes them
+	 * on, until it gets the END.
+	 */
+	private void transform(SpscRing<ByteBuffer> from, SpscRing<ByteBuffer> to, boolean encryptMode,
+			CipherMetrics metrics) throws InterruptedException {
+		ByteBuffer buffer;
+
+		while ((buffer = from.take()) != END) {
+			CipherMetrics.transform(cipher, buffer, encryptMode, metrics);
+
+			buffer.flip();
+			to.put(buffer);
+		}
+
+		to.put(END);
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private SpscRing<ByteBuffer>[] newRings() {
+		SpscRing<ByteBuffer>[] rings = new SpscRing[workers];
+
+		for (int i = 0; i < workers; ++i) {
+			// big enough to hold every buffer, so the reader never blocks on a worker
+			// for longer than it takes that worker to process a chunk
+			rings[i] = new SpscRing<ByteBuffer>(ringDepth + 1);
+		}
+
+		return rings;
+	}
+
+	/**
+	 * Records the first error, and wakes the writer (the calling thread) so it
+	 * stops waiting and cleans up.
+	 */
+	private static void fail(AtomicReference<Throwable> error, Throwable e, Thread writer) {
+		if (error.compareAndSet(null, e)) {
+			writer.interrupt();
+		}
+	}
+
+	private static void joinQuietly(Thread thread) {
+		try {
+			thread.join(1000);
+		} catch (InterruptedException e) {
+			// (the one from fail(); cleared afterwards anyway)
+		}
+	}
+
+	private static IOException asIOException(Throwable e) {
+		if (e instanceof IOException) {
+			return (IOException)e;
+		}
+		if (e instanceof InterruptedException) {
+			InterruptedIOException interrupted = new InterruptedIOException("Pipeline interrupted");
+			interrupted.initCause(e);
+			return interrupted;
+		}
+		if (e instanceof RuntimeException) {
+			throw (RuntimeException)e;
+		}
+		if (e instanceof Error) {
+			throw (Error)e;
+		}
+
+		return new IOException(e);
+	}
+
+}
@@ -1,10 +1,58 @@
 package ie.gmit.sw;
 
+import java.io.IOException;
+import java.util.Arrays;
+
 public final class Runner {
 	/**
 	 * Main method; breaks into OO code ASAP.
+	 * 
+	 * With no arguments, starts the interactive menu. "serve" as the first
+	 * argument starts the encryption server instead (see CipherServer.serve),
+	 * "recover" searches for a lost key (see KeyRecovery.recover), "ngrams"
+	 * builds an n-gram table from text files (see NgramStatsBuilder.build),
+	 * "container" makes or reads from a seekable encrypted file (see
+	 * CipherContainer.run), "grep" searches an encrypted file without
+	 * decrypting it (see CiphertextSearch.run), "rekey" moves an encrypted file
+	 * from one key to another in one pass (see CipherCascade.run), and
+	 * "encrypt"/"decrypt" run a single job from the command line (see Cli).
 	 */
-	public static void main(String[] args) {
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length > 0 && args[0].equals("serve")) {
+			CipherServer.serve(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		
+		if (args.length > 0 && args[0].equals("ngrams")) {
+			NgramStatsBuilder.build(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		
+		if (args.length > 0 && args[0].equals("container")) {
+			CipherContainer.run(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		
+		if (args.length > 0 && args[0].equals("grep")) {
+			CiphertextSearch.run(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		
+		if (args.length > 0 && args[0].equals("rekey")) {
+			CipherCascade.run(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		
+		if (args.length > 0 && args[0].equals("recover")) {
+			KeyRecovery.recover(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		
+		if (args.length > 0) {
+			// headless mode; never touches the menu (or AWT)
+			System.exit(Cli.run(args));
+		}
+		
 		new Menu().go();
 	}
 }
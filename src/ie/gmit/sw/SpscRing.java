@@ -0,0 +1,135 @@
+package ie.gmit.sw;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded queue for exactly one producer thread and one consumer thread.
+ *
+ * With only one thread at each end, nothing needs locking: the producer is
+ * the only one that moves the tail, the consumer the only one that moves the
+ * head, and each just publishes its own index for the other to see. Nothing
+ * is allocated per element. A thread that has to wait spins for a short
+ * while, then yields, then parks for short periods.
+ */
+final class SpscRing<T> {
+	// number of spins/yields before a waiting thread starts parking
+	private static final int SPINS = 100;
+	private static final int YIELDS = 10;
+	private static final long PARK_NANOS = 20_000;
+
+	private final Object[] slots;
+	// slots.length - 1; slots.length is a power of 2
+	private final int mask;
+	// index of the next element to take (written by the consumer only)
+	private final AtomicLong head = new AtomicLong();
+	// index of the next free slot (written by the producer only)
+	private final AtomicLong tail = new AtomicLong();
+	// each side's last look at the other's index, so it's only
+	// read again when the ring looks full/empty
+	private long cachedHead;
+	private long cachedTail;
+
+	/**
+	 * @param capacity Minimum number of elements; rounded up to a power of 2
+	 */
+	SpscRing(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		}
+
+		slots = new Object[Integer.highestOneBit(Math.max(1, capacity - 1)) << 1];
+		mask = slots.length - 1;
+	}
+
+	/**
+	 * Running time: O(1)
+	 *
+	 * Space complexity: O(1)
+	 *
+	 * (Producer only.)
+	 *
+	 * @return false if the ring is full
+	 */
+	boolean offer(T element) {
+		final long t = tail.get();
+
+		if (t - cachedHead == slots.length) {
+			cachedHead = head.get();
+			if (t - cachedHead == slots.length) {
+				return false;
+			}
+		}
+
+		slots[(int)t & mask] = element;
+		// publish the element; a release store is enough with one consumer
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	/**
+	 * (Consumer only.)
+	 *
+	 * @return The next element, or null if the ring is empty
+	 */
+	@SuppressWarnings("unchecked")
+	T poll() {
+		final long h = head.get();
+		final int slot = (int)h & mask;
+		T element;
+
+		if (h == cachedTail) {
+			cachedTail = tail.get();
+			if (h == cachedTail) {
+				return null;
+			}
+		}
+
+		element = (T)slots[slot];
+		slots[slot] = null;
+		head.lazySet(h + 1);
+		return element;
+	}
+
+	/**
+	 * Adds an element, waiting for a free slot if the ring is full. (Producer only.)
+	 */
+	void put(T element) throws InterruptedException {
+		int tries = 0;
+
+		while (!offer(element)) {
+			backOff(tries++);
+		}
+	}
+
+	/**
+	 * Takes the next element, waiting for one if the ring is empty. (Consumer only.)
+	 */
+	T take() throws InterruptedException {
+		int tries = 0;
+		T element;
+
+		while ((element = poll()) == null) {
+			backOff(tries++);
+		}
+
+		return element;
+	}
+
+	private static void backOff(int tries) throws InterruptedException {
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+
+		if (tries < SPINS) {
+			Thread.onSpinWait();
+		}
+		else if (tries < SPINS + YIELDS) {
+			Thread.yield();
+		}
+		else {
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+	}
+
+}
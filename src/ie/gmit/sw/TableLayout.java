@@ -0,0 +1,45 @@
+package ie.gmit.sw;
+
+/**
+ * How the Cipher lays out its lookup tables for the encryption/decryption
+ * loops. They all give exactly the same output; which of the plain ones is
+ * fastest depends on the CPU (cache sizes mostly), so the benchmarks compare
+ * all three. VECTOR beats all of them where it's available, so it's the
+ * default then (see Cipher.DEFAULT_LAYOUT); an explicit choice of one of the
+ * others is always kept.
+ *
+ * Only the default alphabet has a choice; any other has its own loop (see
+ * Cipher.initKernels).
+ */
+public enum TableLayout {
+	/**
+	 * The original layout: both chars are converted to packed form, joined
+	 * into a 14 bit index (7 bits each), looked up, and the result is split
+	 * and unpacked again. The table has 10321 entries, about 35% of them
+	 * unused (packed chars only go up to 80, not 127).
+	 */
+	PACKED,
+	
+	/**
+	 * Packed chars joined as (char 1 * 81 + char 2), so there are no holes:
+	 * 6561 entries, which hold the two output chars ready to use, skipping the
+	 * unpack step. About 13KB; fits in the L1 cache with plenty of room.
+	 */
+	DENSE,
+	
+	/**
+	 * Indexed directly by the two raw input bytes (all 65536 combinations,
+	 * non-ASCII included), holding the two output bytes. Skips packing,
+	 * unpacking and the non-ASCII check entirely, at the cost of a 128KB table.
+	 */
+	DIRECT,
+	
+	/**
+	 * The SIMD kernel (see VectorKernel): a 64KB table indexed by the two raw
+	 * ASCII bytes, looked up a whole vector of bigrams at a time. Needs the
+	 * JVM to be started with --add-modules jdk.incubator.vector (and not
+	 * -Dfoursquare.vector=false); without it the cipher uses PACKED instead,
+	 * and Cipher.getLayout says so.
+	 */
+	VECTOR
+}
@@ -0,0 +1,138 @@
+package ie.gmit.sw;
+
+import static ie.gmit.sw.Cipher.PACKED_CHARS;
+import static ie.gmit.sw.Cipher.UNKNOWN_PLACEHOLDER;
+import static ie.gmit.sw.Cipher.UNPACKED_CHARS;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * A SIMD version of the encryption/decryption loop, using the (incubating)
+ * Java Vector API. Only ever loaded through Cipher.newVectorKernel, and only
+ * when the JVM was started with --add-modules jdk.incubator.vector.
+ * 
+ * Instead of going through the pack table, the bigram table and the unpack
+ * table one bigram at a time, a single table is built up front, indexed
+ * directly by the two raw ASCII bytes of a bigram, holding the two output
+ * bytes. Then for a whole vector of bigrams at once:
+ * 
+ *  - non-ASCII bytes are replaced with the UNKNOWN_PLACEHOLDER (a blend;
+ *    no branches or exceptions)
+ *  - each pair of bytes is widened into a 14 bit index (7 bits each)
+ *  - the output pairs are gathered from the table
+ *  - and narrowed back down into bytes.
+ * 
+ * The output is byte for byte the same as the scalar loops in Cipher.
+ */
+final class VectorKernel implements BigramKernel {
+	// one lane per bigram
+	private static final VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_PREFERRED;
+	// bigrams per iteration
+	private static final int LANES = INT_SPECIES.length();
+	// the same number of lanes, as shorts (one bigram each)...
+	private static final VectorSpecies<Short> SHORT_SPECIES
+		= VectorSpecies.of(short.class, VectorShape.forBitSize(LANES * Short.SIZE));
+	// ...and as bytes (two per bigram)
+	private static final VectorSpecies<Byte> BYTE_SPECIES
+		= VectorSpecies.of(byte.class, VectorShape.forBitSize(LANES * Short.SIZE));
+	// bytes per iteration
+	private static final int STEP = BYTE_SPECIES.length();
+	
+	// 7 bits per raw ASCII char
+	private static final int RAW_BITS = 7;
+	private static final int RAW_MAX = (1 << RAW_BITS) - 1;
+	
+	// the gather indexes for one iteration, per thread, so translate doesn't
+	// allocate on every buffer (the kernel is shared like the Cipher is)
+	private static final ThreadLocal<int[]> INDEXES = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[LANES];
+		}
+	};
+	
+	// raw bigram (char 1 << 7 | char 2) -> output bigram (char 1 | char 2 << 8),
+	// which is the order the two bytes are in when read as a little endian short
+	private final int[] rawTable;
+	
+	/**
+	 * Running time: O(1)
+	 * Reasoning: Always 128 * 128 entries, no matter what the input is.
+	 * 
+	 * Space complexity: O(1)
+	 * Reasoning: Same as above; 64KB.
+	 * 
+	 * @param table One of the Cipher's lookup tables (encryptArr or decryptArr)
+	 */
+	VectorKernel(short[] table) {
+		int c1, c2;
+		short combinedResult;
+		
+		rawTable = new int[1 << (RAW_BITS * 2)];
+		
+		for (c1 = 0; c1 <= RAW_MAX; ++c1) {
+			for (c2 = 0; c2 <= RAW_MAX; ++c2) {
+				// exactly what the scalar loop does, done once for every possible pair
+				combinedResult = table[PACKED_CHARS[c1] << Cipher.packedBits | PACKED_CHARS[c2]];
+				
+				rawTable[c1 << RAW_BITS | c2] = UNPACKED_CHARS[combinedResult >> Cipher.packedBits]
+						| UNPACKED_CHARS[combinedResult & Cipher.packedBitsMax] << 8;
+			}
+		}
+	}
+	
+	/**
+	 * Running time: O(n)
+	 * Reasoning: Still linear, just LANES bigrams at a time.
+	 * 
+	 * Space complexity: O(1)
+	 * Reasoning: The gather indexes go in the thread's own small array.
+	 */
+	@Override
+	public int translate(byte[] src, int srcPos, byte[] dst, int dstPos, int len) {
+		final int end = len - len % STEP;
+		final int[] indexes = INDEXES.get();
+		int i;
+		ByteVector bytes;
+		VectorMask<Byte> nonAscii;
+		IntVector pairs;
+		
+		for (i = 0; i < end; i += STEP) {
+			bytes = ByteVector.fromArray(BYTE_SPECIES, src, srcPos + i);
+			
+			// non-ASCII bytes are negative; swap them for the placeholder
+			nonAscii = bytes.lt((byte)0);
+			bytes = bytes.blend(UNKNOWN_PLACEHOLDER, nonAscii);
+			
+			// widen each pair into an int: char 1 in the low byte, char 2 above it
+			pairs = (IntVector)bytes.reinterpretAsShorts()
+				.convertShape(VectorOperators.S2I, INT_SPECIES, 0);
+			
+			// table index is char 1 << 7 | char 2
+			pairs.and(RAW_MAX)
+				.lanewise(VectorOperators.LSHL, RAW_BITS)
+				.or(pairs.lanewise(VectorOperators.LSHR, 8))
+				.intoArray(indexes, 0);
+			
+			// look up every output pair at once, then narrow back down to bytes
+			((ShortVector)IntVector.fromArray(INT_SPECIES, rawTable, 0, indexes, 0)
+				.convertShape(VectorOperators.I2S, SHORT_SPECIES, 0))
+				.reinterpretAsBytes()
+				.intoArray(dst, dstPos + i);
+		}
+		
+		return end;
+	}
+	
+	@Override
+	public long sizeInBytes() {
+		return rawTable.length * (long)Integer.BYTES;
+	}
+	
+}